@@ -0,0 +1,96 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * TokenKeyGeneratorBenchmark measures how the throughput of generating tokens scales with the
+ * number of threads, for {@link TokenKeyGenerator} and for {@link UUID#randomUUID()} that it
+ * replaced. All threads share one generator, as all logins share the one in
+ * {@link GatekeeperImp}.
+ * <p>
+ * The benchmark is only compiled in the benchmark profile, and is run using:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec
+ * </pre>
+ *
+ * {@link #main(String[])} runs both benchmarks with each of {@link #THREAD_COUNTS} threads, and
+ * prints the throughput for each number of threads when all runs are done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenKeyGeneratorBenchmark {
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8, 16, 32 };
+	private final TokenKeyGenerator tokenKeyGenerator = new TokenKeyGenerator();
+
+	@Benchmark
+	public TokenKey generateTokenKey() {
+		return tokenKeyGenerator.generate();
+	}
+
+	@Benchmark
+	public UUID randomUUID() {
+		return UUID.randomUUID();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		List<RunResult> results = new ArrayList<>();
+		for (int threads : THREAD_COUNTS) {
+			Options options = new OptionsBuilder()
+					.include(TokenKeyGeneratorBenchmark.class.getName()).threads(threads).build();
+			results.addAll(new Runner(options).run());
+		}
+		printResults(results);
+	}
+
+	private static void printResults(List<RunResult> results) {
+		System.out.printf("%-20s %8s %14s %14s%n", "Benchmark", "Threads", "Score", "Error");
+		for (RunResult runResult : results) {
+			Result<?> result = runResult.getPrimaryResult();
+			System.out.printf("%-20s %8d %14.3f %14.3f %s%n", result.getLabel(),
+					runResult.getParams().getThreads(), result.getScore(),
+					result.getScoreError(), result.getScoreUnit());
+		}
+	}
+}
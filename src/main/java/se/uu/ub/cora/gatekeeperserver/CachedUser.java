@@ -0,0 +1,78 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+
+/**
+ * CachedUser is one version of a user, together with the user serialized as JSON. A new
+ * CachedUser is created each time the user is changed, so the serialized form of a CachedUser
+ * never has to be invalidated, it is made once and then reused until the CachedUser is replaced.
+ * <p>
+ * Each CachedUser gets its own version, so that a client holding a copy of a user can check if it
+ * still has the current version of the user.
+ */
+public final class CachedUser {
+	private static final AtomicLong LATEST_VERSION = new AtomicLong(new SecureRandom().nextLong());
+	private final User user;
+	private final long version;
+	private volatile String json;
+
+	public CachedUser(User user) {
+		this.user = user;
+		this.version = LATEST_VERSION.incrementAndGet();
+	}
+
+	public User getUser() {
+		return user;
+	}
+
+	/**
+	 * getVersion returns the version of this CachedUser. Versions are unique among the CachedUsers
+	 * created in this gatekeeper, and as they start at a random number, a version handed out before
+	 * the gatekeeper was restarted is very unlikely to be handed out again.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * getJson returns the user serialized by userToJson. The user is only serialized on the first
+	 * call, later calls return the same String.
+	 * <p>
+	 * Threads calling getJson at the same time before the user has been serialized may each
+	 * serialize the user, as the results are equal it does not matter which of them is kept.
+	 *
+	 * @param userToJson
+	 *            a Function serializing a user to JSON
+	 * @return the user serialized as JSON
+	 */
+	public String getJson(Function<User, String> userToJson) {
+		String cachedJson = json;
+		if (cachedJson == null) {
+			cachedJson = userToJson.apply(user);
+			json = cachedJson;
+		}
+		return cachedJson;
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2024 Uppsala University Library
+ * Copyright 2016, 2024, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,6 +19,9 @@
 
 package se.uu.ub.cora.gatekeeperserver;
 
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
 import se.uu.ub.cora.gatekeeper.user.User;
 import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
@@ -46,9 +49,48 @@ public interface Gatekeeper {
 	 * @return the {@link User} associated with the provided authentication token
 	 * @throws AuthenticationException
 	 *             if the authentication token is not valid
+	 * @throws RejectedExecutionException
+	 *             if the token is a signed token handed out by another node, and no permit to use
+	 *             storage to pick its user became free in time, see {@link StorageWorkExecutor}
 	 */
 	User getUserForToken(String token);
 
+	/**
+	 * Returns the user associated with the given authentication token, as a {@link CachedUser}
+	 * that is kept until the user is changed, so that the user can be serialized once instead of
+	 * once for each request.
+	 * 
+	 * The token is validated in the same way as in {@link #getUserForToken(String)}.
+	 *
+	 * @param token
+	 *            the authentication token to look up
+	 * @return the {@link CachedUser} for the user associated with the provided token
+	 * @throws AuthenticationException
+	 *             if the authentication token is not valid
+	 * @throws RejectedExecutionException
+	 *             if the token is a signed token handed out by another node, and no permit to use
+	 *             storage to pick its user became free in time, see {@link StorageWorkExecutor}
+	 */
+	CachedUser getCachedUserForToken(String token);
+
+	/**
+	 * Returns the users associated with the given authentication tokens, in the same order as the
+	 * tokens, as {@link CachedUser}s in the same way as {@link #getCachedUserForToken(String)}.
+	 * 
+	 * Each token is validated in the same way as in {@link #getUserForToken(String)}, but a token
+	 * that is not valid gives null in its position instead of an {@link AuthenticationException},
+	 * so that one token that is not valid does not fail the other tokens.
+	 *
+	 * @param tokens
+	 *            the authentication tokens to look up
+	 * @return a List with the {@link CachedUser} for each token, or null for each token that is
+	 *         not valid
+	 * @throws RejectedExecutionException
+	 *             if one of the tokens is a signed token handed out by another node, and no permit
+	 *             to use storage to pick its user became free in time
+	 */
+	List<CachedUser> getCachedUsersForTokens(List<String> tokens);
+
 	/**
 	 * Renews the authentication token if it is valid and eligible for renewal.
 	 *
@@ -64,6 +106,9 @@ public interface Gatekeeper {
 	 * @return a new {@link AuthToken} if renewal is successful
 	 * @throws AuthenticationException
 	 *             if the authentication token is invalid or cannot be renewed
+	 * @throws RejectedExecutionException
+	 *             if the token is a signed token handed out by another node, and no permit to use
+	 *             storage to pick its user became free in time, see {@link StorageWorkExecutor}
 	 */
 	AuthToken renewAuthToken(String tokenId, String token);
 
@@ -77,6 +122,9 @@ public interface Gatekeeper {
 	 *            the ID of the token to remove
 	 * @param token
 	 *            the authentication token to remove
+	 * @throws RejectedExecutionException
+	 *             if the token is a signed token handed out by another node, and no permit to use
+	 *             storage to pick its user became free in time, see {@link StorageWorkExecutor}
 	 */
 	void removeAuthToken(String tokenId, String token);
 
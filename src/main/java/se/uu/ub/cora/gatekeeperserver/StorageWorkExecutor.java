@@ -0,0 +1,182 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * StorageWorkExecutor runs work that can block on storage, such as picking a user when logging
+ * in. Work handed to {@link #execute(Runnable)} runs on a virtual thread. The thread handing it
+ * over, typically a container thread, never waits, the work takes a permit that is free at once or
+ * is rejected, so that the container thread is free to handle other requests while storage
+ * answers.
+ * <p>
+ * At most maxConcurrentStorageWork pieces of work use storage at the same time, so that work does
+ * not pile up without limit when storage is slow. The limit is shared with work run on the calling
+ * thread through {@link #supplyWithPermit(Supplier)} and {@link #runWithPermit(Runnable)}, so
+ * that a burst of logins, signed tokens from other nodes and data changes together never put more
+ * load than that on storage. Those wait for a permit, but never longer than
+ * {@link #PERMIT_WAIT_IN_MILLIS} and {@link #ORDERED_WORK_PERMIT_WAIT_IN_MILLIS}, and are
+ * rejected if no permit becomes free in time.
+ */
+public final class StorageWorkExecutor {
+	public static final int DEFAULT_MAX_CONCURRENT_STORAGE_WORK = 32;
+	public static final long PERMIT_WAIT_IN_MILLIS = 1000;
+	public static final long ORDERED_WORK_PERMIT_WAIT_IN_MILLIS = 30_000;
+	public static final StorageWorkExecutor INSTANCE = usingExecutor(
+			Executors.newVirtualThreadPerTaskExecutor());
+	private final Executor executor;
+	private volatile Semaphore permits;
+	private volatile int maxConcurrentStorageWork;
+	private long permitWaitInMillis = PERMIT_WAIT_IN_MILLIS;
+	private long orderedWorkPermitWaitInMillis = ORDERED_WORK_PERMIT_WAIT_IN_MILLIS;
+
+	/**
+	 * usingExecutor creates a StorageWorkExecutor handing work to the executor. The application
+	 * uses {@link #INSTANCE}, this is meant for tests that need to control when work runs.
+	 */
+	public static StorageWorkExecutor usingExecutor(Executor executor) {
+		return new StorageWorkExecutor(executor);
+	}
+
+	private StorageWorkExecutor(Executor executor) {
+		this.executor = executor;
+		setMaxConcurrentStorageWork(DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+	}
+
+	/**
+	 * setMaxConcurrentStorageWork sets the number of pieces of work that can use storage at the
+	 * same time. Work already running or waiting keeps the limit it started with.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if maxConcurrentStorageWork is less than 1, as no work would ever get a permit
+	 */
+	public void setMaxConcurrentStorageWork(int maxConcurrentStorageWork) {
+		if (maxConcurrentStorageWork < 1) {
+			throw new IllegalArgumentException("Max concurrent storage work must be at least 1, "
+					+ "was: " + maxConcurrentStorageWork);
+		}
+		this.maxConcurrentStorageWork = maxConcurrentStorageWork;
+		permits = new Semaphore(maxConcurrentStorageWork);
+	}
+
+	/**
+	 * execute takes a permit to use storage, without waiting for one, and runs the work on a
+	 * virtual thread. The work is responsible for handling its own errors, as there is no caller
+	 * left to report them to.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if no permit is free, or if the work can not be accepted, as when the executor is
+	 *             shut down
+	 */
+	public void execute(Runnable work) {
+		Semaphore currentPermits = permits;
+		if (!currentPermits.tryAcquire()) {
+			throw new RejectedExecutionException("No permit to use storage is free");
+		}
+		try {
+			executor.execute(() -> runAndRelease(work, currentPermits));
+		} catch (RejectedExecutionException e) {
+			currentPermits.release();
+			throw e;
+		}
+	}
+
+	private void runAndRelease(Runnable work, Semaphore currentPermits) {
+		try {
+			work.run();
+		} finally {
+			currentPermits.release();
+		}
+	}
+
+	/**
+	 * runWithPermit runs the work on the calling thread, when it is its turn to use storage. It
+	 * is meant for work that must be done in order on the calling thread, such as handling data
+	 * change messages. Such work can not be skipped when storage is busy for a moment, so it waits
+	 * up to {@link #ORDERED_WORK_PERMIT_WAIT_IN_MILLIS} for a permit.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if no permit becomes free in time, or the calling thread is interrupted while
+	 *             waiting for one
+	 */
+	public void runWithPermit(Runnable work) {
+		supplyWithPermit(() -> {
+			work.run();
+			return null;
+		}, orderedWorkPermitWaitInMillis);
+	}
+
+	/**
+	 * supplyWithPermit runs the work on the calling thread, when it is its turn to use storage,
+	 * and returns its result. It is meant for work that a caller needs the answer from, such as
+	 * picking the user of a signed token handed out by another node, so it waits at most
+	 * {@link #PERMIT_WAIT_IN_MILLIS} for a permit.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if no permit becomes free in time, or the calling thread is interrupted while
+	 *             waiting for one
+	 */
+	public <T> T supplyWithPermit(Supplier<T> work) {
+		return supplyWithPermit(work, permitWaitInMillis);
+	}
+
+	private <T> T supplyWithPermit(Supplier<T> work, long waitInMillis) {
+		Semaphore currentPermits = permits;
+		acquirePermitOrReject(currentPermits, waitInMillis);
+		try {
+			return work.get();
+		} finally {
+			currentPermits.release();
+		}
+	}
+
+	private void acquirePermitOrReject(Semaphore currentPermits, long waitInMillis) {
+		try {
+			if (!currentPermits.tryAcquire(waitInMillis, TimeUnit.MILLISECONDS)) {
+				throw new RejectedExecutionException("No permit to use storage became free within "
+						+ waitInMillis + " milliseconds");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("Interrupted while waiting for a permit", e);
+		}
+	}
+
+	public int getMaxConcurrentStorageWork() {
+		return maxConcurrentStorageWork;
+	}
+
+	void onlyForTestSetPermitWaitInMillis(long permitWaitInMillis) {
+		this.permitWaitInMillis = permitWaitInMillis;
+	}
+
+	void onlyForTestSetOrderedWorkPermitWaitInMillis(long orderedWorkPermitWaitInMillis) {
+		this.orderedWorkPermitWaitInMillis = orderedWorkPermitWaitInMillis;
+	}
+
+	int onlyForTestGetNumberOfAvailablePermits() {
+		return permits.availablePermits();
+	}
+}
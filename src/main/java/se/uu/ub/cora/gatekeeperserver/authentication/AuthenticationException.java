@@ -1,5 +1,5 @@
 /*
- * Copyright 2015, 2019 Uppsala University Library
+ * Copyright 2015, 2019, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -30,4 +30,21 @@ public class AuthenticationException extends RuntimeException {
 	public AuthenticationException(String message, Exception exception) {
 		super(message, exception);
 	}
+
+	/**
+	 * withoutStackTrace creates an AuthenticationException that does not fill in a stack trace and
+	 * does not record suppressed exceptions. Such an exception is cheap to throw and can be created
+	 * once and shared, which is useful for expected failures on frequently called paths.
+	 *
+	 * @param message
+	 *            the message of the exception
+	 * @return an AuthenticationException without stack trace
+	 */
+	public static AuthenticationException withoutStackTrace(String message) {
+		return new AuthenticationException(message, false);
+	}
+
+	private AuthenticationException(String message, boolean writableStackTrace) {
+		super(message, null, false, writableStackTrace);
+	}
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2025 Uppsala University Library
+ * Copyright 2016, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,119 +19,206 @@
 
 package se.uu.ub.cora.gatekeeperserver.authentication;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
+import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.core.Response;
-import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
 import se.uu.ub.cora.gatekeeperserver.Gatekeeper;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
-import se.uu.ub.cora.json.builder.JsonArrayBuilder;
-import se.uu.ub.cora.json.builder.JsonObjectBuilder;
-import se.uu.ub.cora.json.builder.org.OrgJsonBuilderFactoryAdapter;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
+import se.uu.ub.cora.json.parser.JsonArray;
+import se.uu.ub.cora.json.parser.JsonParseException;
+import se.uu.ub.cora.json.parser.JsonString;
+import se.uu.ub.cora.json.parser.JsonValue;
+import se.uu.ub.cora.json.parser.org.OrgJsonParser;
 
 @Path("user")
 public class AuthenticatorEndpoint {
 
-	private static final String NAME = "name";
-	private static final String CHILDREN = "children";
+	private static final int MAX_NUMBER_OF_TOKENS_IN_BATCH = 1000;
+	private static final int MAX_BATCH_BODY_LENGTH = 2 * 1024 * 1024;
+	private static final String IF_NONE_MATCH = "If-None-Match";
+	private static final String ETAG = "ETag";
+	private static final String ACCEPT = "Accept";
+	private static final String VARY = "Vary";
+	private static final String FLAT_ETAG_SUFFIX = "-flat";
+	private static final String WEAK_ETAG_PREFIX = "W/";
+	private static final String UNAUTHORIZED_JSON = "{\"status\":\"401\"}";
 	private Gatekeeper gatekeeper;
-	private OrgJsonBuilderFactoryAdapter orgJsonBuilderFactoryAdapter;
+	private UserJsonWriter userJsonWriter;
 
 	public AuthenticatorEndpoint() {
 		gatekeeper = GatekeeperInstanceProvider.getGatekeeper();
-		orgJsonBuilderFactoryAdapter = new OrgJsonBuilderFactoryAdapter();
+		userJsonWriter = new UserJsonWriter();
 	}
 
 	// TODO: create getGuestUser method in gatekeeper, instead of using getUseForToken(null)
 	@GET
-	public Response getUserWithoutToken() {
-		return tryToGetUserForToken(null);
+	public Response getUserWithoutToken(@HeaderParam(IF_NONE_MATCH) String ifNoneMatch,
+			@HeaderParam(ACCEPT) String accept) {
+		return tryToGetUserForToken(null, ifNoneMatch, accept);
 	}
 
+	/**
+	 * getUserForToken answers with the user for the token, together with an ETag for the version
+	 * of the user. If the ETag is listed in the If-None-Match header, the answer is 304 Not
+	 * Modified without the user, as the client already has the current version of it.
+	 * <p>
+	 * The user is answered as flat json if the client prefers {@link FlatJsonMediaTypes#USER}, see
+	 * {@link FlatJsonMediaTypes#isRequested(String, String)}, with an ETag of its own, otherwise
+	 * in the Cora data format with the same media type as before ETags were added. Both are
+	 * answered with Vary: Accept, as the representation depends on the Accept header.
+	 * <p>
+	 * A signed token handed out by another node needs its user picked from storage. If no permit
+	 * to use storage becomes free in time, the answer is 503, as the token can still be valid.
+	 */
 	@GET
 	@Path("{token}")
-	public Response getUserForToken(@PathParam("token") String token) {
+	public Response getUserForToken(@PathParam("token") String token,
+			@HeaderParam(IF_NONE_MATCH) String ifNoneMatch, @HeaderParam(ACCEPT) String accept) {
 		try {
-			return tryToGetUserForToken(token);
+			return tryToGetUserForToken(token, ifNoneMatch, accept);
 		} catch (AuthenticationException e) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
+		} catch (RejectedExecutionException e) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
 		}
 	}
 
-	private Response tryToGetUserForToken(String token) {
-		User user = gatekeeper.getUserForToken(token);
-		String json = convertUserToCompactJson(user);
-		return Response.status(Response.Status.OK).entity(json).build();
-	}
-
-	private String convertUserToCompactJson(User user) {
-		JsonObjectBuilder userBuilder = convertUserToJson(user);
-		return userBuilder.toJsonFormattedString();
-	}
-
-	private JsonObjectBuilder convertUserToJson(User user) {
-		JsonObjectBuilder userBuilder = createObjectBuilderWithName(user.id);
-		JsonArrayBuilder userChildren = createArrayBuildeWithObjectBuilder(userBuilder);
-		addUserRoles(user, userChildren);
-		addPermissionUnits(user, userChildren);
-		setActiveUser(user, userChildren);
-		return userBuilder;
+	private Response tryToGetUserForToken(String token, String ifNoneMatch, String accept) {
+		CachedUser cachedUser = gatekeeper.getCachedUserForToken(token);
+		boolean flat = FlatJsonMediaTypes.isRequested(accept, FlatJsonMediaTypes.USER);
+		String eTag = createETag(cachedUser, flat);
+		if (eTagMatchesIfNoneMatch(eTag, ifNoneMatch)) {
+			return Response.status(Response.Status.NOT_MODIFIED).header(ETAG, eTag)
+					.header(VARY, ACCEPT).build();
+		}
+		if (flat) {
+			return Response.status(Response.Status.OK).entity(cachedUser.getUser())
+					.type(FlatJsonMediaTypes.USER).header(ETAG, eTag).header(VARY, ACCEPT)
+					.build();
+		}
+		String json = cachedUser.getJson(userJsonWriter::writeUser);
+		return Response.status(Response.Status.OK).entity(json).header(ETAG, eTag)
+				.header(VARY, ACCEPT).build();
 	}
 
-	private void setActiveUser(User user, JsonArrayBuilder userChildren) {
-		String status = user.active ? "active" : "inactive";
-		createAtomicElement("activeStatus", status, userChildren);
+	private String createETag(CachedUser cachedUser, boolean flat) {
+		String version = Long.toHexString(cachedUser.getVersion());
+		return "\"" + (flat ? version + FLAT_ETAG_SUFFIX : version) + "\"";
 	}
 
-	private JsonObjectBuilder createObjectBuilderWithName(String name) {
-		JsonObjectBuilder roleBuilder = orgJsonBuilderFactoryAdapter.createObjectBuilder();
-		roleBuilder.addKeyString(NAME, name);
-		return roleBuilder;
+	private boolean eTagMatchesIfNoneMatch(String eTag, String ifNoneMatch) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String listedETag : ifNoneMatch.split(",")) {
+			if (eTagMatches(eTag, listedETag.trim())) {
+				return true;
+			}
+		}
+		return false;
 	}
 
-	private JsonArrayBuilder createArrayBuildeWithObjectBuilder(JsonObjectBuilder userBuilder) {
-		JsonArrayBuilder userChildren = orgJsonBuilderFactoryAdapter.createArrayBuilder();
-		userBuilder.addKeyJsonArrayBuilder(CHILDREN, userChildren);
-		return userChildren;
+	private boolean eTagMatches(String eTag, String listedETag) {
+		if ("*".equals(listedETag)) {
+			return true;
+		}
+		return eTag.equals(removeWeakPrefix(listedETag));
 	}
 
-	private void addUserRoles(User user, JsonArrayBuilder userChildren) {
-		JsonArrayBuilder userRoleChildren = createUserRole(userChildren);
-		createAndAddUserRolesToPermissionRoles(user, userRoleChildren);
+	private String removeWeakPrefix(String listedETag) {
+		if (listedETag.startsWith(WEAK_ETAG_PREFIX)) {
+			return listedETag.substring(WEAK_ETAG_PREFIX.length());
+		}
+		return listedETag;
 	}
 
-	private JsonArrayBuilder createUserRole(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder userRoleBuilder = createObjectBuilderWithName("userRole");
-		userChildren.addJsonObjectBuilder(userRoleBuilder);
-		return createArrayBuildeWithObjectBuilder(userRoleBuilder);
+	/**
+	 * getUsersForTokens resolves a JSON array of tokens in one call to the gatekeeper, and answers
+	 * with a JSON array holding, in the same order, the user for each token in the same format as
+	 * {@link #getUserForToken(String, String, String)} in the Cora data format, or
+	 * {"status":"401"} for a token that is not valid. Each user is written from the JSON cached in
+	 * its {@link CachedUser}, so a user is only serialized once for all requests.
+	 * <p>
+	 * At most {@value #MAX_BATCH_BODY_LENGTH} bytes of the body are read, a longer body is
+	 * answered with 413 without being parsed. A body that is not a JSON array of strings, or that
+	 * holds more than {@value #MAX_NUMBER_OF_TOKENS_IN_BATCH} tokens, is answered with 400. The
+	 * whole batch is answered with 503 in the same cases as
+	 * {@link #getUserForToken(String, String, String)}.
+	 */
+	@POST
+	@Path("batch")
+	@Consumes("application/json")
+	@Produces("application/json")
+	public Response getUsersForTokens(InputStream jsonTokens) {
+		try {
+			return tryToGetUsersForTokens(jsonTokens);
+		} catch (JsonParseException | IOException _) {
+			return Response.status(Response.Status.BAD_REQUEST).build();
+		} catch (RejectedExecutionException e) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+		}
 	}
 
-	private void createAndAddUserRolesToPermissionRoles(User user,
-			JsonArrayBuilder permissionRoles) {
-		for (String roleId : user.roles) {
-			JsonObjectBuilder permissionRoleBuilder = createPermissionRoleBuilder(permissionRoles);
-			JsonArrayBuilder permissionRoleChildren = createArrayBuildeWithObjectBuilder(
-					permissionRoleBuilder);
-			createAtomicElement("id", roleId, permissionRoleChildren);
+	private Response tryToGetUsersForTokens(InputStream jsonTokens) throws IOException {
+		byte[] body = jsonTokens.readNBytes(MAX_BATCH_BODY_LENGTH + 1);
+		if (body.length > MAX_BATCH_BODY_LENGTH) {
+			return Response.status(Response.Status.REQUEST_ENTITY_TOO_LARGE).build();
+		}
+		JsonValue jsonValue = new OrgJsonParser()
+				.parseString(new String(body, StandardCharsets.UTF_8));
+		List<String> tokens = getTokensOrNullIfNotArrayOfStrings(jsonValue);
+		if (tokens == null || tokens.size() > MAX_NUMBER_OF_TOKENS_IN_BATCH) {
+			return Response.status(Response.Status.BAD_REQUEST).build();
 		}
+		List<CachedUser> cachedUsers = gatekeeper.getCachedUsersForTokens(tokens);
+		return Response.status(Response.Status.OK).entity(writeUsers(cachedUsers)).build();
 	}
 
-	private JsonObjectBuilder createPermissionRoleBuilder(JsonArrayBuilder rolesPlusChildren) {
-		JsonObjectBuilder permissionRoleBuilder = createObjectBuilderWithName("permissionRole");
-		rolesPlusChildren.addJsonObjectBuilder(permissionRoleBuilder);
-		return permissionRoleBuilder;
+	private List<String> getTokensOrNullIfNotArrayOfStrings(JsonValue jsonValue) {
+		if (!(jsonValue instanceof JsonArray jsonArray)) {
+			return null;
+		}
+		List<String> tokens = new ArrayList<>();
+		for (JsonValue jsonToken : jsonArray) {
+			if (!(jsonToken instanceof JsonString jsonString)) {
+				return null;
+			}
+			tokens.add(jsonString.getStringValue());
+		}
+		return tokens;
 	}
 
-	private void createAtomicElement(String atomicName, String atomicValue,
-			JsonArrayBuilder permissionRoleChildren) {
-		JsonObjectBuilder roleBuilder = createObjectBuilderWithName(atomicName);
-		permissionRoleChildren.addJsonObjectBuilder(roleBuilder);
-		roleBuilder.addKeyString("value", atomicValue);
+	private String writeUsers(List<CachedUser> cachedUsers) {
+		StringBuilder json = new StringBuilder();
+		json.append('[');
+		for (int i = 0; i < cachedUsers.size(); i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append(getUserOrUnauthorizedJson(cachedUsers.get(i)));
+		}
+		json.append(']');
+		return json.toString();
 	}
 
-	private void addPermissionUnits(User user, JsonArrayBuilder userChildren) {
-		user.permissionUnitIds.forEach(permissionUnitId -> createAtomicElement("permissionUnit",
-				permissionUnitId, userChildren));
+	private String getUserOrUnauthorizedJson(CachedUser cachedUser) {
+		if (cachedUser == null) {
+			return UNAUTHORIZED_JSON;
+		}
+		return cachedUser.getJson(userJsonWriter::writeUser);
 	}
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.authentication;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
+import se.uu.ub.cora.gatekeeperserver.json.JsonStringWriter;
+
+/**
+ * FlatUserWriter writes a User as flat json, {@link FlatJsonMediaTypes#USER}, as in:
+ *
+ * <pre>
+ * {"id":"someId","active":true,"roles":["someRole"],"permissionUnits":["001"]}
+ * </pre>
+ */
+@Provider
+@Produces(FlatJsonMediaTypes.USER)
+public final class FlatUserWriter implements MessageBodyWriter<User> {
+	private static final int ESTIMATED_LENGTH = 128;
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return User.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public void writeTo(User user, Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, Object> httpHeaders,
+			OutputStream entityStream) throws IOException {
+		entityStream.write(toFlatJson(user).getBytes(StandardCharsets.UTF_8));
+	}
+
+	String toFlatJson(User user) {
+		StringBuilder json = new StringBuilder(ESTIMATED_LENGTH);
+		json.append("{\"id\":");
+		JsonStringWriter.writeString(user.id, json);
+		json.append(",\"active\":").append(user.active);
+		json.append(",\"roles\":");
+		writeStrings(user.roles, json);
+		json.append(",\"permissionUnits\":");
+		writeStrings(user.permissionUnitIds, json);
+		json.append('}');
+		return json.toString();
+	}
+
+	private void writeStrings(Collection<String> strings, StringBuilder json) {
+		json.append('[');
+		boolean first = true;
+		for (String string : strings) {
+			if (!first) {
+				json.append(',');
+			}
+			JsonStringWriter.writeString(string, json);
+			first = false;
+		}
+		json.append(']');
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.authentication;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.json.JsonStringWriter;
+
+/**
+ * UserJsonWriter writes users in the Cora data format straight into a StringBuilder, without first
+ * building a tree of json builders for each role and permission unit.
+ * <p>
+ * The output is byte identical to what OrgJsonBuilderFactoryAdapter gives for the same user, keys
+ * are written in the order org.json writes them, "children" before "name" and "name" before
+ * "value", and strings are escaped by {@link JsonStringWriter}.
+ */
+final class UserJsonWriter {
+	private static final int ESTIMATED_CHARACTERS_PER_USER = 128;
+	private static final int ESTIMATED_CHARACTERS_PER_ROLE_OR_UNIT = 64;
+	private static final String CHILDREN_START = "{\"children\":[";
+	private static final String CHILDREN_END_NAME = "],\"name\":";
+	private static final String NAME_START = "{\"name\":";
+	private static final String VALUE = ",\"value\":";
+	private static final char OBJECT_END = '}';
+	private static final char SEPARATOR = ',';
+
+	String writeUser(User user) {
+		StringBuilder json = new StringBuilder(estimateLength(user));
+		writeUser(user, json);
+		return json.toString();
+	}
+
+	private int estimateLength(User user) {
+		int numberOfRolesAndUnits = user.roles.size() + user.permissionUnitIds.size();
+		return ESTIMATED_CHARACTERS_PER_USER
+				+ numberOfRolesAndUnits * ESTIMATED_CHARACTERS_PER_ROLE_OR_UNIT;
+	}
+
+	void writeUser(User user, StringBuilder json) {
+		json.append(CHILDREN_START);
+		writeUserRole(user, json);
+		writePermissionUnits(user, json);
+		json.append(SEPARATOR);
+		writeAtomic("activeStatus", user.active ? "active" : "inactive", json);
+		endChildrenWithName(user.id, json);
+	}
+
+	private void writeUserRole(User user, StringBuilder json) {
+		json.append(CHILDREN_START);
+		boolean first = true;
+		for (String roleId : user.roles) {
+			first = writeSeparatorIfNotFirst(first, json);
+			writePermissionRole(roleId, json);
+		}
+		endChildrenWithName("userRole", json);
+	}
+
+	private boolean writeSeparatorIfNotFirst(boolean first, StringBuilder json) {
+		if (!first) {
+			json.append(SEPARATOR);
+		}
+		return false;
+	}
+
+	private void writePermissionRole(String roleId, StringBuilder json) {
+		json.append(CHILDREN_START);
+		writeAtomic("id", roleId, json);
+		endChildrenWithName("permissionRole", json);
+	}
+
+	private void writePermissionUnits(User user, StringBuilder json) {
+		for (String permissionUnitId : user.permissionUnitIds) {
+			json.append(SEPARATOR);
+			writeAtomic("permissionUnit", permissionUnitId, json);
+		}
+	}
+
+	private void writeAtomic(String name, String value, StringBuilder json) {
+		json.append(NAME_START);
+		writeString(name, json);
+		json.append(VALUE);
+		writeString(value, json);
+		json.append(OBJECT_END);
+	}
+
+	private void endChildrenWithName(String name, StringBuilder json) {
+		json.append(CHILDREN_END_NAME);
+		writeString(name, json);
+		json.append(OBJECT_END);
+	}
+
+	private void writeString(String value, StringBuilder json) {
+		JsonStringWriter.writeString(value, json);
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2025 Uppsala University Library
+ * Copyright 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,6 +20,7 @@ package se.uu.ub.cora.gatekeeperserver.cache;
 
 import java.util.Map;
 
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
 import se.uu.ub.cora.logger.Logger;
 import se.uu.ub.cora.logger.LoggerProvider;
@@ -43,7 +44,10 @@ public class DataChangeMessageReceiver implements MessageReceiver {
 	private void handleUserChanges(Map<String, String> headers) {
 		String type = headers.get("type");
 		if ("user".equals(type)) {
-			handleDataChangedForGatekeeper(type, headers.get("id"), headers.get("action"));
+			String id = headers.get("id");
+			String action = headers.get("action");
+			StorageWorkExecutor.INSTANCE
+					.runWithPermit(() -> handleDataChangedForGatekeeper(type, id, action));
 		}
 	}
 
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveUserState.TokenState;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+
+/**
+ * ActiveTokenDataFormat writes and reads active user states, revoked tokens and active token
+ * events in the binary form shared by {@link ActiveTokenSnapshotFile},
+ * {@link ActiveTokenLog} and {@link ActiveTokenReplicator}. Values are written to a
+ * DataOutputStream and read back from a ByteBuffer, so that stored files can be decoded directly
+ * from a memory map.
+ * <p>
+ * {@link #FORMAT_VERSION} is written by the users of the format in front of the data, and must be
+ * increased whenever the encoding changes, so that data written by an earlier version is rejected
+ * instead of being decoded wrongly.
+ */
+final class ActiveTokenDataFormat {
+	static final int FORMAT_VERSION = 3;
+	private static final int NULL_STRING = -1;
+	private static final byte TOKEN_ADDED = 1;
+	private static final byte TOKEN_REMOVED = 2;
+	private static final byte USER_UPDATED = 3;
+	private static final byte TOKEN_REVOKED = 4;
+
+	private ActiveTokenDataFormat() {
+	}
+
+	/**
+	 * toBytes returns the bytes written by the dataWriter, preceded by headerLength zero bytes that
+	 * the caller can fill in afterwards.
+	 */
+	static byte[] toBytes(int headerLength, DataWriter dataWriter) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.write(new byte[headerLength]);
+			dataWriter.write(out);
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static void writeActiveTokenAdded(DataOutputStream out, TokenKey token,
+			ActiveTokenForUser tokenForUser, User user) throws IOException {
+		out.writeByte(TOKEN_ADDED);
+		writeTokenKey(out, token);
+		writeTokenKey(out, tokenForUser.tokenId());
+		writeString(out, tokenForUser.loginId());
+		out.writeLong(tokenForUser.validUntil());
+		out.writeLong(tokenForUser.renewUntil());
+		writeUser(out, user);
+	}
+
+	static void writeActiveTokenRemoved(DataOutputStream out, TokenKey token) throws IOException {
+		out.writeByte(TOKEN_REMOVED);
+		writeTokenKey(out, token);
+	}
+
+	static void writeActiveUserUpdated(DataOutputStream out, String loginId, User user)
+			throws IOException {
+		out.writeByte(USER_UPDATED);
+		writeString(out, loginId);
+		writeUser(out, user);
+	}
+
+	static void writeActiveTokenRevoked(DataOutputStream out, TokenKey token, long revokedFrom,
+			long validUntil) throws IOException {
+		out.writeByte(TOKEN_REVOKED);
+		writeRevokedToken(out, new RevokedToken(token, revokedFrom, validUntil));
+	}
+
+	/**
+	 * readEvent reads one event written by one of the writeActive... methods and hands it to the
+	 * listener.
+	 */
+	static void readEvent(ByteBuffer buffer, ActiveTokenEventListener listener) {
+		byte type = buffer.get();
+		if (type == TOKEN_ADDED) {
+			readActiveTokenAdded(buffer, listener);
+		} else if (type == TOKEN_REMOVED) {
+			listener.activeTokenRemoved(readTokenKey(buffer));
+		} else if (type == USER_UPDATED) {
+			String loginId = readString(buffer);
+			listener.activeUserUpdated(loginId, readUser(buffer));
+		} else if (type == TOKEN_REVOKED) {
+			RevokedToken revokedToken = readRevokedToken(buffer);
+			listener.activeTokenRevoked(revokedToken.token(), revokedToken.revokedFrom(),
+					revokedToken.validUntil());
+		}
+	}
+
+	private static void readActiveTokenAdded(ByteBuffer buffer,
+			ActiveTokenEventListener listener) {
+		TokenKey token = readTokenKey(buffer);
+		TokenKey tokenId = readTokenKey(buffer);
+		String loginId = readString(buffer);
+		long validUntil = buffer.getLong();
+		long renewUntil = buffer.getLong();
+		User user = readUser(buffer);
+		listener.activeTokenAdded(token,
+				new ActiveTokenForUser(tokenId, loginId, validUntil, renewUntil), user);
+	}
+
+	static void writeActiveUserStates(DataOutputStream out,
+			List<ActiveUserState> activeUserStates) throws IOException {
+		out.writeInt(activeUserStates.size());
+		for (ActiveUserState activeUserState : activeUserStates) {
+			writeActiveUserState(out, activeUserState);
+		}
+	}
+
+	private static void writeActiveUserState(DataOutputStream out,
+			ActiveUserState activeUserState) throws IOException {
+		writeString(out, activeUserState.loginId());
+		writeUser(out, activeUserState.user());
+		out.writeInt(activeUserState.tokens().size());
+		for (TokenState tokenState : activeUserState.tokens()) {
+			writeTokenState(out, tokenState);
+		}
+	}
+
+	private static void writeTokenState(DataOutputStream out, TokenState tokenState)
+			throws IOException {
+		ActiveTokenForUser tokenForUser = tokenState.tokenForUser();
+		writeTokenKey(out, tokenState.token());
+		writeTokenKey(out, tokenForUser.tokenId());
+		out.writeLong(tokenForUser.validUntil());
+		out.writeLong(tokenForUser.renewUntil());
+	}
+
+	static List<ActiveUserState> readActiveUserStates(ByteBuffer buffer) {
+		int numberOfUsers = buffer.getInt();
+		List<ActiveUserState> activeUserStates = new ArrayList<>(numberOfUsers);
+		for (int i = 0; i < numberOfUsers; i++) {
+			activeUserStates.add(readActiveUserState(buffer));
+		}
+		return activeUserStates;
+	}
+
+	private static ActiveUserState readActiveUserState(ByteBuffer buffer) {
+		String loginId = readString(buffer);
+		User user = readUser(buffer);
+		int numberOfTokens = buffer.getInt();
+		List<TokenState> tokenStates = new ArrayList<>(numberOfTokens);
+		for (int i = 0; i < numberOfTokens; i++) {
+			tokenStates.add(readTokenState(buffer, loginId));
+		}
+		return new ActiveUserState(loginId, user, tokenStates);
+	}
+
+	private static TokenState readTokenState(ByteBuffer buffer, String loginId) {
+		TokenKey token = readTokenKey(buffer);
+		TokenKey tokenId = readTokenKey(buffer);
+		long validUntil = buffer.getLong();
+		long renewUntil = buffer.getLong();
+		return new TokenState(token,
+				new ActiveTokenForUser(tokenId, loginId, validUntil, renewUntil));
+	}
+
+	static void writeRevokedTokens(DataOutputStream out, List<RevokedToken> revokedTokens)
+			throws IOException {
+		out.writeInt(revokedTokens.size());
+		for (RevokedToken revokedToken : revokedTokens) {
+			writeRevokedToken(out, revokedToken);
+		}
+	}
+
+	private static void writeRevokedToken(DataOutputStream out, RevokedToken revokedToken)
+			throws IOException {
+		writeTokenKey(out, revokedToken.token());
+		out.writeLong(revokedToken.revokedFrom());
+		out.writeLong(revokedToken.validUntil());
+	}
+
+	static List<RevokedToken> readRevokedTokens(ByteBuffer buffer) {
+		int numberOfTokens = buffer.getInt();
+		List<RevokedToken> revokedTokens = new ArrayList<>(numberOfTokens);
+		for (int i = 0; i < numberOfTokens; i++) {
+			revokedTokens.add(readRevokedToken(buffer));
+		}
+		return revokedTokens;
+	}
+
+	private static RevokedToken readRevokedToken(ByteBuffer buffer) {
+		TokenKey token = readTokenKey(buffer);
+		long revokedFrom = buffer.getLong();
+		return new RevokedToken(token, revokedFrom, buffer.getLong());
+	}
+
+	private static void writeUser(DataOutputStream out, User user) throws IOException {
+		writeString(out, user.id);
+		writeString(out, user.loginId);
+		writeString(out, user.loginDomain);
+		writeString(out, user.firstName);
+		writeString(out, user.lastName);
+		out.writeBoolean(user.active);
+		writeStrings(out, user.roles);
+		writeStrings(out, user.permissionUnitIds);
+	}
+
+	private static void writeStrings(DataOutputStream out, Collection<String> strings)
+			throws IOException {
+		out.writeInt(strings.size());
+		for (String string : strings) {
+			writeString(out, string);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		if (string == null) {
+			out.writeInt(NULL_STRING);
+		} else {
+			byte[] stringBytes = string.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(stringBytes.length);
+			out.write(stringBytes);
+		}
+	}
+
+	private static void writeTokenKey(DataOutputStream out, TokenKey tokenKey) throws IOException {
+		out.writeLong(tokenKey.mostSignificantBits());
+		out.writeLong(tokenKey.leastSignificantBits());
+	}
+
+	private static User readUser(ByteBuffer buffer) {
+		User user = new User(readString(buffer));
+		user.loginId = readString(buffer);
+		user.loginDomain = readString(buffer);
+		user.firstName = readString(buffer);
+		user.lastName = readString(buffer);
+		user.active = buffer.get() != 0;
+		readStrings(buffer, user.roles);
+		readStrings(buffer, user.permissionUnitIds);
+		return user;
+	}
+
+	private static void readStrings(ByteBuffer buffer, Collection<String> strings) {
+		int numberOfStrings = buffer.getInt();
+		for (int i = 0; i < numberOfStrings; i++) {
+			strings.add(readString(buffer));
+		}
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length == NULL_STRING) {
+			return null;
+		}
+		byte[] stringBytes = new byte[length];
+		buffer.get(stringBytes);
+		return new String(stringBytes, StandardCharsets.UTF_8);
+	}
+
+	private static TokenKey readTokenKey(ByteBuffer buffer) {
+		return new TokenKey(buffer.getLong(), buffer.getLong());
+	}
+
+	@FunctionalInterface
+	interface DataWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+
+/**
+ * ActiveTokenEventListener is told about every change to the active tokens and users in
+ * {@link GatekeeperImp}, that is tokens added by login or renew, tokens removed by logout, expiry
+ * or deletion of their user, users updated from user storage, and signed tokens revoked, see
+ * {@link RevokedTokens}.
+ * <p>
+ * Listeners are called on the thread making the change, while the active user is locked, so that
+ * the changes to the tokens of a user are told in the order they were made. Listeners must
+ * therefore return quickly and must not call back into the gatekeeper.
+ * <p>
+ * Two kinds of events are told after the user is unlocked, without changing the order of the
+ * events for a token. Removals of tokens evicted over the active token limits are told after the
+ * eviction, as an evicted token can not change again. Revocations are not always told while the
+ * user is locked, as the result of revoking a token does not depend on the order revocations are
+ * made in.
+ * <p>
+ * Once the user is unlocked, and before the change is answered, the thread that made the change
+ * calls {@link #awaitEventsWritten()}, so that a listener that keeps events can make the caller
+ * wait until they are kept, without holding the lock while it waits.
+ */
+interface ActiveTokenEventListener {
+
+	void activeTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser, User user);
+
+	void activeTokenRemoved(TokenKey token);
+
+	void activeUserUpdated(String loginId, User user);
+
+	void activeTokenRevoked(TokenKey token, long revokedFrom, long validUntil);
+
+	/**
+	 * awaitEventsWritten returns when the events told to the listener by the current thread are
+	 * kept by the listener. The default implementation returns at once.
+	 */
+	default void awaitEventsWritten() {
+		// events are kept when they are told
+	}
+}
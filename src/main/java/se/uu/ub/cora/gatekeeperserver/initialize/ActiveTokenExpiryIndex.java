@@ -0,0 +1,158 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * ActiveTokenExpiryIndex keeps track of when active tokens expire, by grouping the tokens into
+ * buckets based on their validUntil. Finding the tokens that are due for removal only touches the
+ * buckets that have passed, no matter how many tokens are still valid.
+ * <p>
+ * A bucket is due when every validUntil it can hold has passed, so a token is reported as due at
+ * most one bucket size after its validUntil. Tokens reported as due must still be checked by the
+ * caller, as the index is not updated in the same atomic operation as the active tokens.
+ */
+class ActiveTokenExpiryIndex<T> {
+	private static final long BUCKET_SIZE_IN_MILLIS = 1000L;
+	private final ConcurrentSkipListMap<Long, Set<T>> buckets = new ConcurrentSkipListMap<>();
+
+	void add(T token, long validUntil) {
+		buckets.compute(bucketFor(validUntil), (_, tokens) -> addTokenToBucket(token, tokens));
+	}
+
+	private Set<T> addTokenToBucket(T token, Set<T> tokens) {
+		Set<T> bucket = tokens != null ? tokens : ConcurrentHashMap.newKeySet();
+		bucket.add(token);
+		return bucket;
+	}
+
+	void remove(T token, long validUntil) {
+		buckets.computeIfPresent(bucketFor(validUntil),
+				(_, tokens) -> removeTokenFromBucket(token, tokens));
+	}
+
+	private Set<T> removeTokenFromBucket(T token, Set<T> tokens) {
+		tokens.remove(token);
+		return tokens.isEmpty() ? null : tokens;
+	}
+
+	/**
+	 * removeDueTokens removes buckets that are due at the given time from the index, and calls the
+	 * dueTokenHandler once for each token in those buckets. Concurrent callers never get the same
+	 * bucket.
+	 * <p>
+	 * Buckets are always handled as a whole, oldest first, and no more buckets are removed once
+	 * maxNumberOfTokens tokens have been handled. Due buckets that are left are handled by the
+	 * next call.
+	 *
+	 * @param currentTime
+	 *            the time, in milliseconds, to compare the buckets with
+	 * @param maxNumberOfTokens
+	 *            the number of handled tokens after which no more buckets are removed
+	 * @param dueTokenHandler
+	 *            a Predicate that is called with each token that is due, and returns true if the
+	 *            token was removed
+	 * @return the number of tokens for which the dueTokenHandler returned true
+	 */
+	int removeDueTokens(long currentTime, int maxNumberOfTokens,
+			Predicate<T> dueTokenHandler) {
+		long currentBucket = bucketFor(currentTime);
+		int handledTokens = 0;
+		int removedTokens = 0;
+		Entry<Long, Set<T>> firstBucket = buckets.firstEntry();
+		while (handledTokens < maxNumberOfTokens && bucketIsDue(firstBucket, currentBucket)) {
+			if (buckets.remove(firstBucket.getKey(), firstBucket.getValue())) {
+				for (T token : firstBucket.getValue()) {
+					handledTokens++;
+					removedTokens += dueTokenHandler.test(token) ? 1 : 0;
+				}
+			}
+			firstBucket = buckets.firstEntry();
+		}
+		return removedTokens;
+	}
+
+	/**
+	 * removeOldestTokens removes the tokens with the earliest validUntil from the index, whether
+	 * they are due or not, and calls the tokenHandler once for each of them. Only tokens in buckets
+	 * before the bucket for validUntilBefore are removed, so that tokens added at about the same
+	 * time as a token with that validUntil are left.
+	 *
+	 * @param validUntilBefore
+	 *            the validUntil whose bucket and later buckets are left
+	 * @param numberOfTokens
+	 *            the number of tokens for which the tokenHandler should return true
+	 * @param tokenHandler
+	 *            a Predicate that is called with each removed token, and returns true if the token
+	 *            was removed
+	 * @return the number of tokens for which the tokenHandler returned true
+	 */
+	int removeOldestTokens(long validUntilBefore, int numberOfTokens,
+			Predicate<T> tokenHandler) {
+		long lastBucket = bucketFor(validUntilBefore);
+		int removedTokens = 0;
+		Entry<Long, Set<T>> bucket = buckets.firstEntry();
+		while (removedTokens < numberOfTokens && bucket != null && bucket.getKey() < lastBucket) {
+			Set<T> tokens = bucket.getValue();
+			Iterator<T> iterator = tokens.iterator();
+			while (removedTokens < numberOfTokens && iterator.hasNext()) {
+				T token = iterator.next();
+				if (tokens.remove(token) && tokenHandler.test(token)) {
+					removedTokens++;
+				}
+			}
+			buckets.computeIfPresent(bucket.getKey(), (_, left) -> left.isEmpty() ? null : left);
+			bucket = buckets.higherEntry(bucket.getKey());
+		}
+		return removedTokens;
+	}
+
+	/**
+	 * getEndOfOldestBucket returns the time just after the latest validUntil the oldest bucket can
+	 * hold, so that {@link #removeOldestTokens(long, int, Predicate)} called with it only removes
+	 * tokens from the oldest bucket.
+	 *
+	 * @return the end of the oldest bucket, or Long.MAX_VALUE if the index is empty
+	 */
+	long getEndOfOldestBucket() {
+		Entry<Long, Set<T>> oldestBucket = buckets.firstEntry();
+		if (oldestBucket == null) {
+			return Long.MAX_VALUE;
+		}
+		return (oldestBucket.getKey() + 1) * BUCKET_SIZE_IN_MILLIS;
+	}
+
+	private boolean bucketIsDue(Entry<Long, Set<T>> bucket, long currentBucket) {
+		return bucket != null && bucket.getKey() < currentBucket;
+	}
+
+	private long bucketFor(long timestamp) {
+		return Math.floorDiv(timestamp, BUCKET_SIZE_IN_MILLIS);
+	}
+
+	int onlyForTestGetNumberOfTokens() {
+		return buckets.values().stream().mapToInt(Set::size).sum();
+	}
+}
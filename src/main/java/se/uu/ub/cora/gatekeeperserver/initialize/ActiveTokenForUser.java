@@ -1,5 +1,5 @@
 /*
- * Copyright 2024 Uppsala University Library
+ * Copyright 2024, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -18,6 +18,40 @@
  */
 package se.uu.ub.cora.gatekeeperserver.initialize;
 
-public record ActiveTokenForUser(String tokenId, String loginId, long validUntil, long renewUntil) {
+/**
+ * ActiveTokenForUser holds what is known about an active token, apart from the token itself.
+ * <p>
+ * The tokenId was a String before tokens were stored as {@link TokenKey}s, and the accessor
+ * tokenId() now returns a TokenKey. Code written against the String form can keep using the
+ * constructor taking a String tokenId, and {@link #tokenIdAsString()}.
+ */
+public record ActiveTokenForUser(TokenKey tokenId, String loginId, long validUntil,
+		long renewUntil) {
+
+	/**
+	 * @param tokenId
+	 *            the tokenId written as a UUID string or as a base64url string
+	 * @throws IllegalArgumentException
+	 *             if the tokenId is not written in one of the forms tokens are handed out in
+	 */
+	public ActiveTokenForUser(String tokenId, String loginId, long validUntil, long renewUntil) {
+		this(parseTokenId(tokenId), loginId, validUntil, renewUntil);
+	}
+
+	private static TokenKey parseTokenId(String tokenId) {
+		TokenKey tokenKey = TokenKey.fromString(tokenId);
+		if (tokenKey == null) {
+			throw new IllegalArgumentException("TokenId must be a UUID or base64url string, was: "
+					+ tokenId);
+		}
+		return tokenKey;
+	}
 
+	/**
+	 * tokenIdAsString returns the tokenId written as a UUID string, the form tokenIds had when
+	 * tokenId() returned a String.
+	 */
+	public String tokenIdAsString() {
+		return tokenId.toUUIDString();
+	}
 }
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveTokenDataFormat.DataWriter;
+import se.uu.ub.cora.logger.Logger;
+import se.uu.ub.cora.logger.LoggerProvider;
+
+/**
+ * ActiveTokenLog is an append only log of the changes to the active tokens in
+ * {@link GatekeeperImp}. Together with the latest {@link ActiveTokenSnapshotFile} it makes it
+ * possible to rebuild the active tokens as they were shortly before a crash.
+ * <p>
+ * Events are written using group commit. An event is encoded on the calling thread and added to
+ * the batch being filled, while the active user is locked, so that the events for a user are
+ * written in the order they were made. A single writer thread takes the filled batch, writes it
+ * with one call to the file channel and forces it to disk once, so that many events share the cost
+ * of one force. The thread that made a change calls {@link #awaitEventsWritten()} once the user is
+ * unlocked, which returns when the batches holding its events are forced to disk, so a change is
+ * never answered before it is kept. A batch holds at most {@link #MAX_RECORDS_PER_BATCH} records,
+ * threads adding to a full batch wait until the writer takes it, so at most one batch is being
+ * filled while one is being written.
+ * <p>
+ * A crash never leaves the log unreadable, each record carries its length and a checksum and
+ * reading stops at the first record that is not complete. The log file is only readable by its
+ * owner, see {@link OwnerOnlyFiles}.
+ * <p>
+ * Each log file starts with a header holding the {@link ActiveTokenDataFormat#FORMAT_VERSION} its
+ * records are written in. A log written in another version can not be replayed, and is started
+ * over when the log is opened.
+ * <p>
+ * Applying an event gives the same result if it is applied again, so a log can be replayed on top
+ * of a snapshot that already contains some of its events. This lets {@link #rotate()} move the
+ * current log aside before a snapshot is taken, and the previous log be deleted once the snapshot
+ * is written, without stopping the gatekeeper.
+ */
+class ActiveTokenLog implements ActiveTokenEventListener {
+	private static final String THREAD_NAME = "gatekeeperActiveTokenLogWriter";
+	private static final String PREVIOUS_LOG_FILE_SUFFIX = ".previous";
+	private static final int MAGIC = 0x47544B4C;
+	private static final int FILE_HEADER_LENGTH = 8;
+	private static final int RECORD_HEADER_LENGTH = 8;
+	static final int MAX_RECORDS_PER_BATCH = 4096;
+	private Logger log = LoggerProvider.getLoggerForClass(ActiveTokenLog.class);
+	private final ReentrantLock batchLock = new ReentrantLock();
+	private final Condition recordAdded = batchLock.newCondition();
+	private final Condition batchTaken = batchLock.newCondition();
+	private final ThreadLocal<CompletableFuture<Void>> batchesOfCurrentThread = new ThreadLocal<>();
+	private final ReentrantLock channelLock = new ReentrantLock();
+	private Batch fillingBatch = new Batch();
+	private boolean accepting = false;
+	private Path logFile;
+	private Path previousLogFile;
+	private FileChannel channel;
+	private Thread writer;
+
+	ActiveTokenLog(Path logFile) {
+		this.logFile = logFile;
+		this.previousLogFile = logFile.resolveSibling(logFile.getFileName()
+				+ PREVIOUS_LOG_FILE_SUFFIX);
+	}
+
+	/**
+	 * replay reads the previous log, if there is one, and then the current log, and hands each
+	 * event to the listener in the order they were written. The listener from
+	 * {@link GatekeeperImp#createEventReplayer()} does not add tokens that have expired since they
+	 * were logged.
+	 *
+	 * @param listener
+	 *            the ActiveTokenEventListener to apply the events to
+	 * @return the number of replayed events
+	 * @throws IOException
+	 *             if a log file exists but can not be read
+	 */
+	int replay(ActiveTokenEventListener listener) throws IOException {
+		List<ByteBuffer> records = new ArrayList<>();
+		readValidRecords(previousLogFile, records::add);
+		readValidRecords(logFile, records::add);
+		for (ByteBuffer event : records) {
+			ActiveTokenDataFormat.readEvent(event, listener);
+		}
+		return records.size();
+	}
+
+	/**
+	 * readValidRecords hands the payload of each complete record in the file to the recordHandler,
+	 * and returns the length of the file up to the end of the last complete record. A file too
+	 * short to hold the file header, left by a crash right after it was created, has no records.
+	 *
+	 * @throws IOException
+	 *             if the file can not be read or is written in another format version
+	 */
+	private long readValidRecords(Path file, Consumer<ByteBuffer> recordHandler)
+			throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = fileChannel.map(MapMode.READ_ONLY, 0, fileChannel.size());
+			if (buffer.remaining() < FILE_HEADER_LENGTH) {
+				return 0;
+			}
+			ensureKnownFormat(file, buffer);
+			while (hasCompleteRecord(buffer)) {
+				int length = buffer.getInt();
+				buffer.getInt();
+				recordHandler.accept(buffer.slice(buffer.position(), length));
+				buffer.position(buffer.position() + length);
+			}
+			return buffer.position();
+		}
+	}
+
+	private void ensureKnownFormat(Path file, ByteBuffer buffer) throws IOException {
+		if (!hasKnownFormat(buffer)) {
+			throw new IOException("Active token log " + file + " has an unknown format");
+		}
+	}
+
+	private boolean hasKnownFormat(ByteBuffer header) {
+		return header.getInt() == MAGIC
+				&& header.getInt() == ActiveTokenDataFormat.FORMAT_VERSION;
+	}
+
+	private boolean hasCompleteRecord(ByteBuffer buffer) {
+		if (buffer.remaining() < RECORD_HEADER_LENGTH) {
+			return false;
+		}
+		int start = buffer.position();
+		int length = buffer.getInt(start);
+		if (length < 0 || length > buffer.remaining() - RECORD_HEADER_LENGTH) {
+			return false;
+		}
+		CRC32 checksum = new CRC32();
+		checksum.update(buffer.slice(start + RECORD_HEADER_LENGTH, length));
+		return (int) checksum.getValue() == buffer.getInt(start + 4);
+	}
+
+	/**
+	 * open opens the current log for appending and starts the writer thread. Anything after the
+	 * last complete record, left by a crash while writing, is cut off first, so that new records
+	 * are readable.
+	 */
+	void open() throws IOException {
+		channelLock.lock();
+		try {
+			channel = openChannelAfterLastCompleteRecord();
+		} finally {
+			channelLock.unlock();
+		}
+		setAccepting(true);
+		writer = Thread.ofVirtual().name(THREAD_NAME).start(this::writeBatchesUntilClosed);
+	}
+
+	private void setAccepting(boolean accepting) {
+		batchLock.lock();
+		try {
+			this.accepting = accepting;
+			recordAdded.signalAll();
+			batchTaken.signalAll();
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	private FileChannel openChannelAfterLastCompleteRecord() throws IOException {
+		long validLength = readValidLengthStartingOverIfUnknownFormat();
+		FileChannel fileChannel = OwnerOnlyFiles.open(logFile,
+				Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+		fileChannel.truncate(validLength);
+		fileChannel.position(validLength);
+		if (validLength == 0) {
+			writeFileHeader(fileChannel);
+		}
+		return fileChannel;
+	}
+
+	private long readValidLengthStartingOverIfUnknownFormat() throws IOException {
+		if (isWrittenInUnknownFormat(logFile)) {
+			log.logWarnUsingMessage("Started over active token log " + logFile
+					+ ", as it is written in an unknown format.");
+			return 0;
+		}
+		return readValidRecords(logFile, _ -> {
+		});
+	}
+
+	private boolean isWrittenInUnknownFormat(Path file) throws IOException {
+		if (!Files.exists(file) || Files.size(file) < FILE_HEADER_LENGTH) {
+			return false;
+		}
+		try (InputStream in = Files.newInputStream(file)) {
+			return !hasKnownFormat(ByteBuffer.wrap(in.readNBytes(FILE_HEADER_LENGTH)));
+		}
+	}
+
+	private void writeFileHeader(FileChannel fileChannel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_LENGTH).putInt(MAGIC)
+				.putInt(ActiveTokenDataFormat.FORMAT_VERSION).flip();
+		while (header.hasRemaining()) {
+			fileChannel.write(header);
+		}
+	}
+
+	@Override
+	public void activeTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser, User user) {
+		appendRecord(out -> ActiveTokenDataFormat.writeActiveTokenAdded(out, token, tokenForUser,
+				user));
+	}
+
+	@Override
+	public void activeTokenRemoved(TokenKey token) {
+		appendRecord(out -> ActiveTokenDataFormat.writeActiveTokenRemoved(out, token));
+	}
+
+	@Override
+	public void activeUserUpdated(String loginId, User user) {
+		appendRecord(out -> ActiveTokenDataFormat.writeActiveUserUpdated(out, loginId, user));
+	}
+
+	@Override
+	public void activeTokenRevoked(TokenKey token, long revokedFrom, long validUntil) {
+		appendRecord(out -> ActiveTokenDataFormat.writeActiveTokenRevoked(out, token, revokedFrom,
+				validUntil));
+	}
+
+	private void appendRecord(DataWriter eventWriter) {
+		byte[] record = ActiveTokenDataFormat.toBytes(RECORD_HEADER_LENGTH, eventWriter);
+		writeRecordHeader(record);
+		rememberBatchOfCurrentThread(addToFillingBatch(record));
+	}
+
+	private void writeRecordHeader(byte[] record) {
+		int length = record.length - RECORD_HEADER_LENGTH;
+		CRC32 checksum = new CRC32();
+		checksum.update(record, RECORD_HEADER_LENGTH, length);
+		ByteBuffer header = ByteBuffer.wrap(record);
+		header.putInt(length);
+		header.putInt((int) checksum.getValue());
+	}
+
+	private CompletableFuture<Void> addToFillingBatch(byte[] record) {
+		batchLock.lock();
+		try {
+			while (accepting && fillingBatch.records.size() >= MAX_RECORDS_PER_BATCH) {
+				batchTaken.awaitUninterruptibly();
+			}
+			if (!accepting) {
+				return CompletableFuture.failedFuture(new ClosedChannelException());
+			}
+			fillingBatch.records.add(record);
+			recordAdded.signal();
+			return fillingBatch.written;
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	/**
+	 * rememberBatchOfCurrentThread keeps the batches holding the events added by the current
+	 * thread since it last called {@link #awaitEventsWritten()}. Batches are written in order, so
+	 * the latest batch is enough, unless an earlier batch is still being written and can fail.
+	 */
+	private void rememberBatchOfCurrentThread(CompletableFuture<Void> batch) {
+		CompletableFuture<Void> earlier = batchesOfCurrentThread.get();
+		if (earlier == null || earlier == batch || isWrittenWithoutError(earlier)) {
+			batchesOfCurrentThread.set(batch);
+		} else if (!earlier.isDone()) {
+			batchesOfCurrentThread.set(CompletableFuture.allOf(earlier, batch));
+		}
+	}
+
+	private boolean isWrittenWithoutError(CompletableFuture<Void> batch) {
+		return batch.isDone() && !batch.isCompletedExceptionally();
+	}
+
+	/**
+	 * awaitEventsWritten returns when the events added by the current thread are forced to disk.
+	 *
+	 * @throws UncheckedIOException
+	 *             if the events could not be written, or the log was closed before they were
+	 */
+	@Override
+	public void awaitEventsWritten() {
+		CompletableFuture<Void> batches = batchesOfCurrentThread.get();
+		if (batches != null) {
+			batchesOfCurrentThread.remove();
+			waitUntilWritten(batches);
+		}
+	}
+
+	private void waitUntilWritten(CompletableFuture<Void> batches) {
+		try {
+			batches.join();
+		} catch (CompletionException e) {
+			throw new UncheckedIOException("Active token events could not be written to log.",
+					(IOException) e.getCause());
+		}
+	}
+
+	private void writeBatchesUntilClosed() {
+		Batch batch = takeFilledBatch();
+		while (batch != null) {
+			writeBatch(batch);
+			batch = takeFilledBatch();
+		}
+	}
+
+	private Batch takeFilledBatch() {
+		batchLock.lock();
+		try {
+			waitForRecordOrClose();
+			if (fillingBatch.records.isEmpty()) {
+				return null;
+			}
+			Batch filledBatch = fillingBatch;
+			fillingBatch = new Batch();
+			batchTaken.signalAll();
+			return filledBatch;
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	private void waitForRecordOrClose() {
+		try {
+			while (accepting && fillingBatch.records.isEmpty()) {
+				recordAdded.await();
+			}
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+			accepting = false;
+			batchTaken.signalAll();
+		}
+	}
+
+	private void writeBatch(Batch batch) {
+		channelLock.lock();
+		try {
+			tryToWriteBatch(batch.records);
+			batch.written.complete(null);
+		} catch (IOException e) {
+			log.logErrorUsingMessageAndException("Error writing active token events to log.", e);
+			batch.written.completeExceptionally(e);
+		} finally {
+			channelLock.unlock();
+		}
+	}
+
+	private void tryToWriteBatch(List<byte[]> records) throws IOException {
+		if (channel == null) {
+			throw new ClosedChannelException();
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(calculateBatchLength(records));
+		for (byte[] record : records) {
+			buffer.put(record);
+		}
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		channel.force(false);
+	}
+
+	private int calculateBatchLength(List<byte[]> records) {
+		int length = 0;
+		for (byte[] record : records) {
+			length += record.length;
+		}
+		return length;
+	}
+
+	/**
+	 * rotate moves the current log aside as the previous log, and continues with a new empty log.
+	 * Events added but not yet written end up in the new log, which is replayed after the previous
+	 * one, so no event is lost and the order of the events is kept.
+	 *
+	 * @throws IOException
+	 *             if there already is a previous log, or the log could not be moved
+	 */
+	void rotate() throws IOException {
+		if (hasPreviousLog()) {
+			throw new FileAlreadyExistsException(previousLogFile.toString());
+		}
+		channelLock.lock();
+		try {
+			boolean wasOpen = channel != null;
+			closeChannel();
+			try {
+				moveLogToPreviousLog();
+			} finally {
+				if (wasOpen) {
+					channel = openChannelAfterLastCompleteRecord();
+				}
+			}
+		} finally {
+			channelLock.unlock();
+		}
+	}
+
+	private void moveLogToPreviousLog() throws IOException {
+		if (Files.exists(logFile)) {
+			Files.move(logFile, previousLogFile, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	private void closeChannel() throws IOException {
+		if (channel != null) {
+			channel.force(false);
+			channel.close();
+			channel = null;
+		}
+	}
+
+	boolean hasPreviousLog() {
+		return Files.exists(previousLogFile);
+	}
+
+	void deletePreviousLog() throws IOException {
+		Files.deleteIfExists(previousLogFile);
+	}
+
+	/**
+	 * close writes all events already added, stops the writer thread and closes the log. Events
+	 * added after close are not written, and {@link #awaitEventsWritten()} fails for them.
+	 */
+	void close() throws IOException {
+		if (writer != null) {
+			setAccepting(false);
+			joinWriter();
+			writer = null;
+		}
+		channelLock.lock();
+		try {
+			closeChannel();
+		} finally {
+			channelLock.unlock();
+		}
+	}
+
+	private void joinWriter() {
+		try {
+			writer.join();
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	boolean isOpen() {
+		return writer != null;
+	}
+
+	ReentrantLock onlyForTestGetChannelLock() {
+		return channelLock;
+	}
+
+	int onlyForTestGetNumberOfRecordsInFillingBatch() {
+		batchLock.lock();
+		try {
+			return fillingBatch.records.size();
+		} finally {
+			batchLock.unlock();
+		}
+	}
+
+	Path onlyForTestGetLogFile() {
+		return logFile;
+	}
+
+	Path onlyForTestGetPreviousLogFile() {
+		return previousLogFile;
+	}
+
+	private static final class Batch {
+		private final List<byte[]> records = new ArrayList<>();
+		private final CompletableFuture<Void> written = new CompletableFuture<>();
+	}
+}
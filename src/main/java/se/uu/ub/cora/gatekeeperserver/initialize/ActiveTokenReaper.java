@@ -0,0 +1,154 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import se.uu.ub.cora.logger.Logger;
+import se.uu.ub.cora.logger.LoggerProvider;
+
+/**
+ * ActiveTokenReaper periodically removes active tokens that are no longer valid from
+ * {@link GatekeeperImp}, on a scheduled virtual thread. Each pass is bounded by
+ * maxTokensPerPass, so that a large number of expired tokens is removed incrementally over
+ * several passes.
+ */
+class ActiveTokenReaper {
+	private static final String THREAD_NAME = "gatekeeperActiveTokenReaper";
+	private Logger log = LoggerProvider.getLoggerForClass(ActiveTokenReaper.class);
+	private GatekeeperImp gatekeeper;
+	private long intervalInMillis;
+	private int maxTokensPerPass;
+	private ScheduledExecutorService executor;
+	private boolean started = false;
+	private long loggedEvictionsOverUserLimit;
+	private long loggedEvictionsOverTotalLimit;
+	private long loggedTokensRejectedByCache;
+	private long loggedTokensAddedToRejectedTokenCache;
+
+	ActiveTokenReaper(GatekeeperImp gatekeeper, long intervalInMillis, int maxTokensPerPass) {
+		this(gatekeeper, intervalInMillis, maxTokensPerPass, Executors
+				.newSingleThreadScheduledExecutor(Thread.ofVirtual().name(THREAD_NAME).factory()));
+	}
+
+	ActiveTokenReaper(GatekeeperImp gatekeeper, long intervalInMillis, int maxTokensPerPass,
+			ScheduledExecutorService executor) {
+		this.gatekeeper = gatekeeper;
+		this.intervalInMillis = intervalInMillis;
+		this.maxTokensPerPass = maxTokensPerPass;
+		this.executor = executor;
+	}
+
+	void start() {
+		started = true;
+		executor.scheduleWithFixedDelay(this::reapAndLogErrors, intervalInMillis,
+				intervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void reapAndLogErrors() {
+		try {
+			reap();
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException("Error removing expired active tokens.", e);
+		}
+	}
+
+	ReaperPass reap() {
+		long startTime = System.nanoTime();
+		int removedTokens = gatekeeper.removeNoLongerValidActiveTokens(maxTokensPerPass);
+		long durationInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+		ReaperPass reaperPass = new ReaperPass(removedTokens, durationInMillis);
+		possiblyLogReaperPass(reaperPass);
+		possiblyLogEvictionsSincePreviousPass();
+		possiblyLogRejectedTokensSincePreviousPass();
+		return reaperPass;
+	}
+
+	private void possiblyLogReaperPass(ReaperPass reaperPass) {
+		if (reaperPass.removedTokens() > 0) {
+			log.logInfoUsingMessage("Removed " + reaperPass.removedTokens()
+					+ " expired active tokens in " + reaperPass.durationInMillis() + " ms.");
+		}
+	}
+
+	/**
+	 * Evictions happen while handing out tokens, and can happen very often when a client logs in
+	 * repeatedly, so instead of logging each eviction the number of evictions since the previous
+	 * pass is logged.
+	 */
+	private void possiblyLogEvictionsSincePreviousPass() {
+		long evictionsOverUserLimit = gatekeeper.getNumberOfEvictedTokensOverUserLimit();
+		long evictionsOverTotalLimit = gatekeeper.getNumberOfEvictedTokensOverTotalLimit();
+		long newEvictionsOverUserLimit = evictionsOverUserLimit - loggedEvictionsOverUserLimit;
+		long newEvictionsOverTotalLimit = evictionsOverTotalLimit - loggedEvictionsOverTotalLimit;
+		if (newEvictionsOverUserLimit > 0 || newEvictionsOverTotalLimit > 0) {
+			log.logWarnUsingMessage("Evicted " + newEvictionsOverUserLimit
+					+ " active tokens over the limit per user and " + newEvictionsOverTotalLimit
+					+ " active tokens over the total limit.");
+		}
+		loggedEvictionsOverUserLimit = evictionsOverUserLimit;
+		loggedEvictionsOverTotalLimit = evictionsOverTotalLimit;
+	}
+
+	/**
+	 * The statistics of the {@link RejectedTokenCache} are logged in the same way as evictions,
+	 * as the number of tokens rejected by the cache and the number of tokens added to it since the
+	 * previous pass. The hit rate is the share of those tokens that the cache rejected, out of all
+	 * tokens rejected as never becoming valid again.
+	 */
+	private void possiblyLogRejectedTokensSincePreviousPass() {
+		long rejectedByCache = gatekeeper.getNumberOfTokensRejectedByCache();
+		long addedToCache = gatekeeper.getNumberOfTokensAddedToRejectedTokenCache();
+		long newRejectedByCache = rejectedByCache - loggedTokensRejectedByCache;
+		long newAddedToCache = addedToCache - loggedTokensAddedToRejectedTokenCache;
+		if (newRejectedByCache > 0 || newAddedToCache > 0) {
+			log.logInfoUsingMessage("Rejected " + newRejectedByCache
+					+ " tokens using the rejected token cache and added " + newAddedToCache
+					+ " tokens to it, a hit rate of "
+					+ calculateHitRatePercent(newRejectedByCache, newAddedToCache) + "%.");
+		}
+		loggedTokensRejectedByCache = rejectedByCache;
+		loggedTokensAddedToRejectedTokenCache = addedToCache;
+	}
+
+	private long calculateHitRatePercent(long rejectedByCache, long addedToCache) {
+		return Math.round(100.0 * rejectedByCache / (rejectedByCache + addedToCache));
+	}
+
+	void stop() {
+		executor.shutdownNow();
+	}
+
+	boolean isRunning() {
+		return started && !executor.isShutdown();
+	}
+
+	long onlyForTestGetIntervalInMillis() {
+		return intervalInMillis;
+	}
+
+	int onlyForTestGetMaxTokensPerPass() {
+		return maxTokensPerPass;
+	}
+
+	record ReaperPass(int removedTokens, long durationInMillis) {
+	}
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+import se.uu.ub.cora.logger.Logger;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.messaging.MessageReceiver;
+import se.uu.ub.cora.messaging.MessageSender;
+
+/**
+ * ActiveTokenReplicator keeps the active tokens of several gatekeeper nodes in sync over the
+ * messaging layer, so that any node can validate, renew and remove tokens handed out by any other
+ * node, and losing a node does not log out its users.
+ * <p>
+ * Changes to the local active tokens are queued and sent to the other nodes in batches, at most
+ * one message per batch interval. Changes received from other nodes are applied using
+ * {@link GatekeeperImp#createEventReplayer()}, so they are not sent on again. Every message is
+ * signed using a {@link ReplicationMessageAuthenticator}, and messages that are not correctly
+ * signed are dropped. Every message also carries the {@link ActiveTokenDataFormat#FORMAT_VERSION}
+ * of the node sending it, and messages from nodes using another version are dropped, as their
+ * changes can not be decoded. A message that can not be applied is logged and dropped, the
+ * tokens it concerns can then differ between the nodes until they expire.
+ * <p>
+ * Every message carries a signed sequence number, increasing for each message sent by a node and
+ * starting from the current time in microseconds, so that it keeps increasing when the node is
+ * restarted. A message with a sequence number that is not higher than the last one received from
+ * the same node, or that was sent more than MAX_MESSAGE_AGE_IN_MILLIS from the current time, is
+ * dropped, so that a recorded message can not be sent again to undo later changes. This relies on the messaging layer delivering the messages of a node in the order
+ * they are sent, and on the clocks of the nodes being kept in sync.
+ * <p>
+ * At most MAX_PENDING_EVENTS changes are queued. If more changes are made than can be sent, the
+ * queued changes are dropped and, instead of them, this node offers its state to all other
+ * nodes, which then bootstrap from this node. The state only adds tokens and revocations, so
+ * tokens removed while the queue was full can stay active on the other nodes until they expire.
+ * <p>
+ * When started, the replicator asks the other nodes for their active tokens. Every node that gets
+ * the request offers its state, the first offer is accepted and only the accepted node sends its
+ * state, that is its active tokens and revoked tokens, split into chunks of at most
+ * maxBootstrapChunkLength bytes. Changes received while waiting for the state are applied
+ * directly, and applied once more on top of the received state, as the state might have been read
+ * before those changes were made. Applying a change twice gives the same result as applying it
+ * once. The bootstrap timeout must be long enough for the whole state to be received.
+ */
+class ActiveTokenReplicator implements ActiveTokenEventListener, MessageReceiver {
+	static final String NODE_ID = "nodeId";
+	static final String FORMAT_VERSION = "formatVersion";
+	static final String SEQUENCE_NUMBER = "sequenceNumber";
+	static final String TO_NODE_ID = "toNodeId";
+	static final String MESSAGE_TYPE = "messageType";
+	static final String CHUNK_NUMBER = "chunkNumber";
+	static final String NUMBER_OF_CHUNKS = "numberOfChunks";
+	static final String SIGNATURE = "signature";
+	static final String EVENTS = "activeTokenEvents";
+	static final String BOOTSTRAP_REQUEST = "bootstrapRequest";
+	static final String BOOTSTRAP_OFFER = "bootstrapOffer";
+	static final String BOOTSTRAP_ACCEPT = "bootstrapAccept";
+	static final String BOOTSTRAP_STATE = "bootstrapState";
+	private static final String THREAD_NAME = "gatekeeperActiveTokenReplicator";
+	private static final int LENGTH_PREFIX_LENGTH = 4;
+	private static final int MAX_EVENTS_PER_MESSAGE = 1000;
+	private static final int MAX_PENDING_EVENTS = 100 * MAX_EVENTS_PER_MESSAGE;
+	private static final int DEFAULT_MAX_BOOTSTRAP_CHUNK_LENGTH = 1024 * 1024;
+	private static final long SEQUENCE_NUMBERS_PER_MILLISECOND = 1000;
+	private static final long MAX_MESSAGE_AGE_IN_MILLIS = 5 * 60 * 1000L;
+	private Logger log = LoggerProvider.getLoggerForClass(ActiveTokenReplicator.class);
+	private int maxPendingEvents = MAX_PENDING_EVENTS;
+	private BlockingQueue<byte[]> pendingEvents = new LinkedBlockingQueue<>(maxPendingEvents);
+	private final AtomicBoolean pendingEventsOverflowed = new AtomicBoolean(false);
+	private final ReentrantLock bootstrapLock = new ReentrantLock();
+	private final ReentrantLock sendLock = new ReentrantLock();
+	private long lastSentSequenceNumber;
+	private final Map<String, Long> lastReceivedSequenceNumbers = new ConcurrentHashMap<>();
+	private GatekeeperImp gatekeeper;
+	private MessageSender messageSender;
+	private ReplicationMessageAuthenticator authenticator;
+	private String nodeId;
+	private long batchIntervalInMillis;
+	private long bootstrapTimeoutInMillis;
+	private int maxBootstrapChunkLength = DEFAULT_MAX_BOOTSTRAP_CHUNK_LENGTH;
+	private ActiveTokenEventListener eventReplayer;
+	private List<ByteBuffer> eventsReceivedDuringBootstrap;
+	private String bootstrapNodeId;
+	private ByteArrayOutputStream receivedBootstrapState;
+	private int nextBootstrapChunkNumber;
+	private ScheduledExecutorService executor;
+	private boolean started = false;
+	private ScheduledFuture<?> bootstrapTimeout;
+
+	ActiveTokenReplicator(GatekeeperImp gatekeeper, MessageSender messageSender,
+			ReplicationMessageAuthenticator authenticator, String nodeId,
+			long batchIntervalInMillis, long bootstrapTimeoutInMillis) {
+		this(gatekeeper, messageSender, authenticator, nodeId, batchIntervalInMillis,
+				bootstrapTimeoutInMillis, Executors.newSingleThreadScheduledExecutor(
+						Thread.ofVirtual().name(THREAD_NAME).factory()));
+	}
+
+	ActiveTokenReplicator(GatekeeperImp gatekeeper, MessageSender messageSender,
+			ReplicationMessageAuthenticator authenticator, String nodeId,
+			long batchIntervalInMillis, long bootstrapTimeoutInMillis,
+			ScheduledExecutorService executor) {
+		this.gatekeeper = gatekeeper;
+		this.messageSender = messageSender;
+		this.authenticator = authenticator;
+		this.nodeId = nodeId;
+		this.batchIntervalInMillis = batchIntervalInMillis;
+		this.bootstrapTimeoutInMillis = bootstrapTimeoutInMillis;
+		this.executor = executor;
+		eventReplayer = gatekeeper.createEventReplayer();
+	}
+
+	/**
+	 * start starts sending local changes to the other nodes, and asks them for their active
+	 * tokens.
+	 */
+	void start() {
+		started = true;
+		gatekeeper.addActiveTokenEventListener(this);
+		executor.scheduleWithFixedDelay(this::sendQueuedEvents, batchIntervalInMillis,
+				batchIntervalInMillis, TimeUnit.MILLISECONDS);
+		requestBootstrap();
+		bootstrapTimeout = executor.schedule(this::endBootstrap, bootstrapTimeoutInMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	void requestBootstrap() {
+		bootstrapLock.lock();
+		try {
+			eventsReceivedDuringBootstrap = new ArrayList<>();
+			bootstrapNodeId = null;
+		} finally {
+			bootstrapLock.unlock();
+		}
+		sendMessage(createHeaders(BOOTSTRAP_REQUEST, null), "");
+	}
+
+	/**
+	 * endBootstrap stops keeping received changes for a bootstrap state, used when no other node
+	 * has sent its whole state within the bootstrap timeout, for instance as this is the only
+	 * node.
+	 */
+	void endBootstrap() {
+		bootstrapLock.lock();
+		try {
+			eventsReceivedDuringBootstrap = null;
+			bootstrapNodeId = null;
+			receivedBootstrapState = null;
+		} finally {
+			bootstrapLock.unlock();
+		}
+	}
+
+	boolean isBootstrapping() {
+		return eventsReceivedDuringBootstrap != null;
+	}
+
+	@Override
+	public void activeTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser, User user) {
+		queueEvent(ActiveTokenDataFormat.toBytes(LENGTH_PREFIX_LENGTH, out -> ActiveTokenDataFormat
+				.writeActiveTokenAdded(out, token, tokenForUser, user)));
+	}
+
+	@Override
+	public void activeTokenRemoved(TokenKey token) {
+		queueEvent(ActiveTokenDataFormat.toBytes(LENGTH_PREFIX_LENGTH,
+				out -> ActiveTokenDataFormat.writeActiveTokenRemoved(out, token)));
+	}
+
+	@Override
+	public void activeUserUpdated(String loginId, User user) {
+		queueEvent(ActiveTokenDataFormat.toBytes(LENGTH_PREFIX_LENGTH,
+				out -> ActiveTokenDataFormat.writeActiveUserUpdated(out, loginId, user)));
+	}
+
+	@Override
+	public void activeTokenRevoked(TokenKey token, long revokedFrom, long validUntil) {
+		queueEvent(ActiveTokenDataFormat.toBytes(LENGTH_PREFIX_LENGTH, out -> ActiveTokenDataFormat
+				.writeActiveTokenRevoked(out, token, revokedFrom, validUntil)));
+	}
+
+	private void queueEvent(byte[] event) {
+		ByteBuffer.wrap(event).putInt(event.length - LENGTH_PREFIX_LENGTH);
+		if (!pendingEventsOverflowed.get() && !pendingEvents.offer(event)
+				&& pendingEventsOverflowed.compareAndSet(false, true)) {
+			log.logWarnUsingMessage("More than " + maxPendingEvents + " active token changes"
+					+ " are waiting to be sent, the changes are dropped and the state of this"
+					+ " node is offered to the other nodes instead.");
+		}
+	}
+
+	/**
+	 * sendQueuedEvents sends all queued changes to the other nodes, in messages of at most
+	 * MAX_EVENTS_PER_MESSAGE changes each. If the queue has been full, the queued changes are
+	 * dropped and the state of this node is offered to all other nodes instead, the state is read
+	 * when an offer is accepted, so it holds all changes made until then.
+	 */
+	void sendQueuedEvents() {
+		if (pendingEventsOverflowed.get()) {
+			offerStateInsteadOfQueuedEvents();
+			return;
+		}
+		List<byte[]> batch = new ArrayList<>();
+		while (pendingEvents.drainTo(batch, MAX_EVENTS_PER_MESSAGE) > 0) {
+			sendMessage(createHeaders(EVENTS, null), encodeBatch(batch));
+			batch.clear();
+		}
+	}
+
+	private void offerStateInsteadOfQueuedEvents() {
+		pendingEvents.clear();
+		pendingEventsOverflowed.set(false);
+		sendMessage(createHeaders(BOOTSTRAP_OFFER, null), "");
+	}
+
+	private String encodeBatch(List<byte[]> batch) {
+		ByteBuffer buffer = ByteBuffer.allocate(calculateBatchLength(batch));
+		for (byte[] event : batch) {
+			buffer.put(event);
+		}
+		return Base64.getEncoder().encodeToString(buffer.array());
+	}
+
+	private int calculateBatchLength(List<byte[]> batch) {
+		int length = 0;
+		for (byte[] event : batch) {
+			length += event.length;
+		}
+		return length;
+	}
+
+	private Map<String, String> createHeaders(String messageType, String toNodeId) {
+		Map<String, String> headers = new HashMap<>();
+		headers.put(NODE_ID, nodeId);
+		headers.put(FORMAT_VERSION, String.valueOf(ActiveTokenDataFormat.FORMAT_VERSION));
+		headers.put(MESSAGE_TYPE, messageType);
+		if (toNodeId != null) {
+			headers.put(TO_NODE_ID, toNodeId);
+		}
+		return headers;
+	}
+
+	/**
+	 * sendMessage numbers, signs and sends a message. Messages are sent one at a time, so that
+	 * they are sent in the order of their sequence numbers.
+	 */
+	private void sendMessage(Map<String, String> headers, String message) {
+		sendLock.lock();
+		try {
+			headers.put(SEQUENCE_NUMBER, String.valueOf(nextSequenceNumber()));
+			Map<String, Object> signedHeaders = new HashMap<>(headers);
+			signedHeaders.put(SIGNATURE, authenticator.sign(signedParts(headers, message)));
+			messageSender.sendMessage(signedHeaders, message);
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException("Could not send " + headers.get(MESSAGE_TYPE)
+					+ " message to other gatekeeper nodes.", e);
+		} finally {
+			sendLock.unlock();
+		}
+	}
+
+	private long nextSequenceNumber() {
+		lastSentSequenceNumber = Math.max(lastSentSequenceNumber + 1,
+				System.currentTimeMillis() * SEQUENCE_NUMBERS_PER_MILLISECOND);
+		return lastSentSequenceNumber;
+	}
+
+	private String[] signedParts(Map<String, String> headers, String message) {
+		return new String[] { headers.get(NODE_ID), headers.get(FORMAT_VERSION),
+				headers.get(SEQUENCE_NUMBER), headers.get(MESSAGE_TYPE), headers.get(TO_NODE_ID),
+				headers.get(CHUNK_NUMBER), headers.get(NUMBER_OF_CHUNKS), message };
+	}
+
+	@Override
+	public void receiveMessage(Map<String, String> headers, String message) {
+		if (isSentByThisNode(headers) || isSentToOtherNode(headers)) {
+			return;
+		}
+		if (!authenticator.isAuthentic(headers.get(SIGNATURE), signedParts(headers, message))) {
+			log.logWarnUsingMessage("Dropped active token message with a missing or wrong"
+					+ " signature, claiming to be from node " + headers.get(NODE_ID) + ".");
+			return;
+		}
+		if (isInOtherFormatVersion(headers)) {
+			log.logWarnUsingMessage("Dropped active token message in format version "
+					+ headers.get(FORMAT_VERSION) + " from node " + headers.get(NODE_ID)
+					+ ", this node uses version " + ActiveTokenDataFormat.FORMAT_VERSION + ".");
+			return;
+		}
+		if (!isNewMessage(headers)) {
+			log.logWarnUsingMessage("Dropped repeated or stale active token message with"
+					+ " sequence number " + headers.get(SEQUENCE_NUMBER) + " from node "
+					+ headers.get(NODE_ID) + ".");
+			return;
+		}
+		try {
+			handleMessage(headers, message);
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException("Dropped " + headers.get(MESSAGE_TYPE)
+					+ " message from node " + headers.get(NODE_ID) + " that could not be"
+					+ " applied, active tokens might be out of sync between nodes.", e);
+		}
+	}
+
+	private boolean isSentByThisNode(Map<String, String> headers) {
+		return nodeId.equals(headers.get(NODE_ID));
+	}
+
+	private boolean isInOtherFormatVersion(Map<String, String> headers) {
+		return !String.valueOf(ActiveTokenDataFormat.FORMAT_VERSION)
+				.equals(headers.get(FORMAT_VERSION));
+	}
+
+	private boolean isNewMessage(Map<String, String> headers) {
+		long sequenceNumber = parseSequenceNumberOrZero(headers.get(SEQUENCE_NUMBER));
+		return isSentRecently(sequenceNumber)
+				&& isAfterLastMessageFromNode(headers.get(NODE_ID), sequenceNumber);
+	}
+
+	private long parseSequenceNumberOrZero(String sequenceNumber) {
+		try {
+			return Long.parseLong(sequenceNumber);
+		} catch (NumberFormatException _) {
+			return 0;
+		}
+	}
+
+	private boolean isSentRecently(long sequenceNumber) {
+		long sentAt = sequenceNumber / SEQUENCE_NUMBERS_PER_MILLISECOND;
+		return Math.abs(System.currentTimeMillis() - sentAt) <= MAX_MESSAGE_AGE_IN_MILLIS;
+	}
+
+	private boolean isAfterLastMessageFromNode(String fromNodeId, long sequenceNumber) {
+		Long last = lastReceivedSequenceNumbers.putIfAbsent(fromNodeId, sequenceNumber);
+		while (last != null && sequenceNumber > last) {
+			if (lastReceivedSequenceNumbers.replace(fromNodeId, last, sequenceNumber)) {
+				return true;
+			}
+			last = lastReceivedSequenceNumbers.get(fromNodeId);
+		}
+		return last == null;
+	}
+
+	private boolean isSentToOtherNode(Map<String, String> headers) {
+		String toNodeId = headers.get(TO_NODE_ID);
+		return toNodeId != null && !nodeId.equals(toNodeId);
+	}
+
+	private void handleMessage(Map<String, String> headers, String message) {
+		String messageType = headers.get(MESSAGE_TYPE);
+		String fromNodeId = headers.get(NODE_ID);
+		if (EVENTS.equals(messageType)) {
+			applyEvents(ByteBuffer.wrap(Base64.getDecoder().decode(message)));
+		} else if (BOOTSTRAP_REQUEST.equals(messageType)) {
+			sendMessage(createHeaders(BOOTSTRAP_OFFER, fromNodeId), "");
+		} else if (BOOTSTRAP_OFFER.equals(messageType)) {
+			acceptFirstBootstrapOffer(fromNodeId, headers.get(TO_NODE_ID) == null);
+		} else if (BOOTSTRAP_ACCEPT.equals(messageType)) {
+			sendBootstrapState(fromNodeId);
+		} else if (BOOTSTRAP_STATE.equals(messageType)) {
+			receiveBootstrapStateChunk(headers, Base64.getDecoder().decode(message));
+		}
+	}
+
+	private void applyEvents(ByteBuffer events) {
+		while (events.hasRemaining()) {
+			int length = events.getInt();
+			ByteBuffer event = events.slice(events.position(), length);
+			events.position(events.position() + length);
+			keepEventIfBootstrapping(event);
+			ActiveTokenDataFormat.readEvent(event.duplicate(), eventReplayer);
+		}
+	}
+
+	private void keepEventIfBootstrapping(ByteBuffer event) {
+		bootstrapLock.lock();
+		try {
+			if (eventsReceivedDuringBootstrap != null) {
+				eventsReceivedDuringBootstrap.add(event);
+			}
+		} finally {
+			bootstrapLock.unlock();
+		}
+	}
+
+	/**
+	 * acceptFirstBootstrapOffer accepts an offer if no other offer has been accepted for the
+	 * current bootstrap. An offer sent to all nodes, by a node that could not send all its
+	 * changes, starts a new bootstrap if this node is not bootstrapping.
+	 */
+	private void acceptFirstBootstrapOffer(String offeringNodeId, boolean offeredToAllNodes) {
+		bootstrapLock.lock();
+		try {
+			if (bootstrapNodeId != null
+					|| (eventsReceivedDuringBootstrap == null && !offeredToAllNodes)) {
+				return;
+			}
+			if (eventsReceivedDuringBootstrap == null) {
+				startBootstrapOfferedToAllNodes();
+			}
+			bootstrapNodeId = offeringNodeId;
+			receivedBootstrapState = new ByteArrayOutputStream();
+			nextBootstrapChunkNumber = 0;
+		} finally {
+			bootstrapLock.unlock();
+		}
+		sendMessage(createHeaders(BOOTSTRAP_ACCEPT, offeringNodeId), "");
+	}
+
+	private void startBootstrapOfferedToAllNodes() {
+		eventsReceivedDuringBootstrap = new ArrayList<>();
+		if (bootstrapTimeout != null) {
+			bootstrapTimeout.cancel(false);
+		}
+		bootstrapTimeout = executor.schedule(this::endBootstrap, bootstrapTimeoutInMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void sendBootstrapState(String requestingNodeId) {
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		List<RevokedToken> revokedTokens = gatekeeper.getRevokedTokens();
+		byte[] state = ActiveTokenDataFormat.toBytes(0, out -> {
+			ActiveTokenDataFormat.writeActiveUserStates(out, activeUserStates);
+			ActiveTokenDataFormat.writeRevokedTokens(out, revokedTokens);
+		});
+		int numberOfChunks = Math.max(1,
+				(state.length + maxBootstrapChunkLength - 1) / maxBootstrapChunkLength);
+		for (int chunkNumber = 0; chunkNumber < numberOfChunks; chunkNumber++) {
+			sendBootstrapStateChunk(requestingNodeId, state, chunkNumber, numberOfChunks);
+		}
+	}
+
+	private void sendBootstrapStateChunk(String requestingNodeId, byte[] state, int chunkNumber,
+			int numberOfChunks) {
+		int start = chunkNumber * maxBootstrapChunkLength;
+		int length = Math.min(maxBootstrapChunkLength, state.length - start);
+		Map<String, String> headers = createHeaders(BOOTSTRAP_STATE, requestingNodeId);
+		headers.put(CHUNK_NUMBER, String.valueOf(chunkNumber));
+		headers.put(NUMBER_OF_CHUNKS, String.valueOf(numberOfChunks));
+		sendMessage(headers, Base64.getEncoder()
+				.encodeToString(Arrays.copyOfRange(state, start, start + length)));
+	}
+
+	/**
+	 * receiveBootstrapStateChunk keeps the chunks of the state from the accepted node, and applies
+	 * the state once the last chunk is received. Chunks from other nodes, and chunks out of order,
+	 * are ignored.
+	 */
+	private void receiveBootstrapStateChunk(Map<String, String> headers, byte[] chunk) {
+		bootstrapLock.lock();
+		try {
+			if (isNextChunkFromBootstrapNode(headers)) {
+				receivedBootstrapState.writeBytes(chunk);
+				nextBootstrapChunkNumber++;
+				possiblyApplyReceivedBootstrapState(headers);
+			}
+		} finally {
+			bootstrapLock.unlock();
+		}
+	}
+
+	private boolean isNextChunkFromBootstrapNode(Map<String, String> headers) {
+		return eventsReceivedDuringBootstrap != null && receivedBootstrapState != null
+				&& headers.get(NODE_ID).equals(bootstrapNodeId)
+				&& Integer.parseInt(headers.get(CHUNK_NUMBER)) == nextBootstrapChunkNumber;
+	}
+
+	private void possiblyApplyReceivedBootstrapState(Map<String, String> headers) {
+		if (nextBootstrapChunkNumber == Integer.parseInt(headers.get(NUMBER_OF_CHUNKS))) {
+			ByteBuffer state = ByteBuffer.wrap(receivedBootstrapState.toByteArray());
+			try {
+				applyBootstrapStateAndReceivedEvents(state);
+			} finally {
+				eventsReceivedDuringBootstrap = null;
+				bootstrapNodeId = null;
+				receivedBootstrapState = null;
+			}
+		}
+	}
+
+	private void applyBootstrapStateAndReceivedEvents(ByteBuffer state) {
+		List<ActiveUserState> activeUserStates = ActiveTokenDataFormat.readActiveUserStates(state);
+		List<RevokedToken> revokedTokens = ActiveTokenDataFormat.readRevokedTokens(state);
+		long currentTime = System.currentTimeMillis();
+		int restoredTokens = gatekeeper.restoreActiveUserStates(activeUserStates, currentTime);
+		int restoredRevokedTokens = gatekeeper.restoreRevokedTokens(revokedTokens, currentTime);
+		for (ByteBuffer event : eventsReceivedDuringBootstrap) {
+			ActiveTokenDataFormat.readEvent(event.duplicate(), eventReplayer);
+		}
+		log.logInfoUsingMessage("Restored " + restoredTokens + " active tokens and "
+				+ restoredRevokedTokens + " revoked tokens from other gatekeeper node.");
+	}
+
+	@Override
+	public void topicClosed() {
+		log.logFatalUsingMessage("Shutting down due to lost connection with message broker,"
+				+ " continued operation would lead to active tokens out of sync between nodes.");
+		shutdownSystemToPreventDataInconsistency();
+	}
+
+	void shutdownSystemToPreventDataInconsistency() {
+		System.exit(-1);
+	}
+
+	/**
+	 * stop stops sending changes and sends the changes that are still queued.
+	 */
+	void stop() {
+		executor.shutdown();
+		if (started) {
+			gatekeeper.removeActiveTokenEventListener(this);
+			bootstrapTimeout.cancel(false);
+			awaitTermination();
+			sendQueuedEvents();
+		}
+	}
+
+	private void awaitTermination() {
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	boolean isRunning() {
+		return started && !executor.isShutdown();
+	}
+
+	void onlyForTestSetMaxPendingEvents(int maxPendingEvents) {
+		this.maxPendingEvents = maxPendingEvents;
+		pendingEvents = new LinkedBlockingQueue<>(maxPendingEvents);
+	}
+
+	void onlyForTestSetMaxBootstrapChunkLength(int maxBootstrapChunkLength) {
+		this.maxBootstrapChunkLength = maxBootstrapChunkLength;
+	}
+
+	String onlyForTestGetNodeId() {
+		return nodeId;
+	}
+
+	MessageSender onlyForTestGetMessageSender() {
+		return messageSender;
+	}
+
+	ReplicationMessageAuthenticator onlyForTestGetAuthenticator() {
+		return authenticator;
+	}
+
+	long onlyForTestGetBatchIntervalInMillis() {
+		return batchIntervalInMillis;
+	}
+
+	long onlyForTestGetBootstrapTimeoutInMillis() {
+		return bootstrapTimeoutInMillis;
+	}
+}
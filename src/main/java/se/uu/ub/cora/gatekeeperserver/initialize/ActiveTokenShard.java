@@ -0,0 +1,131 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.GatekeeperImp.ActiveToken;
+
+/**
+ * ActiveTokenShard holds one part of the active tokens in {@link GatekeeperImp}, together with the
+ * expiry index for those tokens. Each token belongs to exactly one shard, so shards never need to
+ * coordinate with each other, and adding, removing and expiring tokens in different shards do not
+ * contend. Only evicting tokens over the total limit looks at all shards, to find the oldest
+ * tokens.
+ * <p>
+ * All shards of the gatekeeper share one counter of the tokens in all of them, so that the total
+ * number of active tokens is known without asking every shard.
+ */
+class ActiveTokenShard {
+	private final Map<TokenKey, ActiveToken> activeTokens = new ConcurrentHashMap<>();
+	private final ActiveTokenExpiryIndex<TokenKey> expiryIndex = new ActiveTokenExpiryIndex<>();
+	private final AtomicInteger numberOfTokensInAllShards;
+
+	/**
+	 * @param numberOfTokensInAllShards
+	 *            the counter shared by all shards, increased and decreased as tokens are added
+	 *            to and removed from this shard
+	 */
+	ActiveTokenShard(AtomicInteger numberOfTokensInAllShards) {
+		this.numberOfTokensInAllShards = numberOfTokensInAllShards;
+	}
+
+	ActiveToken get(TokenKey tokenKey) {
+		return activeTokens.get(tokenKey);
+	}
+
+	void put(TokenKey tokenKey, ActiveToken activeToken) {
+		ActiveToken replaced = activeTokens.put(tokenKey, activeToken);
+		if (replaced != null) {
+			expiryIndex.remove(tokenKey, replaced.tokenForUser().validUntil());
+		} else {
+			numberOfTokensInAllShards.incrementAndGet();
+		}
+		expiryIndex.add(tokenKey, activeToken.tokenForUser().validUntil());
+	}
+
+	boolean replace(TokenKey tokenKey, ActiveToken activeToken, ActiveToken replacement) {
+		if (activeTokens.replace(tokenKey, activeToken, replacement)) {
+			expiryIndex.remove(tokenKey, activeToken.tokenForUser().validUntil());
+			expiryIndex.add(tokenKey, replacement.tokenForUser().validUntil());
+			return true;
+		}
+		return false;
+	}
+
+	boolean remove(TokenKey tokenKey, ActiveToken activeToken) {
+		if (activeTokens.remove(tokenKey, activeToken)) {
+			expiryIndex.remove(tokenKey, activeToken.tokenForUser().validUntil());
+			numberOfTokensInAllShards.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	ActiveToken remove(TokenKey tokenKey) {
+		ActiveToken activeToken = activeTokens.remove(tokenKey);
+		if (activeToken != null) {
+			expiryIndex.remove(tokenKey, activeToken.tokenForUser().validUntil());
+			numberOfTokensInAllShards.decrementAndGet();
+		}
+		return activeToken;
+	}
+
+	/**
+	 * removeDueTokens hands the tokens in this shard that are due according to the expiry index to
+	 * the dueTokenHandler, see
+	 * {@link ActiveTokenExpiryIndex#removeDueTokens(long, int, Predicate)}.
+	 */
+	int removeDueTokens(long currentTime, int maxNumberOfTokens,
+			Predicate<TokenKey> dueTokenHandler) {
+		return expiryIndex.removeDueTokens(currentTime, maxNumberOfTokens, dueTokenHandler);
+	}
+
+	/**
+	 * removeOldestTokens hands the tokens in this shard with the earliest validUntil to the
+	 * tokenHandler, see {@link ActiveTokenExpiryIndex#removeOldestTokens(long, int, Predicate)}.
+	 */
+	int removeOldestTokens(long validUntilBefore, int numberOfTokens,
+			Predicate<TokenKey> tokenHandler) {
+		return expiryIndex.removeOldestTokens(validUntilBefore, numberOfTokens, tokenHandler);
+	}
+
+	/**
+	 * getEndOfOldestBucket returns the end of the oldest bucket in the expiry index of this shard,
+	 * see {@link ActiveTokenExpiryIndex#getEndOfOldestBucket()}.
+	 */
+	long getEndOfOldestBucket() {
+		return expiryIndex.getEndOfOldestBucket();
+	}
+
+	int size() {
+		return activeTokens.size();
+	}
+
+	Map<TokenKey, ActiveToken> onlyForTestGetActiveTokens() {
+		return activeTokens;
+	}
+
+	ActiveTokenExpiryIndex<TokenKey> onlyForTestGetExpiryIndex() {
+		return expiryIndex;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+
+/**
+ * ActiveTokenSnapshotFile writes and reads snapshots of the active users and their tokens, and of
+ * the revoked signed tokens, in a compact binary format.
+ * <p>
+ * A snapshot is streamed to a temporary file that is forced to disk and then atomically moved in
+ * place, so that a crash while writing never leaves a broken snapshot. The file is only readable
+ * by its owner, see {@link OwnerOnlyFiles}. Reading maps the whole file and decodes it directly
+ * from memory.
+ */
+class ActiveTokenSnapshotFile {
+	private static final int MAGIC = 0x47544B53;
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private Path snapshotFile;
+
+	ActiveTokenSnapshotFile(Path snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	void write(List<ActiveUserState> activeUserStates, List<RevokedToken> revokedTokens)
+			throws IOException {
+		Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + TEMP_FILE_SUFFIX);
+		writeSnapshotToFile(tempFile, activeUserStates, revokedTokens);
+		Files.move(tempFile, snapshotFile, StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void writeSnapshotToFile(Path file, List<ActiveUserState> activeUserStates,
+			List<RevokedToken> revokedTokens) throws IOException {
+		try (FileChannel channel = OwnerOnlyFiles.open(file, Set.of(StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(MAGIC);
+			out.writeInt(ActiveTokenDataFormat.FORMAT_VERSION);
+			ActiveTokenDataFormat.writeActiveUserStates(out, activeUserStates);
+			ActiveTokenDataFormat.writeRevokedTokens(out, revokedTokens);
+			out.flush();
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * read reads the snapshot file.
+	 *
+	 * @return the Snapshot in the file, or an empty Snapshot if there is no snapshot file
+	 * @throws IOException
+	 *             if the file can not be read or is not a snapshot in a known format
+	 */
+	Snapshot read() throws IOException {
+		if (!Files.exists(snapshotFile)) {
+			return new Snapshot(Collections.emptyList(), Collections.emptyList());
+		}
+		try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			return decodeSnapshot(buffer);
+		} catch (RuntimeException e) {
+			throw new IOException("Snapshot file " + snapshotFile + " is not complete", e);
+		}
+	}
+
+	private Snapshot decodeSnapshot(ByteBuffer buffer) throws IOException {
+		ensureKnownFormat(buffer);
+		List<ActiveUserState> activeUserStates = ActiveTokenDataFormat
+				.readActiveUserStates(buffer);
+		return new Snapshot(activeUserStates, ActiveTokenDataFormat.readRevokedTokens(buffer));
+	}
+
+	private void ensureKnownFormat(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < 8 || buffer.getInt() != MAGIC
+				|| buffer.getInt() != ActiveTokenDataFormat.FORMAT_VERSION) {
+			throw new IOException("Snapshot file " + snapshotFile + " has an unknown format");
+		}
+	}
+
+	Path onlyForTestGetSnapshotFile() {
+		return snapshotFile;
+	}
+
+	record Snapshot(List<ActiveUserState> activeUserStates, List<RevokedToken> revokedTokens) {
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveTokenSnapshotFile.Snapshot;
+import se.uu.ub.cora.logger.Logger;
+import se.uu.ub.cora.logger.LoggerProvider;
+
+/**
+ * ActiveTokenSnapshotter keeps the active users and tokens in {@link GatekeeperImp} in an
+ * {@link ActiveTokenSnapshotFile} and a {@link ActiveTokenLog}, so that they survive a
+ * restart of the gatekeeper.
+ * <p>
+ * While running, every change to the active tokens is written to the log. A snapshot is written
+ * periodically on a scheduled virtual thread, and once more when the snapshotter is stopped. Each
+ * snapshot rotates the log first and deletes the previous log once the snapshot is written, so the
+ * log only holds the changes since about the latest snapshot.
+ * <p>
+ * On startup, {@link #restore()} adds the active and revoked tokens from the latest snapshot that
+ * are still valid back into the gatekeeper and replays the log on top of them. Starting the
+ * snapshotter then writes a new snapshot, which compacts the replayed log away.
+ */
+class ActiveTokenSnapshotter {
+	private static final String THREAD_NAME = "gatekeeperActiveTokenSnapshotter";
+	private Logger log = LoggerProvider.getLoggerForClass(ActiveTokenSnapshotter.class);
+	private GatekeeperImp gatekeeper;
+	private ActiveTokenSnapshotFile snapshotFile;
+	private ActiveTokenLog activeTokenLog;
+	private long intervalInMillis;
+	private ScheduledExecutorService executor;
+
+	ActiveTokenSnapshotter(GatekeeperImp gatekeeper, ActiveTokenSnapshotFile snapshotFile,
+			ActiveTokenLog activeTokenLog, long intervalInMillis) {
+		this.gatekeeper = gatekeeper;
+		this.snapshotFile = snapshotFile;
+		this.activeTokenLog = activeTokenLog;
+		this.intervalInMillis = intervalInMillis;
+	}
+
+	void restore() {
+		try {
+			tryToRestore();
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException(
+					"Could not restore active tokens from snapshot, starting without them.", e);
+		}
+	}
+
+	private void tryToRestore() throws Exception {
+		long startTime = System.nanoTime();
+		Snapshot snapshot = snapshotFile.read();
+		long currentTime = System.currentTimeMillis();
+		int restoredTokens = gatekeeper.restoreActiveUserStates(snapshot.activeUserStates(),
+				currentTime);
+		int restoredRevokedTokens = gatekeeper.restoreRevokedTokens(snapshot.revokedTokens(),
+				currentTime);
+		int replayedEvents = activeTokenLog.replay(gatekeeper.createEventReplayer());
+		log.logInfoUsingMessage("Restored " + restoredTokens + " active tokens and "
+				+ restoredRevokedTokens + " revoked tokens from snapshot and replayed "
+				+ replayedEvents + " logged events in " + millisSince(startTime) + " ms.");
+	}
+
+	private long millisSince(long startTime) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * start starts logging changes to the active tokens, writes a snapshot that compacts the log
+	 * replayed by {@link #restore()}, and starts writing snapshots periodically.
+	 */
+	void start() {
+		startLogging();
+		writeSnapshot();
+		executor = Executors.newSingleThreadScheduledExecutor(
+				Thread.ofVirtual().name(THREAD_NAME).factory());
+		executor.scheduleWithFixedDelay(this::writeSnapshot, intervalInMillis, intervalInMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	private void startLogging() {
+		try {
+			activeTokenLog.open();
+			gatekeeper.addActiveTokenEventListener(activeTokenLog);
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException(
+					"Could not open active token log, changes are only kept in snapshots.", e);
+		}
+	}
+
+	void writeSnapshot() {
+		try {
+			tryToWriteSnapshot();
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException("Error writing snapshot of active tokens.", e);
+		}
+	}
+
+	private void tryToWriteSnapshot() throws Exception {
+		long startTime = System.nanoTime();
+		rotateLogUnlessPreviousLogIsLeft();
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		snapshotFile.write(activeUserStates, gatekeeper.getRevokedTokens());
+		activeTokenLog.deletePreviousLog();
+		log.logInfoUsingMessage("Wrote snapshot of " + activeUserStates.size()
+				+ " active users in " + millisSince(startTime) + " ms.");
+	}
+
+	/**
+	 * A previous log is left if an earlier snapshot failed. It is kept, and the current log is not
+	 * rotated, as the changes in both must be kept until a snapshot containing them is written.
+	 */
+	private void rotateLogUnlessPreviousLogIsLeft() throws IOException {
+		if (!activeTokenLog.hasPreviousLog()) {
+			activeTokenLog.rotate();
+		}
+	}
+
+	/**
+	 * stop stops the periodic snapshots, waits for a snapshot being written to finish and then
+	 * writes a last snapshot, so that no tokens handed out before stop are lost. After that the log
+	 * is closed.
+	 */
+	void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			awaitTermination();
+			writeSnapshot();
+			stopLogging();
+		}
+	}
+
+	private void stopLogging() {
+		gatekeeper.removeActiveTokenEventListener(activeTokenLog);
+		try {
+			activeTokenLog.close();
+		} catch (Exception e) {
+			log.logErrorUsingMessageAndException("Error closing active token log.", e);
+		}
+	}
+
+	private void awaitTermination() {
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	boolean isRunning() {
+		return executor != null && !executor.isShutdown();
+	}
+
+	long onlyForTestGetIntervalInMillis() {
+		return intervalInMillis;
+	}
+
+	ActiveTokenSnapshotFile onlyForTestGetSnapshotFile() {
+		return snapshotFile;
+	}
+
+	ActiveTokenLog onlyForTestGetActiveTokenLog() {
+		return activeTokenLog;
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2017, 2022, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2017, 2022, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,21 +19,36 @@
 
 package se.uu.ub.cora.gatekeeperserver.initialize;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
 import se.uu.ub.cora.gatekeeper.picker.UserPicker;
 import se.uu.ub.cora.gatekeeper.picker.UserPickerProvider;
 import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
 import se.uu.ub.cora.gatekeeperserver.Gatekeeper;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveUserState.TokenState;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+import se.uu.ub.cora.gatekeeperserver.initialize.SignedTokenFormat.SignedToken;
 import se.uu.ub.cora.gatekeeperserver.tokenprovider.AuthToken;
 
 public enum GatekeeperImp implements Gatekeeper {
@@ -41,60 +56,228 @@ public enum GatekeeperImp implements Gatekeeper {
 
 	private static final long VALID_UNTIL_NO_MILLIS = 600000L;
 	private static final long RENEW_UNTIL_NO_MILLIS = 86400000L;
-	private Map<String, ActiveTokenForUser> activeTokens = new ConcurrentHashMap<>();
+	private static final int DEFAULT_NUMBER_OF_SHARDS = 16;
+	private static final int DEFAULT_MAX_ACTIVE_TOKENS_PER_USER = 100;
+	private static final int DEFAULT_MAX_ACTIVE_TOKENS = 1000000;
+	private static final int DEFAULT_REJECTED_TOKEN_CACHE_SIZE = 4096;
+	private static final String GUEST_USER_REFRESH_THREAD_NAME = "gatekeeperGuestUserRefresh";
+	private static final AuthenticationException TOKEN_NOT_VALID = AuthenticationException
+			.withoutStackTrace("Token not valid");
+	private TokenEncoding tokenEncoding = TokenEncoding.UUID;
+	private final TokenKeyGenerator tokenKeyGenerator = new TokenKeyGenerator();
+	private SignedTokenFormat signedTokenFormat;
+	private RevokedTokens revokedTokens = new RevokedTokens();
+	private RejectedTokenCache rejectedTokenCache = new RejectedTokenCache(
+			DEFAULT_REJECTED_TOKEN_CACHE_SIZE);
+	private SharedStringSets sharedStringSets = new SharedStringSets();
+	private StorageWorkExecutor storageWorkExecutor = StorageWorkExecutor.INSTANCE;
+	private GuestUserCache guestUserCache = createGuestUserCache();
+	private AtomicInteger numberOfActiveTokens = new AtomicInteger();
+	private ActiveTokenShard[] shards = createShards(DEFAULT_NUMBER_OF_SHARDS,
+			numberOfActiveTokens);
+	private final AtomicInteger tokensClaimedForEviction = new AtomicInteger();
+	private final AtomicInteger nextShardToRemoveTokensFrom = new AtomicInteger();
 	private Map<String, ActiveUser> activeUsers = new ConcurrentHashMap<>();
+	private Map<String, Set<ActiveUser>> activeUsersById = new ConcurrentHashMap<>();
+	private final List<ActiveTokenEventListener> eventListeners = new CopyOnWriteArrayList<>();
+	private int maxActiveTokensPerUser = DEFAULT_MAX_ACTIVE_TOKENS_PER_USER;
+	private int maxActiveTokens = DEFAULT_MAX_ACTIVE_TOKENS;
+	private long renewGracePeriodInMillis = 0;
+	private final LongAdder evictedTokensOverUserLimit = new LongAdder();
+	private final LongAdder evictedTokensOverTotalLimit = new LongAdder();
+
+	private static ActiveTokenShard[] createShards(int numberOfShards,
+			AtomicInteger numberOfTokensInAllShards) {
+		ActiveTokenShard[] newShards = new ActiveTokenShard[numberOfShards];
+		for (int i = 0; i < numberOfShards; i++) {
+			newShards[i] = new ActiveTokenShard(numberOfTokensInAllShards);
+		}
+		return newShards;
+	}
 
 	// TODO: create getGuestUser method, instead of using getUseForToken(null)
 	@Override
 	public User getUserForToken(String token) {
+		return getCachedUserForToken(token).getUser();
+	}
+
+	@Override
+	public CachedUser getCachedUserForToken(String token) {
 		if (token == null) {
-			return returnGuestUser();
+			return guestUserCache.getGuestUser();
 		}
 		return tryToGetAuthenticatedUser(token);
 	}
 
-	private User returnGuestUser() {
+	private static User pickGuestUser() {
 		UserPicker userPicker = UserPickerProvider.getUserPicker();
 		return userPicker.pickGuest();
 	}
 
-	private User tryToGetAuthenticatedUser(String token) {
-		throwErrorIfInvalidToken(token);
-		return getAuthenticatedUser(token);
+	private static GuestUserCache createGuestUserCache() {
+		return new GuestUserCache(GatekeeperImp::pickGuestUser,
+				task -> Thread.ofVirtual().name(GUEST_USER_REFRESH_THREAD_NAME).start(task));
+	}
+
+	private CachedUser tryToGetAuthenticatedUser(String token) {
+		ActiveToken activeToken = getValidActiveTokenOrThrowError(token, toTokenKey(token));
+		return activeToken.activeUser().cachedUser;
 	}
 
-	private void throwErrorIfInvalidToken(String token) {
-		if (tokenDoNotExistsOrInvalid(token)) {
-			throw createExceptionTokenNotValid();
+	/**
+	 * getCachedUsersForTokens reads the clock once for the whole batch and never throws for a
+	 * token that is not valid, so each token costs one lookup in its shard.
+	 */
+	@Override
+	public List<CachedUser> getCachedUsersForTokens(List<String> tokens) {
+		long currentTime = System.currentTimeMillis();
+		List<CachedUser> cachedUsers = new ArrayList<>(tokens.size());
+		for (String token : tokens) {
+			cachedUsers.add(findCachedUserForToken(token, currentTime));
 		}
+		return cachedUsers;
 	}
 
-	private AuthenticationException createExceptionTokenNotValid() {
-		return new AuthenticationException("Token not valid");
+	private CachedUser findCachedUserForToken(String token, long currentTime) {
+		if (token == null) {
+			return guestUserCache.getGuestUser();
+		}
+		ActiveToken activeToken = getValidActiveTokenOrNull(token, toTokenKey(token),
+				currentTime);
+		return activeToken != null ? activeToken.activeUser().cachedUser : null;
 	}
 
-	private boolean tokenDoNotExistsOrInvalid(String token) {
-		return !activeTokens.containsKey(token) || !checkTokenIsValid(token);
+	private TokenKey toTokenKey(String token) {
+		if (signedTokenFormat == null) {
+			return toTokenKeyForOpaqueToken(token);
+		}
+		return toTokenKeyForSignedToken(token);
 	}
 
-	boolean checkTokenIsValid(String token) {
-		ActiveTokenForUser activeTokenForUser = activeTokens.get(token);
-		return activeTokenForUserIsValid(activeTokenForUser);
+	/**
+	 * toTokenKeyForOpaqueToken rejects tokens with a length no token has, and tokens in the
+	 * {@link RejectedTokenCache}, before the token is parsed. An opaque token is only added to
+	 * the cache once it is known that it can never become valid, as it has expired or been
+	 * removed. A well formed token that is not among the active tokens is not added, as it can
+	 * still be added by another node through replication.
+	 */
+	private TokenKey toTokenKeyForOpaqueToken(String token) {
+		if (!TokenKey.hasPossibleFormat(token) || rejectedTokenCache.contains(token)) {
+			return null;
+		}
+		return TokenKey.fromString(token);
 	}
 
-	private boolean activeTokenForUserIsValid(ActiveTokenForUser activeTokenForUser) {
-		long currentTimestamp = System.currentTimeMillis();
-		return currentTimestamp <= activeTokenForUser.validUntil();
+	/**
+	 * toTokenKeyForSignedToken checks the signature, validUntil and revocation of a signed token
+	 * before any active token is looked up, so forged, expired and revoked tokens give null
+	 * without touching the shards. A valid token that is not among the active tokens, as it was
+	 * handed out by another node with the same signing key, is added to them. Picking the user for
+	 * such a token uses storage, so it is done with a permit from the {@link StorageWorkExecutor},
+	 * sharing its limit with logins. If no permit becomes free in time, the
+	 * RejectedExecutionException is passed on, as the token can still be valid.
+	 * <p>
+	 * A forged, expired or revoked token can never become valid, so it is added to the
+	 * {@link RejectedTokenCache} and rejected without checking its signature if it is sent again.
+	 */
+	private TokenKey toTokenKeyForSignedToken(String token) {
+		if (!signedTokenFormat.hasPossibleFormat(token) || rejectedTokenCache.contains(token)) {
+			return null;
+		}
+		SignedToken signedToken = signedTokenFormat.read(token);
+		if (signedToken == null || signedTokenIsNoLongerValid(signedToken)) {
+			rejectedTokenCache.add(token);
+			return null;
+		}
+		if (getActiveToken(signedToken.token()) == null
+				&& !storeSignedTokenIfUserExists(signedToken)) {
+			return null;
+		}
+		return signedToken.token();
+	}
+
+	private boolean signedTokenIsNoLongerValid(SignedToken signedToken) {
+		return System.currentTimeMillis() > signedToken.tokenForUser().validUntil()
+				|| revokedTokens.isRevoked(signedToken.token(), System.currentTimeMillis());
+	}
+
+	private boolean storeSignedTokenIfUserExists(SignedToken signedToken) {
+		User user = findUserForLoginId(signedToken.tokenForUser().loginId());
+		if (user == null) {
+			return false;
+		}
+		storeActiveTokenForUser(signedToken.token(), signedToken.tokenForUser(), user);
+		evictTokensOverLimits(signedToken.token(), signedToken.tokenForUser());
+		awaitListenersWritingEvents();
+		return true;
+	}
+
+	private User findUserForLoginId(String loginId) {
+		ActiveUser activeUser = activeUsers.get(loginId);
+		if (activeUser != null) {
+			return activeUser.user;
+		}
+		return pickUserUsingLoginIdOrNull(loginId);
+	}
+
+	private User pickUserUsingLoginIdOrNull(String loginId) {
+		try {
+			return storageWorkExecutor
+					.supplyWithPermit(() -> pickUser(UserInfo.withLoginId(loginId)));
+		} catch (RejectedExecutionException e) {
+			throw e;
+		} catch (Exception _) {
+			return null;
+		}
+	}
+
+	/**
+	 * getValidActiveTokenOrThrowError validates a token using a single lookup in its shard. The
+	 * exception thrown for malformed, unknown or expired tokens is shared and has no stack trace,
+	 * so that rejecting a token does not create any objects.
+	 */
+	private ActiveToken getValidActiveTokenOrThrowError(String token, TokenKey tokenKey) {
+		ActiveToken activeToken = getValidActiveTokenOrNull(token, tokenKey,
+				System.currentTimeMillis());
+		if (activeToken == null) {
+			throw TOKEN_NOT_VALID;
+		}
+		return activeToken;
+	}
+
+	/**
+	 * getValidActiveTokenOrNull adds an expired token to the {@link RejectedTokenCache}, as its
+	 * validUntil never changes and it can never become valid again, in both opaque and signed
+	 * mode.
+	 */
+	private ActiveToken getValidActiveTokenOrNull(String token, TokenKey tokenKey,
+			long currentTime) {
+		ActiveToken activeToken = getActiveToken(tokenKey);
+		if (activeToken != null && !activeToken.isValidAt(currentTime)) {
+			rejectedTokenCache.add(token);
+			return null;
+		}
+		return activeToken;
 	}
 
-	private User getAuthenticatedUser(String token) {
-		ActiveTokenForUser authentication = activeTokens.get(token);
-		return activeUsers.get(authentication.loginId()).user;
+	private ActiveToken getActiveToken(TokenKey tokenKey) {
+		return tokenKey != null ? shardFor(tokenKey).get(tokenKey) : null;
+	}
+
+	private ActiveTokenShard shardFor(TokenKey tokenKey) {
+		return shards[Math.floorMod(tokenKey.mostSignificantBits(), shards.length)];
+	}
+
+	private ActiveToken getActiveTokenOrThrowError(TokenKey tokenKey) {
+		ActiveToken activeToken = getActiveToken(tokenKey);
+		if (activeToken == null) {
+			throw TOKEN_NOT_VALID;
+		}
+		return activeToken;
 	}
 
 	@Override
 	public AuthToken getAuthTokenForUserInfo(UserInfo userInfo) {
-		removeNoLongerValidActiveToken();
 		try {
 			return tryToGetAuthTokenForUserInfo(userInfo);
 		} catch (Exception e) {
@@ -103,45 +286,304 @@ public enum GatekeeperImp implements Gatekeeper {
 		}
 	}
 
-	synchronized void removeNoLongerValidActiveToken() {
-		for (Entry<String, ActiveTokenForUser> activeTokenEntry : activeTokens.entrySet()) {
-			removeActiveTokenIfNoLongerValid(activeTokenEntry);
+	/**
+	 * removeNoLongerValidActiveTokens removes active tokens whose validUntil has passed, and active
+	 * users that no longer have any active tokens. At most about maxNumberOfTokens tokens are
+	 * handled per call, tokens that are left are handled by the next call.
+	 * <p>
+	 * The shards are handled one at a time, starting with the shard after the one the previous call
+	 * started with, so that no shard is left behind when there are many expired tokens.
+	 *
+	 * @param maxNumberOfTokens
+	 *            the number of expired tokens after which no more tokens are handled
+	 * @return the number of removed active tokens
+	 */
+	int removeNoLongerValidActiveTokens(int maxNumberOfTokens) {
+		long currentTime = System.currentTimeMillis();
+		revokedTokens.removeNoLongerValidTokens(currentTime, maxNumberOfTokens);
+		ActiveTokenShard[] currentShards = shards;
+		int firstShard = nextShardToRemoveTokensFrom.getAndIncrement();
+		int removedTokens = 0;
+		for (int i = 0; i < currentShards.length && removedTokens < maxNumberOfTokens; i++) {
+			ActiveTokenShard shard = currentShards[Math.floorMod(firstShard + i,
+					currentShards.length)];
+			removedTokens += shard.removeDueTokens(currentTime, maxNumberOfTokens - removedTokens,
+					this::removeActiveTokenIfNoLongerValid);
 		}
+		return removedTokens;
+	}
+
+	private boolean removeActiveTokenIfNoLongerValid(TokenKey token) {
+		ActiveToken activeToken = shardFor(token).get(token);
+		if (activeToken != null && !activeToken.isValidAt(System.currentTimeMillis())) {
+			return removeActiveTokenAndUserAndTellListeners(token, activeToken);
+		}
+		return false;
+	}
+
+	private boolean removeActiveTokenAndUserAndTellListeners(TokenKey token,
+			ActiveToken activeToken) {
+		return removeActiveTokenAndUser(token, activeToken, this::tellListenersActiveTokenRemoved);
+	}
+
+	private boolean removeActiveTokenAndUser(TokenKey token, ActiveToken activeToken) {
+		return removeActiveTokenAndUser(token, activeToken, _ -> {
+		});
+	}
+
+	/**
+	 * removeActiveTokenAndUser removes the token, and the user if it has no tokens left, and calls
+	 * removedHandler inside the same activeUsers.compute, so that a removal is handled in the same
+	 * order as other changes to the tokens of the user.
+	 */
+	private boolean removeActiveTokenAndUser(TokenKey token, ActiveToken activeToken,
+			Consumer<TokenKey> removedHandler) {
+		AtomicBoolean removed = new AtomicBoolean();
+		activeUsers.computeIfPresent(activeToken.tokenForUser().loginId(), (_, activeUser) -> {
+			if (!shardFor(token).remove(token, activeToken)) {
+				return activeUser;
+			}
+			removed.set(true);
+			removedHandler.accept(token);
+			return removeTokenAndPossiblyUser(activeUser, token);
+		});
+		return removed.get();
 	}
 
-	private void removeActiveTokenIfNoLongerValid(
-			Entry<String, ActiveTokenForUser> activeTokenEntry) {
-		if (!activeTokenForUserIsValid(activeTokenEntry.getValue())) {
-			ActiveTokenForUser activeToken = activeTokens.get(activeTokenEntry.getKey());
-			activeTokens.remove(activeTokenEntry.getKey());
-			ActiveUser activeUser = activeUsers.get(activeToken.loginId());
-			removeActiveUser(activeToken.loginId(), activeUser);
+	private ActiveUser removeTokenAndPossiblyUser(ActiveUser activeUser, TokenKey token) {
+		ActiveUser stillActiveUser = activeUser.removeTokenAndReturnIfStillActive(token);
+		if (stillActiveUser == null) {
+			removeActiveUserFromIdIndex(activeUser);
 		}
+		return stillActiveUser;
 	}
 
 	private AuthToken tryToGetAuthTokenForUserInfo(UserInfo userInfo) {
-		String generatedToken = generateRandomUUID();
-		String generatedTokenId = generateRandomUUID();
+		TokenKey generatedToken = generateTokenKey();
+		TokenKey generatedTokenId = generateTokenKey();
 		User pickedUser = pickUser(userInfo);
 		ActiveTokenForUser activeToken = createActiveTokenForUser(generatedTokenId,
 				pickedUser.loginId);
-		activeTokens.put(generatedToken, activeToken);
+		ActiveUser activeUser = storeActiveTokenForUserAndTellListeners(generatedToken, activeToken,
+				pickedUser);
+		evictTokensOverLimits(generatedToken, activeToken);
+		awaitListenersWritingEvents();
+		return generateAuthToken(generatedToken, activeToken, activeUser.user);
+	}
 
-		addActiveUser(pickedUser);
-		return generateAuthToken(generatedToken, activeToken);
+	/**
+	 * evictTokensOverLimits removes the oldest tokens of the user, if the user has more than
+	 * maxActiveTokensPerUser tokens, and the oldest tokens among all active tokens, if there are
+	 * more than maxActiveTokens tokens in total. The new token and other tokens added in the same
+	 * second are never evicted.
+	 * <p>
+	 * The oldest tokens of a user are the ones added first, while the oldest tokens among all
+	 * active tokens are the ones with the earliest validUntil, found by evicting from the shard
+	 * with the earliest validUntil, one expiry bucket at a time. Evicted tokens are removed as if
+	 * they had been removed using {@link #removeAuthToken(String, String)}, signed tokens are
+	 * revoked and the evicted tokens are added to the {@link RejectedTokenCache}.
+	 * <p>
+	 * Each call only evicts the tokens over the total limit that no concurrent call has already
+	 * claimed, so that concurrent logins together never evict more tokens than are over the limit.
+	 * <p>
+	 * Listeners are told about evicted tokens, in the order they were evicted, after the user is
+	 * unlocked, so that evicting many tokens does not hold the lock while listeners are called.
+	 * This keeps the order of the events for each token, as an evicted token is removed from the
+	 * active tokens and can not change again.
+	 */
+	private void evictTokensOverLimits(TokenKey newToken, ActiveTokenForUser newTokenForUser) {
+		Map<TokenKey, ActiveToken> evictedTokens = evictOldestTokensOfUserOverLimit(
+				newTokenForUser.loginId(), newToken);
+		evictedTokensOverUserLimit.add(evictedTokens.size());
+		tellListenersAndRevokeEvictedTokens(evictedTokens);
+		evictedTokens = evictOldestTokensOverTotalLimit(newTokenForUser.validUntil());
+		evictedTokensOverTotalLimit.add(evictedTokens.size());
+		tellListenersAndRevokeEvictedTokens(evictedTokens);
 	}
 
-	private void addActiveUser(User user) {
-		activeUsers.compute(user.loginId, (_, existingUser) -> {
-			if (existingUser != null) {
-				existingUser.incrementAnGet();
-				return existingUser;
+	private Map<TokenKey, ActiveToken> evictOldestTokensOfUserOverLimit(String loginId,
+			TokenKey newToken) {
+		Map<TokenKey, ActiveToken> evictedTokens = new LinkedHashMap<>();
+		activeUsers.computeIfPresent(loginId, (_, activeUser) -> {
+			Iterator<TokenKey> oldestFirst = activeUser.tokens.iterator();
+			while (activeUser.tokens.size() > maxActiveTokensPerUser && oldestFirst.hasNext()) {
+				TokenKey token = oldestFirst.next();
+				if (!token.equals(newToken)) {
+					oldestFirst.remove();
+					putIfRemoved(evictedTokens, token, shardFor(token).remove(token));
+				}
 			}
-			return new ActiveUser(user);
+			return activeUser;
 		});
+		return evictedTokens;
 	}
 
-	private ActiveTokenForUser createActiveTokenForUser(String tokenId, String userId) {
+	private void putIfRemoved(Map<TokenKey, ActiveToken> evictedTokens, TokenKey token,
+			ActiveToken removedToken) {
+		if (removedToken != null) {
+			evictedTokens.put(token, removedToken);
+		}
+	}
+
+	private Map<TokenKey, ActiveToken> evictOldestTokensOverTotalLimit(long newValidUntil) {
+		Map<TokenKey, ActiveToken> evictedTokens = new LinkedHashMap<>();
+		int claimedTokens = claimTokensOverTotalLimit();
+		if (claimedTokens == 0) {
+			return evictedTokens;
+		}
+		try {
+			evictClaimedTokens(newValidUntil, claimedTokens, evictedTokens);
+		} finally {
+			tokensClaimedForEviction.addAndGet(evictedTokens.size() - claimedTokens);
+		}
+		return evictedTokens;
+	}
+
+	/**
+	 * claimTokensOverTotalLimit claims the tokens over the total limit that are not already
+	 * claimed by a concurrent call. A claimed token is released as soon as a token is evicted, so
+	 * that the number of active tokens minus the claimed tokens is never less than what is left
+	 * once all claims are evicted.
+	 *
+	 * @return the number of tokens claimed, 0 if there are no unclaimed tokens over the limit
+	 */
+	private int claimTokensOverTotalLimit() {
+		int claimed;
+		int tokensOverLimit;
+		do {
+			claimed = tokensClaimedForEviction.get();
+			tokensOverLimit = numberOfActiveTokens.get() - claimed - maxActiveTokens;
+			if (tokensOverLimit <= 0) {
+				return 0;
+			}
+		} while (!tokensClaimedForEviction.compareAndSet(claimed, claimed + tokensOverLimit));
+		return tokensOverLimit;
+	}
+
+	private void evictClaimedTokens(long newValidUntil, int claimedTokens,
+			Map<TokenKey, ActiveToken> evictedTokens) {
+		ActiveTokenShard oldestShard = findShardWithOldestTokens();
+		while (evictedTokens.size() < claimedTokens && oldestShard != null
+				&& oldestShard.getEndOfOldestBucket() <= newValidUntil) {
+			oldestShard.removeOldestTokens(oldestShard.getEndOfOldestBucket(),
+					claimedTokens - evictedTokens.size(),
+					token -> evictClaimedActiveToken(token, evictedTokens));
+			oldestShard = findShardWithOldestTokens();
+		}
+	}
+
+	private boolean evictClaimedActiveToken(TokenKey token,
+			Map<TokenKey, ActiveToken> evictedTokens) {
+		if (evictActiveToken(token, evictedTokens)) {
+			tokensClaimedForEviction.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private ActiveTokenShard findShardWithOldestTokens() {
+		ActiveTokenShard oldestShard = null;
+		for (ActiveTokenShard shard : shards) {
+			if (oldestShard == null
+					|| shard.getEndOfOldestBucket() < oldestShard.getEndOfOldestBucket()) {
+				oldestShard = shard;
+			}
+		}
+		return oldestShard;
+	}
+
+	private boolean evictActiveToken(TokenKey token, Map<TokenKey, ActiveToken> evictedTokens) {
+		ActiveToken activeToken = shardFor(token).get(token);
+		if (activeToken != null && removeActiveTokenAndUser(token, activeToken)) {
+			evictedTokens.put(token, activeToken);
+			return true;
+		}
+		return false;
+	}
+
+	private void tellListenersAndRevokeEvictedTokens(Map<TokenKey, ActiveToken> evictedTokens) {
+		evictedTokens.forEach((token, activeToken) -> {
+			tellListenersActiveTokenRemoved(token);
+			revokeIfSigned(token, activeToken);
+			rejectedTokenCache.add(encodeToken(token, activeToken.tokenForUser()));
+		});
+	}
+
+	/**
+	 * All changes to the tokens of an active user are made inside activeUsers.compute for the
+	 * users loginId. Adding, removing and revoking tokens for one user are therefore serialized,
+	 * while different users do not block each other.
+	 */
+	private ActiveUser storeActiveTokenForUser(TokenKey token, ActiveTokenForUser activeToken,
+			User user) {
+		return activeUsers.compute(activeToken.loginId(), (loginId, existingUser) -> {
+			ActiveUser activeUser = existingUser != null ? existingUser
+					: createAndIndexActiveUser(loginId, user);
+			storeActiveToken(activeUser, token, activeToken);
+			return activeUser;
+		});
+	}
+
+	/**
+	 * Listeners are told about a change inside the same activeUsers.compute as the change is made
+	 * in, so that they are told about the changes to the tokens of a user in the order the changes
+	 * were made.
+	 */
+	private ActiveUser storeActiveTokenForUserAndTellListeners(TokenKey token,
+			ActiveTokenForUser activeToken, User user) {
+		return activeUsers.compute(activeToken.loginId(), (loginId, existingUser) -> {
+			ActiveUser activeUser = existingUser != null ? existingUser
+					: createAndIndexActiveUser(loginId, user);
+			storeActiveToken(activeUser, token, activeToken);
+			tellListenersActiveTokenAdded(token, activeToken, activeUser.user);
+			return activeUser;
+		});
+	}
+
+	private ActiveUser createAndIndexActiveUser(String loginId, User user) {
+		ActiveUser activeUser = new ActiveUser(loginId, shareRolesAndPermissionUnits(user));
+		activeUsersById.compute(user.id, (_, usersWithId) -> {
+			Set<ActiveUser> users = usersWithId != null ? usersWithId
+					: ConcurrentHashMap.newKeySet();
+			users.add(activeUser);
+			return users;
+		});
+		return activeUser;
+	}
+
+	/**
+	 * shareRolesAndPermissionUnits creates a copy of a user that becomes active, with its roles
+	 * and permission units replaced by immutable sets shared with other active users, see
+	 * {@link SharedStringSets}. The given user is not changed, as it belongs to the caller. The
+	 * sets are handed on to the AuthTokens for the user without being copied.
+	 */
+	private User shareRolesAndPermissionUnits(User user) {
+		User sharedUser = new User(user.id);
+		sharedUser.loginId = user.loginId;
+		sharedUser.loginDomain = user.loginDomain;
+		sharedUser.firstName = user.firstName;
+		sharedUser.lastName = user.lastName;
+		sharedUser.active = user.active;
+		sharedUser.roles = sharedStringSets.share(user.roles);
+		sharedUser.permissionUnitIds = sharedStringSets.share(user.permissionUnitIds);
+		return sharedUser;
+	}
+
+	private void removeActiveUserFromIdIndex(ActiveUser activeUser) {
+		activeUsersById.computeIfPresent(activeUser.user.id, (_, usersWithId) -> {
+			usersWithId.remove(activeUser);
+			return usersWithId.isEmpty() ? null : usersWithId;
+		});
+	}
+
+	private ActiveUser storeActiveToken(ActiveUser activeUser, TokenKey token,
+			ActiveTokenForUser activeToken) {
+		shardFor(token).put(token, new ActiveToken(activeToken, activeUser));
+		activeUser.tokens.add(token);
+		return activeUser;
+	}
+
+	private ActiveTokenForUser createActiveTokenForUser(TokenKey tokenId, String userId) {
 		long currentTime = System.currentTimeMillis();
 		long validUntil = currentTime + VALID_UNTIL_NO_MILLIS;
 		long renewUntil = currentTime + RENEW_UNTIL_NO_MILLIS;
@@ -153,81 +595,72 @@ public enum GatekeeperImp implements Gatekeeper {
 		return userPicker.pickUser(userInfo);
 	}
 
-	private AuthToken generateAuthToken(String token, ActiveTokenForUser activeTokenForUser) {
-		String loginId = activeTokenForUser.loginId();
-		User user = activeUsers.get(loginId).user;
-		return new AuthToken(token, activeTokenForUser.tokenId(), activeTokenForUser.validUntil(),
+	private AuthToken generateAuthToken(TokenKey token, ActiveTokenForUser activeTokenForUser,
+			User user) {
+		return new AuthToken(encodeToken(token, activeTokenForUser),
+				tokenEncoding.encode(activeTokenForUser.tokenId()), activeTokenForUser.validUntil(),
 				activeTokenForUser.renewUntil(), user.id, user.loginId,
 				Optional.ofNullable(user.firstName), Optional.ofNullable(user.lastName),
 				user.permissionUnitIds);
 	}
 
-	private String generateRandomUUID() {
-		return UUID.randomUUID().toString();
-	}
-
-	@Override
-	public void removeAuthToken(String tokenId, String token) {
-		throwErrorIfAuthTokenDoesNotExists(token);
-		removeAuthTokenIfUserIdMatches(tokenId, token);
-	}
-
-	private void throwErrorIfAuthTokenDoesNotExists(String token) {
-		if (!activeTokens.containsKey(token)) {
-			throw createExceptionTokenNotValid();
+	private String encodeToken(TokenKey token, ActiveTokenForUser activeTokenForUser) {
+		if (signedTokenFormat == null) {
+			return tokenEncoding.encode(token);
 		}
+		return signedTokenFormat.write(token, activeTokenForUser);
 	}
 
-	private void removeAuthTokenIfUserIdMatches(String tokenId, String token) {
-		ensureUserIdMatchesTokensUserId(tokenId, token);
-		removeActiveTokenAndUser(token);
+	private TokenKey generateTokenKey() {
+		return tokenKeyGenerator.generate();
 	}
 
-	private void removeActiveTokenAndUser(String token) {
-		ActiveTokenForUser activeToken = activeTokens.get(token);
-		activeTokens.remove(token);
-		ActiveUser activeUser = activeUsers.get(activeToken.loginId());
-		removeActiveUser(activeToken.loginId(), activeUser);
+	@Override
+	public void removeAuthToken(String tokenId, String token) {
+		TokenKey tokenKey = toTokenKey(token);
+		ActiveToken activeToken = getActiveTokenOrThrowError(tokenKey);
+		ensureUserIdMatchesTokensUserId(tokenId, activeToken.tokenForUser());
+		removeActiveTokenAndUserAndTellListeners(tokenKey, activeToken);
+		revokeIfSigned(tokenKey, activeToken);
+		rejectedTokenCache.add(token);
+		awaitListenersWritingEvents();
 	}
 
-	private void removeActiveUser(String loginIdFromToken, ActiveUser activeUser) {
-
-		if (activeUser.counter.get() > 1) {
-			activeUser.decrementAndGet();
-		} else {
-			activeUsers.remove(loginIdFromToken);
+	private void revokeIfSigned(TokenKey token, ActiveToken activeToken) {
+		if (activeToken != null) {
+			revokeFromIfSigned(token, RevokedTokens.REVOKED_NOW,
+					activeToken.tokenForUser().validUntil());
 		}
 	}
 
-	private void ensureUserIdMatchesTokensUserId(String tokenId, String token) {
-		ActiveTokenForUser authentication = activeTokens.get(token);
-		if (!tokenId.equals(authentication.tokenId())) {
-			throw createExceptionTokenNotValid();
+	private void ensureUserIdMatchesTokensUserId(String tokenId,
+			ActiveTokenForUser activeTokenForUser) {
+		if (!activeTokenForUser.tokenId().equals(TokenKey.fromString(tokenId))) {
+			throw TOKEN_NOT_VALID;
 		}
 	}
 
 	void onlyForTestSetActiveTokenAndActiveUsers(String token, ActiveTokenForUser activeToken,
 			User activeUser) {
-		activeTokens.put(token, activeToken);
-		addActiveUser(activeUser);
+		storeActiveTokenForUser(TokenKey.fromString(token), activeToken, activeUser);
 	}
 
 	@Override
 	public AuthToken renewAuthToken(String tokenId, String oldToken) {
-		throwErrorIfInvalidToken(oldToken);
-		ensureUserIdMatchesTokensUserId(tokenId, oldToken);
-		ensureRenewUntilHasNotPassed(oldToken);
-		String newToken = generateRandomUUID();
-		ActiveTokenForUser newAuthentication = replaceOldToNewAuthentication(oldToken, newToken);
-		activeUsers.get(newAuthentication.loginId()).incrementAnGet();
-		return generateAuthToken(newToken, newAuthentication);
-	}
-
-	private ActiveTokenForUser replaceOldToNewAuthentication(String token, String newToken) {
-		ActiveTokenForUser activeTokenForUser = activeTokens.get(token);
+		TokenKey oldTokenKey = toTokenKey(oldToken);
+		ActiveToken oldActiveToken = getValidActiveTokenOrThrowError(oldToken, oldTokenKey);
+		ActiveTokenForUser activeTokenForUser = oldActiveToken.tokenForUser();
+		ensureUserIdMatchesTokensUserId(tokenId, activeTokenForUser);
+		ensureTokenIsNotRetired(oldActiveToken);
+		ensureRenewUntilHasNotPassed(activeTokenForUser);
+		TokenKey newToken = generateTokenKey();
 		ActiveTokenForUser newAuthentication = renewAuthentication(activeTokenForUser);
-		storeNewAuthentication(newToken, newAuthentication);
-		return newAuthentication;
+		ActiveTokenForUser retiredAuthentication = retireAuthentication(activeTokenForUser);
+		ActiveUser activeUser = storeNewAuthenticationAndRetireOldToken(newToken,
+				newAuthentication, oldTokenKey, oldActiveToken, retiredAuthentication);
+		evictTokensOverLimits(newToken, newAuthentication);
+		awaitListenersWritingEvents();
+		return generateAuthToken(newToken, newAuthentication, activeUser.user);
 	}
 
 	private ActiveTokenForUser renewAuthentication(ActiveTokenForUser activeTokenForUser) {
@@ -237,18 +670,105 @@ public enum GatekeeperImp implements Gatekeeper {
 				validUntil, activeTokenForUser.renewUntil());
 	}
 
-	private void storeNewAuthentication(String newToken, ActiveTokenForUser newAuthentication) {
-		activeTokens.put(newToken, newAuthentication);
+	/**
+	 * retireAuthentication returns what is left of the renewed token during the grace period, or
+	 * null if there is no grace period and the renewed token is removed at once.
+	 */
+	private ActiveTokenForUser retireAuthentication(ActiveTokenForUser activeTokenForUser) {
+		if (renewGracePeriodInMillis == 0) {
+			return null;
+		}
+		long graceUntil = System.currentTimeMillis() + renewGracePeriodInMillis;
+		return new ActiveTokenForUser(activeTokenForUser.tokenId(), activeTokenForUser.loginId(),
+				Math.min(graceUntil, activeTokenForUser.validUntil()),
+				activeTokenForUser.renewUntil());
+	}
+
+	/**
+	 * storeNewAuthenticationAndRetireOldToken stores the new token and retires the renewed one in
+	 * the same update of the active user, so that a user never holds both tokens in full. A
+	 * renewed token that has already been retired, or removed, by a concurrent call can not be
+	 * renewed again. Listeners are told about both changes inside the same update.
+	 */
+	private ActiveUser storeNewAuthenticationAndRetireOldToken(TokenKey newToken,
+			ActiveTokenForUser newAuthentication, TokenKey oldToken, ActiveToken oldActiveToken,
+			ActiveTokenForUser retiredAuthentication) {
+		ActiveUser activeUser = activeUsers.computeIfPresent(newAuthentication.loginId(),
+				(_, existingUser) -> {
+					retireOldToken(existingUser, oldToken, oldActiveToken, retiredAuthentication);
+					storeActiveToken(existingUser, newToken, newAuthentication);
+					tellListenersActiveTokenAdded(newToken, newAuthentication, existingUser.user);
+					tellListenersOldTokenRetired(oldToken, retiredAuthentication,
+							existingUser.user);
+					return existingUser;
+				});
+		if (activeUser == null) {
+			throw TOKEN_NOT_VALID;
+		}
+		return activeUser;
+	}
+
+	private void retireOldToken(ActiveUser activeUser, TokenKey oldToken,
+			ActiveToken oldActiveToken, ActiveTokenForUser retiredAuthentication) {
+		if (retiredAuthentication == null) {
+			removeOldToken(activeUser, oldToken, oldActiveToken);
+		} else {
+			replaceOldToken(activeUser, oldToken, oldActiveToken, retiredAuthentication);
+		}
+	}
+
+	private void removeOldToken(ActiveUser activeUser, TokenKey oldToken,
+			ActiveToken oldActiveToken) {
+		if (!shardFor(oldToken).remove(oldToken, oldActiveToken)) {
+			throw TOKEN_NOT_VALID;
+		}
+		activeUser.tokens.remove(oldToken);
+		revokeIfSigned(oldToken, oldActiveToken);
+	}
+
+	private void replaceOldToken(ActiveUser activeUser, TokenKey oldToken,
+			ActiveToken oldActiveToken, ActiveTokenForUser retiredAuthentication) {
+		ActiveToken retiredToken = new ActiveToken(retiredAuthentication, activeUser, true);
+		if (!shardFor(oldToken).replace(oldToken, oldActiveToken, retiredToken)) {
+			throw TOKEN_NOT_VALID;
+		}
+		revokeFromIfSigned(oldToken, retiredAuthentication.validUntil(),
+				oldActiveToken.tokenForUser().validUntil());
+	}
+
+	/**
+	 * A revocation is told to listeners, so that it is logged and replicated, as a signed token
+	 * that is not among the active tokens of a node is otherwise accepted by that node.
+	 */
+	private void revokeFromIfSigned(TokenKey token, long revokedFrom, long validUntil) {
+		if (signedTokenFormat != null) {
+			revokedTokens.revokeFrom(token, revokedFrom, validUntil);
+			tellListenersActiveTokenRevoked(token, revokedFrom, validUntil);
+		}
+	}
+
+	private void tellListenersOldTokenRetired(TokenKey oldToken,
+			ActiveTokenForUser retiredAuthentication, User user) {
+		if (retiredAuthentication == null) {
+			tellListenersActiveTokenRemoved(oldToken);
+		} else {
+			tellListenersActiveTokenAdded(oldToken, retiredAuthentication, user);
+		}
+	}
+
+	private void ensureTokenIsNotRetired(ActiveToken activeToken) {
+		if (activeToken.retired()) {
+			throw TOKEN_NOT_VALID;
+		}
 	}
 
-	void ensureRenewUntilHasNotPassed(String token) {
-		if (!tokenCanBeRenewed(token)) {
-			throw createExceptionTokenNotValid();
+	private void ensureRenewUntilHasNotPassed(ActiveTokenForUser activeTokenForUser) {
+		if (!tokenCanBeRenewed(activeTokenForUser)) {
+			throw TOKEN_NOT_VALID;
 		}
 	}
 
-	boolean tokenCanBeRenewed(String token) {
-		ActiveTokenForUser activeTokenForUser = activeTokens.get(token);
+	private boolean tokenCanBeRenewed(ActiveTokenForUser activeTokenForUser) {
 		long currentTimestamp = System.currentTimeMillis();
 		return currentTimestamp <= activeTokenForUser.renewUntil();
 	}
@@ -259,62 +779,70 @@ public enum GatekeeperImp implements Gatekeeper {
 		// loginId i alla activeTokens och i key för activeUsers (eller kan vi lösa problemet på ett
 		// annat sett)
 		if ("user".equals(type) && "update".equals(action)) {
+			guestUserCache.userChanged(id);
 			updateRelatedUsersDataFromStorage(id);
 		}
 
 		if ("user".equals(type) && "delete".equals(action)) {
+			guestUserCache.userChanged(id);
 			deleteRelatedUsersFromCache(id);
 		}
+		awaitListenersWritingEvents();
 	}
 
 	private void deleteRelatedUsersFromCache(String id) {
-		Iterator<ActiveUser> iterator = activeUsers.values().iterator();
-		while (iterator.hasNext()) {
-			possiblyDeleteUserFromCache(id, iterator.next(), iterator);
+		for (ActiveUser activeUser : List.copyOf(findActiveUsersWithId(id))) {
+			deleteUserFromCache(activeUser);
 		}
 	}
 
-	private void possiblyDeleteUserFromCache(String id, ActiveUser activeUser,
-			Iterator<ActiveUser> iterator) {
-		String activeUserId = activeUser.user.id;
-		if (activeUserId.equals(id)) {
-			deleteUserFromCache(activeUser, iterator);
-		}
+	private void deleteUserFromCache(ActiveUser activeUser) {
+		activeUsers.computeIfPresent(activeUser.loginId, (_, currentUser) -> {
+			removeAllActiveTokensForUser(currentUser);
+			removeActiveUserFromIdIndex(currentUser);
+			return null;
+		});
 	}
 
-	private void deleteUserFromCache(ActiveUser activeUser, Iterator<ActiveUser> iterator) {
-		String activeUserLoginId = activeUser.user.loginId;
-		activeTokens.values()
-				.removeIf(activeToken -> activeToken.loginId().equals(activeUserLoginId));
-		iterator.remove();
+	private void removeAllActiveTokensForUser(ActiveUser activeUser) {
+		for (TokenKey token : activeUser.tokens) {
+			revokeIfSigned(token, shardFor(token).remove(token));
+			tellListenersActiveTokenRemoved(token);
+		}
 	}
 
 	private void updateRelatedUsersDataFromStorage(String id) {
-		Optional<ActiveUser> foundActiveUser = findActiveUserWithId(id);
-		if (foundActiveUser.isPresent()) {
-			handleUpdateForActiveUser(id, foundActiveUser.get());
+		Set<ActiveUser> foundActiveUsers = findActiveUsersWithId(id);
+		if (!foundActiveUsers.isEmpty()) {
+			handleUpdateForActiveUsers(id, foundActiveUsers);
 		}
 	}
 
-	private Optional<ActiveUser> findActiveUserWithId(String id) {
-		for (ActiveUser activeUser : activeUsers.values()) {
-			String activeUserId1 = activeUser.user.id;
-			if (activeUserId1.equals(id)) {
-				return Optional.of(activeUser);
-			}
-		}
-		return Optional.empty();
+	/**
+	 * findActiveUsersWithId returns the active users with the given id in user storage. Normally
+	 * there is at most one, but if a users loginId has changed there can be one per loginId.
+	 */
+	private Set<ActiveUser> findActiveUsersWithId(String id) {
+		return activeUsersById.getOrDefault(id, Collections.emptySet());
 	}
 
-	private void handleUpdateForActiveUser(String id, ActiveUser activeUser) {
+	private void handleUpdateForActiveUsers(String id, Set<ActiveUser> activeUsersWithId) {
 		User pickedUser = pickUserUsingId(id);
 		if (activeUserIdDifferentThanUserPickedFromStorage(id, pickedUser.id)) {
 			deleteRelatedUsersFromCache(id);
 		} else {
-			activeUser.user = pickedUser;
+			activeUsersWithId.forEach(activeUser -> updateActiveUser(activeUser, pickedUser));
 		}
 	}
 
+	private void updateActiveUser(ActiveUser activeUser, User user) {
+		activeUsers.computeIfPresent(activeUser.loginId, (_, currentUser) -> {
+			currentUser.setUser(shareRolesAndPermissionUnits(user));
+			tellListenersActiveUserUpdated(currentUser.loginId, user);
+			return currentUser;
+		});
+	}
+
 	private boolean activeUserIdDifferentThanUserPickedFromStorage(String id,
 			String idFromPickedUser) {
 		return !id.equals(idFromPickedUser);
@@ -326,12 +854,384 @@ public enum GatekeeperImp implements Gatekeeper {
 		return userPicker.pickUser(userInfo);
 	}
 
+	/**
+	 * getActiveUserStates returns a copy of all active users and their tokens. Each user is copied
+	 * inside activeUsers.compute for its loginId, so the tokens of a user are consistent with each
+	 * other, while the gatekeeper keeps handling requests during the copy.
+	 *
+	 * @return a List with an ActiveUserState for each active user
+	 */
+	List<ActiveUserState> getActiveUserStates() {
+		List<ActiveUserState> activeUserStates = new ArrayList<>();
+		for (String loginId : activeUsers.keySet()) {
+			activeUsers.computeIfPresent(loginId, (_, activeUser) -> {
+				activeUserStates.add(createActiveUserState(activeUser));
+				return activeUser;
+			});
+		}
+		return activeUserStates;
+	}
+
+	private ActiveUserState createActiveUserState(ActiveUser activeUser) {
+		List<TokenState> tokenStates = new ArrayList<>(activeUser.tokens.size());
+		for (TokenKey token : activeUser.tokens) {
+			ActiveToken activeToken = shardFor(token).get(token);
+			if (activeToken != null) {
+				tokenStates.add(new TokenState(token, activeToken.tokenForUser()));
+			}
+		}
+		return new ActiveUserState(activeUser.loginId, activeUser.user, tokenStates);
+	}
+
+	/**
+	 * restoreActiveUserStates adds the tokens and users in the given states to the gatekeeper.
+	 * Tokens whose validUntil has passed at currentTime are skipped.
+	 *
+	 * @param activeUserStates
+	 *            a List with the ActiveUserStates to restore
+	 * @param currentTime
+	 *            the time, in milliseconds, to compare the validUntil of the tokens with
+	 * @return the number of restored tokens
+	 */
+	int restoreActiveUserStates(List<ActiveUserState> activeUserStates, long currentTime) {
+		int restoredTokens = 0;
+		for (ActiveUserState activeUserState : activeUserStates) {
+			for (TokenState tokenState : activeUserState.tokens()) {
+				if (currentTime <= tokenState.tokenForUser().validUntil()) {
+					storeActiveTokenForUser(tokenState.token(), tokenState.tokenForUser(),
+							activeUserState.user());
+					restoredTokens++;
+				}
+			}
+		}
+		return restoredTokens;
+	}
+
+	/**
+	 * getRevokedTokens returns a copy of the revoked signed tokens, see {@link RevokedTokens}.
+	 */
+	List<RevokedToken> getRevokedTokens() {
+		return revokedTokens.getRevokedTokens();
+	}
+
+	/**
+	 * restoreRevokedTokens revokes the given tokens again. Tokens whose validUntil has passed at
+	 * currentTime are skipped, as they are rejected for being expired.
+	 *
+	 * @return the number of restored revoked tokens
+	 */
+	int restoreRevokedTokens(List<RevokedToken> tokensToRevoke, long currentTime) {
+		int restoredTokens = 0;
+		for (RevokedToken revokedToken : tokensToRevoke) {
+			if (currentTime <= revokedToken.validUntil()) {
+				revokedTokens.revokeFrom(revokedToken.token(), revokedToken.revokedFrom(),
+						revokedToken.validUntil());
+				restoredTokens++;
+			}
+		}
+		return restoredTokens;
+	}
+
+	/**
+	 * addActiveTokenEventListener adds a listener that is told about all later changes to the
+	 * active tokens and users. Changes made by {@link #restoreActiveUserStates(List, long)},
+	 * {@link #restoreRevokedTokens(List, long)} or by the listener returned from
+	 * {@link #createEventReplayer()} are not told to listeners, as they only bring back changes
+	 * that listeners have already been told about.
+	 */
+	void addActiveTokenEventListener(ActiveTokenEventListener listener) {
+		eventListeners.add(listener);
+	}
+
+	void removeActiveTokenEventListener(ActiveTokenEventListener listener) {
+		eventListeners.remove(listener);
+	}
+
+	private void tellListenersActiveTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser,
+			User user) {
+		for (ActiveTokenEventListener listener : eventListeners) {
+			listener.activeTokenAdded(token, tokenForUser, user);
+		}
+	}
+
+	private void tellListenersActiveTokenRemoved(TokenKey token) {
+		for (ActiveTokenEventListener listener : eventListeners) {
+			listener.activeTokenRemoved(token);
+		}
+	}
+
+	private void tellListenersActiveUserUpdated(String loginId, User user) {
+		for (ActiveTokenEventListener listener : eventListeners) {
+			listener.activeUserUpdated(loginId, user);
+		}
+	}
+
+	private void tellListenersActiveTokenRevoked(TokenKey token, long revokedFrom,
+			long validUntil) {
+		for (ActiveTokenEventListener listener : eventListeners) {
+			listener.activeTokenRevoked(token, revokedFrom, validUntil);
+		}
+	}
+
+	/**
+	 * awaitListenersWritingEvents is called by the public methods that change the active tokens,
+	 * after the users are unlocked and before the change is answered, see
+	 * {@link ActiveTokenEventListener#awaitEventsWritten()}.
+	 */
+	private void awaitListenersWritingEvents() {
+		for (ActiveTokenEventListener listener : eventListeners) {
+			listener.awaitEventsWritten();
+		}
+	}
+
+	/**
+	 * createEventReplayer returns an ActiveTokenEventListener that applies the events it is given
+	 * to this gatekeeper, used to replay logged events on startup. Applying an event more than once
+	 * gives the same result as applying it once. An added token whose validUntil has already passed
+	 * is removed instead of stored, which also removes a token retired by a renew once its grace
+	 * period has passed.
+	 */
+	ActiveTokenEventListener createEventReplayer() {
+		return new EventReplayer();
+	}
+
+	private class EventReplayer implements ActiveTokenEventListener {
+
+		@Override
+		public void activeTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser, User user) {
+			if (tokenForUser.validUntil() < System.currentTimeMillis()) {
+				activeTokenRemoved(token);
+				return;
+			}
+			ActiveToken replacedToken = getActiveToken(token);
+			storeActiveTokenForUser(token, tokenForUser, user);
+			if (tokenWasRetired(replacedToken, tokenForUser)) {
+				markAsRetired(token);
+				activeTokenRevoked(token, tokenForUser.validUntil(),
+						replacedToken.tokenForUser().validUntil());
+			}
+		}
+
+		private void markAsRetired(TokenKey token) {
+			ActiveToken storedToken = getActiveToken(token);
+			if (storedToken != null) {
+				shardFor(token).replace(token, storedToken,
+						new ActiveToken(storedToken.tokenForUser(), storedToken.activeUser(), true));
+			}
+		}
+
+		private boolean tokenWasRetired(ActiveToken replacedToken,
+				ActiveTokenForUser tokenForUser) {
+			return replacedToken != null
+					&& tokenForUser.validUntil() < replacedToken.tokenForUser().validUntil();
+		}
+
+		@Override
+		public void activeTokenRemoved(TokenKey token) {
+			ActiveToken activeToken = getActiveToken(token);
+			if (activeToken != null) {
+				removeActiveTokenAndUser(token, activeToken);
+				activeTokenRevoked(token, RevokedTokens.REVOKED_NOW,
+						activeToken.tokenForUser().validUntil());
+			}
+		}
+
+		@Override
+		public void activeUserUpdated(String loginId, User user) {
+			activeUsers.computeIfPresent(loginId, (_, activeUser) -> {
+				activeUser.setUser(shareRolesAndPermissionUnits(user));
+				return activeUser;
+			});
+		}
+
+		@Override
+		public void activeTokenRevoked(TokenKey token, long revokedFrom, long validUntil) {
+			if (signedTokenFormat != null) {
+				revokedTokens.revokeFrom(token, revokedFrom, validUntil);
+			}
+		}
+	}
+
 	void onlyForTestEmptyAuthentications() {
-		activeTokens = new HashMap<>();
-		activeUsers = new HashMap<>();
+		numberOfActiveTokens = new AtomicInteger();
+		shards = createShards(shards.length, numberOfActiveTokens);
+		tokensClaimedForEviction.set(0);
+		activeUsers = new ConcurrentHashMap<>();
+		activeUsersById = new ConcurrentHashMap<>();
+		revokedTokens = new RevokedTokens();
+		sharedStringSets = new SharedStringSets();
+		storageWorkExecutor = StorageWorkExecutor.INSTANCE;
+		guestUserCache = createGuestUserCache();
+		rejectedTokenCache = new RejectedTokenCache(rejectedTokenCache.getNumberOfSlots());
+		evictedTokensOverUserLimit.reset();
+		evictedTokensOverTotalLimit.reset();
+	}
+
+	/**
+	 * setNumberOfShards sets the number of shards the active tokens are split into. It replaces the
+	 * shards with new empty shards, and is therefore only meant to be called at startup, before
+	 * any tokens have been handed out.
+	 */
+	void setNumberOfShards(int numberOfShards) {
+		if (numberOfShards < 1) {
+			throw new IllegalArgumentException(
+					"Number of shards must be at least 1, was: " + numberOfShards);
+		}
+		numberOfActiveTokens = new AtomicInteger();
+		shards = createShards(numberOfShards, numberOfActiveTokens);
 	}
 
-	Map<String, ActiveTokenForUser> onlyForTestGetActiveTokens() {
+	/**
+	 * setMaxActiveTokensPerUser sets how many active tokens a user can have before the oldest of
+	 * them are evicted, 100 unless set.
+	 */
+	void setMaxActiveTokensPerUser(int maxActiveTokensPerUser) {
+		ensureAtLeastOne("Max active tokens per user", maxActiveTokensPerUser);
+		this.maxActiveTokensPerUser = maxActiveTokensPerUser;
+	}
+
+	private void ensureAtLeastOne(String name, int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException(name + " must be at least 1, was: " + value);
+		}
+	}
+
+	/**
+	 * setMaxActiveTokens sets how many active tokens there can be in total before the oldest of
+	 * them are evicted, 1000000 unless set.
+	 */
+	void setMaxActiveTokens(int maxActiveTokens) {
+		ensureAtLeastOne("Max active tokens", maxActiveTokens);
+		this.maxActiveTokens = maxActiveTokens;
+	}
+
+	/**
+	 * setRenewGracePeriodInMillis sets how long a renewed token is still accepted after it has
+	 * been renewed, so that requests already sent with it do not fail. The renewed token is
+	 * removed at once unless set.
+	 */
+	void setRenewGracePeriodInMillis(long renewGracePeriodInMillis) {
+		if (renewGracePeriodInMillis < 0) {
+			throw new IllegalArgumentException("Renew grace period in millis must be at least 0, "
+					+ "was: " + renewGracePeriodInMillis);
+		}
+		this.renewGracePeriodInMillis = renewGracePeriodInMillis;
+	}
+
+	/**
+	 * setRejectedTokenCacheSize sets how many recently rejected tokens are remembered, see
+	 * {@link RejectedTokenCache}, 4096 unless set. It replaces the cache with a new empty cache.
+	 */
+	void setRejectedTokenCacheSize(int rejectedTokenCacheSize) {
+		rejectedTokenCache = new RejectedTokenCache(rejectedTokenCacheSize);
+	}
+
+	long getNumberOfTokensRejectedByCache() {
+		return rejectedTokenCache.getNumberOfHits();
+	}
+
+	long getNumberOfTokensAddedToRejectedTokenCache() {
+		return rejectedTokenCache.getNumberOfAdditions();
+	}
+
+	long getNumberOfEvictedTokensOverUserLimit() {
+		return evictedTokensOverUserLimit.sum();
+	}
+
+	long getNumberOfEvictedTokensOverTotalLimit() {
+		return evictedTokensOverTotalLimit.sum();
+	}
+
+	int onlyForTestGetMaxActiveTokensPerUser() {
+		return maxActiveTokensPerUser;
+	}
+
+	int onlyForTestGetMaxActiveTokens() {
+		return maxActiveTokens;
+	}
+
+	GuestUserCache onlyForTestGetGuestUserCache() {
+		return guestUserCache;
+	}
+
+	void onlyForTestSetStorageWorkExecutor(StorageWorkExecutor storageWorkExecutor) {
+		this.storageWorkExecutor = storageWorkExecutor;
+	}
+
+	void onlyForTestSetGuestUserRefreshExecutor(Executor refreshExecutor) {
+		guestUserCache = new GuestUserCache(GatekeeperImp::pickGuestUser, refreshExecutor);
+	}
+
+	RejectedTokenCache onlyForTestGetRejectedTokenCache() {
+		return rejectedTokenCache;
+	}
+
+	SharedStringSets onlyForTestGetSharedStringSets() {
+		return sharedStringSets;
+	}
+
+	long onlyForTestGetRenewGracePeriodInMillis() {
+		return renewGracePeriodInMillis;
+	}
+
+	int onlyForTestGetNumberOfShards() {
+		return shards.length;
+	}
+
+	int onlyForTestGetNumberOfActiveTokens() {
+		return numberOfActiveTokens.get();
+	}
+
+	AtomicInteger onlyForTestGetTokensClaimedForEviction() {
+		return tokensClaimedForEviction;
+	}
+
+	ActiveTokenShard onlyForTestGetShardFor(TokenKey tokenKey) {
+		return shardFor(tokenKey);
+	}
+
+	/**
+	 * setTokenEncoding sets how new tokens and tokenIds are written in the returned AuthTokens.
+	 * Tokens are accepted in any {@link TokenEncoding}, so the encoding can be changed at any time.
+	 */
+	void setTokenEncoding(TokenEncoding tokenEncoding) {
+		this.tokenEncoding = tokenEncoding;
+	}
+
+	TokenEncoding onlyForTestGetTokenEncoding() {
+		return tokenEncoding;
+	}
+
+	/**
+	 * setSignedTokenFormat makes new tokens signed tokens written using the given format, and
+	 * makes only such tokens accepted, see {@link SignedTokenFormat}. Removed signed tokens are
+	 * kept in a revocation set until they expire, which is told to listeners so that it is kept
+	 * in snapshots and replicated to other nodes. Setting null goes back to tokens that are only
+	 * random keys, the default.
+	 * <p>
+	 * Tokens handed out before the format is changed are no longer accepted, so it is only meant
+	 * to be set at startup.
+	 */
+	void setSignedTokenFormat(SignedTokenFormat signedTokenFormat) {
+		this.signedTokenFormat = signedTokenFormat;
+	}
+
+	SignedTokenFormat onlyForTestGetSignedTokenFormat() {
+		return signedTokenFormat;
+	}
+
+	RevokedTokens onlyForTestGetRevokedTokens() {
+		return revokedTokens;
+	}
+
+	/**
+	 * onlyForTestGetActiveTokens returns a snapshot of the active tokens in all shards.
+	 */
+	Map<TokenKey, ActiveToken> onlyForTestGetActiveTokens() {
+		Map<TokenKey, ActiveToken> activeTokens = new HashMap<>();
+		for (ActiveTokenShard shard : shards) {
+			activeTokens.putAll(shard.onlyForTestGetActiveTokens());
+		}
 		return activeTokens;
 	}
 
@@ -339,25 +1239,69 @@ public enum GatekeeperImp implements Gatekeeper {
 		return activeUsers;
 	}
 
+	Map<String, Set<ActiveUser>> onlyForTestGetActiveUsersById() {
+		return activeUsersById;
+	}
+
+	int onlyForTestGetNumberOfTokensInExpiryIndexes() {
+		int numberOfTokens = 0;
+		for (ActiveTokenShard shard : shards) {
+			numberOfTokens += shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens();
+		}
+		return numberOfTokens;
+	}
+
+	/**
+	 * ActiveToken is the value stored in the shards. It holds a direct reference to the active
+	 * user the token belongs to, so that validating a token and getting its user needs only one
+	 * map lookup. A retired token is a renewed token kept during the renew grace period, it is
+	 * still valid but can not be renewed again.
+	 */
+	record ActiveToken(ActiveTokenForUser tokenForUser, ActiveUser activeUser, boolean retired) {
+		ActiveToken(ActiveTokenForUser tokenForUser, ActiveUser activeUser) {
+			this(tokenForUser, activeUser, false);
+		}
+
+		boolean isValidAt(long timestamp) {
+			return timestamp <= tokenForUser.validUntil();
+		}
+	}
+
 	class ActiveUser {
-		User user;
-		private AtomicInteger counter;
+		final String loginId;
+		/**
+		 * The user is replaced when the user is updated in storage, it is volatile so that the
+		 * new user is safely published to threads validating tokens. It is only set using
+		 * {@link #setUser(User)}, so that it is always the user in cachedUser.
+		 */
+		volatile User user;
+		volatile CachedUser cachedUser;
+		/**
+		 * The tokens for the user, only read and changed inside activeUsers.compute for loginId.
+		 */
+		private final Set<TokenKey> tokens = new LinkedHashSet<>();
 
-		public ActiveUser(User user) {
-			this.user = user;
-			this.counter = new AtomicInteger(1);
+		public ActiveUser(String loginId, User user) {
+			this.loginId = loginId;
+			setUser(user);
 		}
 
-		public int incrementAnGet() {
-			return counter.incrementAndGet();
+		/**
+		 * setUser replaces the user, and the CachedUser holding the serialized form of the
+		 * previous user.
+		 */
+		void setUser(User user) {
+			this.cachedUser = new CachedUser(user);
+			this.user = user;
 		}
 
-		public int decrementAndGet() {
-			return counter.decrementAndGet();
+		ActiveUser removeTokenAndReturnIfStillActive(TokenKey token) {
+			tokens.remove(token);
+			return tokens.isEmpty() ? null : this;
 		}
 
 		public int getNumberActiveTokens() {
-			return counter.get();
+			return tokens.size();
 		}
 	}
 }
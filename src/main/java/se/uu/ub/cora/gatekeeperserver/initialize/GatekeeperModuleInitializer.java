@@ -1,6 +1,6 @@
 /*
  * Copyright 2019 Olov McKie
- * Copyright 2025 Uppsala University Library
+ * Copyright 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,14 +19,19 @@
  */
 package se.uu.ub.cora.gatekeeperserver.initialize;
 
+import java.nio.file.Path;
+import java.util.Base64;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
 import jakarta.servlet.annotation.WebListener;
 import se.uu.ub.cora.gatekeeper.picker.UserPickerProvider;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.cache.DataChangeMessageReceiver;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperLocator;
@@ -35,13 +40,26 @@ import se.uu.ub.cora.initialize.SettingsProvider;
 import se.uu.ub.cora.logger.Logger;
 import se.uu.ub.cora.logger.LoggerProvider;
 import se.uu.ub.cora.messaging.AmqpMessageListenerRoutingInfo;
+import se.uu.ub.cora.messaging.AmqpMessageSenderRoutingInfo;
+import se.uu.ub.cora.messaging.MessageListener;
 import se.uu.ub.cora.messaging.MessageRoutingInfo;
 import se.uu.ub.cora.messaging.MessagingProvider;
 
 @WebListener
 public class GatekeeperModuleInitializer implements ServletContextListener {
+	private static final long DEFAULT_REAPER_INTERVAL_IN_SECONDS = 10L;
+	private static final int DEFAULT_REAPER_MAX_TOKENS_PER_PASS = 10000;
+	private static final long DEFAULT_SNAPSHOT_INTERVAL_IN_SECONDS = 60L;
+	private static final String SNAPSHOT_FILE_NAME = "activeTokens.snapshot";
+	private static final String LOG_FILE_NAME = "activeTokens.log";
+	private static final long DEFAULT_REPLICATION_BATCH_INTERVAL_IN_MILLIS = 20L;
+	private static final long DEFAULT_REPLICATION_BOOTSTRAP_TIMEOUT_IN_MILLIS = 5000L;
+	private static final String REPLICATION_ROUTING_KEY = "gatekeeperActiveTokens";
 	private ServletContext servletContext;
 	private Logger log = LoggerProvider.getLoggerForClass(GatekeeperModuleInitializer.class);
+	private ActiveTokenReaper activeTokenReaper;
+	private ActiveTokenSnapshotter activeTokenSnapshotter;
+	private ActiveTokenReplicator activeTokenReplicator;
 
 	@Override
 	public void contextInitialized(ServletContextEvent contextEvent) {
@@ -53,12 +71,36 @@ public class GatekeeperModuleInitializer implements ServletContextListener {
 		String simpleName = GatekeeperModuleInitializer.class.getSimpleName();
 		log.logInfoUsingMessage(simpleName + " starting...");
 		collectInitInformation();
+		setTokenEncoding();
+		setTokenMode();
+		setNumberOfActiveTokenShards();
+		setActiveTokenLimits();
+		setRenewGracePeriod();
+		setRejectedTokenCacheSize();
+		setMaxConcurrentStorageWork();
+		restoreActiveTokensFromSnapshotIfStorePathIsSet();
 		startListenForDataChangesForUser();
 		startLocator();
 		makeCallToKnownNeededProvidersToMakeSureTheyStartCorrectlyAtSystemStartup();
+		startActiveTokenReaper();
+		startActiveTokenSnapshotter();
+		startActiveTokenReplicatorIfEnabled();
 		log.logInfoUsingMessage(simpleName + " started");
 	}
 
+	@Override
+	public void contextDestroyed(ServletContextEvent contextEvent) {
+		if (activeTokenReaper != null) {
+			activeTokenReaper.stop();
+		}
+		if (activeTokenReplicator != null) {
+			activeTokenReplicator.stop();
+		}
+		if (activeTokenSnapshotter != null) {
+			activeTokenSnapshotter.stop();
+		}
+	}
+
 	private void makeCallToKnownNeededProvidersToMakeSureTheyStartCorrectlyAtSystemStartup() {
 		UserPickerProvider.getUserPicker();
 	}
@@ -73,6 +115,89 @@ public class GatekeeperModuleInitializer implements ServletContextListener {
 		SettingsProvider.setSettings(initInfo);
 	}
 
+	private void setTokenEncoding() {
+		String tokenEncoding = getOptionalSetting("tokenEncoding");
+		if (tokenEncoding != null) {
+			GatekeeperImp.INSTANCE.setTokenEncoding(TokenEncoding.fromSettingValue(tokenEncoding));
+		}
+	}
+
+	private void setTokenMode() {
+		String tokenMode = getOptionalSetting("tokenMode");
+		if ("signed".equals(tokenMode)) {
+			byte[] key = Base64.getDecoder().decode(SettingsProvider.getSetting("tokenSigningKey"));
+			GatekeeperImp.INSTANCE.setSignedTokenFormat(new SignedTokenFormat(key));
+		} else if (tokenMode != null && !"opaque".equals(tokenMode)) {
+			throw new IllegalArgumentException("Unknown tokenMode: " + tokenMode);
+		}
+	}
+
+	private void setNumberOfActiveTokenShards() {
+		String numberOfShards = getOptionalSetting("numberOfActiveTokenShards");
+		if (numberOfShards != null) {
+			GatekeeperImp.INSTANCE.setNumberOfShards(Integer.parseInt(numberOfShards));
+		}
+	}
+
+	private void setActiveTokenLimits() {
+		String maxActiveTokensPerUser = getOptionalSetting("maxActiveTokensPerUser");
+		if (maxActiveTokensPerUser != null) {
+			GatekeeperImp.INSTANCE
+					.setMaxActiveTokensPerUser(Integer.parseInt(maxActiveTokensPerUser));
+		}
+		String maxActiveTokens = getOptionalSetting("maxActiveTokens");
+		if (maxActiveTokens != null) {
+			GatekeeperImp.INSTANCE.setMaxActiveTokens(Integer.parseInt(maxActiveTokens));
+		}
+	}
+
+	private void setRenewGracePeriod() {
+		String renewGracePeriod = getOptionalSetting("renewGracePeriodInMillis");
+		if (renewGracePeriod != null) {
+			GatekeeperImp.INSTANCE.setRenewGracePeriodInMillis(Long.parseLong(renewGracePeriod));
+		}
+	}
+
+	private void setRejectedTokenCacheSize() {
+		String cacheSize = getOptionalSetting("rejectedTokenCacheSize");
+		if (cacheSize != null) {
+			GatekeeperImp.INSTANCE.setRejectedTokenCacheSize(Integer.parseInt(cacheSize));
+		}
+	}
+
+	private void setMaxConcurrentStorageWork() {
+		String maxConcurrentStorageWork = getOptionalSetting("maxConcurrentStorageWork");
+		if (maxConcurrentStorageWork != null) {
+			StorageWorkExecutor.INSTANCE
+					.setMaxConcurrentStorageWork(Integer.parseInt(maxConcurrentStorageWork));
+		}
+	}
+
+	private void restoreActiveTokensFromSnapshotIfStorePathIsSet() {
+		String storePath = getOptionalSetting("activeTokenStorePath");
+		if (storePath != null) {
+			activeTokenSnapshotter = createActiveTokenSnapshotter(storePath);
+			activeTokenSnapshotter.restore();
+		}
+	}
+
+	private ActiveTokenSnapshotter createActiveTokenSnapshotter(String storePath) {
+		long intervalInSeconds = getOptionalSettingAsLong("activeTokenSnapshotIntervalInSeconds",
+				DEFAULT_SNAPSHOT_INTERVAL_IN_SECONDS);
+		ActiveTokenSnapshotFile snapshotFile = new ActiveTokenSnapshotFile(
+				Path.of(storePath, SNAPSHOT_FILE_NAME));
+		ActiveTokenLog activeTokenLog = new ActiveTokenLog(
+				Path.of(storePath, LOG_FILE_NAME));
+		return new ActiveTokenSnapshotter(GatekeeperImp.INSTANCE, snapshotFile, activeTokenLog,
+				TimeUnit.SECONDS.toMillis(intervalInSeconds));
+	}
+
+	private void startActiveTokenSnapshotter() {
+		if (activeTokenSnapshotter != null) {
+			activeTokenSnapshotter.start();
+		}
+	}
+
 	private void startLocator() {
 		GatekeeperLocator locator = new GatekeeperLocatorImp();
 		GatekeeperInstanceProvider.setGatekeeperLocator(locator);
@@ -95,4 +220,87 @@ public class GatekeeperModuleInitializer implements ServletContextListener {
 		return new AmqpMessageListenerRoutingInfo(hostname, port, virtualHost, exchange,
 				routingKey);
 	}
+
+	private void startActiveTokenReplicatorIfEnabled() {
+		if ("true".equals(getOptionalSetting("activeTokenReplicationEnabled"))) {
+			startActiveTokenReplicator();
+		}
+	}
+
+	private void startActiveTokenReplicator() {
+		long batchIntervalInMillis = getOptionalSettingAsLong(
+				"activeTokenReplicationBatchIntervalInMillis",
+				DEFAULT_REPLICATION_BATCH_INTERVAL_IN_MILLIS);
+		long bootstrapTimeoutInMillis = getOptionalSettingAsLong(
+				"activeTokenReplicationBootstrapTimeoutInMillis",
+				DEFAULT_REPLICATION_BOOTSTRAP_TIMEOUT_IN_MILLIS);
+		byte[] key = Base64.getDecoder()
+				.decode(SettingsProvider.getSetting("activeTokenReplicationKey"));
+		var sender = MessagingProvider.getTopicMessageSender(
+				createReplicationRoutingInfo(AmqpMessageSenderRoutingInfo::new));
+		activeTokenReplicator = new ActiveTokenReplicator(GatekeeperImp.INSTANCE, sender,
+				new ReplicationMessageAuthenticator(key), UUID.randomUUID().toString(),
+				batchIntervalInMillis, bootstrapTimeoutInMillis);
+		MessageListener listener = MessagingProvider.getTopicMessageListener(
+				createReplicationRoutingInfo(AmqpMessageListenerRoutingInfo::new));
+		listener.listen(activeTokenReplicator);
+		activeTokenReplicator.start();
+	}
+
+	/**
+	 * Replication uses its own exchange, and optionally its own virtual host, so that only the
+	 * gatekeeper nodes can send and receive active tokens.
+	 */
+	private MessageRoutingInfo createReplicationRoutingInfo(
+			ReplicationRoutingInfoFactory routingInfoFactory) {
+		String hostname = SettingsProvider.getSetting("rabbitMqHostname");
+		int port = Integer.parseInt(SettingsProvider.getSetting("rabbitMqPort"));
+		String virtualHost = getOptionalSetting("activeTokenReplicationVirtualHost");
+		if (virtualHost == null) {
+			virtualHost = SettingsProvider.getSetting("rabbitMqVirtualHost");
+		}
+		String exchange = SettingsProvider.getSetting("activeTokenReplicationExchange");
+		return routingInfoFactory.create(hostname, port, virtualHost, exchange,
+				REPLICATION_ROUTING_KEY);
+	}
+
+	private void startActiveTokenReaper() {
+		long intervalInSeconds = getOptionalSettingAsLong("activeTokenReaperIntervalInSeconds",
+				DEFAULT_REAPER_INTERVAL_IN_SECONDS);
+		int maxTokensPerPass = (int) getOptionalSettingAsLong("activeTokenReaperMaxTokensPerPass",
+				DEFAULT_REAPER_MAX_TOKENS_PER_PASS);
+		activeTokenReaper = new ActiveTokenReaper(GatekeeperImp.INSTANCE,
+				TimeUnit.SECONDS.toMillis(intervalInSeconds), maxTokensPerPass);
+		activeTokenReaper.start();
+	}
+
+	private long getOptionalSettingAsLong(String name, long defaultValue) {
+		String value = getOptionalSetting(name);
+		return value != null ? Long.parseLong(value) : defaultValue;
+	}
+
+	private String getOptionalSetting(String name) {
+		try {
+			return SettingsProvider.getSetting(name);
+		} catch (Exception _) {
+			return null;
+		}
+	}
+
+	ActiveTokenReaper onlyForTestGetActiveTokenReaper() {
+		return activeTokenReaper;
+	}
+
+	ActiveTokenSnapshotter onlyForTestGetActiveTokenSnapshotter() {
+		return activeTokenSnapshotter;
+	}
+
+	ActiveTokenReplicator onlyForTestGetActiveTokenReplicator() {
+		return activeTokenReplicator;
+	}
+
+	private interface ReplicationRoutingInfoFactory {
+		MessageRoutingInfo create(String hostname, int port, String virtualHost, String exchange,
+				String routingKey);
+	}
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
+import se.uu.ub.cora.logger.LoggerProvider;
+
+/**
+ * GuestUserCache holds the guest user, as a {@link CachedUser}, so that requests without a token
+ * do not pick the guest user from storage each time.
+ * <p>
+ * When the guest user is changed or deleted in storage, the cached guest user is dropped at once,
+ * so no request gets the old guest user after the change is known, and a new guest user is picked
+ * in the background. Until that pick is done, requests pick the guest user themselves. A pick that
+ * was started before the guest user was dropped is not cached, as it could hold the old guest
+ * user.
+ */
+class GuestUserCache {
+	private final Supplier<User> guestUserPicker;
+	private final Executor refreshExecutor;
+	private long generation;
+	private volatile CachedUser cachedGuestUser;
+	private volatile String guestUserId;
+
+	/**
+	 * @param guestUserPicker
+	 *            picks the guest user from storage
+	 * @param refreshExecutor
+	 *            runs the background pick of the guest user after it has been dropped
+	 */
+	GuestUserCache(Supplier<User> guestUserPicker, Executor refreshExecutor) {
+		this.guestUserPicker = guestUserPicker;
+		this.refreshExecutor = refreshExecutor;
+	}
+
+	CachedUser getGuestUser() {
+		CachedUser guestUser = cachedGuestUser;
+		if (guestUser != null) {
+			return guestUser;
+		}
+		return pickAndCacheGuestUser();
+	}
+
+	private CachedUser pickAndCacheGuestUser() {
+		long generationBeforePick = getGeneration();
+		CachedUser guestUser = new CachedUser(guestUserPicker.get());
+		cacheIfNotDroppedDuringPick(guestUser, generationBeforePick);
+		return guestUser;
+	}
+
+	private synchronized long getGeneration() {
+		return generation;
+	}
+
+	private synchronized void cacheIfNotDroppedDuringPick(CachedUser guestUser,
+			long generationBeforePick) {
+		guestUserId = guestUser.getUser().id;
+		if (generation == generationBeforePick) {
+			cachedGuestUser = guestUser;
+		}
+	}
+
+	/**
+	 * userChanged drops the cached guest user and picks it again in the background, if id is the
+	 * id of the guest user. Changes to other users are ignored.
+	 */
+	void userChanged(String id) {
+		if (id.equals(guestUserId)) {
+			dropCachedGuestUser();
+			refreshExecutor.execute(this::refreshAndLogErrors);
+		}
+	}
+
+	private synchronized void dropCachedGuestUser() {
+		generation++;
+		cachedGuestUser = null;
+	}
+
+	private void refreshAndLogErrors() {
+		try {
+			pickAndCacheGuestUser();
+		} catch (Exception e) {
+			LoggerProvider.getLoggerForClass(GuestUserCache.class)
+					.logErrorUsingMessageAndException("Could not refresh the guest user.", e);
+		}
+	}
+
+	CachedUser onlyForTestGetCachedGuestUser() {
+		return cachedGuestUser;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HmacSigner hands out HMAC-SHA256 signers for one key, it is shared by {@link SignedTokenFormat}
+ * and {@link ReplicationMessageAuthenticator}.
+ * <p>
+ * A Mac can not be used by several threads at once, so each signer is a clone of an initialized
+ * prototype, which is cheaper than initializing a new Mac.
+ */
+final class HmacSigner {
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final int MIN_KEY_LENGTH = 32;
+	private final Mac prototypeMac;
+
+	/**
+	 * @param keyName
+	 *            the name of the key, used in the message of the exception for a too short key
+	 * @param key
+	 *            the key to sign with, at least 32 bytes long
+	 * @throws IllegalArgumentException
+	 *             if the key is shorter than 32 bytes
+	 */
+	HmacSigner(String keyName, byte[] key) {
+		if (key.length < MIN_KEY_LENGTH) {
+			throw new IllegalArgumentException(
+					keyName + " must be at least " + MIN_KEY_LENGTH + " bytes, was: " + key.length);
+		}
+		prototypeMac = createMac(key);
+	}
+
+	private static Mac createMac(byte[] key) {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(new SecretKeySpec(key, ALGORITHM));
+			return mac;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Could not create " + ALGORITHM + " signer", e);
+		}
+	}
+
+	/**
+	 * createSigner returns a new signer, initialized with the key, to be used by one thread for
+	 * one signature.
+	 */
+	Mac createSigner() {
+		try {
+			return (Mac) prototypeMac.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException("Could not clone " + ALGORITHM + " signer", e);
+		}
+	}
+}
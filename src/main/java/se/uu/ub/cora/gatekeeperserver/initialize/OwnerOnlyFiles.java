@@ -0,0 +1,60 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+/**
+ * OwnerOnlyFiles opens the files holding active tokens so that only the owner of the gatekeeper
+ * process can read and write them, as anyone able to read a token can use it to act as its user.
+ * On file systems without POSIX permissions the files are opened with the defaults of the file
+ * system.
+ */
+final class OwnerOnlyFiles {
+	static final Set<PosixFilePermission> OWNER_READ_WRITE = PosixFilePermissions
+			.fromString("rw-------");
+
+	private OwnerOnlyFiles() {
+	}
+
+	/**
+	 * open opens the file using the options, creating it readable and writable by the owner only.
+	 * An already existing file has its permissions restricted in the same way.
+	 */
+	static FileChannel open(Path file, Set<? extends OpenOption> options) throws IOException {
+		if (!supportsPosixPermissions(file)) {
+			return FileChannel.open(file, options);
+		}
+		FileChannel channel = FileChannel.open(file, options,
+				PosixFilePermissions.asFileAttribute(OWNER_READ_WRITE));
+		Files.setPosixFilePermissions(file, OWNER_READ_WRITE);
+		return channel;
+	}
+
+	private static boolean supportsPosixPermissions(Path file) {
+		return file.getFileSystem().supportedFileAttributeViews().contains("posix");
+	}
+}
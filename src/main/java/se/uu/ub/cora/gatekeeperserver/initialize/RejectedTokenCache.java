@@ -0,0 +1,96 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RejectedTokenCache remembers recently rejected tokens, so that a token sent again and again,
+ * by a scanner or a broken client, is rejected without repeating the checks that rejected it the
+ * first time.
+ * <p>
+ * The cache is a fixed number of slots, where each token can only be held in the slot given by
+ * its hash. Adding a token replaces whatever token was in its slot, so the cache never grows and
+ * needs no cleanup. A token is only reported as rejected if it is equal to the token in its slot,
+ * so unlike a Bloom filter the cache never rejects a token that was not added to it. Only tokens
+ * that can never become valid again should be added.
+ */
+class RejectedTokenCache {
+	private static final int MAX_NUMBER_OF_SLOTS = 1 << 30;
+	private final AtomicReferenceArray<String> slots;
+	private final int slotMask;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder additions = new LongAdder();
+
+	/**
+	 * @param numberOfSlots
+	 *            the number of tokens the cache can hold, rounded up to a power of two
+	 */
+	RejectedTokenCache(int numberOfSlots) {
+		if (numberOfSlots < 1) {
+			throw new IllegalArgumentException(
+					"Number of slots must be at least 1, was: " + numberOfSlots);
+		}
+		if (numberOfSlots > MAX_NUMBER_OF_SLOTS) {
+			throw new IllegalArgumentException("Number of slots must be at most "
+					+ MAX_NUMBER_OF_SLOTS + ", was: " + numberOfSlots);
+		}
+		int powerOfTwo = Integer.highestOneBit(numberOfSlots);
+		int roundedNumberOfSlots = powerOfTwo == numberOfSlots ? powerOfTwo : powerOfTwo << 1;
+		slots = new AtomicReferenceArray<>(roundedNumberOfSlots);
+		slotMask = roundedNumberOfSlots - 1;
+	}
+
+	boolean contains(String token) {
+		if (token.equals(slots.get(slotFor(token)))) {
+			hits.increment();
+			return true;
+		}
+		return false;
+	}
+
+	void add(String token) {
+		slots.lazySet(slotFor(token), token);
+		additions.increment();
+	}
+
+	private int slotFor(String token) {
+		int hash = token.hashCode();
+		return (hash ^ (hash >>> 16)) & slotMask;
+	}
+
+	/**
+	 * @return the number of tokens rejected by the cache
+	 */
+	long getNumberOfHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of tokens added to the cache
+	 */
+	long getNumberOfAdditions() {
+		return additions.sum();
+	}
+
+	int getNumberOfSlots() {
+		return slots.length();
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
+/**
+ * ReplicationMessageAuthenticator signs and checks the messages sent between gatekeeper nodes by
+ * {@link ActiveTokenReplicator}, using HMAC-SHA256 with a key shared by all nodes. A message that
+ * is not signed with the shared key is not from a gatekeeper node, and must not be allowed to add
+ * or remove active tokens.
+ * <p>
+ * The signature covers a list of parts, the headers that decide how a message is handled followed
+ * by the message itself. Each part is signed together with its length, so that moving characters
+ * from one part to the next gives a different signature.
+ */
+final class ReplicationMessageAuthenticator {
+	private static final int NULL_PART = -1;
+	private final HmacSigner signer;
+
+	/**
+	 * @param key
+	 *            the key shared by all gatekeeper nodes, at least 32 bytes long
+	 * @throws IllegalArgumentException
+	 *             if the key is shorter than 32 bytes
+	 */
+	ReplicationMessageAuthenticator(byte[] key) {
+		signer = new HmacSigner("Replication key", key);
+	}
+
+	/**
+	 * sign returns the base64 encoded signature of the parts, null parts are allowed.
+	 */
+	String sign(String... parts) {
+		return Base64.getEncoder().encodeToString(calculateSignature(parts));
+	}
+
+	/**
+	 * isAuthentic checks that the signature is the signature of the parts, comparing them in
+	 * constant time.
+	 *
+	 * @return true if the signature matches the parts, false if it does not match, is missing or
+	 *         is not base64 encoded
+	 */
+	boolean isAuthentic(String signature, String... parts) {
+		byte[] decodedSignature = decodeOrNull(signature);
+		return decodedSignature != null
+				&& MessageDigest.isEqual(calculateSignature(parts), decodedSignature);
+	}
+
+	private byte[] decodeOrNull(String signature) {
+		if (signature == null) {
+			return null;
+		}
+		try {
+			return Base64.getDecoder().decode(signature);
+		} catch (IllegalArgumentException _) {
+			return null;
+		}
+	}
+
+	private byte[] calculateSignature(String... parts) {
+		Mac mac = signer.createSigner();
+		for (String part : parts) {
+			updateWithPart(mac, part);
+		}
+		return mac.doFinal();
+	}
+
+	private void updateWithPart(Mac mac, String part) {
+		if (part == null) {
+			mac.update(ByteBuffer.allocate(4).putInt(0, NULL_PART));
+			return;
+		}
+		byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+		mac.update(ByteBuffer.allocate(4).putInt(0, bytes.length));
+		mac.update(bytes);
+	}
+}
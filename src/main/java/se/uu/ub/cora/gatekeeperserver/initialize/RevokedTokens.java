@@ -0,0 +1,94 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RevokedTokens holds the signed tokens that have been removed before their validUntil has
+ * passed. A signed token is accepted by any node that has the signing key, so removing it from
+ * the active tokens is not enough to stop it from being used.
+ * <p>
+ * A revoked token is only kept until its validUntil has passed, as it is rejected for being
+ * expired from then on, so the set only holds tokens removed during the last few minutes.
+ * <p>
+ * A token retired on renew can be revoked from a time in the future, so that it is still accepted
+ * during the grace period.
+ * <p>
+ * Revoking a token more than once, in any order, gives the same result as revoking it once from
+ * the earliest revokedFrom, so revocations can be replayed and replicated in any order.
+ */
+class RevokedTokens {
+	static final long REVOKED_NOW = Long.MIN_VALUE;
+	private final Map<TokenKey, RevokedToken> revokedTokens = new ConcurrentHashMap<>();
+	private final ActiveTokenExpiryIndex<TokenKey> expiryIndex = new ActiveTokenExpiryIndex<>();
+
+	void revoke(TokenKey token, long validUntil) {
+		revokeFrom(token, REVOKED_NOW, validUntil);
+	}
+
+	/**
+	 * revokeFrom revokes a token from revokedFrom, the token is not revoked before that time. A
+	 * token that is already revoked keeps its earliest revokedFrom.
+	 */
+	void revokeFrom(TokenKey token, long revokedFrom, long validUntil) {
+		RevokedToken previous = revokedTokens.putIfAbsent(token,
+				new RevokedToken(token, revokedFrom, validUntil));
+		if (previous == null) {
+			expiryIndex.add(token, validUntil);
+		} else if (revokedFrom < previous.revokedFrom()) {
+			revokedTokens.replace(token, previous,
+					new RevokedToken(token, revokedFrom, previous.validUntil()));
+		}
+	}
+
+	boolean isRevoked(TokenKey token, long currentTime) {
+		RevokedToken revokedToken = revokedTokens.get(token);
+		return revokedToken != null && currentTime >= revokedToken.revokedFrom();
+	}
+
+	/**
+	 * getRevokedTokens returns a copy of the revoked tokens, used to keep them in snapshots and to
+	 * hand them to other nodes.
+	 */
+	List<RevokedToken> getRevokedTokens() {
+		return new ArrayList<>(revokedTokens.values());
+	}
+
+	/**
+	 * removeNoLongerValidTokens forgets revoked tokens whose validUntil has passed, see
+	 * {@link ActiveTokenExpiryIndex#removeDueTokens(long, int, java.util.function.Predicate)}.
+	 *
+	 * @return the number of forgotten tokens
+	 */
+	int removeNoLongerValidTokens(long currentTime, int maxNumberOfTokens) {
+		return expiryIndex.removeDueTokens(currentTime, maxNumberOfTokens,
+				token -> revokedTokens.remove(token) != null);
+	}
+
+	int size() {
+		return revokedTokens.size();
+	}
+
+	record RevokedToken(TokenKey token, long revokedFrom, long validUntil) {
+	}
+}
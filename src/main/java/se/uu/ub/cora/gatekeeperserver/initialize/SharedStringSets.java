@@ -0,0 +1,96 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * SharedStringSets is a canonicalizing table of immutable sets of strings. Active users with the
+ * same roles or permission units are given the same set instance, and the strings in the sets are
+ * shared as well, so thousands of users with the same few roles do not hold copies of them.
+ * <p>
+ * The shared sets keep the iteration order of the first set seen with the same content. The
+ * tables only hold weak references to the sets and strings, so a set or string is removed from
+ * its table once no active user holds it anymore, and the tables never hold more than the
+ * content in use.
+ * <p>
+ * SharedStringSets is only used when a user becomes active or is updated, never when a token is
+ * validated, so the tables are guarded by one lock.
+ */
+class SharedStringSets {
+	private final Map<Set<String>, WeakReference<Set<String>>> sharedSets = new WeakHashMap<>();
+	private final Map<String, WeakReference<String>> sharedStrings = new WeakHashMap<>();
+
+	/**
+	 * share returns an immutable set with the same content as the given set, that is the same
+	 * instance for all sets with that content as long as some active user holds it.
+	 */
+	synchronized Set<String> share(Set<String> set) {
+		if (set == null) {
+			return null;
+		}
+		Set<String> sharedSet = getShared(sharedSets, set);
+		if (sharedSet != null) {
+			return sharedSet;
+		}
+		return addShared(sharedSets, createImmutableCopy(set));
+	}
+
+	private Set<String> createImmutableCopy(Set<String> set) {
+		Set<String> copy = new LinkedHashSet<>(set.size() * 2);
+		for (String value : set) {
+			copy.add(shareString(value));
+		}
+		return Collections.unmodifiableSet(copy);
+	}
+
+	private String shareString(String value) {
+		if (value == null) {
+			return null;
+		}
+		String sharedString = getShared(sharedStrings, value);
+		if (sharedString != null) {
+			return sharedString;
+		}
+		return addShared(sharedStrings, value);
+	}
+
+	private static <T> T getShared(Map<T, WeakReference<T>> table, T value) {
+		WeakReference<T> sharedReference = table.get(value);
+		return sharedReference != null ? sharedReference.get() : null;
+	}
+
+	private static <T> T addShared(Map<T, WeakReference<T>> table, T value) {
+		table.put(value, new WeakReference<>(value));
+		return value;
+	}
+
+	synchronized int numberOfSharedSets() {
+		return sharedSets.size();
+	}
+
+	synchronized int numberOfSharedStrings() {
+		return sharedStrings.size();
+	}
+}
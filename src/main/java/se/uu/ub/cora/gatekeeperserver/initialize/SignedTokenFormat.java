@@ -0,0 +1,176 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+
+/**
+ * SignedTokenFormat writes and reads signed tokens, tokens that carry the token, tokenId,
+ * loginId, validUntil and renewUntil together with an HMAC-SHA256 signature of them. A signed
+ * token can be checked for forgery and expiry without looking it up among the active tokens, and
+ * any gatekeeper node with the same key can check tokens handed out by the others.
+ * <p>
+ * A signed token is the unpadded base64url encoding of a version byte, the 16 bytes of the token,
+ * the 16 bytes of the tokenId, validUntil and renewUntil as 8 bytes each, the loginId in UTF-8
+ * and finally the 32 byte signature of everything before it.
+ */
+final class SignedTokenFormat {
+	private static final byte VERSION = 1;
+	private static final int SIGNATURE_LENGTH = 32;
+	private static final int FIXED_PAYLOAD_LENGTH = 1 + 16 + 16 + 8 + 8;
+	private static final int MAX_LOGIN_ID_LENGTH = 1024;
+	private static final int MIN_TOKEN_LENGTH = base64Length(
+			FIXED_PAYLOAD_LENGTH + SIGNATURE_LENGTH);
+	private static final int MAX_TOKEN_LENGTH = base64Length(
+			FIXED_PAYLOAD_LENGTH + MAX_LOGIN_ID_LENGTH + SIGNATURE_LENGTH);
+	private static final Base64.Encoder BASE64URL_ENCODER = Base64.getUrlEncoder()
+			.withoutPadding();
+	private static final Base64.Decoder BASE64URL_DECODER = Base64.getUrlDecoder();
+	private final HmacSigner signer;
+
+	/**
+	 * @param key
+	 *            the key to sign tokens with, at least 32 bytes long
+	 * @throws IllegalArgumentException
+	 *             if the key is shorter than 32 bytes
+	 */
+	SignedTokenFormat(byte[] key) {
+		signer = new HmacSigner("Token signing key", key);
+	}
+
+	private static int base64Length(int numberOfBytes) {
+		return (numberOfBytes * 4 + 2) / 3;
+	}
+
+	/**
+	 * write returns a signed token holding the token and the content of tokenForUser.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the loginId is longer than 1024 bytes in UTF-8, as a longer token would be
+	 *             rejected by {@link #hasPossibleFormat(String)}
+	 */
+	String write(TokenKey token, ActiveTokenForUser tokenForUser) {
+		byte[] loginId = tokenForUser.loginId().getBytes(StandardCharsets.UTF_8);
+		if (loginId.length > MAX_LOGIN_ID_LENGTH) {
+			throw new IllegalArgumentException("LoginId of signed token must be at most "
+					+ MAX_LOGIN_ID_LENGTH + " bytes, was: " + loginId.length);
+		}
+		ByteBuffer buffer = ByteBuffer
+				.allocate(FIXED_PAYLOAD_LENGTH + loginId.length + SIGNATURE_LENGTH);
+		buffer.put(VERSION);
+		putTokenKey(buffer, token);
+		putTokenKey(buffer, tokenForUser.tokenId());
+		buffer.putLong(tokenForUser.validUntil());
+		buffer.putLong(tokenForUser.renewUntil());
+		buffer.put(loginId);
+		buffer.put(sign(buffer.array(), buffer.position()));
+		return BASE64URL_ENCODER.encodeToString(buffer.array());
+	}
+
+	private void putTokenKey(ByteBuffer buffer, TokenKey tokenKey) {
+		buffer.putLong(tokenKey.mostSignificantBits());
+		buffer.putLong(tokenKey.leastSignificantBits());
+	}
+
+	/**
+	 * read returns the content of a signed token. Malformed and forged tokens are common on a
+	 * public endpoint, so instead of throwing an exception null is returned for them. Whether the
+	 * token has expired or been revoked is left to the caller.
+	 *
+	 * @param token
+	 *            the signed token to read
+	 * @return a SignedToken with the content of the token, or null if the token is malformed or
+	 *         its signature does not match
+	 */
+	SignedToken read(String token) {
+		if (!hasPossibleFormat(token)) {
+			return null;
+		}
+		byte[] bytes = decodeOrNull(token);
+		if (bytes == null || bytes.length < FIXED_PAYLOAD_LENGTH + SIGNATURE_LENGTH
+				|| bytes[0] != VERSION || !signatureMatches(bytes)) {
+			return null;
+		}
+		return readPayload(bytes);
+	}
+
+	/**
+	 * hasPossibleFormat checks the length and characters of a token without decoding it or
+	 * creating any objects, so that tokens that can not be signed tokens are rejected before any
+	 * other work is done.
+	 */
+	boolean hasPossibleFormat(String token) {
+		if (token == null || token.length() < MIN_TOKEN_LENGTH
+				|| token.length() > MAX_TOKEN_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < token.length(); i++) {
+			if (!isBase64UrlCharacter(token.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isBase64UrlCharacter(char character) {
+		return (character >= 'A' && character <= 'Z') || (character >= 'a' && character <= 'z')
+				|| (character >= '0' && character <= '9') || character == '-' || character == '_';
+	}
+
+	private byte[] decodeOrNull(String token) {
+		try {
+			return BASE64URL_DECODER.decode(token);
+		} catch (IllegalArgumentException _) {
+			return null;
+		}
+	}
+
+	private boolean signatureMatches(byte[] bytes) {
+		int payloadLength = bytes.length - SIGNATURE_LENGTH;
+		byte[] signature = Arrays.copyOfRange(bytes, payloadLength, bytes.length);
+		return MessageDigest.isEqual(sign(bytes, payloadLength), signature);
+	}
+
+	private byte[] sign(byte[] bytes, int length) {
+		Mac mac = signer.createSigner();
+		mac.update(bytes, 0, length);
+		return mac.doFinal();
+	}
+
+	private SignedToken readPayload(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1 - SIGNATURE_LENGTH);
+		TokenKey token = new TokenKey(buffer.getLong(), buffer.getLong());
+		TokenKey tokenId = new TokenKey(buffer.getLong(), buffer.getLong());
+		long validUntil = buffer.getLong();
+		long renewUntil = buffer.getLong();
+		String loginId = new String(bytes, buffer.position(), buffer.remaining(),
+				StandardCharsets.UTF_8);
+		return new SignedToken(token,
+				new ActiveTokenForUser(tokenId, loginId, validUntil, renewUntil));
+	}
+
+	record SignedToken(TokenKey token, ActiveTokenForUser tokenForUser) {
+	}
+}
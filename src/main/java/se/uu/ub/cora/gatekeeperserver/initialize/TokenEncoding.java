@@ -0,0 +1,48 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.Locale;
+
+/**
+ * TokenEncoding decides how new tokens and tokenIds are written when they are handed out. UUID
+ * gives the 36 character form used so far, BASE64URL gives a 22 character form. Tokens in either
+ * form are accepted regardless of the encoding in use.
+ */
+public enum TokenEncoding {
+	UUID, BASE64URL;
+
+	/**
+	 * fromSettingValue returns the TokenEncoding for a setting value, such as "uuid" or
+	 * "base64url".
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the value does not name a TokenEncoding
+	 */
+	public static TokenEncoding fromSettingValue(String value) {
+		return valueOf(value.toUpperCase(Locale.ROOT));
+	}
+
+	public String encode(TokenKey tokenKey) {
+		if (this == BASE64URL) {
+			return tokenKey.toBase64UrlString();
+		}
+		return tokenKey.toUUIDString();
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * TokenKey is the 128 bit value of a token or tokenId. It is used instead of the string form of
+ * the token, so that stored tokens take up less memory and can be compared and hashed without
+ * looking at the characters of a string.
+ * <p>
+ * A TokenKey can be written either as a UUID string, or as a shorter unpadded base64url string,
+ * see {@link TokenEncoding}. Both forms are accepted by {@link #fromString(String)}.
+ */
+public record TokenKey(long mostSignificantBits, long leastSignificantBits) {
+	private static final int UUID_LENGTH = 36;
+	private static final int BASE64URL_LENGTH = 22;
+	private static final int NOT_VALID = -1;
+	private static final int[] HEX_VALUES = createValueTable("0123456789abcdef");
+	private static final int[] BASE64URL_VALUES = createValueTable(
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_");
+	private static final Base64.Encoder BASE64URL_ENCODER = Base64.getUrlEncoder()
+			.withoutPadding();
+
+	private static int[] createValueTable(String characters) {
+		int[] values = new int[128];
+		Arrays.fill(values, NOT_VALID);
+		for (int i = 0; i < characters.length(); i++) {
+			values[characters.charAt(i)] = i;
+		}
+		return values;
+	}
+
+	public static TokenKey fromUUID(UUID uuid) {
+		return new TokenKey(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * hasPossibleFormat checks only the length of a token, so that tokens that can not be parsed
+	 * by {@link #fromString(String)} are rejected before any other work is done.
+	 */
+	public static boolean hasPossibleFormat(String token) {
+		return token != null
+				&& (token.length() == UUID_LENGTH || token.length() == BASE64URL_LENGTH);
+	}
+
+	/**
+	 * fromString parses a token written as a lower case UUID string or as an unpadded base64url
+	 * string, the forms tokens are handed out in. Malformed tokens are common on a public
+	 * endpoint, so instead of throwing an exception null is returned for them.
+	 *
+	 * @param token
+	 *            the String to parse
+	 * @return the TokenKey for the token, or null if the token is not a well formed token
+	 */
+	public static TokenKey fromString(String token) {
+		if (token == null) {
+			return null;
+		}
+		if (token.length() == UUID_LENGTH) {
+			return fromUUIDString(token);
+		}
+		if (token.length() == BASE64URL_LENGTH) {
+			return fromBase64UrlString(token);
+		}
+		return null;
+	}
+
+	private static TokenKey fromUUIDString(String token) {
+		long mostSignificantBits = 0;
+		long leastSignificantBits = 0;
+		int numberOfDigits = 0;
+		for (int i = 0; i < UUID_LENGTH; i++) {
+			char character = token.charAt(i);
+			if (isDashPosition(i)) {
+				if (character != '-') {
+					return null;
+				}
+			} else {
+				int value = valueOf(character, HEX_VALUES);
+				if (value == NOT_VALID) {
+					return null;
+				}
+				if (numberOfDigits < 16) {
+					mostSignificantBits = (mostSignificantBits << 4) | value;
+				} else {
+					leastSignificantBits = (leastSignificantBits << 4) | value;
+				}
+				numberOfDigits++;
+			}
+		}
+		return new TokenKey(mostSignificantBits, leastSignificantBits);
+	}
+
+	private static boolean isDashPosition(int position) {
+		return position == 8 || position == 13 || position == 18 || position == 23;
+	}
+
+	private static int valueOf(char character, int[] valueTable) {
+		return character < valueTable.length ? valueTable[character] : NOT_VALID;
+	}
+
+	/**
+	 * 22 base64url characters hold 132 bits, the last character holds the two lowest bits of the
+	 * key followed by four bits that must be zero for the string to be the canonical encoding.
+	 */
+	private static TokenKey fromBase64UrlString(String token) {
+		long mostSignificantBits = 0;
+		long leastSignificantBits = 0;
+		for (int i = 0; i < BASE64URL_LENGTH; i++) {
+			int value = valueOf(token.charAt(i), BASE64URL_VALUES);
+			if (value == NOT_VALID) {
+				return null;
+			}
+			int numberOfBits = 6;
+			if (i == BASE64URL_LENGTH - 1) {
+				if ((value & 0xF) != 0) {
+					return null;
+				}
+				value = value >>> 4;
+				numberOfBits = 2;
+			}
+			mostSignificantBits = (mostSignificantBits << numberOfBits)
+					| (leastSignificantBits >>> (64 - numberOfBits));
+			leastSignificantBits = (leastSignificantBits << numberOfBits) | value;
+		}
+		return new TokenKey(mostSignificantBits, leastSignificantBits);
+	}
+
+	public String toUUIDString() {
+		return new UUID(mostSignificantBits, leastSignificantBits).toString();
+	}
+
+	public String toBase64UrlString() {
+		ByteBuffer bytes = ByteBuffer.allocate(16);
+		bytes.putLong(mostSignificantBits);
+		bytes.putLong(leastSignificantBits);
+		return BASE64URL_ENCODER.encodeToString(bytes.array());
+	}
+}
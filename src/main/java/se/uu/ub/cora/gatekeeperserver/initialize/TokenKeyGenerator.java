@@ -0,0 +1,114 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TokenKeyGenerator generates random TokenKeys for new tokens and tokenIds, in the same form as
+ * {@link java.util.UUID#randomUUID()}, a version 4 UUID with 122 random bits.
+ * <p>
+ * UUID.randomUUID() uses one SecureRandom shared by all threads, which becomes a point of
+ * contention when many users log in at the same time. TokenKeyGenerator instead spreads the
+ * threads over a number of stripes, each with its own SecureRandom and a buffer of random bytes
+ * fetched ahead of time, so that most calls only copy 16 bytes out of a buffer that no other
+ * thread is using.
+ */
+final class TokenKeyGenerator {
+	private static final int TOKEN_KEY_LENGTH = 16;
+	private static final int TOKEN_KEYS_PER_BUFFER = 256;
+	private static final long VERSION_MASK = 0xFFFFFFFFFFFF0FFFL;
+	private static final long VERSION_4 = 0x0000000000004000L;
+	private static final long VARIANT_MASK = 0x3FFFFFFFFFFFFFFFL;
+	private static final long VARIANT_IETF = 0x8000000000000000L;
+	private final Stripe[] stripes;
+
+	TokenKeyGenerator() {
+		this(Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	TokenKeyGenerator(int numberOfStripes) {
+		stripes = new Stripe[numberOfStripes];
+		for (int i = 0; i < numberOfStripes; i++) {
+			stripes[i] = new Stripe(new SecureRandom());
+		}
+	}
+
+	/**
+	 * generate returns a new random TokenKey. The stripe to use is picked from the id of the
+	 * calling thread, if that stripe is busy the following stripes are tried before waiting for
+	 * it.
+	 */
+	TokenKey generate() {
+		int firstStripe = Math.floorMod(mix(Thread.currentThread().threadId()), stripes.length);
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[(firstStripe + i) % stripes.length];
+			if (stripe.lock.tryLock()) {
+				return generateUsingLockedStripe(stripe);
+			}
+		}
+		Stripe stripe = stripes[firstStripe];
+		stripe.lock.lock();
+		return generateUsingLockedStripe(stripe);
+	}
+
+	private static long mix(long threadId) {
+		long mixed = threadId * 0x9E3779B97F4A7C15L;
+		return mixed ^ (mixed >>> 32);
+	}
+
+	private TokenKey generateUsingLockedStripe(Stripe stripe) {
+		try {
+			return createVersion4TokenKey(stripe.nextLong(), stripe.nextLong());
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	private TokenKey createVersion4TokenKey(long mostSignificantBits, long leastSignificantBits) {
+		return new TokenKey((mostSignificantBits & VERSION_MASK) | VERSION_4,
+				(leastSignificantBits & VARIANT_MASK) | VARIANT_IETF);
+	}
+
+	int onlyForTestGetNumberOfStripes() {
+		return stripes.length;
+	}
+
+	private static final class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final SecureRandom random;
+		private final ByteBuffer buffer = ByteBuffer
+				.allocate(TOKEN_KEY_LENGTH * TOKEN_KEYS_PER_BUFFER);
+
+		Stripe(SecureRandom random) {
+			this.random = random;
+			buffer.position(buffer.limit());
+		}
+
+		long nextLong() {
+			if (!buffer.hasRemaining()) {
+				random.nextBytes(buffer.array());
+				buffer.clear();
+			}
+			return buffer.getLong();
+		}
+	}
+}
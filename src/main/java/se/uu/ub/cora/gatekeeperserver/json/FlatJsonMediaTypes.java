@@ -0,0 +1,181 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * FlatJsonMediaTypes holds the media types of the flat json representations of authTokens,
+ * userInfos and users. The flat representations hold the same values as the Cora data format,
+ * as plain json members instead of as children with name and value, and are meant for calls
+ * between services.
+ * <p>
+ * The flat representations are only used when a client asks for them, the Cora data format is
+ * still what all other clients get.
+ */
+public final class FlatJsonMediaTypes {
+	public static final String AUTH_TOKEN = "application/vnd.cora.authToken.flat+json";
+	public static final String USER_INFO = "application/vnd.cora.userInfo.flat+json";
+	public static final String USER = "application/vnd.cora.user.flat+json";
+
+	private static final int ANY = 0;
+	private static final int SUBTYPE_WILDCARD = 1;
+	private static final int EXACT = 2;
+
+	private FlatJsonMediaTypes() {
+	}
+
+	/**
+	 * isRequested returns true if the client prefers the flatMediaType over the Cora data format,
+	 * sent in whatever media type the client asks for, see
+	 * {@link #isRequested(String, String, String)}.
+	 *
+	 * @param accept
+	 *            the value of the Accept header, or null if there is no Accept header
+	 * @param flatMediaType
+	 *            one of the media types in this class
+	 */
+	public static boolean isRequested(String accept, String flatMediaType) {
+		return isRequested(accept, flatMediaType, null);
+	}
+
+	/**
+	 * isRequested returns true if the client prefers the flatMediaType over the coraMediaType,
+	 * going by the quality values in the accept header. The quality of a media type is taken from
+	 * the most specific media range matching it, a media range without a q parameter has quality
+	 * 1, and a media range with a q parameter that can not be read is left out.
+	 * <p>
+	 * The flat representation is only used if it has a higher quality than the Cora data format,
+	 * or the same quality from a more specific media range, or the same quality with both named
+	 * and the flatMediaType named first. Clients accepting anything, or not sending an Accept
+	 * header, get the Cora data format as before.
+	 *
+	 * @param accept
+	 *            the value of the Accept header, or null if there is no Accept header
+	 * @param flatMediaType
+	 *            one of the media types in this class
+	 * @param coraMediaType
+	 *            the media type of the Cora data format, or null if the Cora data format is sent
+	 *            in whatever media type, other than the flatMediaType, the client prefers
+	 */
+	public static boolean isRequested(String accept, String flatMediaType, String coraMediaType) {
+		if (accept == null) {
+			return false;
+		}
+		List<MediaRange> mediaRanges = parseMediaRanges(accept);
+		MediaRange flat = findMostSpecificMatch(mediaRanges, flatMediaType);
+		MediaRange cora = coraMediaType != null
+				? findMostSpecificMatch(mediaRanges, coraMediaType)
+				: findPreferredOtherThan(mediaRanges, flatMediaType);
+		return flat != null && flat.quality() > 0 && isPreferred(flat, cora);
+	}
+
+	private static boolean isPreferred(MediaRange flat, MediaRange cora) {
+		if (cora == null || flat.quality() != cora.quality()) {
+			return cora == null || flat.quality() > cora.quality();
+		}
+		if (flat.specificity() != cora.specificity()) {
+			return flat.specificity() > cora.specificity();
+		}
+		return flat.specificity() == EXACT && flat.position() < cora.position();
+	}
+
+	private static List<MediaRange> parseMediaRanges(String accept) {
+		List<MediaRange> mediaRanges = new ArrayList<>();
+		String[] listedRanges = accept.split(",");
+		for (int position = 0; position < listedRanges.length; position++) {
+			MediaRange mediaRange = parseMediaRange(listedRanges[position], position);
+			if (mediaRange != null) {
+				mediaRanges.add(mediaRange);
+			}
+		}
+		return mediaRanges;
+	}
+
+	private static MediaRange parseMediaRange(String listedRange, int position) {
+		String[] parts = listedRange.split(";");
+		String type = parts[0].trim().toLowerCase(Locale.ROOT);
+		if (type.isEmpty()) {
+			return null;
+		}
+		double quality = 1;
+		for (int i = 1; i < parts.length; i++) {
+			String parameter = parts[i].trim();
+			if (parameter.regionMatches(true, 0, "q=", 0, 2)) {
+				quality = parseQualityOrNaN(parameter.substring(2).trim());
+			}
+		}
+		return Double.isNaN(quality) ? null : new MediaRange(type, quality, position);
+	}
+
+	private static double parseQualityOrNaN(String value) {
+		try {
+			double quality = Double.parseDouble(value);
+			return quality >= 0 && quality <= 1 ? quality : Double.NaN;
+		} catch (NumberFormatException _) {
+			return Double.NaN;
+		}
+	}
+
+	private static MediaRange findMostSpecificMatch(List<MediaRange> mediaRanges,
+			String mediaType) {
+		MediaRange mostSpecific = null;
+		for (MediaRange mediaRange : mediaRanges) {
+			if (mediaRange.matches(mediaType) && (mostSpecific == null
+					|| mediaRange.specificity() > mostSpecific.specificity())) {
+				mostSpecific = mediaRange;
+			}
+		}
+		return mostSpecific;
+	}
+
+	private static MediaRange findPreferredOtherThan(List<MediaRange> mediaRanges,
+			String flatMediaType) {
+		MediaRange preferred = null;
+		for (MediaRange mediaRange : mediaRanges) {
+			if (!mediaRange.type().equalsIgnoreCase(flatMediaType)
+					&& (preferred == null || mediaRange.quality() > preferred.quality())) {
+				preferred = mediaRange;
+			}
+		}
+		return preferred;
+	}
+
+	private record MediaRange(String type, double quality, int position) {
+
+		boolean matches(String mediaType) {
+			String lowerCaseMediaType = mediaType.toLowerCase(Locale.ROOT);
+			return switch (specificity()) {
+			case EXACT -> type.equals(lowerCaseMediaType);
+			case SUBTYPE_WILDCARD -> lowerCaseMediaType
+					.startsWith(type.substring(0, type.length() - 1));
+			default -> true;
+			};
+		}
+
+		int specificity() {
+			if ("*/*".equals(type) || "*".equals(type)) {
+				return ANY;
+			}
+			return type.endsWith("/*") ? SUBTYPE_WILDCARD : EXACT;
+		}
+	}
+}
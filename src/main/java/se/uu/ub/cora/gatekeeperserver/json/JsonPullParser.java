@@ -0,0 +1,321 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.regex.Pattern;
+
+/**
+ * JsonPullParser reads json from a Reader one event at a time, so that a caller can pick out the
+ * values it needs and stop reading as soon as it has them, without building a tree of the whole
+ * document.
+ * <p>
+ * The json is checked while it is read, and a {@link JsonPullParseException} is thrown as soon as
+ * it is found to be malformed, nested deeper than {@value #MAX_DEPTH} levels or longer than the
+ * maximum length given when the parser is created. Only the part of the json read so far is
+ * checked, content after the point where the caller stops reading is never looked at.
+ */
+public final class JsonPullParser {
+	public static final int MAX_DEPTH = 32;
+	private static final int END_OF_INPUT = -1;
+	private static final int NOTHING_PUSHED_BACK = -2;
+	private static final int BUFFER_SIZE = 1024;
+	private static final String NUMBER_CHARACTERS = "0123456789+-.eE";
+	private static final Pattern NUMBER = Pattern
+			.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+	/**
+	 * Event is what the parser found when next was called.
+	 */
+	public enum Event {
+		START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, STRING, NUMBER, TRUE, FALSE, NULL,
+		END_OF_JSON
+	}
+
+	private final Reader reader;
+	private final int maxLength;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int bufferPosition;
+	private int bufferLength;
+	private int length;
+	private int pushedBack = NOTHING_PUSHED_BACK;
+	private final boolean[] inObject = new boolean[MAX_DEPTH];
+	private int depth;
+	private boolean documentStarted;
+	private boolean containerHasElements;
+	private boolean keyRead;
+	private final StringBuilder stringBuilder = new StringBuilder();
+	private String string;
+
+	/**
+	 * @param reader
+	 *            the Reader to read json from
+	 * @param maxLength
+	 *            the maximum number of characters to read from the reader
+	 */
+	public JsonPullParser(Reader reader, int maxLength) {
+		this.reader = reader;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * next reads the json up to and including the next event and returns it. After the events KEY,
+	 * STRING and NUMBER, the key, string or number is available from {@link #getString()}.
+	 *
+	 * @return the next Event, or END_OF_JSON when the whole json value has been read
+	 * @throws JsonPullParseException
+	 *             if the json is malformed, too deep, too long or can not be read
+	 */
+	public Event next() {
+		int c = readNonWhitespace();
+		if (depth == 0) {
+			return readDocumentValueOrEnd(c);
+		}
+		if (inObject[depth - 1]) {
+			return readInObject(c);
+		}
+		return readInArray(c);
+	}
+
+	private Event readDocumentValueOrEnd(int c) {
+		if (!documentStarted) {
+			documentStarted = true;
+			return readValue(c);
+		}
+		if (c != END_OF_INPUT) {
+			throw new JsonPullParseException("Unexpected content after json value");
+		}
+		return Event.END_OF_JSON;
+	}
+
+	private Event readInObject(int c) {
+		if (keyRead) {
+			keyRead = false;
+			return readValue(c);
+		}
+		if (c == '}') {
+			return endContainer(Event.END_OBJECT);
+		}
+		int keyStart = readSeparatorIfNeeded(c);
+		if (keyStart != '"') {
+			throw unexpected(keyStart, "a key");
+		}
+		string = readString();
+		int colon = readNonWhitespace();
+		if (colon != ':') {
+			throw unexpected(colon, "':'");
+		}
+		keyRead = true;
+		containerHasElements = true;
+		return Event.KEY;
+	}
+
+	private int readSeparatorIfNeeded(int c) {
+		if (!containerHasElements) {
+			return c;
+		}
+		if (c != ',') {
+			throw unexpected(c, "','");
+		}
+		return readNonWhitespace();
+	}
+
+	private Event readInArray(int c) {
+		if (c == ']') {
+			return endContainer(Event.END_ARRAY);
+		}
+		int valueStart = readSeparatorIfNeeded(c);
+		containerHasElements = true;
+		return readValue(valueStart);
+	}
+
+	private Event endContainer(Event event) {
+		depth--;
+		containerHasElements = true;
+		return event;
+	}
+
+	private Event readValue(int c) {
+		return switch (c) {
+		case '{' -> startContainer(true, Event.START_OBJECT);
+		case '[' -> startContainer(false, Event.START_ARRAY);
+		case '"' -> readStringValue();
+		case 't' -> readLiteral("true", Event.TRUE);
+		case 'f' -> readLiteral("false", Event.FALSE);
+		case 'n' -> readLiteral("null", Event.NULL);
+		default -> readNumberOrThrow(c);
+		};
+	}
+
+	private Event startContainer(boolean object, Event event) {
+		if (depth == MAX_DEPTH) {
+			throw new JsonPullParseException("Json is nested deeper than " + MAX_DEPTH + " levels");
+		}
+		inObject[depth] = object;
+		depth++;
+		containerHasElements = false;
+		return event;
+	}
+
+	private Event readStringValue() {
+		string = readString();
+		return Event.STRING;
+	}
+
+	private Event readLiteral(String literal, Event event) {
+		for (int i = 1; i < literal.length(); i++) {
+			int c = read();
+			if (c != literal.charAt(i)) {
+				throw unexpected(c, literal);
+			}
+		}
+		return event;
+	}
+
+	private Event readNumberOrThrow(int c) {
+		if (c != '-' && !isDigit(c)) {
+			throw unexpected(c, "a value");
+		}
+		stringBuilder.setLength(0);
+		int current = c;
+		while (current != END_OF_INPUT && NUMBER_CHARACTERS.indexOf(current) != -1) {
+			stringBuilder.append((char) current);
+			current = read();
+		}
+		pushedBack = current;
+		string = stringBuilder.toString();
+		if (!NUMBER.matcher(string).matches()) {
+			throw new JsonPullParseException(
+					"Malformed number " + string + " at position " + length);
+		}
+		return Event.NUMBER;
+	}
+
+	private boolean isDigit(int c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private String readString() {
+		stringBuilder.setLength(0);
+		int c = read();
+		while (c != '"') {
+			if (c == END_OF_INPUT || c < ' ') {
+				throw unexpected(c, "'\"'");
+			}
+			if (c == '\\') {
+				stringBuilder.append(readEscapedChar());
+			} else {
+				stringBuilder.append((char) c);
+			}
+			c = read();
+		}
+		return stringBuilder.toString();
+	}
+
+	private char readEscapedChar() {
+		int c = read();
+		return switch (c) {
+		case '"', '\\', '/' -> (char) c;
+		case 'b' -> '\b';
+		case 'f' -> '\f';
+		case 'n' -> '\n';
+		case 'r' -> '\r';
+		case 't' -> '\t';
+		case 'u' -> readUnicodeEscape();
+		default -> throw unexpected(c, "an escape character");
+		};
+	}
+
+	private char readUnicodeEscape() {
+		int value = 0;
+		for (int i = 0; i < 4; i++) {
+			int c = read();
+			int digit = Character.digit(c, 16);
+			if (c == END_OF_INPUT || digit == -1) {
+				throw unexpected(c, "a hex digit");
+			}
+			value = value * 16 + digit;
+		}
+		return (char) value;
+	}
+
+	private int readNonWhitespace() {
+		int c = read();
+		while (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+			c = read();
+		}
+		return c;
+	}
+
+	private int read() {
+		if (pushedBack != NOTHING_PUSHED_BACK) {
+			int c = pushedBack;
+			pushedBack = NOTHING_PUSHED_BACK;
+			return c;
+		}
+		if (bufferPosition == bufferLength && !fillBuffer()) {
+			return END_OF_INPUT;
+		}
+		length++;
+		if (length > maxLength) {
+			throw new JsonPullParseException(
+					"Json is longer than the maximum of " + maxLength + " characters");
+		}
+		return buffer[bufferPosition++];
+	}
+
+	private boolean fillBuffer() {
+		try {
+			bufferLength = reader.read(buffer, 0, BUFFER_SIZE);
+			bufferPosition = 0;
+			return bufferLength > 0;
+		} catch (IOException e) {
+			throw new JsonPullParseException("Could not read json", e);
+		}
+	}
+
+	private JsonPullParseException unexpected(int c, String expected) {
+		String found = c == END_OF_INPUT ? "end of json" : "'" + (char) c + "'";
+		return new JsonPullParseException(
+				"Expected " + expected + " but found " + found + " at position " + length);
+	}
+
+	/**
+	 * getString returns the key, string or number read by the latest call to next.
+	 */
+	public String getString() {
+		return string;
+	}
+
+	/**
+	 * skipValue reads past the next value, including everything nested in it. It is used to skip
+	 * the value after a KEY that the caller is not interested in.
+	 *
+	 * @throws JsonPullParseException
+	 *             if the json is malformed, too deep, too long or can not be read
+	 */
+	public void skipValue() {
+		int depthBeforeValue = depth;
+		next();
+		while (depth > depthBeforeValue) {
+			next();
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+/**
+ * JsonStringWriter writes strings as json strings, escaped in exactly the same way as org.json
+ * JSONObject.quote escapes them. Json written directly as text using JsonStringWriter is therefore
+ * byte identical to json built using OrgJsonBuilderFactoryAdapter.
+ */
+public final class JsonStringWriter {
+
+	private JsonStringWriter() {
+	}
+
+	/**
+	 * writeString appends value to json as a quoted json string.
+	 */
+	public static void writeString(String value, StringBuilder json) {
+		json.append('"');
+		char previous = 0;
+		for (int i = 0; i < value.length(); i++) {
+			char current = value.charAt(i);
+			writeEscapedChar(previous, current, json);
+			previous = current;
+		}
+		json.append('"');
+	}
+
+	private static void writeEscapedChar(char previous, char current, StringBuilder json) {
+		switch (current) {
+		case '\\', '"' -> json.append('\\').append(current);
+		case '/' -> writeSlash(previous, json);
+		case '\b' -> json.append("\\b");
+		case '\t' -> json.append("\\t");
+		case '\n' -> json.append("\\n");
+		case '\f' -> json.append("\\f");
+		case '\r' -> json.append("\\r");
+		default -> writeCharOrUnicodeEscape(current, json);
+		}
+	}
+
+	private static void writeSlash(char previous, StringBuilder json) {
+		if (previous == '<') {
+			json.append('\\');
+		}
+		json.append('/');
+	}
+
+	private static void writeCharOrUnicodeEscape(char current, StringBuilder json) {
+		if (isEscapedAsUnicode(current)) {
+			String hex = Integer.toHexString(current);
+			json.append("\\u").append("0000", 0, 4 - hex.length()).append(hex);
+		} else {
+			json.append(current);
+		}
+	}
+
+	private static boolean isEscapedAsUnicode(char current) {
+		return current < ' ' || (current >= '\u0080' && current < '\u00a0')
+				|| (current >= '\u2000' && current < '\u2100');
+	}
+}
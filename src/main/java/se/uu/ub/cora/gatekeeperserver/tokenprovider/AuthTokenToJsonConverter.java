@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2017, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2017, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -21,134 +21,102 @@ package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
 import java.util.Optional;
 
-import se.uu.ub.cora.json.builder.JsonArrayBuilder;
-import se.uu.ub.cora.json.builder.JsonObjectBuilder;
-import se.uu.ub.cora.json.builder.org.OrgJsonBuilderFactoryAdapter;
+import se.uu.ub.cora.gatekeeperserver.json.JsonStringWriter;
 
+/**
+ * AuthTokenToJsonConverter writes an authToken in the Cora data format. The shape of the authToken
+ * is fixed, so everything except the values is written from precompiled parts of the json, and
+ * the values are written straight into one StringBuilder sized to fit the whole authToken.
+ * <p>
+ * The output is byte identical to what OrgJsonBuilderFactoryAdapter gives for the same authToken.
+ */
 public final class AuthTokenToJsonConverter {
-
-	private static final String VALUE = "value";
-	private static final String NAME = "name";
-	private static final String CHILDREN = "children";
+	private static final String START = "{\"children\":[";
+	private static final String TOKEN = "{\"name\":\"token\",\"value\":";
+	private static final String TOKEN_ID = ",{\"name\":\"tokenId\",\"value\":";
+	private static final String VALID_UNTIL = ",{\"name\":\"validUntil\",\"value\":";
+	private static final String RENEW_UNTIL = ",{\"name\":\"renewUntil\",\"value\":";
+	private static final String ID_IN_USER_STORAGE = ",{\"name\":\"idInUserStorage\","
+			+ "\"value\":";
+	private static final String LOGIN_ID = ",{\"name\":\"loginId\",\"value\":";
+	private static final String FIRST_NAME = ",{\"name\":\"firstName\",\"value\":";
+	private static final String LAST_NAME = ",{\"name\":\"lastName\",\"value\":";
+	private static final String PERMISSION_UNIT_START = ",{\"repeatId\":\"";
+	private static final String PERMISSION_UNIT_LINK = "\",\"children\":["
+			+ "{\"name\":\"linkedRecordType\",\"value\":\"permissionUnit\"},"
+			+ "{\"name\":\"linkedRecordId\",\"value\":";
+	private static final String PERMISSION_UNIT_END = "}],\"name\":\"permissionUnit\"}";
+	private static final String END = "],\"name\":\"authToken\"}";
+	private static final int FIXED_LENGTH = 320;
+	private static final int FIXED_LENGTH_PER_PERMISSION_UNIT = 160;
 	private AuthToken authToken;
-	private OrgJsonBuilderFactoryAdapter orgJsonBuilderFactoryAdapter = new OrgJsonBuilderFactoryAdapter();
 
 	public AuthTokenToJsonConverter(AuthToken authToken) {
 		this.authToken = authToken;
 	}
 
 	public String convertAuthTokenToJson() {
-		JsonObjectBuilder userBuilder = createObjectBuilderWithName("authToken");
-		JsonArrayBuilder userChildren = returnAndAddChildrenToBuilder(userBuilder);
-
-		addTokenToJson(userChildren);
-		addTokenIdToJson(userChildren);
-		addValidUntilToJson(userChildren);
-		addrenewUntilToJson(userChildren);
-		addIdInUserStorageToJson(userChildren);
-		addLoginIdToJson(userChildren);
-		possiblyAddNameToJson(userChildren);
-		possiblyAddPermissionUnitsToJson(userChildren);
-		return userBuilder.toJsonFormattedString();
-	}
-
-	private JsonObjectBuilder createObjectBuilderWithName(String name) {
-		JsonObjectBuilder roleBuilder = orgJsonBuilderFactoryAdapter.createObjectBuilder();
-		roleBuilder.addKeyString(NAME, name);
-		return roleBuilder;
+		StringBuilder json = new StringBuilder(estimateLength());
+		json.append(START);
+		writeAtomic(json, TOKEN, authToken.token());
+		writeAtomic(json, TOKEN_ID, authToken.tokenId());
+		writeAtomic(json, VALID_UNTIL, authToken.validUntil());
+		writeAtomic(json, RENEW_UNTIL, authToken.renewUntil());
+		writeAtomic(json, ID_IN_USER_STORAGE, String.valueOf(authToken.idInUserStorage()));
+		writeAtomic(json, LOGIN_ID, String.valueOf(authToken.loginId()));
+		possiblyWriteAtomic(json, FIRST_NAME, authToken.firstName());
+		possiblyWriteAtomic(json, LAST_NAME, authToken.lastName());
+		writePermissionUnits(json);
+		json.append(END);
+		return json.toString();
 	}
 
-	private void addTokenToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder token = createObjectBuilderWithName("token");
-		token.addKeyString(VALUE, authToken.token());
-		userChildren.addJsonObjectBuilder(token);
-	}
-
-	private void addTokenIdToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder token = createObjectBuilderWithName("tokenId");
-		token.addKeyString(VALUE, authToken.tokenId());
-		userChildren.addJsonObjectBuilder(token);
-	}
-
-	private void addValidUntilToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder validForNoSeconds = createObjectBuilderWithName("validUntil");
-		validForNoSeconds.addKeyString(VALUE, String.valueOf(authToken.validUntil()));
-		userChildren.addJsonObjectBuilder(validForNoSeconds);
-	}
-
-	private void addrenewUntilToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder validForNoSeconds = createObjectBuilderWithName("renewUntil");
-		validForNoSeconds.addKeyString(VALUE, String.valueOf(authToken.renewUntil()));
-		userChildren.addJsonObjectBuilder(validForNoSeconds);
+	private int estimateLength() {
+		int length = FIXED_LENGTH + authToken.token().length() + authToken.tokenId().length()
+				+ lengthOf(authToken.idInUserStorage()) + lengthOf(authToken.loginId())
+				+ lengthOf(authToken.firstName()) + lengthOf(authToken.lastName());
+		for (String permissionUnit : authToken.permissionUnits()) {
+			length += FIXED_LENGTH_PER_PERMISSION_UNIT + permissionUnit.length();
+		}
+		return length;
 	}
 
-	private void addIdInUserStorageToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder idInUserStorage = createObjectBuilderWithName("idInUserStorage");
-		idInUserStorage.addKeyString(VALUE, String.valueOf(authToken.idInUserStorage()));
-		userChildren.addJsonObjectBuilder(idInUserStorage);
+	private int lengthOf(String value) {
+		return value == null ? 0 : value.length();
 	}
 
-	private void addLoginIdToJson(JsonArrayBuilder userChildren) {
-		JsonObjectBuilder loginId = createObjectBuilderWithName("loginId");
-		loginId.addKeyString(VALUE, String.valueOf(authToken.loginId()));
-		userChildren.addJsonObjectBuilder(loginId);
+	private int lengthOf(Optional<String> value) {
+		return value.isPresent() ? value.get().length() : 0;
 	}
 
-	private void possiblyAddNameToJson(JsonArrayBuilder userChildren) {
-		possiblyAddFirstNameToJson(userChildren);
-		possiblyAddLastNameToJson(userChildren);
+	private void writeAtomic(StringBuilder json, String atomicStart, String value) {
+		json.append(atomicStart);
+		JsonStringWriter.writeString(value, json);
+		json.append('}');
 	}
 
-	private void possiblyAddFirstNameToJson(JsonArrayBuilder userChildren) {
-		Optional<String> optionalFirstname = authToken.firstName();
-		if (optionalFirstname.isPresent()) {
-			JsonObjectBuilder firstName = createObjectBuilderWithName("firstName");
-			firstName.addKeyString(VALUE, String.valueOf(optionalFirstname.get()));
-			userChildren.addJsonObjectBuilder(firstName);
-		}
+	private void writeAtomic(StringBuilder json, String atomicStart, long value) {
+		json.append(atomicStart).append('"').append(value).append("\"}");
 	}
 
-	private void possiblyAddLastNameToJson(JsonArrayBuilder userChildren) {
-		Optional<String> optionalLastname = authToken.lastName();
-		if (optionalLastname.isPresent()) {
-			JsonObjectBuilder lastName = createObjectBuilderWithName("lastName");
-			lastName.addKeyString(VALUE, String.valueOf(optionalLastname.get()));
-			userChildren.addJsonObjectBuilder(lastName);
+	private void possiblyWriteAtomic(StringBuilder json, String atomicStart,
+			Optional<String> value) {
+		if (value.isPresent()) {
+			writeAtomic(json, atomicStart, value.get());
 		}
 	}
 
-	private void possiblyAddPermissionUnitsToJson(JsonArrayBuilder userChildren) {
-		if (!authToken.permissionUnits().isEmpty()) {
-			int repeatId = 0;
-			for (String permissionUnit : authToken.permissionUnits()) {
-				repeatId++;
-				addPermissionUnitToJson(userChildren, permissionUnit, String.valueOf(repeatId));
-			}
+	private void writePermissionUnits(StringBuilder json) {
+		int repeatId = 0;
+		for (String permissionUnit : authToken.permissionUnits()) {
+			repeatId++;
+			writePermissionUnit(json, permissionUnit, repeatId);
 		}
 	}
 
-	private void addPermissionUnitToJson(JsonArrayBuilder userChildren, String linkedRecordId,
-			String repeatId) {
-		JsonObjectBuilder permissionUnit = createObjectBuilderWithName("permissionUnit");
-		JsonArrayBuilder permissionUnitChildren = orgJsonBuilderFactoryAdapter.createArrayBuilder();
-		permissionUnit.addKeyJsonArrayBuilder(CHILDREN, permissionUnitChildren);
-		permissionUnit.addKeyString("repeatId", repeatId);
-
-		JsonObjectBuilder type = createObjectBuilderWithName("linkedRecordType");
-		type.addKeyString(VALUE, "permissionUnit");
-		permissionUnitChildren.addJsonObjectBuilder(type);
-
-		JsonObjectBuilder id = createObjectBuilderWithName("linkedRecordId");
-		id.addKeyString(VALUE, linkedRecordId);
-		permissionUnitChildren.addJsonObjectBuilder(id);
-
-		userChildren.addJsonObjectBuilder(permissionUnit);
-	}
-
-	private JsonArrayBuilder returnAndAddChildrenToBuilder(JsonObjectBuilder userBuilder) {
-		JsonArrayBuilder userChildren = orgJsonBuilderFactoryAdapter.createArrayBuilder();
-		userBuilder.addKeyJsonArrayBuilder(CHILDREN, userChildren);
-		return userChildren;
+	private void writePermissionUnit(StringBuilder json, String linkedRecordId, int repeatId) {
+		json.append(PERMISSION_UNIT_START).append(repeatId).append(PERMISSION_UNIT_LINK);
+		JsonStringWriter.writeString(linkedRecordId, json);
+		json.append(PERMISSION_UNIT_END);
 	}
-
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.tokenprovider;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyWriter;
+import jakarta.ws.rs.ext.Provider;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
+import se.uu.ub.cora.gatekeeperserver.json.JsonStringWriter;
+
+/**
+ * FlatAuthTokenWriter writes an AuthToken as flat json, {@link FlatJsonMediaTypes#AUTH_TOKEN}, as
+ * in:
+ *
+ * <pre>
+ * {"token":"someToken","tokenId":"someTokenId","validUntil":100,"renewUntil":200,
+ * "idInUserStorage":"someId","loginId":"someLoginId","firstName":"someFirstName",
+ * "lastName":"someLastName","permissionUnits":["001","002"]}
+ * </pre>
+ *
+ * firstName and lastName are left out when the authToken has none.
+ */
+@Provider
+@Produces(FlatJsonMediaTypes.AUTH_TOKEN)
+public final class FlatAuthTokenWriter implements MessageBodyWriter<AuthToken> {
+	private static final int ESTIMATED_LENGTH = 256;
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return AuthToken.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public void writeTo(AuthToken authToken, Class<?> type, Type genericType,
+			Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream)
+			throws IOException {
+		entityStream.write(toFlatJson(authToken).getBytes(StandardCharsets.UTF_8));
+	}
+
+	String toFlatJson(AuthToken authToken) {
+		StringBuilder json = new StringBuilder(ESTIMATED_LENGTH);
+		json.append("{\"token\":");
+		writeStringOrNull(authToken.token(), json);
+		json.append(",\"tokenId\":");
+		writeStringOrNull(authToken.tokenId(), json);
+		json.append(",\"validUntil\":").append(authToken.validUntil());
+		json.append(",\"renewUntil\":").append(authToken.renewUntil());
+		json.append(",\"idInUserStorage\":");
+		writeStringOrNull(authToken.idInUserStorage(), json);
+		json.append(",\"loginId\":");
+		writeStringOrNull(authToken.loginId(), json);
+		possiblyWriteMember("firstName", authToken.firstName(), json);
+		possiblyWriteMember("lastName", authToken.lastName(), json);
+		json.append(",\"permissionUnits\":[");
+		writePermissionUnits(authToken, json);
+		json.append("]}");
+		return json.toString();
+	}
+
+	private void writeStringOrNull(String value, StringBuilder json) {
+		if (value == null) {
+			json.append("null");
+		} else {
+			JsonStringWriter.writeString(value, json);
+		}
+	}
+
+	private void possiblyWriteMember(String name, Optional<String> value, StringBuilder json) {
+		if (value.isPresent()) {
+			json.append(",\"").append(name).append("\":");
+			JsonStringWriter.writeString(value.get(), json);
+		}
+	}
+
+	private void writePermissionUnits(AuthToken authToken, StringBuilder json) {
+		boolean first = true;
+		for (String permissionUnit : authToken.permissionUnits()) {
+			if (!first) {
+				json.append(',');
+			}
+			JsonStringWriter.writeString(permissionUnit, json);
+			first = false;
+		}
+	}
+}
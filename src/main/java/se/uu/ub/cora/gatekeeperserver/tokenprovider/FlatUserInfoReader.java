@@ -0,0 +1,106 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.tokenprovider;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.MessageBodyReader;
+import jakarta.ws.rs.ext.Provider;
+import se.uu.ub.cora.gatekeeper.picker.UserInfo;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParseException;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParser;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParser.Event;
+
+/**
+ * FlatUserInfoReader reads a UserInfo from flat json, {@link FlatJsonMediaTypes#USER_INFO}, as in
+ * <code>{"idInUserStorage":"someId"}</code> or
+ * <code>{"loginId":"someLoginId","domainFromLogin":"someDomain"}</code>. As for the Cora data
+ * format, a non empty idInUserStorage is used before loginId and domainFromLogin.
+ * <p>
+ * The json is read with a {@link JsonPullParser} limited to
+ * {@link JsonToUserInfoConverter#MAX_USER_INFO_LENGTH} characters, json that is malformed, too
+ * long or not an object with string members is answered with 400 Bad Request.
+ */
+@Provider
+@Consumes(FlatJsonMediaTypes.USER_INFO)
+public final class FlatUserInfoReader implements MessageBodyReader<UserInfo> {
+	private static final String ID_IN_USER_STORAGE = "idInUserStorage";
+	private static final String LOGIN_ID = "loginId";
+	private static final String DOMAIN_FROM_LOGIN = "domainFromLogin";
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType) {
+		return UserInfo.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public UserInfo readFrom(Class<UserInfo> type, Type genericType, Annotation[] annotations,
+			MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+			InputStream entityStream) {
+		JsonPullParser parser = new JsonPullParser(
+				new InputStreamReader(entityStream, StandardCharsets.UTF_8),
+				JsonToUserInfoConverter.MAX_USER_INFO_LENGTH);
+		try {
+			return readUserInfo(parser);
+		} catch (JsonPullParseException e) {
+			throw new BadRequestException("Could not parse userInfo: " + e.getMessage(), e);
+		}
+	}
+
+	private UserInfo readUserInfo(JsonPullParser parser) {
+		expectEvent(parser.next(), Event.START_OBJECT);
+		String idInUserStorage = null;
+		String loginId = null;
+		String domainFromLogin = null;
+		while (parser.next() == Event.KEY) {
+			switch (parser.getString()) {
+			case ID_IN_USER_STORAGE -> idInUserStorage = readString(parser);
+			case LOGIN_ID -> loginId = readString(parser);
+			case DOMAIN_FROM_LOGIN -> domainFromLogin = readString(parser);
+			default -> parser.skipValue();
+			}
+		}
+		if (idInUserStorage != null && idInUserStorage.length() > 0) {
+			return UserInfo.withIdInUserStorage(idInUserStorage);
+		}
+		return UserInfo.withLoginIdAndLoginDomain(loginId, domainFromLogin);
+	}
+
+	private String readString(JsonPullParser parser) {
+		expectEvent(parser.next(), Event.STRING);
+		return parser.getString();
+	}
+
+	private void expectEvent(Event event, Event expectedEvent) {
+		if (event != expectedEvent) {
+			throw new BadRequestException("Could not parse userInfo: expected " + expectedEvent
+					+ " but found " + event);
+		}
+	}
+}
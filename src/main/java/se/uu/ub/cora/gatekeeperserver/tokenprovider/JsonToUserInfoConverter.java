@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Uppsala University Library
+ * Copyright 2016, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,56 +19,135 @@
 
 package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Reader;
+import java.io.StringReader;
 
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
-import se.uu.ub.cora.json.parser.JsonArray;
-import se.uu.ub.cora.json.parser.JsonObject;
-import se.uu.ub.cora.json.parser.JsonParser;
-import se.uu.ub.cora.json.parser.JsonValue;
-import se.uu.ub.cora.json.parser.org.OrgJsonParser;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParseException;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParser;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParser.Event;
 
+/**
+ * JsonToUserInfoConverter reads a userInfo in the Cora data format using a {@link JsonPullParser},
+ * picking out idInUserStorage, loginId and domainFromLogin from the children as they are read.
+ * Reading stops as soon as a non empty idInUserStorage is found, or else when the children have
+ * been read, the rest of the json is not read.
+ * <p>
+ * A userInfo longer than {@value #MAX_USER_INFO_LENGTH} characters is rejected without reading
+ * more than that from the reader.
+ */
 public final class JsonToUserInfoConverter {
-
+	public static final int MAX_USER_INFO_LENGTH = 16 * 1024;
 	private static final String ID_IN_USER_STORAGE = "idInUserStorage";
+	private static final String LOGIN_ID = "loginId";
+	private static final String DOMAIN_FROM_LOGIN = "domainFromLogin";
 	private static final String CHILDREN = "children";
-	private String jsonUserInfo;
-	private Map<String, String> childValues;
+	private static final String NAME = "name";
+	private static final String VALUE = "value";
+	private JsonPullParser parser;
+	private String idInUserStorage;
+	private String loginId;
+	private String domainFromLogin;
 
 	public JsonToUserInfoConverter(String jsonUserInfo) {
-		this.jsonUserInfo = jsonUserInfo;
+		this(new StringReader(jsonUserInfo));
+	}
+
+	public JsonToUserInfoConverter(Reader jsonUserInfo) {
+		parser = new JsonPullParser(jsonUserInfo, MAX_USER_INFO_LENGTH);
 	}
 
+	/**
+	 * parseUserInfoFromJson reads the userInfo and returns it.
+	 *
+	 * @throws UserInfoParseException
+	 *             if the json is malformed, too long or is not a userInfo
+	 */
 	public UserInfo parseUserInfoFromJson() {
-		JsonParser jsonParser = new OrgJsonParser();
-		JsonObject jsonUser = (JsonObject) jsonParser.parseString(jsonUserInfo);
-		childValues = extractChildValuesToArray(jsonUser);
-		return createUserInfoFromChildValues(childValues);
+		try {
+			readChildValues();
+			return createUserInfoFromChildValues();
+		} catch (JsonPullParseException e) {
+			throw new UserInfoParseException("Could not parse userInfo: " + e.getMessage(), e);
+		}
 	}
 
-	private Map<String, String> extractChildValuesToArray(JsonObject jsonUser) {
-		JsonArray children = jsonUser.getValueAsJsonArray(CHILDREN);
-		childValues = new HashMap<>();
-		for (JsonValue child : children) {
-			JsonObject childObject = (JsonObject) child;
-			childValues.put(childObject.getValueAsJsonString("name").getStringValue(),
-					childObject.getValueAsJsonString("value").getStringValue());
+	private void readChildValues() {
+		expectEvent(parser.next(), Event.START_OBJECT);
+		while (parser.next() == Event.KEY) {
+			if (CHILDREN.equals(parser.getString())) {
+				readChildren();
+				return;
+			}
+			parser.skipValue();
 		}
-		return childValues;
+		throw new UserInfoParseException("Could not parse userInfo: no children found");
 	}
 
-	private UserInfo createUserInfoFromChildValues(Map<String, String> childValues) {
-		if (idInUserStorageIsSet(childValues)) {
-			return UserInfo.withIdInUserStorage(childValues.get(ID_IN_USER_STORAGE));
+	private void expectEvent(Event event, Event expectedEvent) {
+		if (event != expectedEvent) {
+			throw new UserInfoParseException("Could not parse userInfo: expected "
+					+ expectedEvent + " but found " + event);
 		}
-		return UserInfo.withLoginIdAndLoginDomain(childValues.get("loginId"),
-				childValues.get("domainFromLogin"));
 	}
 
-	private boolean idInUserStorageIsSet(Map<String, String> childValues) {
-		String idInUserStorage = childValues.get(ID_IN_USER_STORAGE);
-		return idInUserStorage != null && idInUserStorage.length() > 0;
+	private void readChildren() {
+		expectEvent(parser.next(), Event.START_ARRAY);
+		Event event = parser.next();
+		while (event == Event.START_OBJECT) {
+			readChild();
+			if (idInUserStorageIsSet()) {
+				return;
+			}
+			event = parser.next();
+		}
+		expectEvent(event, Event.END_ARRAY);
+	}
+
+	private void readChild() {
+		String name = null;
+		String value = null;
+		while (parser.next() == Event.KEY) {
+			String key = parser.getString();
+			if (NAME.equals(key)) {
+				name = readString();
+			} else if (VALUE.equals(key)) {
+				value = readString();
+			} else {
+				parser.skipValue();
+			}
+		}
+		if (name == null || value == null) {
+			throw new UserInfoParseException(
+					"Could not parse userInfo: child without name or value found");
+		}
+		storeChildValue(name, value);
 	}
 
+	private String readString() {
+		expectEvent(parser.next(), Event.STRING);
+		return parser.getString();
+	}
+
+	private void storeChildValue(String name, String value) {
+		switch (name) {
+		case ID_IN_USER_STORAGE -> idInUserStorage = value;
+		case LOGIN_ID -> loginId = value;
+		case DOMAIN_FROM_LOGIN -> domainFromLogin = value;
+		default -> {
+			// other children are not part of UserInfo
+		}
+		}
+	}
+
+	private UserInfo createUserInfoFromChildValues() {
+		if (idInUserStorageIsSet()) {
+			return UserInfo.withIdInUserStorage(idInUserStorage);
+		}
+		return UserInfo.withLoginIdAndLoginDomain(loginId, domainFromLogin);
+	}
+
+	private boolean idInUserStorageIsSet() {
+		return idInUserStorage != null && idInUserStorage.length() > 0;
+	}
 }
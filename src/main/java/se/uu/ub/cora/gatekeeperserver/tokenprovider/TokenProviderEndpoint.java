@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,67 +19,144 @@
 
 package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.Response;
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
 import se.uu.ub.cora.gatekeeperserver.Gatekeeper;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
 
 @Path("authToken")
 public final class TokenProviderEndpoint {
+	private static final String AUTH_TOKEN_JSON = "application/vnd.cora.authToken+json";
+	private static final String VARY = "Vary";
+	private static final String ACCEPT = "Accept";
+	static final long RESPONSE_TIMEOUT_IN_SECONDS = 30;
+
+	private StorageWorkExecutor storageWorkExecutor = StorageWorkExecutor.INSTANCE;
 
+	/**
+	 * getAuthTokenForUserInfo answers with an authToken in the Cora data format, or as flat json if
+	 * the client prefers {@link FlatJsonMediaTypes#AUTH_TOKEN} over the Cora data format, see
+	 * {@link FlatJsonMediaTypes#isRequested(String, String, String)}. Both are answered with
+	 * Vary: Accept.
+	 * <p>
+	 * Getting the authToken picks the user from storage, which can take a while, so the request is
+	 * suspended and answered from a virtual thread in the {@link StorageWorkExecutor}. The container
+	 * thread never waits for storage, if no permit to use storage is free the request is answered
+	 * with 503 at once, and a request not answered within {@link #RESPONSE_TIMEOUT_IN_SECONDS} is
+	 * answered with 503 by the container.
+	 */
 	@POST
 	@Consumes("application/vnd.cora.userInfo+json")
-	@Produces("application/vnd.cora.authToken+json")
-	public Response getAuthTokenForUserInfo(String jsonUserInfo) {
+	@Produces({ AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN })
+	public void getAuthTokenForUserInfo(InputStream jsonUserInfo,
+			@HeaderParam(ACCEPT) String accept, @Suspended AsyncResponse asyncResponse) {
+		try {
+			UserInfo userInfo = convertJsonToUserInfo(jsonUserInfo);
+			resumeWithAuthTokenUsingStorageWorkExecutor(userInfo, accept, asyncResponse);
+		} catch (UserInfoParseException e) {
+			asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).build());
+		}
+	}
+
+	private void resumeWithAuthTokenUsingStorageWorkExecutor(UserInfo userInfo, String accept,
+			AsyncResponse asyncResponse) {
+		asyncResponse.setTimeout(RESPONSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+		try {
+			storageWorkExecutor.execute(() -> resumeWithAuthToken(userInfo, accept, asyncResponse));
+		} catch (RejectedExecutionException e) {
+			asyncResponse.resume(Response.status(Response.Status.SERVICE_UNAVAILABLE).build());
+		}
+	}
+
+	private void resumeWithAuthToken(UserInfo userInfo, String accept,
+			AsyncResponse asyncResponse) {
 		try {
-			return tryToGetAuthTokenForUserInfo(jsonUserInfo);
+			asyncResponse.resume(getAuthTokenForUserInfo(userInfo, accept));
 		} catch (AuthenticationException e) {
-			return Response.status(Response.Status.UNAUTHORIZED).build();
+			asyncResponse.resume(Response.status(Response.Status.UNAUTHORIZED).build());
+		} catch (RuntimeException e) {
+			asyncResponse.resume(e);
 		}
 	}
 
-	private Response tryToGetAuthTokenForUserInfo(String jsonUserInfo) {
+	private Response getAuthTokenForUserInfo(UserInfo userInfo, String accept) {
 		Gatekeeper gatekeeper = GatekeeperInstanceProvider.getGatekeeper();
-		UserInfo userInfo = convertJsonToUserInfo(jsonUserInfo);
 		AuthToken authTokenForUserInfo = gatekeeper.getAuthTokenForUserInfo(userInfo);
-		String json = convertAuthTokenToJson(authTokenForUserInfo);
-		return Response.status(Response.Status.OK).entity(json).build();
+		return createAuthTokenResponse(authTokenForUserInfo, accept);
 	}
 
-	private UserInfo convertJsonToUserInfo(String jsonUserInfo) {
-		JsonToUserInfoConverter converter = new JsonToUserInfoConverter(jsonUserInfo);
+	private UserInfo convertJsonToUserInfo(InputStream jsonUserInfo) {
+		JsonToUserInfoConverter converter = new JsonToUserInfoConverter(
+				new InputStreamReader(jsonUserInfo, StandardCharsets.UTF_8));
 		return converter.parseUserInfoFromJson();
 	}
 
+	private Response createAuthTokenResponse(AuthToken authToken, String accept) {
+		if (FlatJsonMediaTypes.isRequested(accept, FlatJsonMediaTypes.AUTH_TOKEN,
+				AUTH_TOKEN_JSON)) {
+			return Response.status(Response.Status.OK).entity(authToken)
+					.type(FlatJsonMediaTypes.AUTH_TOKEN).header(VARY, ACCEPT).build();
+		}
+		String json = convertAuthTokenToJson(authToken);
+		return Response.status(Response.Status.OK).entity(json).type(AUTH_TOKEN_JSON)
+				.header(VARY, ACCEPT).build();
+	}
+
 	private String convertAuthTokenToJson(AuthToken authTokenForUserInfo) {
 		AuthTokenToJsonConverter converter = new AuthTokenToJsonConverter(authTokenForUserInfo);
 		return converter.convertAuthTokenToJson();
 	}
 
+	/**
+	 * getAuthTokenForFlatUserInfo does the same as
+	 * {@link #getAuthTokenForUserInfo(InputStream, String, AsyncResponse)} for a userInfo sent as
+	 * flat json, {@link FlatJsonMediaTypes#USER_INFO}, read by {@link FlatUserInfoReader}.
+	 */
+	@POST
+	@Consumes(FlatJsonMediaTypes.USER_INFO)
+	@Produces({ AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN })
+	public void getAuthTokenForFlatUserInfo(UserInfo userInfo, @HeaderParam(ACCEPT) String accept,
+			@Suspended AsyncResponse asyncResponse) {
+		resumeWithAuthTokenUsingStorageWorkExecutor(userInfo, accept, asyncResponse);
+	}
+
 	@POST
 	@Path("{tokenId}")
 	@Consumes("text/plain")
-	@Produces("application/vnd.cora.authToken+json")
-	public Response renewAuthToken(@PathParam("tokenId") String tokenId, String token) {
+	@Produces({ AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN })
+	public Response renewAuthToken(@PathParam("tokenId") String tokenId, String token,
+			@HeaderParam(ACCEPT) String accept) {
 		try {
-			return tryToRenewAuthToken(tokenId, token);
+			return tryToRenewAuthToken(tokenId, token, accept);
 		} catch (AuthenticationException e) {
 			return Response.status(Response.Status.UNAUTHORIZED).build();
+		} catch (RejectedExecutionException e) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
 		}
 	}
 
-	private Response tryToRenewAuthToken(String tokenId, String token) {
+	private Response tryToRenewAuthToken(String tokenId, String token, String accept) {
 		Gatekeeper gatekeeper = GatekeeperInstanceProvider.getGatekeeper();
 		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(tokenId, token);
-		String authTokenJson = convertAuthTokenToJson(renewedAuthToken);
-		return Response.status(Response.Status.OK).entity(authTokenJson).build();
+		return createAuthTokenResponse(renewedAuthToken, accept);
 	}
 
 	@DELETE
@@ -90,6 +167,8 @@ public final class TokenProviderEndpoint {
 			return tryToRemoveAuthToken(tokenId, token);
 		} catch (AuthenticationException e) {
 			return Response.status(Response.Status.NOT_FOUND).build();
+		} catch (RejectedExecutionException e) {
+			return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
 		}
 	}
 
@@ -99,4 +178,11 @@ public final class TokenProviderEndpoint {
 		return Response.status(Response.Status.OK).build();
 	}
 
+	void onlyForTestSetStorageWorkExecutor(StorageWorkExecutor storageWorkExecutor) {
+		this.storageWorkExecutor = storageWorkExecutor;
+	}
+
+	StorageWorkExecutor onlyForTestGetStorageWorkExecutor() {
+		return storageWorkExecutor;
+	}
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+
+public class CachedUserTest {
+	private User user;
+	private CachedUser cachedUser;
+	private List<User> serializedUsers;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		user = new User("someId");
+		cachedUser = new CachedUser(user);
+		serializedUsers = new ArrayList<>();
+	}
+
+	private String serialize(User userToSerialize) {
+		serializedUsers.add(userToSerialize);
+		return "someJson";
+	}
+
+	@Test
+	public void testGetUser() {
+		assertSame(cachedUser.getUser(), user);
+	}
+
+	@Test
+	public void testEachCachedUserGetsNewVersion() {
+		CachedUser sameUserAgain = new CachedUser(user);
+
+		assertEquals(sameUserAgain.getVersion(), cachedUser.getVersion() + 1);
+	}
+
+	@Test
+	public void testUserIsSerializedOnFirstCall() {
+		String json = cachedUser.getJson(this::serialize);
+
+		assertEquals(json, "someJson");
+		assertEquals(serializedUsers, List.of(user));
+	}
+
+	@Test
+	public void testSerializedUserIsReused() {
+		String json = cachedUser.getJson(this::serialize);
+		String secondJson = cachedUser.getJson(this::serialize);
+
+		assertSame(secondJson, json);
+		assertEquals(serializedUsers.size(), 1);
+	}
+}
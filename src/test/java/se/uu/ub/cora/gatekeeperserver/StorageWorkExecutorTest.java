@@ -0,0 +1,361 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class StorageWorkExecutorTest {
+	private List<Runnable> handedOverWork;
+	private StorageWorkExecutor storageWorkExecutor;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		handedOverWork = new ArrayList<>();
+		storageWorkExecutor = StorageWorkExecutor.usingExecutor(handedOverWork::add);
+	}
+
+	@Test
+	public void testDefaultMaxConcurrentStorageWork() {
+		assertEquals(storageWorkExecutor.getMaxConcurrentStorageWork(),
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(),
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+	}
+
+	@Test
+	public void testSetMaxConcurrentStorageWork() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(3);
+
+		assertEquals(storageWorkExecutor.getMaxConcurrentStorageWork(), 3);
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 3);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Max concurrent storage work must be at least 1, was: 0")
+	public void testSetMaxConcurrentStorageWorkToZeroIsRejected() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(0);
+	}
+
+	@Test
+	public void testRejectedMaxConcurrentStorageWorkKeepsPreviousLimit() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(3);
+
+		try {
+			storageWorkExecutor.setMaxConcurrentStorageWork(-1);
+			fail("An exception should have been thrown");
+		} catch (IllegalArgumentException e) {
+			assertEquals(e.getMessage(), "Max concurrent storage work must be at least 1, was: -1");
+		}
+
+		assertEquals(storageWorkExecutor.getMaxConcurrentStorageWork(), 3);
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 3);
+	}
+
+	@Test
+	public void testExecuteHandsWorkToExecutor() {
+		AtomicInteger runs = new AtomicInteger();
+
+		storageWorkExecutor.execute(runs::incrementAndGet);
+
+		assertEquals(runs.get(), 0);
+		handedOverWork.get(0).run();
+		assertEquals(runs.get(), 1);
+	}
+
+	@Test
+	public void testExecuteTakesPermitBeforeHandingOverWork() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(2);
+
+		storageWorkExecutor.execute(() -> {
+		});
+
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 1);
+		handedOverWork.get(0).run();
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 2);
+	}
+
+	@Test(timeOut = 5000)
+	public void testExecuteIsRejectedAtOnceWhenNoPermitIsFree() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.onlyForTestSetPermitWaitInMillis(60_000);
+		storageWorkExecutor.onlyForTestSetOrderedWorkPermitWaitInMillis(60_000);
+		storageWorkExecutor.execute(() -> {
+		});
+
+		try {
+			storageWorkExecutor.execute(() -> {
+			});
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(), "No permit to use storage is free");
+		}
+
+		assertEquals(handedOverWork.size(), 1);
+	}
+
+	@Test
+	public void testExecuteDoesNotWaitWhenInterrupted() {
+		Thread.currentThread().interrupt();
+
+		storageWorkExecutor.execute(() -> {
+		});
+
+		assertTrue(Thread.interrupted());
+		assertEquals(handedOverWork.size(), 1);
+	}
+
+	@Test
+	public void testSupplyWithPermitIsRejectedWhenNoPermitBecomesFree() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.onlyForTestSetPermitWaitInMillis(0);
+		storageWorkExecutor.execute(() -> {
+		});
+		AtomicInteger runs = new AtomicInteger();
+
+		try {
+			storageWorkExecutor.supplyWithPermit(runs::incrementAndGet);
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(),
+					"No permit to use storage became free within 0 milliseconds");
+		}
+
+		assertEquals(runs.get(), 0);
+	}
+
+	@Test
+	public void testDefaultPermitWaitIsUsedWhenNoPermitBecomesFree() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.execute(() -> {
+		});
+
+		try {
+			storageWorkExecutor.supplyWithPermit(() -> null);
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(), "No permit to use storage became free within "
+					+ StorageWorkExecutor.PERMIT_WAIT_IN_MILLIS + " milliseconds");
+		}
+	}
+
+	@Test
+	public void testRunWithPermitIsRejectedWhenNoPermitBecomesFree() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.onlyForTestSetOrderedWorkPermitWaitInMillis(0);
+		storageWorkExecutor.execute(() -> {
+		});
+		AtomicInteger runs = new AtomicInteger();
+
+		try {
+			storageWorkExecutor.runWithPermit(runs::incrementAndGet);
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(),
+					"No permit to use storage became free within 0 milliseconds");
+		}
+
+		assertEquals(runs.get(), 0);
+	}
+
+	@Test(timeOut = 10000)
+	public void testRunWithPermitWaitsForPermit() throws Exception {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.execute(() -> {
+		});
+		AtomicInteger runs = new AtomicInteger();
+
+		Thread dataChange = startThread(
+				() -> storageWorkExecutor.runWithPermit(runs::incrementAndGet));
+		waitUntilTimedWaiting(dataChange);
+		assertEquals(runs.get(), 0);
+
+		handedOverWork.get(0).run();
+		dataChange.join();
+		assertEquals(runs.get(), 1);
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 1);
+	}
+
+	private Thread startThread(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	private void waitUntilTimedWaiting(Thread thread) {
+		while (thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.onSpinWait();
+		}
+	}
+
+	@Test
+	public void testSupplyWithPermitIsRejectedWhenInterruptedWhileWaitingForPermit() {
+		AtomicInteger runs = new AtomicInteger();
+		Thread.currentThread().interrupt();
+
+		try {
+			storageWorkExecutor.supplyWithPermit(runs::incrementAndGet);
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(), "Interrupted while waiting for a permit");
+		}
+
+		assertTrue(Thread.interrupted());
+		assertEquals(runs.get(), 0);
+	}
+
+	@Test
+	public void testPermitIsReleasedWhenExecutorRejectsWork() {
+		storageWorkExecutor = StorageWorkExecutor.usingExecutor(_ -> {
+			throw new RejectedExecutionException("shut down");
+		});
+
+		try {
+			storageWorkExecutor.execute(() -> {
+			});
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(), "shut down");
+		}
+
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(),
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+	}
+
+	@Test
+	public void testPermitIsReleasedWhenExecutedWorkFails() {
+		storageWorkExecutor.execute(() -> {
+			throw new RuntimeException("error from work");
+		});
+
+		try {
+			handedOverWork.get(0).run();
+			fail("An exception should have been thrown");
+		} catch (RuntimeException e) {
+			assertEquals(e.getMessage(), "error from work");
+		}
+
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(),
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+	}
+
+	@Test
+	public void testWorkHoldsPermitWhileRunning() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(2);
+		List<Integer> availablePermits = new ArrayList<>();
+
+		storageWorkExecutor.runWithPermit(() -> availablePermits
+				.add(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits()));
+
+		assertEquals(availablePermits, List.of(1));
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 2);
+	}
+
+	@Test
+	public void testSupplyWithPermitReturnsResultOfWork() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(2);
+
+		int availablePermits = storageWorkExecutor
+				.supplyWithPermit(storageWorkExecutor::onlyForTestGetNumberOfAvailablePermits);
+
+		assertEquals(availablePermits, 1);
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 2);
+	}
+
+	@Test
+	public void testPermitIsReleasedWhenWorkFails() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+
+		try {
+			storageWorkExecutor.runWithPermit(() -> {
+				throw new RuntimeException("error from work");
+			});
+			fail("An exception should have been thrown");
+		} catch (RuntimeException e) {
+			assertEquals(e.getMessage(), "error from work");
+		}
+
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 1);
+	}
+
+	@Test
+	public void testWorkStartedBeforeNewLimitReleasesToOldLimit() {
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+
+		storageWorkExecutor.runWithPermit(() -> storageWorkExecutor.setMaxConcurrentStorageWork(2));
+
+		assertEquals(storageWorkExecutor.onlyForTestGetNumberOfAvailablePermits(), 2);
+	}
+
+	@Test(timeOut = 10000)
+	public void testNoMoreThanMaxConcurrentStorageWorkRunsAtTheSameTime() throws Exception {
+		ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		storageWorkExecutor = StorageWorkExecutor.usingExecutor(executor);
+		storageWorkExecutor.setMaxConcurrentStorageWork(2);
+		AtomicInteger running = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+		Runnable work = () -> {
+			running.incrementAndGet();
+			started.countDown();
+			awaitLatch(release);
+			done.countDown();
+		};
+
+		storageWorkExecutor.execute(work);
+		storageWorkExecutor.execute(work);
+		started.await();
+		assertExecuteIsRejected(work);
+		release.countDown();
+		done.await();
+		executor.shutdown();
+
+		assertEquals(running.get(), 2);
+	}
+
+	private void assertExecuteIsRejected(Runnable work) {
+		try {
+			storageWorkExecutor.execute(work);
+			fail("An exception should have been thrown");
+		} catch (RejectedExecutionException _) {
+			// expected
+		}
+	}
+
+	private void awaitLatch(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015, 2019 Uppsala University Library
+ * Copyright 2015, 2019, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,6 +20,7 @@
 package se.uu.ub.cora.gatekeeperserver.authentication;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 
 import org.testng.annotations.Test;
 
@@ -40,4 +41,24 @@ public class AuthenticationExceptionTest {
 		assertEquals(notAuthenticated.getMessage(), "message");
 		assertEquals(notAuthenticated.getCause(), exception);
 	}
+
+	@Test
+	public void testWithoutStackTrace() {
+		AuthenticationException notAuthenticated = AuthenticationException
+				.withoutStackTrace("message");
+
+		assertEquals(notAuthenticated.getMessage(), "message");
+		assertNull(notAuthenticated.getCause());
+		assertEquals(notAuthenticated.getStackTrace().length, 0);
+	}
+
+	@Test
+	public void testWithoutStackTraceDoesNotRecordSuppressed() {
+		AuthenticationException notAuthenticated = AuthenticationException
+				.withoutStackTrace("message");
+
+		notAuthenticated.addSuppressed(new Exception());
+
+		assertEquals(notAuthenticated.getSuppressed().length, 0);
+	}
 }
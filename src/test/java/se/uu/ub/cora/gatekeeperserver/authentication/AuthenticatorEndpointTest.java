@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2025 Uppsala University Library
+ * Copyright 2016, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,16 +20,29 @@
 package se.uu.ub.cora.gatekeeperserver.authentication;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperLocatorSpy;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
 
 public class AuthenticatorEndpointTest {
 	private AuthenticatorEndpoint authenticatorEndpoint;
@@ -50,16 +63,16 @@ public class AuthenticatorEndpointTest {
 	@Test
 	public void testDependenciesAreCalled() {
 		String token = "someToken";
-		response = authenticatorEndpoint.getUserForToken(token);
+		response = authenticatorEndpoint.getUserForToken(token, null, null);
 		locator.MCR.assertMethodWasCalled("locateGatekeeper");
-		gatekeeperSpy.MCR.assertMethodWasCalled("getUserForToken");
+		gatekeeperSpy.MCR.assertMethodWasCalled("getCachedUserForToken");
 	}
 
 	@Test
 	public void testGetUserWithActiveUser() {
 		setGetUserForTokenWithActiveUser();
 
-		response = authenticatorEndpoint.getUserForToken("someToken");
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -82,14 +95,15 @@ public class AuthenticatorEndpointTest {
 	private void setGetUserForTokenWithActiveUser() {
 		User user = new User("someId");
 		user.active = true;
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	@Test
 	public void testGetUserWithInactiveUser() {
 		setGetUserForTokenWithInactiveUser();
 
-		response = authenticatorEndpoint.getUserForToken("someToken");
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -111,7 +125,8 @@ public class AuthenticatorEndpointTest {
 	private void setGetUserForTokenWithInactiveUser() {
 		User user = new User("someId");
 		user.active = false;
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	private void assertResponseStatusIs(Status responseStatus) {
@@ -122,21 +137,53 @@ public class AuthenticatorEndpointTest {
 		assertNotNull(response.getEntity(), "An entity in json format should be returned");
 	}
 
+	@Test
+	public void testGetUserKeepsMediaTypeAndVariesOnAccept() {
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
+
+		assertNull(response.getMediaType());
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetUserReusesJsonSerializedForSameCachedUser() {
+		CachedUser cachedUser = new CachedUser(new User("someId"));
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> cachedUser);
+
+		Response firstResponse = authenticatorEndpoint.getUserForToken("someToken", null, null);
+		Response secondResponse = authenticatorEndpoint.getUserForToken("someToken", null, null);
+
+		assertSame(secondResponse.getEntity(), firstResponse.getEntity());
+		assertSame(firstResponse.getEntity(), cachedUser.getJson(_ -> null));
+	}
+
 	@Test
 	public void testNonAuthenticatedToken() {
-		gatekeeperSpy.MRV.setAlwaysThrowException("getUserForToken",
+		gatekeeperSpy.MRV.setAlwaysThrowException("getCachedUserForToken",
 				new AuthenticationException("token not valid"));
 
-		response = authenticatorEndpoint.getUserForToken("dummyNonAuthenticatedToken");
+		response = authenticatorEndpoint.getUserForToken("dummyNonAuthenticatedToken", null,
+				null);
 
 		assertResponseStatusIs(Response.Status.UNAUTHORIZED);
 	}
 
+	@Test
+	public void testGetUserForTokenWithoutFreeStorageWorkPermitIsServiceUnavailable() {
+		gatekeeperSpy.MRV.setAlwaysThrowException("getCachedUserForToken",
+				new RejectedExecutionException("no permit"));
+
+		response = authenticatorEndpoint.getUserForToken("someSignedToken", null, null);
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+	}
+
 	@Test
 	public void testGetUserForTokenWithUserRoles() {
 		setGetUserForTokenWithUserWithRoles();
 
-		response = authenticatorEndpoint.getUserForToken("someToken");
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -168,14 +215,15 @@ public class AuthenticatorEndpointTest {
 		user.active = true;
 		user.roles.add("someRole1");
 		user.roles.add("someRole2");
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	@Test
 	public void testNoTokenShouldBeGuest() {
 		setGetUserForTokenWithGuestUser();
 
-		response = authenticatorEndpoint.getUserForToken(null);
+		response = authenticatorEndpoint.getUserForToken(null, null, null);
 
 		assertResponseIsCorrectGuestUser();
 	}
@@ -183,14 +231,15 @@ public class AuthenticatorEndpointTest {
 	private void setGetUserForTokenWithGuestUser() {
 		User user = new User("guestUser");
 		user.active = true;
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	@Test
 	public void testGetUserWithoutTokenShouldBeGuest() {
 		setGetUserForTokenWithGuestUser();
 
-		response = authenticatorEndpoint.getUserWithoutToken();
+		response = authenticatorEndpoint.getUserWithoutToken(null, null);
 
 		assertResponseIsCorrectGuestUser();
 	}
@@ -216,7 +265,7 @@ public class AuthenticatorEndpointTest {
 	public void testGetUserWithPermissionUnits() {
 		setGetUserForTokenWithUserWithPermissionUnits();
 
-		response = authenticatorEndpoint.getUserForToken("someToken");
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -243,14 +292,15 @@ public class AuthenticatorEndpointTest {
 		user.active = true;
 		user.permissionUnitIds.add("somePermissionUnit001");
 		user.permissionUnitIds.add("somePermissionUnit002");
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	@Test
 	public void testGetUserWithUserWithAllFieldsSet() {
 		setGetUserForTokenWithAllFieldsSet();
 
-		response = authenticatorEndpoint.getUserForToken("someToken");
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -280,6 +330,186 @@ public class AuthenticatorEndpointTest {
 
 	}
 
+	@Test
+	public void testGetUserAnswersWithETagForVersionOfUser() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(getETag(), createETag(cachedUser));
+	}
+
+	private CachedUser setGetUserForTokenWithCachedUser() {
+		CachedUser cachedUser = new CachedUser(new User("someId"));
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> cachedUser);
+		return cachedUser;
+	}
+
+	private Object getETag() {
+		return response.getMetadata().getFirst("ETag");
+	}
+
+	private String createETag(CachedUser cachedUser) {
+		return "\"" + Long.toHexString(cachedUser.getVersion()) + "\"";
+	}
+
+	@Test
+	public void testNewVersionOfUserGetsNewETag() {
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
+		Object eTag = getETag();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", null, null);
+
+		assertNotEquals(getETag(), eTag);
+	}
+
+	@Test
+	public void testGetUserWithMatchingIfNoneMatchIsNotModified() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+		String eTag = createETag(cachedUser);
+
+		response = authenticatorEndpoint.getUserForToken("someToken", eTag, null);
+
+		assertResponseIsNotModified(eTag);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	private void assertResponseIsNotModified(String eTag) {
+		assertResponseStatusIs(Response.Status.NOT_MODIFIED);
+		assertNull(response.getEntity());
+		assertEquals(getETag(), eTag);
+	}
+
+	@Test
+	public void testGetUserWithETagInIfNoneMatchListIsNotModified() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+		String eTag = createETag(cachedUser);
+
+		response = authenticatorEndpoint.getUserForToken("someToken",
+				"\"someOtherETag\", W/" + eTag + " ,\"yetAnotherETag\"", null);
+
+		assertResponseIsNotModified(eTag);
+	}
+
+	@Test
+	public void testGetUserWithStarIfNoneMatchIsNotModified() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", "*", null);
+
+		assertResponseIsNotModified(createETag(cachedUser));
+	}
+
+	@Test
+	public void testGetUserWithOtherIfNoneMatchAnswersWithUser() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", "\"someOtherETag\"",
+				null);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertSame(response.getEntity(), cachedUser.getJson(_ -> null));
+		assertEquals(getETag(), createETag(cachedUser));
+	}
+
+	@Test
+	public void testGetUserWithoutTokenWithMatchingIfNoneMatchIsNotModified() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+		String eTag = createETag(cachedUser);
+
+		response = authenticatorEndpoint.getUserWithoutToken(eTag, null);
+
+		assertResponseIsNotModified(eTag);
+		gatekeeperSpy.MCR.assertParameters("getCachedUserForToken", 0, (Object) null);
+	}
+
+	@Test
+	public void testNotModifiedDoesNotSerializeUser() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		authenticatorEndpoint.getUserForToken("someToken", createETag(cachedUser), null);
+
+		String json = new String();
+		assertSame(cachedUser.getJson(_ -> json), json);
+	}
+
+	@Test
+	public void testGetUserAsFlatJson() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", null,
+				FlatJsonMediaTypes.USER);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertSame(response.getEntity(), cachedUser.getUser());
+		assertEquals(response.getMediaType().toString(), FlatJsonMediaTypes.USER);
+		assertEquals(getETag(), createFlatETag(cachedUser));
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	private String createFlatETag(CachedUser cachedUser) {
+		return "\"" + Long.toHexString(cachedUser.getVersion()) + "-flat\"";
+	}
+
+	@Test
+	public void testGetUserWithoutTokenAsFlatJson() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserWithoutToken(null,
+				FlatJsonMediaTypes.USER + ", application/json; q=0.9");
+
+		assertSame(response.getEntity(), cachedUser.getUser());
+		gatekeeperSpy.MCR.assertParameters("getCachedUserForToken", 0, (Object) null);
+	}
+
+	@Test
+	public void testGetUserWithFlatJsonNotFirstInAcceptIsCoraJson() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", null,
+				"application/json, " + FlatJsonMediaTypes.USER);
+
+		assertSame(response.getEntity(), cachedUser.getJson(_ -> null));
+		assertEquals(getETag(), createETag(cachedUser));
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetUserWithFlatJsonPreferredByQualityIsFlatJson() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", null,
+				"application/json;q=0.5, " + FlatJsonMediaTypes.USER);
+
+		assertSame(response.getEntity(), cachedUser.getUser());
+		assertEquals(response.getMediaType().toString(), FlatJsonMediaTypes.USER);
+	}
+
+	@Test
+	public void testGetUserAsFlatJsonWithFlatETagIsNotModified() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+		String eTag = createFlatETag(cachedUser);
+
+		response = authenticatorEndpoint.getUserForToken("someToken", eTag,
+				FlatJsonMediaTypes.USER);
+
+		assertResponseIsNotModified(eTag);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetUserAsFlatJsonWithCoraJsonETagAnswersWithUser() {
+		CachedUser cachedUser = setGetUserForTokenWithCachedUser();
+
+		response = authenticatorEndpoint.getUserForToken("someToken", createETag(cachedUser),
+				FlatJsonMediaTypes.USER);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertSame(response.getEntity(), cachedUser.getUser());
+	}
+
 	private void setGetUserForTokenWithAllFieldsSet() {
 		User user = new User("someId");
 		user.active = true;
@@ -287,10 +517,178 @@ public class AuthenticatorEndpointTest {
 		user.roles.add("someRole2");
 		user.permissionUnitIds.add("somePermissionUnit001");
 		user.permissionUnitIds.add("somePermissionUnit002");
-		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getUserForToken", () -> user);
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(user));
 	}
 
 	private String compactJson(String json) {
 		return json.replace("\n", "").replace("\r", "").replace(" ", "");
 	}
+
+	@Test
+	public void testGetUsersForTokens() {
+		User user = new User("someId");
+		user.active = true;
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				() -> Collections.singletonList(new CachedUser(user)));
+
+		response = getUsersForTokens("[\"someToken\"]");
+
+		assertTokensSentToGatekeeper(List.of("someToken"));
+		assertResponseStatusIs(Response.Status.OK);
+		String expected = """
+				[
+				  {
+				    "children": [
+				      {
+				        "children": [],
+				        "name": "userRole"
+				      },
+				      {"name": "activeStatus", "value": "active"}
+				    ],
+				    "name": "someId"
+				  }
+				]""";
+		assertEquals(response.getEntity(), compactJson(expected));
+	}
+
+	@Test
+	public void testGetUsersForTokensWithoutFreeStorageWorkPermitIsServiceUnavailable() {
+		gatekeeperSpy.MRV.setAlwaysThrowException("getCachedUsersForTokens",
+				new RejectedExecutionException("no permit"));
+
+		response = getUsersForTokens("[\"someSignedToken\"]");
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+	}
+
+	private Response getUsersForTokens(String jsonTokens) {
+		return authenticatorEndpoint.getUsersForTokens(
+				new ByteArrayInputStream(jsonTokens.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private void assertTokensSentToGatekeeper(List<String> expectedTokens) {
+		Object tokens = gatekeeperSpy.MCR.getParameterForMethodAndCallNumberAndParameter(
+				"getCachedUsersForTokens", 0, "tokens");
+		assertEquals(tokens, expectedTokens);
+	}
+
+	@Test
+	public void testGetUsersForTokensMarksTokensNotValid() {
+		User user = new User("someId");
+		user.active = true;
+		List<CachedUser> cachedUsers = new ArrayList<>();
+		cachedUsers.add(null);
+		cachedUsers.add(new CachedUser(user));
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				() -> cachedUsers);
+
+		response = getUsersForTokens("[\"notValidToken\", \"someToken\"]");
+
+		assertTokensSentToGatekeeper(List.of("notValidToken", "someToken"));
+		assertResponseStatusIs(Response.Status.OK);
+		String expected = """
+				[
+				  {"status": "401"},
+				  {
+				    "children": [
+				      {
+				        "children": [],
+				        "name": "userRole"
+				      },
+				      {"name": "activeStatus", "value": "active"}
+				    ],
+				    "name": "someId"
+				  }
+				]""";
+		assertEquals(response.getEntity(), compactJson(expected));
+	}
+
+	@Test
+	public void testGetUsersForTokensNoTokens() {
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				Collections::emptyList);
+
+		response = getUsersForTokens("[]");
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(response.getEntity(), "[]");
+	}
+
+	@Test
+	public void testGetUsersForTokensNotAnArray() {
+		response = getUsersForTokens("{\"token\": \"someToken\"}");
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensTokenNotAString() {
+		response = getUsersForTokens("[{\"token\": \"someToken\"}]");
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensMalformedJson() {
+		response = getUsersForTokens("[\"someToken\"");
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensTooManyTokens() {
+		List<String> tokens = Collections.nCopies(1001, "\"someToken\"");
+
+		response = getUsersForTokens("[" + String.join(",", tokens) + "]");
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensUsesJsonCachedInCachedUser() {
+		CachedUser cachedUser = new CachedUser(new User("someId"));
+		cachedUser.getJson(user -> "{\"cached\":\"json\"}");
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				() -> List.of(cachedUser, cachedUser));
+
+		response = getUsersForTokens("[\"someToken\", \"someToken\"]");
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(response.getEntity(), "[{\"cached\":\"json\"},{\"cached\":\"json\"}]");
+	}
+
+	@Test
+	public void testGetUsersForTokensNotAllTokensStrings() {
+		response = getUsersForTokens("[\"someToken\", 42]");
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensBodyTooLarge() {
+		String tooLargeBody = "[\"" + "a".repeat(2 * 1024 * 1024) + "\"]";
+
+		response = getUsersForTokens(tooLargeBody);
+
+		assertResponseStatusIs(Response.Status.REQUEST_ENTITY_TOO_LARGE);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getCachedUsersForTokens");
+	}
+
+	@Test
+	public void testGetUsersForTokensBodyAtMaxLengthIsRead() {
+		String padding = " ".repeat(2 * 1024 * 1024 - "[\"someToken\"]".length());
+		gatekeeperSpy.MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				Collections::emptyList);
+
+		response = getUsersForTokens("[\"someToken\"]" + padding);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertTokensSentToGatekeeper(List.of("someToken"));
+	}
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.authentication;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+
+public class FlatUserWriterTest {
+	private FlatUserWriter writer;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		writer = new FlatUserWriter();
+	}
+
+	@Test
+	public void testIsWriteable() {
+		assertTrue(writer.isWriteable(User.class, User.class, null, null));
+		assertFalse(writer.isWriteable(String.class, String.class, null, null));
+	}
+
+	@Test
+	public void testWriteUserWithoutRolesAndPermissionUnits() throws IOException {
+		User user = new User("someId");
+
+		assertEquals(writeUser(user),
+				"{\"id\":\"someId\",\"active\":false,\"roles\":[],\"permissionUnits\":[]}");
+	}
+
+	private String writeUser(User user) throws IOException {
+		ByteArrayOutputStream entityStream = new ByteArrayOutputStream();
+		writer.writeTo(user, User.class, User.class, null, null, null, entityStream);
+		return entityStream.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testWriteUserWithAllFieldsSet() throws IOException {
+		User user = new User("some\"Id");
+		user.active = true;
+		user.roles.add("someRole1");
+		user.roles.add("someRole2");
+		user.permissionUnitIds.add("somePermissionUnit001");
+
+		assertEquals(writeUser(user),
+				"{\"id\":\"some\\\"Id\",\"active\":true,\"roles\":[\"someRole1\",\"someRole2\"],"
+						+ "\"permissionUnits\":[\"somePermissionUnit001\"]}");
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,10 +20,12 @@
 package se.uu.ub.cora.gatekeeperserver.authentication;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
 import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
 import se.uu.ub.cora.gatekeeperserver.Gatekeeper;
 import se.uu.ub.cora.gatekeeperserver.tokenprovider.AuthToken;
 import se.uu.ub.cora.testutils.mcr.MethodCallRecorder;
@@ -40,6 +42,10 @@ public class GatekeeperSpy implements Gatekeeper {
 	public GatekeeperSpy() {
 		MCR.useMRV(MRV);
 		MRV.setDefaultReturnValuesSupplier("getUserForToken", this::createUser);
+		MRV.setDefaultReturnValuesSupplier("getCachedUserForToken",
+				() -> new CachedUser(createUser()));
+		MRV.setDefaultReturnValuesSupplier("getCachedUsersForTokens",
+				() -> List.of(new CachedUser(createUser())));
 		MRV.setDefaultReturnValuesSupplier("getAuthTokenForUserInfo", this::createAuthToken);
 		MRV.setDefaultReturnValuesSupplier("renewAuthToken", this::createAuthToken);
 	}
@@ -63,6 +69,17 @@ public class GatekeeperSpy implements Gatekeeper {
 		return (User) MCR.addCallAndReturnFromMRV("token", token);
 	}
 
+	@Override
+	public CachedUser getCachedUserForToken(String token) {
+		return (CachedUser) MCR.addCallAndReturnFromMRV("token", token);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<CachedUser> getCachedUsersForTokens(List<String> tokens) {
+		return (List<CachedUser>) MCR.addCallAndReturnFromMRV("tokens", tokens);
+	}
+
 	@Override
 	public AuthToken renewAuthToken(String tokenId, String token) {
 		return (AuthToken) MCR.addCallAndReturnFromMRV("tokenId", tokenId, "token", token);
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.authentication;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.json.builder.JsonArrayBuilder;
+import se.uu.ub.cora.json.builder.JsonObjectBuilder;
+import se.uu.ub.cora.json.builder.org.OrgJsonBuilderFactoryAdapter;
+
+public class UserJsonWriterTest {
+	private static final String STRING_TO_ESCAPE = "a\"b\\c</d/e\b\t\n\f\r\u0001\u001f "
+			+ "\u007f\u0080\u009f \u00e5\u1fff\u2000\u2028\u20ac\u20ff\u2100";
+	private UserJsonWriter writer;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		writer = new UserJsonWriter();
+	}
+
+	@Test
+	public void testWriteUserWithoutRolesAndPermissionUnits() {
+		User user = new User("someId");
+
+		String expected = "{\"children\":[{\"children\":[],\"name\":\"userRole\"},"
+				+ "{\"name\":\"activeStatus\",\"value\":\"inactive\"}],\"name\":\"someId\"}";
+		assertEquals(writer.writeUser(user), expected);
+	}
+
+	@Test
+	public void testWriteUserWithAllFieldsSet() {
+		User user = createUserWithAllFieldsSet();
+
+		String expected = "{\"children\":[{\"children\":["
+				+ "{\"children\":[{\"name\":\"id\",\"value\":\"someRole1\"}],"
+				+ "\"name\":\"permissionRole\"},"
+				+ "{\"children\":[{\"name\":\"id\",\"value\":\"someRole2\"}],"
+				+ "\"name\":\"permissionRole\"}],\"name\":\"userRole\"},"
+				+ "{\"name\":\"permissionUnit\",\"value\":\"somePermissionUnit001\"},"
+				+ "{\"name\":\"permissionUnit\",\"value\":\"somePermissionUnit002\"},"
+				+ "{\"name\":\"activeStatus\",\"value\":\"active\"}],\"name\":\"someId\"}";
+		assertEquals(writer.writeUser(user), expected);
+	}
+
+	private User createUserWithAllFieldsSet() {
+		User user = new User("someId");
+		user.active = true;
+		user.roles.add("someRole1");
+		user.roles.add("someRole2");
+		user.permissionUnitIds.add("somePermissionUnit001");
+		user.permissionUnitIds.add("somePermissionUnit002");
+		return user;
+	}
+
+	@Test
+	public void testWriteUserToStringBuilderAppends() {
+		StringBuilder json = new StringBuilder("[");
+
+		writer.writeUser(new User("someId"), json);
+
+		assertEquals(json.toString(), "[" + writer.writeUser(new User("someId")));
+	}
+
+	@Test
+	public void testWriteUserIsByteIdenticalToJsonBuilders() {
+		User user = createUserWithAllFieldsSet();
+		user.id = STRING_TO_ESCAPE;
+		user.roles.add(STRING_TO_ESCAPE);
+		user.permissionUnitIds.add(STRING_TO_ESCAPE);
+
+		assertEquals(writer.writeUser(user), writeUserUsingJsonBuilders(user));
+	}
+
+	private String writeUserUsingJsonBuilders(User user) {
+		OrgJsonBuilderFactoryAdapter factory = new OrgJsonBuilderFactoryAdapter();
+		JsonObjectBuilder userRole = factory.createObjectBuilder();
+		JsonArrayBuilder roles = factory.createArrayBuilder();
+		for (String roleId : user.roles) {
+			JsonObjectBuilder permissionRole = factory.createObjectBuilder();
+			JsonArrayBuilder permissionRoleChildren = factory.createArrayBuilder();
+			permissionRoleChildren.addJsonObjectBuilder(createAtomic(factory, "id", roleId));
+			permissionRole.addKeyJsonArrayBuilder("children", permissionRoleChildren);
+			permissionRole.addKeyString("name", "permissionRole");
+			roles.addJsonObjectBuilder(permissionRole);
+		}
+		userRole.addKeyJsonArrayBuilder("children", roles);
+		userRole.addKeyString("name", "userRole");
+		JsonArrayBuilder userChildren = factory.createArrayBuilder();
+		userChildren.addJsonObjectBuilder(userRole);
+		for (String permissionUnitId : user.permissionUnitIds) {
+			userChildren.addJsonObjectBuilder(
+					createAtomic(factory, "permissionUnit", permissionUnitId));
+		}
+		userChildren.addJsonObjectBuilder(
+				createAtomic(factory, "activeStatus", user.active ? "active" : "inactive"));
+		JsonObjectBuilder userBuilder = factory.createObjectBuilder();
+		userBuilder.addKeyJsonArrayBuilder("children", userChildren);
+		userBuilder.addKeyString("name", user.id);
+		return userBuilder.toJsonFormattedString();
+	}
+
+	private JsonObjectBuilder createAtomic(OrgJsonBuilderFactoryAdapter factory, String name,
+			String value) {
+		JsonObjectBuilder atomic = factory.createObjectBuilder();
+		atomic.addKeyString("name", name);
+		atomic.addKeyString("value", value);
+		return atomic;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveUserState.TokenState;
+
+public class ActiveTokenDataFormatTest {
+	private static final TokenKey TOKEN = new TokenKey(1L, 2L);
+	private static final TokenKey TOKEN_ID = new TokenKey(3L, 4L);
+
+	@Test
+	public void testUserWithEveryFieldSetIsReadBackFromActiveTokenAdded() {
+		User user = createUserWithEveryFieldSet();
+		ActiveTokenForUser tokenForUser = new ActiveTokenForUser(TOKEN_ID, "someLoginId", 100L,
+				200L);
+		ActiveTokenEventListenerSpy listener = new ActiveTokenEventListenerSpy();
+
+		readEvent(ActiveTokenDataFormat.toBytes(0, out -> ActiveTokenDataFormat
+				.writeActiveTokenAdded(out, TOKEN, tokenForUser, user)), listener);
+
+		listener.MCR.assertParameter("activeTokenAdded", 0, "tokenForUser", tokenForUser);
+		assertSameContent(listener.MCR.getParameterForMethodAndCallNumberAndParameter(
+				"activeTokenAdded", 0, "user"), user);
+	}
+
+	private void readEvent(byte[] event, ActiveTokenEventListener listener) {
+		ActiveTokenDataFormat.readEvent(ByteBuffer.wrap(event), listener);
+	}
+
+	@Test
+	public void testUserWithEveryFieldSetIsReadBackFromActiveUserUpdated() {
+		User user = createUserWithEveryFieldSet();
+		ActiveTokenEventListenerSpy listener = new ActiveTokenEventListenerSpy();
+
+		readEvent(ActiveTokenDataFormat.toBytes(0,
+				out -> ActiveTokenDataFormat.writeActiveUserUpdated(out, "someLoginId", user)),
+				listener);
+
+		listener.MCR.assertParameter("activeUserUpdated", 0, "loginId", "someLoginId");
+		assertSameContent(listener.MCR.getParameterForMethodAndCallNumberAndParameter(
+				"activeUserUpdated", 0, "user"), user);
+	}
+
+	@Test
+	public void testUserWithEveryFieldSetIsReadBackFromActiveUserStates() {
+		User user = createUserWithEveryFieldSet();
+		TokenState tokenState = new TokenState(TOKEN,
+				new ActiveTokenForUser(TOKEN_ID, "someLoginId", 100L, 200L));
+		ActiveUserState activeUserState = new ActiveUserState("someLoginId", user,
+				List.of(tokenState));
+
+		byte[] bytes = ActiveTokenDataFormat.toBytes(0,
+				out -> ActiveTokenDataFormat.writeActiveUserStates(out, List.of(activeUserState)));
+
+		List<ActiveUserState> readStates = ActiveTokenDataFormat
+				.readActiveUserStates(ByteBuffer.wrap(bytes));
+		assertEquals(readStates.get(0).tokens(), List.of(tokenState));
+		assertSameContent(readStates.get(0).user(), user);
+	}
+
+	private User createUserWithEveryFieldSet() {
+		User user = new User("someUserId");
+		user.loginId = "someLoginId";
+		user.loginDomain = "someLoginDomain";
+		user.firstName = "someFirstName";
+		user.lastName = "someLastName";
+		user.active = true;
+		user.roles.add("someRole");
+		user.permissionUnitIds.add("somePermissionUnit");
+		for (Field field : User.class.getFields()) {
+			Object value = getFieldValue(field, user);
+			assertTrue(value != null && !Boolean.FALSE.equals(value),
+					"field " + field.getName() + " is not set in the test user");
+		}
+		return user;
+	}
+
+	private void assertSameContent(Object readObject, User user) {
+		User readUser = (User) readObject;
+		assertNotSame(readUser, user);
+		for (Field field : User.class.getFields()) {
+			assertEquals(getFieldValue(field, readUser), getFieldValue(field, user),
+					"field " + field.getName());
+		}
+	}
+
+	private Object getFieldValue(Field field, User user) {
+		try {
+			return field.get(user);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.testutils.mcr.MethodCallRecorder;
+import se.uu.ub.cora.testutils.mrv.MethodReturnValues;
+
+public class ActiveTokenEventListenerSpy implements ActiveTokenEventListener {
+	public MethodCallRecorder MCR = new MethodCallRecorder();
+	public MethodReturnValues MRV = new MethodReturnValues();
+
+	public ActiveTokenEventListenerSpy() {
+		MCR.useMRV(MRV);
+	}
+
+	@Override
+	public void activeTokenAdded(TokenKey token, ActiveTokenForUser tokenForUser, User user) {
+		MCR.addCall("token", token, "tokenForUser", tokenForUser, "user", user);
+	}
+
+	@Override
+	public void activeTokenRemoved(TokenKey token) {
+		MCR.addCall("token", token);
+	}
+
+	@Override
+	public void activeUserUpdated(String loginId, User user) {
+		MCR.addCall("loginId", loginId, "user", user);
+	}
+
+	@Override
+	public void activeTokenRevoked(TokenKey token, long revokedFrom, long validUntil) {
+		MCR.addCall("token", token, "revokedFrom", revokedFrom, "validUntil", validUntil);
+	}
+
+	@Override
+	public void awaitEventsWritten() {
+		MCR.addCall();
+	}
+}
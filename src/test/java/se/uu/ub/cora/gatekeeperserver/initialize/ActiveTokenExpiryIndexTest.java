@@ -0,0 +1,235 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ActiveTokenExpiryIndexTest {
+	private static final long NOW = 1_000_000L;
+	private static final int NO_LIMIT = Integer.MAX_VALUE;
+	private ActiveTokenExpiryIndex<String> index;
+	private List<String> dueTokens;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		index = new ActiveTokenExpiryIndex<>();
+		dueTokens = new ArrayList<>();
+	}
+
+	@Test
+	public void testEmptyIndexReportsNothing() {
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertTrue(dueTokens.isEmpty());
+	}
+
+	@Test
+	public void testTokenInThePastIsDue() {
+		index.add("someToken", NOW - 5000L);
+
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertEquals(dueTokens, List.of("someToken"));
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 0);
+	}
+
+	@Test
+	public void testTokenInTheFutureIsNotDue() {
+		index.add("someToken", NOW + 5000L);
+
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertTrue(dueTokens.isEmpty());
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testTokenInCurrentBucketIsNotDueUntilBucketHasPassed() {
+		index.add("someToken", NOW);
+
+		index.removeDueTokens(NOW + 1L, NO_LIMIT, dueTokens::add);
+		assertTrue(dueTokens.isEmpty());
+
+		index.removeDueTokens(NOW + 1000L, NO_LIMIT, dueTokens::add);
+		assertEquals(dueTokens, List.of("someToken"));
+	}
+
+	@Test
+	public void testOnlyDueTokensAreReported() {
+		index.add("someOldToken", NOW - 10000L);
+		index.add("someOtherOldToken", NOW - 2000L);
+		index.add("someNewToken", NOW + 2000L);
+
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertEquals(dueTokens, List.of("someOldToken", "someOtherOldToken"));
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testDueTokensAreOnlyReportedOnce() {
+		index.add("someToken", NOW - 5000L);
+
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertEquals(dueTokens, List.of("someToken"));
+	}
+
+	@Test
+	public void testRemovedTokenIsNotReported() {
+		index.add("someToken", NOW - 5000L);
+		index.add("someOtherToken", NOW - 5000L);
+
+		index.remove("someToken", NOW - 5000L);
+		index.removeDueTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertEquals(dueTokens, List.of("someOtherToken"));
+	}
+
+	@Test
+	public void testRemoveLastTokenInBucketRemovesBucket() {
+		index.add("someToken", NOW + 5000L);
+
+		index.remove("someToken", NOW + 5000L);
+
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 0);
+	}
+
+	@Test
+	public void testRemoveNonExistingTokenDoesNothing() {
+		index.add("someToken", NOW + 5000L);
+
+		index.remove("someNonExistingToken", NOW + 5000L);
+		index.remove("someToken", NOW - 5000L);
+
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testRemoveDueTokensReturnsNumberOfRemovedTokens() {
+		index.add("someToken", NOW - 5000L);
+		index.add("someOtherToken", NOW - 5000L);
+		index.add("someRemovedToken", NOW - 5000L);
+
+		int removed = index.removeDueTokens(NOW, NO_LIMIT,
+				token -> !"someRemovedToken".equals(token));
+
+		assertEquals(removed, 2);
+	}
+
+	@Test
+	public void testRemoveDueTokensStopsAfterMaxNumberOfTokensHandledPerBucket() {
+		index.add("someToken", NOW - 5000L);
+		index.add("someOtherToken", NOW - 5000L);
+		index.add("someLaterToken", NOW - 3000L);
+		index.add("someLastToken", NOW - 2000L);
+
+		int removed = index.removeDueTokens(NOW, 1, dueTokens::add);
+
+		assertEquals(removed, 2);
+		assertEquals(dueTokens.size(), 2);
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 2);
+
+		index.removeDueTokens(NOW, 1, dueTokens::add);
+		assertEquals(dueTokens.get(2), "someLaterToken");
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testRemoveOldestTokensRemovesEarliestValidUntilFirst() {
+		index.add("someLaterToken", NOW + 5000L);
+		index.add("someEarlyToken", NOW - 5000L);
+		index.add("someMiddleToken", NOW);
+
+		int removed = index.removeOldestTokens(NOW + 10000L, 2, dueTokens::add);
+
+		assertEquals(removed, 2);
+		assertEquals(dueTokens, List.of("someEarlyToken", "someMiddleToken"));
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testRemoveOldestTokensLeavesBucketOfValidUntilBefore() {
+		index.add("someToken", NOW - 5000L);
+		index.add("someNewToken", NOW);
+		index.add("someOtherNewToken", NOW + 1L);
+
+		int removed = index.removeOldestTokens(NOW, NO_LIMIT, dueTokens::add);
+
+		assertEquals(removed, 1);
+		assertEquals(dueTokens, List.of("someToken"));
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 2);
+	}
+
+	@Test
+	public void testRemoveOldestTokensCanRemovePartOfBucket() {
+		index.add("someToken", NOW);
+		index.add("someOtherToken", NOW);
+
+		int removed = index.removeOldestTokens(NOW + 5000L, 1, dueTokens::add);
+
+		assertEquals(removed, 1);
+		assertEquals(dueTokens.size(), 1);
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testRemoveOldestTokensOnlyCountsTokensHandlerRemoved() {
+		index.add("someToken", NOW - 5000L);
+		index.add("someOtherToken", NOW);
+
+		int removed = index.removeOldestTokens(NOW + 5000L, 1,
+				token -> dueTokens.add(token) && "someOtherToken".equals(token));
+
+		assertEquals(removed, 1);
+		assertEquals(dueTokens, List.of("someToken", "someOtherToken"));
+		assertEquals(index.onlyForTestGetNumberOfTokens(), 0);
+	}
+
+	@Test
+	public void testEndOfOldestBucketOfEmptyIndex() {
+		assertEquals(index.getEndOfOldestBucket(), Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testEndOfOldestBucket() {
+		index.add("someToken", NOW + 5500L);
+		index.add("someOtherToken", NOW + 1500L);
+
+		assertEquals(index.getEndOfOldestBucket(), NOW + 2000L);
+	}
+
+	@Test
+	public void testRemoveOldestTokensBeforeEndOfOldestBucketOnlyRemovesOldestBucket() {
+		index.add("someToken", NOW + 1500L);
+		index.add("someOtherToken", NOW + 2000L);
+
+		index.removeOldestTokens(index.getEndOfOldestBucket(), NO_LIMIT, dueTokens::add);
+
+		assertEquals(dueTokens, List.of("someToken"));
+	}
+}
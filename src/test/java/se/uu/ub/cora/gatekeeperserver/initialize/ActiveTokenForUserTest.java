@@ -1,5 +1,5 @@
 /*
- * Copyright 2024 Uppsala University Library
+ * Copyright 2024, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -19,6 +19,7 @@
 package se.uu.ub.cora.gatekeeperserver.initialize;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
 
 import org.testng.annotations.Test;
 
@@ -26,12 +27,45 @@ public class ActiveTokenForUserTest {
 
 	@Test
 	public void createAuthentication() {
-		ActiveTokenForUser authentication = new ActiveTokenForUser("someTokenId", "someUserLoginId",
+		TokenKey tokenId = new TokenKey(1L, 2L);
+		ActiveTokenForUser authentication = new ActiveTokenForUser(tokenId, "someUserLoginId",
 				100L, 200L);
 
-		assertEquals(authentication.tokenId(), "someTokenId");
+		assertEquals(authentication.tokenId(), tokenId);
 		assertEquals(authentication.loginId(), "someUserLoginId");
 		assertEquals(authentication.validUntil(), 100L);
 		assertEquals(authentication.renewUntil(), 200L);
 	}
+
+	@Test
+	public void testCreateUsingStringTokenId() {
+		String tokenId = "00000000-0000-4000-8000-000000000002";
+		ActiveTokenForUser authentication = new ActiveTokenForUser(tokenId, "someUserLoginId",
+				100L, 200L);
+
+		assertEquals(authentication.tokenId(), TokenKey.fromString(tokenId));
+		assertEquals(authentication.tokenIdAsString(), tokenId);
+		assertEquals(authentication.loginId(), "someUserLoginId");
+		assertEquals(authentication.validUntil(), 100L);
+		assertEquals(authentication.renewUntil(), 200L);
+	}
+
+	@Test
+	public void testTokenIdAsStringIsWrittenAsUUID() {
+		ActiveTokenForUser authentication = new ActiveTokenForUser(new TokenKey(1L, 2L),
+				"someUserLoginId", 100L, 200L);
+
+		assertEquals(authentication.tokenIdAsString(), "00000000-0000-0001-0000-000000000002");
+	}
+
+	@Test
+	public void testCreateUsingMalformedStringTokenId() {
+		try {
+			new ActiveTokenForUser("notAToken", "someUserLoginId", 100L, 200L);
+			fail("An IllegalArgumentException should have been thrown");
+		} catch (IllegalArgumentException e) {
+			assertEquals(e.getMessage(),
+					"TokenId must be a UUID or base64url string, was: notAToken");
+		}
+	}
 }
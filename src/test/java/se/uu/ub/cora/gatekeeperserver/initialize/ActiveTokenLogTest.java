@@ -0,0 +1,421 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
+import se.uu.ub.cora.logger.spies.LoggerSpy;
+
+public class ActiveTokenLogTest {
+	private static final TokenKey TOKEN = new TokenKey(1L, 2L);
+	private static final TokenKey ANOTHER_TOKEN = new TokenKey(3L, 4L);
+	private static final TokenKey TOKEN_ID = new TokenKey(5L, 6L);
+	private LoggerFactorySpy loggerFactory;
+	private Path directory;
+	private Path logFile;
+	private ActiveTokenLog activeTokenLog;
+	private ActiveTokenEventListenerSpy listener;
+
+	@BeforeMethod
+	public void beforeMethod() throws IOException {
+		loggerFactory = new LoggerFactorySpy();
+		LoggerProvider.setLoggerFactory(loggerFactory);
+		directory = Files.createTempDirectory("activeTokenLogTest");
+		logFile = directory.resolve("activeTokens.log");
+		activeTokenLog = new ActiveTokenLog(logFile);
+		listener = new ActiveTokenEventListenerSpy();
+	}
+
+	@AfterMethod
+	public void afterMethod() throws IOException {
+		activeTokenLog.close();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testInit() {
+		assertEquals(activeTokenLog.onlyForTestGetLogFile(), logFile);
+		assertEquals(activeTokenLog.onlyForTestGetPreviousLogFile(),
+				directory.resolve("activeTokens.log.previous"));
+		assertFalse(activeTokenLog.isOpen());
+	}
+
+	@Test
+	public void testReplayWithoutLogFiles() throws IOException {
+		int replayedEvents = activeTokenLog.replay(listener);
+
+		assertEquals(replayedEvents, 0);
+		listener.MCR.assertMethodNotCalled("activeTokenAdded");
+	}
+
+	@Test
+	public void testOpenAndClose() throws IOException {
+		activeTokenLog.open();
+		assertTrue(activeTokenLog.isOpen());
+		assertTrue(Files.exists(logFile));
+
+		activeTokenLog.close();
+		assertFalse(activeTokenLog.isOpen());
+	}
+
+	@Test
+	public void testLogFileIsReadableByOwnerOnly() throws IOException {
+		activeTokenLog.open();
+
+		assertEquals(Files.getPosixFilePermissions(logFile), OwnerOnlyFiles.OWNER_READ_WRITE);
+	}
+
+	@Test
+	public void testWrittenEventsAreReplayedInOrder() throws IOException {
+		ActiveTokenForUser tokenForUser = new ActiveTokenForUser(TOKEN_ID, "someLoginId", 100L,
+				200L);
+		User user = createUser("someFirstName");
+		User updatedUser = createUser("someUpdatedFirstName");
+		activeTokenLog.open();
+
+		activeTokenLog.activeTokenAdded(TOKEN, tokenForUser, user);
+		activeTokenLog.activeUserUpdated("someLoginId", updatedUser);
+		activeTokenLog.activeTokenRemoved(TOKEN);
+		activeTokenLog.activeTokenRevoked(TOKEN, 150L, 100L);
+		activeTokenLog.close();
+
+		int replayedEvents = activeTokenLog.replay(listener);
+		assertEquals(replayedEvents, 4);
+		listener.MCR.assertParameter("activeTokenAdded", 0, "token", TOKEN);
+		listener.MCR.assertParameter("activeTokenAdded", 0, "tokenForUser", tokenForUser);
+		assertUser(listener.MCR.getParameterForMethodAndCallNumberAndParameter(
+				"activeTokenAdded", 0, "user"), "someFirstName");
+		listener.MCR.assertParameter("activeUserUpdated", 0, "loginId", "someLoginId");
+		assertUser(listener.MCR.getParameterForMethodAndCallNumberAndParameter(
+				"activeUserUpdated", 0, "user"), "someUpdatedFirstName");
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TOKEN);
+		listener.MCR.assertParameters("activeTokenRevoked", 0, TOKEN, 150L, 100L);
+	}
+
+	private User createUser(String firstName) {
+		User user = new User("someUserId");
+		user.loginId = "someLoginId";
+		user.loginDomain = "someLoginDomain";
+		user.firstName = firstName;
+		user.active = true;
+		user.roles.add("someRole");
+		user.permissionUnitIds.add("somePermissionUnit");
+		return user;
+	}
+
+	private void assertUser(Object object, String firstName) {
+		User user = (User) object;
+		assertEquals(user.id, "someUserId");
+		assertEquals(user.loginId, "someLoginId");
+		assertEquals(user.loginDomain, "someLoginDomain");
+		assertEquals(user.firstName, firstName);
+		assertTrue(user.active);
+		assertEquals(user.roles, Set.of("someRole"));
+		assertEquals(user.permissionUnitIds, Set.of("somePermissionUnit"));
+	}
+
+	@Test
+	public void testRotateMovesLogToPreviousLog() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.activeTokenRemoved(TOKEN);
+
+		activeTokenLog.rotate();
+		activeTokenLog.activeTokenRemoved(ANOTHER_TOKEN);
+		activeTokenLog.close();
+
+		assertTrue(activeTokenLog.hasPreviousLog());
+		assertEquals(activeTokenLog.replay(listener), 2);
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TOKEN);
+		listener.MCR.assertParameters("activeTokenRemoved", 1, ANOTHER_TOKEN);
+	}
+
+	@Test(expectedExceptions = IOException.class)
+	public void testRotateWhenPreviousLogIsLeft() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.rotate();
+
+		activeTokenLog.rotate();
+	}
+
+	@Test
+	public void testLogIsStillWritableAfterFailedRotate() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.rotate();
+		assertThrows(IOException.class, activeTokenLog::rotate);
+
+		activeTokenLog.activeTokenRemoved(TOKEN);
+		activeTokenLog.close();
+
+		assertEquals(activeTokenLog.replay(listener), 1);
+	}
+
+	@Test
+	public void testDeletePreviousLog() throws IOException {
+		writeOneEventAndClose();
+		activeTokenLog.rotate();
+
+		activeTokenLog.deletePreviousLog();
+
+		assertFalse(activeTokenLog.hasPreviousLog());
+		assertEquals(activeTokenLog.replay(listener), 0);
+	}
+
+	@Test
+	public void testReplayStopsAtIncompleteRecord() throws IOException {
+		writeOneEventAndClose();
+		Files.write(logFile, new byte[] { 0, 0, 0, 50, 1, 2, 3, 4, 5 },
+				StandardOpenOption.APPEND);
+
+		assertEquals(activeTokenLog.replay(listener), 1);
+	}
+
+	private void writeOneEventAndClose() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.activeTokenRemoved(TOKEN);
+		activeTokenLog.close();
+	}
+
+	@Test
+	public void testReplayStopsAtRecordWithWrongChecksum() throws IOException {
+		writeOneEventAndClose();
+		byte[] content = Files.readAllBytes(logFile);
+		content[content.length - 1]++;
+		Files.write(logFile, content);
+
+		assertEquals(activeTokenLog.replay(listener), 0);
+	}
+
+	@Test
+	public void testOpenCutsOffIncompleteRecord() throws IOException {
+		writeOneEventAndClose();
+		Files.write(logFile, new byte[] { 0, 0, 0, 50, 1, 2, 3, 4, 5 },
+				StandardOpenOption.APPEND);
+
+		activeTokenLog.open();
+		activeTokenLog.activeTokenRemoved(ANOTHER_TOKEN);
+		activeTokenLog.close();
+
+		assertEquals(activeTokenLog.replay(listener), 2);
+		listener.MCR.assertParameters("activeTokenRemoved", 1, ANOTHER_TOKEN);
+	}
+
+	@Test
+	public void testLogFileStartsWithFormatVersion() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.close();
+
+		ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(logFile));
+		assertEquals(header.remaining(), 8);
+		assertEquals(header.getInt(), 0x47544B4C);
+		assertEquals(header.getInt(), ActiveTokenDataFormat.FORMAT_VERSION);
+	}
+
+	@Test
+	public void testReplayLogInEarlierFormatVersion() throws IOException {
+		writeLogInEarlierFormatVersion();
+
+		try {
+			activeTokenLog.replay(listener);
+			fail("An IOException should have been thrown");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(),
+					"Active token log " + logFile + " has an unknown format");
+		}
+	}
+
+	private void writeLogInEarlierFormatVersion() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(9).putInt(0x47544B4C)
+				.putInt(ActiveTokenDataFormat.FORMAT_VERSION - 1).put((byte) 1);
+		Files.write(logFile, header.array());
+	}
+
+	@Test
+	public void testOpenStartsOverLogInEarlierFormatVersion() throws IOException {
+		writeLogInEarlierFormatVersion();
+
+		writeOneEventAndClose();
+
+		assertEquals(activeTokenLog.replay(listener), 1);
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TOKEN);
+		LoggerSpy logger = (LoggerSpy) loggerFactory.MCR.getReturnValue("factorForClass", 0);
+		logger.MCR.assertParameters("logWarnUsingMessage", 0, "Started over active token log "
+				+ logFile + ", as it is written in an unknown format.");
+	}
+
+	@Test
+	public void testReplayLogWithoutCompleteHeader() throws IOException {
+		Files.write(logFile, new byte[] { 0x47, 0x54 });
+
+		assertEquals(activeTokenLog.replay(listener), 0);
+	}
+
+	@Test
+	public void testOpenAfterIncompleteHeaderWritesNewHeader() throws IOException {
+		Files.write(logFile, new byte[] { 0x47, 0x54 });
+
+		writeOneEventAndClose();
+
+		assertEquals(activeTokenLog.replay(listener), 1);
+	}
+
+	@Test
+	public void testAwaitEventsWrittenReturnsWhenEventsAreOnDisk() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.activeTokenRemoved(TOKEN);
+		activeTokenLog.activeTokenRemoved(ANOTHER_TOKEN);
+
+		activeTokenLog.awaitEventsWritten();
+
+		assertEquals(activeTokenLog.replay(listener), 2);
+	}
+
+	@Test
+	public void testAwaitEventsWrittenWithoutEventsReturnsAtOnce() throws IOException {
+		activeTokenLog.open();
+
+		activeTokenLog.awaitEventsWritten();
+
+		assertEquals(activeTokenLog.replay(listener), 0);
+	}
+
+	@Test(timeOut = 5000)
+	public void testAwaitEventsWrittenWaitsForWriter() throws Exception {
+		activeTokenLog.open();
+		ReentrantLock channelLock = activeTokenLog.onlyForTestGetChannelLock();
+		channelLock.lock();
+		Thread caller;
+		try {
+			caller = startThread(() -> {
+				activeTokenLog.activeTokenRemoved(TOKEN);
+				activeTokenLog.awaitEventsWritten();
+			});
+			waitUntilWaiting(caller);
+		} finally {
+			channelLock.unlock();
+		}
+		caller.join();
+
+		assertEquals(activeTokenLog.replay(listener), 1);
+	}
+
+	@Test(timeOut = 10000)
+	public void testAddingToFullBatchWaitsUntilBatchIsTaken() throws Exception {
+		activeTokenLog.open();
+		ReentrantLock channelLock = activeTokenLog.onlyForTestGetChannelLock();
+		channelLock.lock();
+		Thread caller;
+		try {
+			activeTokenLog.activeTokenRemoved(TOKEN);
+			waitUntilFillingBatchIsTaken();
+			for (int i = 0; i < ActiveTokenLog.MAX_RECORDS_PER_BATCH; i++) {
+				activeTokenLog.activeTokenRemoved(TOKEN);
+			}
+			caller = startThread(() -> {
+				activeTokenLog.activeTokenRemoved(ANOTHER_TOKEN);
+				activeTokenLog.awaitEventsWritten();
+			});
+			waitUntilWaiting(caller);
+			assertEquals(activeTokenLog.onlyForTestGetNumberOfRecordsInFillingBatch(),
+					ActiveTokenLog.MAX_RECORDS_PER_BATCH);
+		} finally {
+			channelLock.unlock();
+		}
+		caller.join();
+		activeTokenLog.awaitEventsWritten();
+
+		assertEquals(activeTokenLog.replay(listener), ActiveTokenLog.MAX_RECORDS_PER_BATCH + 2);
+	}
+
+	private Thread startThread(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	private void waitUntilWaiting(Thread thread) {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.onSpinWait();
+		}
+	}
+
+	private void waitUntilFillingBatchIsTaken() {
+		while (activeTokenLog.onlyForTestGetNumberOfRecordsInFillingBatch() > 0) {
+			Thread.onSpinWait();
+		}
+	}
+
+	@Test
+	public void testAwaitEventsWrittenAfterCloseThrowsError() throws IOException {
+		activeTokenLog.open();
+		activeTokenLog.close();
+		activeTokenLog.activeTokenRemoved(TOKEN);
+
+		try {
+			activeTokenLog.awaitEventsWritten();
+			fail("An UncheckedIOException should have been thrown");
+		} catch (UncheckedIOException e) {
+			assertEquals(e.getMessage(), "Active token events could not be written to log.");
+		}
+		assertEquals(activeTokenLog.replay(listener), 0);
+	}
+
+	@Test
+	public void testAwaitEventsWrittenOnlyThrowsErrorOnce() throws IOException {
+		activeTokenLog.activeTokenRemoved(TOKEN);
+		assertThrows(UncheckedIOException.class, activeTokenLog::awaitEventsWritten);
+
+		activeTokenLog.awaitEventsWritten();
+	}
+
+	@Test
+	public void testCloseWritesEventsAddedBeforeClose() throws IOException {
+		activeTokenLog.open();
+		for (int i = 0; i < 100; i++) {
+			activeTokenLog.activeTokenRemoved(TOKEN);
+		}
+
+		activeTokenLog.close();
+
+		assertEquals(activeTokenLog.replay(listener), 100);
+	}
+}
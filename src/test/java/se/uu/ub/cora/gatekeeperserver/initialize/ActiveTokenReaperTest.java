@@ -0,0 +1,222 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveTokenReaper.ReaperPass;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
+import se.uu.ub.cora.logger.spies.LoggerSpy;
+
+public class ActiveTokenReaperTest {
+	private static final long THIRTY_MINUTES = 1800000L;
+	private static final String TOKEN_ID = "00000000-0000-4000-8000-000000000000";
+	private static final String VALID_TOKEN = "00000000-0000-4000-8000-000000000001";
+	private static final String EXPIRED_TOKEN = "00000000-0000-4000-8000-000000000002";
+	private static final String EXPIRED_TOKEN_2 = "00000000-0000-4000-8000-000000000003";
+	private static final String EXPIRED_TOKEN_3 = "00000000-0000-4000-8000-000000000004";
+	private LoggerFactorySpy loggerFactory;
+	private GatekeeperImp gatekeeper;
+	private ActiveTokenReaper reaper;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		loggerFactory = new LoggerFactorySpy();
+		LoggerProvider.setLoggerFactory(loggerFactory);
+		gatekeeper = GatekeeperImp.INSTANCE;
+		reaper = new ActiveTokenReaper(gatekeeper, 60000L, 2);
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		reaper.stop();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		gatekeeper.setMaxActiveTokensPerUser(100);
+		gatekeeper.setRenewGracePeriodInMillis(0);
+		gatekeeper.setSignedTokenFormat(null);
+	}
+
+	@Test
+	public void testReapWithNothingToRemove() {
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+
+		ReaperPass reaperPass = reaper.reap();
+
+		assertEquals(reaperPass.removedTokens(), 0);
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
+		getLogger().MCR.assertMethodNotCalled("logInfoUsingMessage");
+	}
+
+	@Test
+	public void testReapRemovesExpiredTokensAndUsers() {
+		addActiveToken(EXPIRED_TOKEN, "someLoginId", -THIRTY_MINUTES);
+		addActiveToken(VALID_TOKEN, "someOtherLoginId", THIRTY_MINUTES);
+
+		ReaperPass reaperPass = reaper.reap();
+
+		assertEquals(reaperPass.removedTokens(), 1);
+		assertTrue(reaperPass.durationInMillis() >= 0);
+		assertFalse(hasActiveToken(EXPIRED_TOKEN));
+		assertTrue(hasActiveToken(VALID_TOKEN));
+		assertFalse(gatekeeper.onlyForTestGetActiveUsers().containsKey("someLoginId"));
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().containsKey("someOtherLoginId"));
+		getLogger().MCR.assertParameters("logInfoUsingMessage", 0, "Removed 1 expired active "
+				+ "tokens in " + reaperPass.durationInMillis() + " ms.");
+	}
+
+	@Test
+	public void testReapIsBoundedByMaxTokensPerPass() {
+		addActiveToken(EXPIRED_TOKEN, "someLoginId", -THIRTY_MINUTES);
+		addActiveToken(EXPIRED_TOKEN_2, "someLoginId", -THIRTY_MINUTES + 5000L);
+		addActiveToken(EXPIRED_TOKEN_3, "someLoginId", -THIRTY_MINUTES + 10000L);
+
+		ReaperPass firstPass = reaper.reap();
+		ReaperPass secondPass = reaper.reap();
+
+		assertEquals(firstPass.removedTokens(), 2);
+		assertEquals(secondPass.removedTokens(), 1);
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+	}
+
+	@Test
+	public void testStartAndStop() {
+		assertFalse(reaper.isRunning());
+
+		reaper.start();
+		assertTrue(reaper.isRunning());
+
+		reaper.stop();
+		assertFalse(reaper.isRunning());
+	}
+
+	@Test
+	public void testStopWhenNotStarted() {
+		reaper.stop();
+
+		assertFalse(reaper.isRunning());
+	}
+
+	@Test
+	public void testStartSchedulesReapOnExecutor() {
+		ScheduledExecutorServiceSpy executor = new ScheduledExecutorServiceSpy();
+		reaper = new ActiveTokenReaper(gatekeeper, 1000L, 100, executor);
+
+		reaper.start();
+
+		executor.MCR.assertParameter("scheduleWithFixedDelay", 0, "initialDelay", 1000L);
+		executor.MCR.assertParameter("scheduleWithFixedDelay", 0, "delay", 1000L);
+		executor.MCR.assertParameter("scheduleWithFixedDelay", 0, "unit", TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testStartedReaperRemovesExpiredTokens() {
+		addActiveToken(EXPIRED_TOKEN, "someLoginId", -THIRTY_MINUTES);
+		ScheduledExecutorServiceSpy executor = new ScheduledExecutorServiceSpy();
+		reaper = new ActiveTokenReaper(gatekeeper, 1000L, 100, executor);
+
+		reaper.start();
+		executor.runScheduledCommand("scheduleWithFixedDelay", 0);
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+	}
+
+	@Test
+	public void testStopShutsDownExecutor() {
+		ScheduledExecutorServiceSpy executor = new ScheduledExecutorServiceSpy();
+		reaper = new ActiveTokenReaper(gatekeeper, 1000L, 100, executor);
+		reaper.start();
+
+		reaper.stop();
+
+		executor.MCR.assertMethodWasCalled("shutdownNow");
+		assertFalse(reaper.isRunning());
+	}
+
+	@Test
+	public void testReapLogsEvictionsSincePreviousPass() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+		gatekeeper.renewAuthToken(TOKEN_ID, VALID_TOKEN);
+
+		reaper.reap();
+		reaper.reap();
+
+		getLogger().MCR.assertParameters("logWarnUsingMessage", 0, "Evicted 1 active tokens"
+				+ " over the limit per user and 0 active tokens over the total limit.");
+		getLogger().MCR.assertNumberOfCallsToMethod("logWarnUsingMessage", 1);
+	}
+
+	@Test
+	public void testReapLogsRejectedTokensSincePreviousPass() {
+		gatekeeper.setSignedTokenFormat(new SignedTokenFormat(new byte[32]));
+		byte[] otherKey = "someOtherSigningKeyThatIsLongEnough".getBytes();
+		String forgedToken = new SignedTokenFormat(otherKey).write(
+				TokenKey.fromString(VALID_TOKEN), new ActiveTokenForUser(
+						TokenKey.fromString(TOKEN_ID), "someLoginId", Long.MAX_VALUE, 0));
+		rejectTokenTimes(forgedToken, 3);
+
+		reaper.reap();
+		reaper.reap();
+
+		getLogger().MCR.assertParameters("logInfoUsingMessage", 0, "Rejected 2 tokens using the"
+				+ " rejected token cache and added 1 tokens to it, a hit rate of 67%.");
+		getLogger().MCR.assertNumberOfCallsToMethod("logInfoUsingMessage", 1);
+	}
+
+	private void rejectTokenTimes(String token, int times) {
+		for (int i = 0; i < times; i++) {
+			try {
+				gatekeeper.getUserForToken(token);
+			} catch (AuthenticationException _) {
+				// expected
+			}
+		}
+	}
+
+	private void addActiveToken(String token, String loginId, long millisFromNow) {
+		long validUntil = System.currentTimeMillis() + millisFromNow;
+		ActiveTokenForUser activeToken = new ActiveTokenForUser(TokenKey.fromString(TOKEN_ID),
+				loginId, validUntil, validUntil);
+		User user = new User("some" + loginId + "Id");
+		user.loginId = loginId;
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(token, activeToken, user);
+	}
+
+	private boolean hasActiveToken(String token) {
+		return gatekeeper.onlyForTestGetActiveTokens().containsKey(TokenKey.fromString(token));
+	}
+
+	private LoggerSpy getLogger() {
+		return (LoggerSpy) loggerFactory.MCR.assertCalledParametersReturn("factorForClass",
+				ActiveTokenReaper.class);
+	}
+}
@@ -0,0 +1,908 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.cache.spies.MessageSenderSpy;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
+import se.uu.ub.cora.logger.spies.LoggerSpy;
+import se.uu.ub.cora.messaging.MessageSender;
+import se.uu.ub.cora.testutils.mcr.MethodCallRecorder;
+
+public class ActiveTokenReplicatorTest {
+	private static final long THIRTY_MINUTES = 1800000L;
+	private static final long SIX_MINUTES = 360000L;
+	private static final String TOKEN_ID = "00000000-0000-4000-8000-000000000000";
+	private static final String TOKEN = "00000000-0000-4000-8000-000000000001";
+	private static final String ANOTHER_TOKEN = "00000000-0000-4000-8000-000000000002";
+	private static final String NODE_A = "nodeA";
+	private static final String NODE_B = "nodeB";
+	private static final String NODE_C = "nodeC";
+	private static final String FORMAT_VERSION = String
+			.valueOf(ActiveTokenDataFormat.FORMAT_VERSION);
+	private LoggerFactorySpy loggerFactory;
+	private GatekeeperImp gatekeeper;
+	private ReplicationMessageAuthenticator authenticator;
+	private MessageSenderSpy senderA;
+	private MessageSenderSpy senderB;
+	private MessageSenderSpy senderC;
+	private ScheduledExecutorServiceSpy executorA;
+	private ActiveTokenReplicator replicatorA;
+	private ActiveTokenReplicatorForTest replicatorB;
+	private ActiveTokenReplicator replicatorC;
+	private long lastSequenceNumber;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		loggerFactory = new LoggerFactorySpy();
+		LoggerProvider.setLoggerFactory(loggerFactory);
+		gatekeeper = GatekeeperImp.INSTANCE;
+		authenticator = new ReplicationMessageAuthenticator(new byte[32]);
+		senderA = new MessageSenderSpy();
+		senderB = new MessageSenderSpy();
+		senderC = new MessageSenderSpy();
+		executorA = new ScheduledExecutorServiceSpy();
+		replicatorA = new ActiveTokenReplicator(gatekeeper, senderA, authenticator, NODE_A,
+				60000L, 60000L, executorA);
+		replicatorB = new ActiveTokenReplicatorForTest(gatekeeper, senderB, NODE_B);
+		replicatorC = new ActiveTokenReplicator(gatekeeper, senderC, authenticator, NODE_C,
+				60000L, 60000L, new ScheduledExecutorServiceSpy());
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		replicatorA.stop();
+		replicatorB.stop();
+		replicatorC.stop();
+		gatekeeper.setSignedTokenFormat(null);
+		gatekeeper.onlyForTestEmptyAuthentications();
+	}
+
+	@Test
+	public void testInit() {
+		assertEquals(replicatorA.onlyForTestGetNodeId(), NODE_A);
+		assertSame(replicatorA.onlyForTestGetMessageSender(), senderA);
+		assertSame(replicatorA.onlyForTestGetAuthenticator(), authenticator);
+		assertEquals(replicatorA.onlyForTestGetBatchIntervalInMillis(), 60000L);
+		assertEquals(replicatorA.onlyForTestGetBootstrapTimeoutInMillis(), 60000L);
+		assertFalse(replicatorA.isRunning());
+		assertFalse(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testEventsAreQueuedUntilSent() {
+		replicatorA.activeTokenAdded(TokenKey.fromString(TOKEN), createActiveTokenForUser(),
+				createUser());
+
+		senderA.MCR.assertMethodNotCalled("sendMessage");
+	}
+
+	@Test
+	public void testQueuedEventsAreSentInOneSignedMessage() {
+		replicatorA.activeTokenAdded(TokenKey.fromString(TOKEN), createActiveTokenForUser(),
+				createUser());
+		replicatorA.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+
+		replicatorA.sendQueuedEvents();
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+		Map<String, Object> headers = getSentHeaders(senderA, 0);
+		assertEquals(headers.get("nodeId"), NODE_A);
+		assertEquals(headers.get("formatVersion"), FORMAT_VERSION);
+		assertEquals(headers.get("messageType"), "activeTokenEvents");
+		assertEquals(headers.get("signature"),
+				authenticator.sign(NODE_A, FORMAT_VERSION, (String) headers.get("sequenceNumber"),
+						"activeTokenEvents", null, null, null, getSentMessage(senderA, 0)));
+	}
+
+	@Test
+	public void testSequenceNumberStartsFromCurrentTimeAndIncreases() {
+		long before = System.currentTimeMillis() * 1000;
+		replicatorA.requestBootstrap();
+		replicatorA.requestBootstrap();
+		long after = System.currentTimeMillis() * 1000;
+
+		long first = getSentSequenceNumber(senderA, 0);
+		long second = getSentSequenceNumber(senderA, 1);
+		assertTrue(first >= before && first <= after);
+		assertTrue(second > first);
+	}
+
+	private long getSentSequenceNumber(MessageSenderSpy sender, int callNumber) {
+		return Long.parseLong((String) getSentHeaders(sender, callNumber).get("sequenceNumber"));
+	}
+
+	@Test
+	public void testNothingSentWhenNoQueuedEvents() {
+		replicatorA.sendQueuedEvents();
+
+		senderA.MCR.assertMethodNotCalled("sendMessage");
+	}
+
+	@Test
+	public void testAddedTokenIsAppliedOnOtherNode() {
+		replicatorA.activeTokenAdded(TokenKey.fromString(TOKEN), createActiveTokenForUser(),
+				createUser());
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertEquals(gatekeeper.getUserForToken(TOKEN).loginId, "someLoginId");
+	}
+
+	@Test
+	public void testRemovedTokenIsAppliedOnOtherNode() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testRevokedTokenIsAppliedOnOtherNode() {
+		gatekeeper.setSignedTokenFormat(new SignedTokenFormat(new byte[32]));
+		long validUntil = System.currentTimeMillis() + THIRTY_MINUTES;
+		replicatorA.activeTokenRevoked(TokenKey.fromString(TOKEN), RevokedTokens.REVOKED_NOW,
+				validUntil);
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertEquals(gatekeeper.getRevokedTokens(), List.of(new RevokedToken(
+				TokenKey.fromString(TOKEN), RevokedTokens.REVOKED_NOW, validUntil)));
+	}
+
+	@Test
+	public void testUpdatedUserIsAppliedOnOtherNode() {
+		addActiveToken(TOKEN);
+		User updatedUser = createUser();
+		updatedUser.firstName = "updatedFirstName";
+		replicatorA.activeUserUpdated("someLoginId", updatedUser);
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertEquals(gatekeeper.getUserForToken(TOKEN).firstName, "updatedFirstName");
+	}
+
+	@Test
+	public void testAppliedEventsAreNotSentOnAgain() {
+		replicatorB.start();
+		senderB.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+		replicatorA.activeTokenAdded(TokenKey.fromString(TOKEN), createActiveTokenForUser(),
+				createUser());
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+		replicatorB.sendQueuedEvents();
+
+		senderB.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+	}
+
+	@Test
+	public void testOwnMessagesAreIgnored() {
+		replicatorA.activeTokenAdded(TokenKey.fromString(TOKEN), createActiveTokenForUser(),
+				createUser());
+		replicatorA.sendQueuedEvents();
+
+		deliverSentMessage(senderA, 0, replicatorA);
+
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testChangedMessageIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorA.sendQueuedEvents();
+		replicatorC.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorC.sendQueuedEvents();
+
+		replicatorB.receiveMessage(toStringHeaders(getSentHeaders(senderA, 0)),
+				getSentMessage(senderC, 0));
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertParameters("logWarnUsingMessage", 0,
+				"Dropped active token message with a missing or wrong signature, claiming to be"
+						+ " from node nodeA.");
+	}
+
+	@Test
+	public void testMessageWithChangedHeaderIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		Map<String, String> headers = toStringHeaders(getSentHeaders(senderA, 0));
+		headers.put("nodeId", NODE_C);
+
+		replicatorB.receiveMessage(headers, getSentMessage(senderA, 0));
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testMessageWithoutSignatureIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		Map<String, String> headers = toStringHeaders(getSentHeaders(senderA, 0));
+		headers.remove("signature");
+
+		replicatorB.receiveMessage(headers, getSentMessage(senderA, 0));
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testMessageSignedWithOtherKeyIsDropped() {
+		addActiveToken(TOKEN);
+		byte[] otherKey = "someOtherReplicationKeyThatIsLongEnough".getBytes();
+		ActiveTokenReplicator otherReplicator = new ActiveTokenReplicator(gatekeeper, senderC,
+				new ReplicationMessageAuthenticator(otherKey), NODE_C, 60000L, 60000L,
+				new ScheduledExecutorServiceSpy());
+		otherReplicator.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		otherReplicator.sendQueuedEvents();
+
+		deliverSentMessage(senderC, 0, replicatorB);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testMessageInOtherFormatVersionIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		String message = getSentMessage(senderA, 0);
+		String earlierVersion = String.valueOf(ActiveTokenDataFormat.FORMAT_VERSION - 1);
+		Map<String, String> headers = createSignedHeaders(NODE_A, earlierVersion,
+				"activeTokenEvents", null, message);
+
+		replicatorB.receiveMessage(headers, message);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertParameters("logWarnUsingMessage", 0,
+				"Dropped active token message in format version " + earlierVersion
+						+ " from node nodeA, this node uses version " + FORMAT_VERSION + ".");
+	}
+
+	@Test
+	public void testRepeatedMessageIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		deliverSentMessage(senderA, 0, replicatorB);
+		addActiveToken(TOKEN);
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertParameters("logWarnUsingMessage", 0,
+				"Dropped repeated or stale active token message with sequence number "
+						+ getSentSequenceNumber(senderA, 0) + " from node nodeA.");
+	}
+
+	@Test
+	public void testEarlierMessageFromSameNodeIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		replicatorA.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorA.sendQueuedEvents();
+		deliverSentMessage(senderA, 1, replicatorB);
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testSequenceNumbersAreKeptPerNode() {
+		addActiveToken(TOKEN);
+		replicatorC.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorC.sendQueuedEvents();
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		deliverSentMessage(senderA, 0, replicatorB);
+		addActiveToken(TOKEN);
+
+		deliverSentMessage(senderC, 0, replicatorB);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodNotCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testStaleMessageIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		String message = getSentMessage(senderA, 0);
+		long sentSixMinutesAgo = (System.currentTimeMillis() - SIX_MINUTES) * 1000;
+		Map<String, String> headers = createSignedHeaders(NODE_A, FORMAT_VERSION,
+				String.valueOf(sentSixMinutesAgo), "activeTokenEvents", null, message);
+
+		replicatorB.receiveMessage(headers, message);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testMessageSentTooFarInTheFutureIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		String message = getSentMessage(senderA, 0);
+		long sentInSixMinutes = (System.currentTimeMillis() + SIX_MINUTES) * 1000;
+		Map<String, String> headers = createSignedHeaders(NODE_A, FORMAT_VERSION,
+				String.valueOf(sentInSixMinutes), "activeTokenEvents", null, message);
+
+		replicatorB.receiveMessage(headers, message);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertMethodWasCalled("logWarnUsingMessage");
+	}
+
+	@Test
+	public void testMessageWithoutSequenceNumberIsDropped() {
+		addActiveToken(TOKEN);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+		String message = getSentMessage(senderA, 0);
+		Map<String, String> headers = createSignedHeaders(NODE_A, FORMAT_VERSION, null,
+				"activeTokenEvents", null, message);
+
+		replicatorB.receiveMessage(headers, message);
+
+		assertTrue(hasActiveToken(TOKEN));
+		getLoggerForReplicator(1).MCR.assertParameters("logWarnUsingMessage", 0,
+				"Dropped repeated or stale active token message with sequence number null"
+						+ " from node nodeA.");
+	}
+
+	@Test
+	public void testStartListensToLocalChanges() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN);
+		replicatorA.sendQueuedEvents();
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+		assertEquals(getSentHeaders(senderA, 1).get("messageType"), "activeTokenEvents");
+	}
+
+	@Test
+	public void testStartRequestsBootstrap() {
+		replicatorA.start();
+
+		assertTrue(replicatorA.isRunning());
+		assertTrue(replicatorA.isBootstrapping());
+		Map<String, Object> headers = getSentHeaders(senderA, 0);
+		assertEquals(headers.get("nodeId"), NODE_A);
+		assertEquals(headers.get("messageType"), "bootstrapRequest");
+		assertNotNull(headers.get("signature"));
+	}
+
+	@Test
+	public void testBootstrapRequestIsAnsweredWithOffer() {
+		replicatorA.start();
+
+		deliverSentMessage(senderA, 0, replicatorB);
+
+		Map<String, Object> headers = getSentHeaders(senderB, 0);
+		assertEquals(headers.get("nodeId"), NODE_B);
+		assertEquals(headers.get("messageType"), "bootstrapOffer");
+		assertEquals(headers.get("toNodeId"), NODE_A);
+	}
+
+	@Test
+	public void testOnlyFirstBootstrapOfferIsAccepted() {
+		replicatorA.start();
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderA, 0, replicatorC);
+
+		deliverSentMessage(senderB, 0, replicatorA);
+		deliverSentMessage(senderC, 0, replicatorA);
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+		Map<String, Object> headers = getSentHeaders(senderA, 1);
+		assertEquals(headers.get("messageType"), "bootstrapAccept");
+		assertEquals(headers.get("toNodeId"), NODE_B);
+	}
+
+	@Test
+	public void testBootstrapOfferIsIgnoredWhenNotBootstrapping() {
+		replicatorA.start();
+		deliverSentMessage(senderA, 0, replicatorB);
+		replicatorA.endBootstrap();
+
+		deliverSentMessage(senderB, 0, replicatorA);
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+	}
+
+	@Test
+	public void testOnlyAcceptedNodeSendsState() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderA, 0, replicatorC);
+		deliverSentMessage(senderB, 0, replicatorA);
+
+		deliverSentMessage(senderA, 1, replicatorB);
+		deliverSentMessage(senderA, 1, replicatorC);
+
+		senderB.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+		senderC.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+		Map<String, Object> headers = getSentHeaders(senderB, 1);
+		assertEquals(headers.get("messageType"), "bootstrapState");
+		assertEquals(headers.get("toNodeId"), NODE_A);
+		assertEquals(headers.get("chunkNumber"), "0");
+		assertEquals(headers.get("numberOfChunks"), "1");
+	}
+
+	@Test
+	public void testBootstrapStateIsApplied() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		deliverSentMessage(senderB, 1, replicatorA);
+
+		assertEquals(gatekeeper.getUserForToken(TOKEN).loginId, "someLoginId");
+		assertFalse(replicatorA.isBootstrapping());
+		getLoggerForReplicator(0).MCR.assertParameters("logInfoUsingMessage", 0,
+				"Restored 1 active tokens and 0 revoked tokens from other gatekeeper node.");
+	}
+
+	@Test
+	public void testBootstrapStateContainsRevokedTokens() {
+		gatekeeper.setSignedTokenFormat(new SignedTokenFormat(new byte[32]));
+		replicatorA.start();
+		RevokedToken revokedToken = new RevokedToken(TokenKey.fromString(TOKEN), 100L,
+				System.currentTimeMillis() + THIRTY_MINUTES);
+		gatekeeper.restoreRevokedTokens(List.of(revokedToken), System.currentTimeMillis());
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		deliverSentMessage(senderB, 1, replicatorA);
+
+		assertEquals(gatekeeper.getRevokedTokens(), List.of(revokedToken));
+		getLoggerForReplicator(0).MCR.assertParameters("logInfoUsingMessage", 0,
+				"Restored 0 active tokens and 1 revoked tokens from other gatekeeper node.");
+	}
+
+	private void sendBootstrapStateFromB() {
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderB, 0, replicatorA);
+		deliverSentMessage(senderA, 1, replicatorB);
+	}
+
+	@Test
+	public void testBootstrapStateIsSentAndAppliedInChunks() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		addActiveToken(ANOTHER_TOKEN);
+		replicatorB.onlyForTestSetMaxBootstrapChunkLength(16);
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		int numberOfChunks = senderB.MCR.getNumberOfCallsToMethod("sendMessage") - 1;
+
+		for (int i = 1; i < numberOfChunks; i++) {
+			deliverSentMessage(senderB, i, replicatorA);
+			assertTrue(replicatorA.isBootstrapping());
+		}
+		deliverSentMessage(senderB, numberOfChunks, replicatorA);
+
+		assertTrue(numberOfChunks > 2);
+		assertEquals(getSentHeaders(senderB, numberOfChunks).get("numberOfChunks"),
+				String.valueOf(numberOfChunks));
+		assertTrue(hasActiveToken(TOKEN));
+		assertTrue(hasActiveToken(ANOTHER_TOKEN));
+		assertFalse(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testBootstrapChunkOutOfOrderIsIgnored() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		replicatorB.onlyForTestSetMaxBootstrapChunkLength(16);
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		int numberOfChunks = senderB.MCR.getNumberOfCallsToMethod("sendMessage") - 1;
+
+		deliverSentMessage(senderB, numberOfChunks, replicatorA);
+
+		assertFalse(hasActiveToken(TOKEN));
+		assertTrue(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testBootstrapAcceptForOtherNodeIsIgnored() {
+		replicatorA.start();
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderB, 0, replicatorA);
+
+		deliverSentMessage(senderA, 1, replicatorC);
+
+		senderC.MCR.assertMethodNotCalled("sendMessage");
+	}
+
+	@Test
+	public void testBootstrapStateFromNodeNotAcceptedIsIgnored() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderB, 0, replicatorA);
+		replicatorC.receiveMessage(
+				createSignedHeaders(NODE_A, FORMAT_VERSION, "bootstrapAccept", NODE_C, ""), "");
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		deliverSentMessage(senderC, 0, replicatorA);
+
+		assertFalse(hasActiveToken(TOKEN));
+		assertTrue(replicatorA.isBootstrapping());
+	}
+
+	private Map<String, String> createSignedHeaders(String fromNodeId, String formatVersion,
+			String messageType, String toNodeId, String message) {
+		return createSignedHeaders(fromNodeId, formatVersion, nextSequenceNumber(), messageType,
+				toNodeId, message);
+	}
+
+	private String nextSequenceNumber() {
+		lastSequenceNumber = Math.max(lastSequenceNumber + 1,
+				System.currentTimeMillis() * 1000);
+		return String.valueOf(lastSequenceNumber);
+	}
+
+	private Map<String, String> createSignedHeaders(String fromNodeId, String formatVersion,
+			String sequenceNumber, String messageType, String toNodeId, String message) {
+		Map<String, String> headers = new HashMap<>();
+		headers.put("nodeId", fromNodeId);
+		headers.put("formatVersion", formatVersion);
+		if (sequenceNumber != null) {
+			headers.put("sequenceNumber", sequenceNumber);
+		}
+		headers.put("messageType", messageType);
+		if (toNodeId != null) {
+			headers.put("toNodeId", toNodeId);
+		}
+		headers.put("signature", authenticator.sign(fromNodeId, formatVersion, sequenceNumber,
+				messageType, toNodeId, null, null, message));
+		return headers;
+	}
+
+	@Test
+	public void testBootstrapStateForOtherNodeIsIgnored() {
+		replicatorC.start();
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		deliverSentMessage(senderB, 1, replicatorC);
+
+		assertFalse(hasActiveToken(TOKEN));
+		assertTrue(replicatorC.isBootstrapping());
+	}
+
+	@Test
+	public void testBootstrapStateIsIgnoredWhenNotBootstrapping() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		sendBootstrapStateFromB();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		replicatorA.endBootstrap();
+
+		deliverSentMessage(senderB, 1, replicatorA);
+
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testEventsReceivedDuringBootstrapAreAppliedOnTopOfState() {
+		replicatorA.start();
+		addActiveToken(TOKEN);
+		sendBootstrapStateFromB();
+		replicatorC.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorC.sendQueuedEvents();
+		deliverSentMessage(senderC, 0, replicatorA);
+		addActiveToken(TOKEN);
+
+		deliverSentMessage(senderB, 1, replicatorA);
+
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testEndBootstrap() {
+		replicatorA.start();
+
+		replicatorA.endBootstrap();
+
+		assertFalse(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testBootstrapEndsAfterTimeout() {
+		replicatorA.start();
+
+		executorA.MCR.assertParameter("schedule", 0, "delay", 60000L);
+		executorA.MCR.assertParameter("schedule", 0, "unit", TimeUnit.MILLISECONDS);
+		executorA.runScheduledCommand("schedule", 0);
+
+		assertFalse(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testQueuedEventsAreSentAfterBatchInterval() {
+		replicatorA.start();
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+
+		executorA.MCR.assertParameter("scheduleWithFixedDelay", 0, "initialDelay", 60000L);
+		executorA.MCR.assertParameter("scheduleWithFixedDelay", 0, "delay", 60000L);
+		executorA.runScheduledCommand("scheduleWithFixedDelay", 0);
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+	}
+
+	@Test
+	public void testFullQueueDropsEventsAndOffersStateToAllNodes() {
+		replicatorA.onlyForTestSetMaxPendingEvents(2);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+
+		replicatorA.sendQueuedEvents();
+
+		getLoggerForReplicator(0).MCR.assertParameters("logWarnUsingMessage", 0,
+				"More than 2 active token changes are waiting to be sent, the changes are dropped"
+						+ " and the state of this node is offered to the other nodes instead.");
+		getLoggerForReplicator(0).MCR.assertNumberOfCallsToMethod("logWarnUsingMessage", 1);
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 1);
+		Map<String, Object> headers = getSentHeaders(senderA, 0);
+		assertEquals(headers.get("messageType"), "bootstrapOffer");
+		assertFalse(headers.containsKey("toNodeId"));
+	}
+
+	@Test
+	public void testEventsAreQueuedAgainAfterStateIsOffered() {
+		replicatorA.onlyForTestSetMaxPendingEvents(1);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorA.sendQueuedEvents();
+
+		replicatorA.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorA.sendQueuedEvents();
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+		assertEquals(getSentHeaders(senderA, 1).get("messageType"), "activeTokenEvents");
+	}
+
+	@Test
+	public void testStateOfferedToAllNodesIsBootstrappedFrom() {
+		addActiveToken(TOKEN);
+		replicatorB.onlyForTestSetMaxPendingEvents(1);
+		replicatorB.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorB.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+		replicatorB.sendQueuedEvents();
+
+		deliverSentMessage(senderB, 0, replicatorA);
+
+		assertTrue(replicatorA.isBootstrapping());
+		executorA.MCR.assertParameter("schedule", 0, "delay", 60000L);
+		Map<String, Object> headers = getSentHeaders(senderA, 0);
+		assertEquals(headers.get("messageType"), "bootstrapAccept");
+		assertEquals(headers.get("toNodeId"), NODE_B);
+
+		deliverSentMessage(senderA, 0, replicatorB);
+		gatekeeper.onlyForTestEmptyAuthentications();
+		deliverSentMessage(senderB, 1, replicatorA);
+
+		assertTrue(hasActiveToken(TOKEN));
+		assertFalse(replicatorA.isBootstrapping());
+	}
+
+	@Test
+	public void testStateOfferedToAllNodesIsIgnoredWhileReceivingOtherState() {
+		replicatorA.start();
+		deliverSentMessage(senderA, 0, replicatorB);
+		deliverSentMessage(senderB, 0, replicatorA);
+		replicatorC.onlyForTestSetMaxPendingEvents(1);
+		replicatorC.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorC.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replicatorC.sendQueuedEvents();
+
+		deliverSentMessage(senderC, 0, replicatorA);
+
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+		assertEquals(getSentHeaders(senderA, 1).get("toNodeId"), NODE_B);
+	}
+
+	@Test
+	public void testStopSendsQueuedEventsAndStopsListening() {
+		replicatorA.start();
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+
+		replicatorA.stop();
+		addActiveToken(TOKEN);
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN);
+		replicatorA.sendQueuedEvents();
+
+		assertFalse(replicatorA.isRunning());
+		executorA.MCR.assertMethodWasCalled("shutdown");
+		senderA.MCR.assertNumberOfCallsToMethod("sendMessage", 2);
+	}
+
+	@Test
+	public void testStopWhenNotStarted() {
+		replicatorA.stop();
+
+		assertFalse(replicatorA.isRunning());
+		senderA.MCR.assertMethodNotCalled("sendMessage");
+	}
+
+	@Test
+	public void testErrorSendingIsLogged() {
+		RuntimeException error = new RuntimeException("some error");
+		MessageSender failingSender = (_, _) -> {
+			throw error;
+		};
+		replicatorA = new ActiveTokenReplicator(gatekeeper, failingSender, authenticator, NODE_A,
+				60000L, 60000L, executorA);
+		replicatorA.activeTokenRemoved(TokenKey.fromString(TOKEN));
+
+		replicatorA.sendQueuedEvents();
+
+		LoggerSpy logger = getLoggerForReplicator(3);
+		logger.MCR.assertParameters("logErrorUsingMessageAndException", 0,
+				"Could not send activeTokenEvents message to other gatekeeper nodes.", error);
+	}
+
+	@Test
+	public void testErrorApplyingMessageIsLoggedAndDropped() {
+		String message = "bm90IGFuIGV2ZW50";
+		Map<String, String> headers = createSignedHeaders(NODE_A, FORMAT_VERSION,
+				"activeTokenEvents", null, message);
+
+		replicatorB.receiveMessage(headers, message);
+
+		LoggerSpy logger = getLoggerForReplicator(1);
+		logger.MCR.assertParameter("logErrorUsingMessageAndException", 0, "message",
+				"Dropped activeTokenEvents message from node nodeA that could not be applied,"
+						+ " active tokens might be out of sync between nodes.");
+		replicatorB.MCR.assertMethodNotCalled("shutdownSystemToPreventDataInconsistency");
+	}
+
+	@Test
+	public void testTopicClosedShutsDown() {
+		replicatorB.topicClosed();
+
+		LoggerSpy logger = getLoggerForReplicator(1);
+		logger.MCR.assertParameters("logFatalUsingMessage", 0,
+				"Shutting down due to lost connection with message broker, continued operation"
+						+ " would lead to active tokens out of sync between nodes.");
+		replicatorB.MCR.assertMethodWasCalled("shutdownSystemToPreventDataInconsistency");
+	}
+
+	@Test
+	public void testUnknownMessageTypeIsIgnored() {
+		Map<String, String> headers = createSignedHeaders(NODE_A, FORMAT_VERSION, "someType",
+				null, "");
+
+		replicatorB.receiveMessage(headers, "");
+
+		getLoggerForReplicator(1).MCR.assertMethodNotCalled("logWarnUsingMessage");
+		getLoggerForReplicator(1).MCR.assertMethodNotCalled("logErrorUsingMessageAndException");
+		senderB.MCR.assertMethodNotCalled("sendMessage");
+	}
+
+	private void deliverSentMessage(MessageSenderSpy sender, int callNumber,
+			ActiveTokenReplicator receiver) {
+		receiver.receiveMessage(toStringHeaders(getSentHeaders(sender, callNumber)),
+				getSentMessage(sender, callNumber));
+	}
+
+	private Map<String, String> toStringHeaders(Map<String, Object> headers) {
+		Map<String, String> stringHeaders = new HashMap<>();
+		headers.forEach((key, value) -> stringHeaders.put(key, String.valueOf(value)));
+		return stringHeaders;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> getSentHeaders(MessageSenderSpy sender, int callNumber) {
+		return (Map<String, Object>) sender.MCR
+				.getParameterForMethodAndCallNumberAndParameter("sendMessage", callNumber,
+						"headers");
+	}
+
+	private String getSentMessage(MessageSenderSpy sender, int callNumber) {
+		return (String) sender.MCR.getParameterForMethodAndCallNumberAndParameter("sendMessage",
+				callNumber, "message");
+	}
+
+	private LoggerSpy getLoggerForReplicator(int replicatorNumber) {
+		return (LoggerSpy) loggerFactory.MCR.getReturnValue("factorForClass", replicatorNumber);
+	}
+
+	private void addActiveToken(String token) {
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(token, createActiveTokenForUser(),
+				createUser());
+	}
+
+	private ActiveTokenForUser createActiveTokenForUser() {
+		long validUntil = System.currentTimeMillis() + THIRTY_MINUTES;
+		return new ActiveTokenForUser(TokenKey.fromString(TOKEN_ID), "someLoginId", validUntil,
+				validUntil);
+	}
+
+	private User createUser() {
+		User user = new User("someUserId");
+		user.loginId = "someLoginId";
+		return user;
+	}
+
+	private boolean hasActiveToken(String token) {
+		return gatekeeper.onlyForTestGetActiveTokens().containsKey(TokenKey.fromString(token));
+	}
+
+	class ActiveTokenReplicatorForTest extends ActiveTokenReplicator {
+		public MethodCallRecorder MCR = new MethodCallRecorder();
+
+		ActiveTokenReplicatorForTest(GatekeeperImp gatekeeper, MessageSender sender,
+				String nodeId) {
+			super(gatekeeper, sender, authenticator, nodeId, 60000L, 60000L,
+					new ScheduledExecutorServiceSpy());
+		}
+
+		@Override
+		void shutdownSystemToPreventDataInconsistency() {
+			MCR.addCall();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.GatekeeperImp.ActiveToken;
+
+public class ActiveTokenShardTest {
+	private static final long NOW = 1_000_000L;
+	private static final TokenKey TOKEN = new TokenKey(1L, 1L);
+	private static final TokenKey OTHER_TOKEN = new TokenKey(1L, 2L);
+	private AtomicInteger numberOfTokensInAllShards;
+	private ActiveTokenShard shard;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		numberOfTokensInAllShards = new AtomicInteger();
+		shard = new ActiveTokenShard(numberOfTokensInAllShards);
+	}
+
+	@Test
+	public void testGetNonExistingToken() {
+		assertNull(shard.get(TOKEN));
+	}
+
+	@Test
+	public void testPutAddsTokenAndExpiry() {
+		ActiveToken activeToken = createActiveToken(NOW);
+
+		shard.put(TOKEN, activeToken);
+
+		assertSame(shard.get(TOKEN), activeToken);
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 1);
+		assertEquals(numberOfTokensInAllShards.get(), 1);
+	}
+
+	@Test
+	public void testPutReplacingTokenMovesExpiry() {
+		shard.put(TOKEN, createActiveToken(NOW));
+		ActiveToken replacement = createActiveToken(NOW + 60000L);
+
+		shard.put(TOKEN, replacement);
+
+		assertSame(shard.get(TOKEN), replacement);
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 1);
+		assertEquals(numberOfTokensInAllShards.get(), 1);
+	}
+
+	@Test
+	public void testReplaceTokenAndExpiry() {
+		ActiveToken activeToken = createActiveToken(NOW + 60000L);
+		shard.put(TOKEN, activeToken);
+		ActiveToken replacement = createActiveToken(NOW - 5000L);
+
+		assertTrue(shard.replace(TOKEN, activeToken, replacement));
+
+		assertSame(shard.get(TOKEN), replacement);
+		assertEquals(shard.removeDueTokens(NOW, 10, _ -> true), 1);
+	}
+
+	@Test
+	public void testReplaceOtherTokenDoesNothing() {
+		shard.put(TOKEN, createActiveToken(NOW));
+		ActiveToken replacement = createActiveToken(NOW);
+
+		assertFalse(shard.replace(TOKEN, createActiveToken(NOW + 1), replacement));
+
+		assertNotSame(shard.get(TOKEN), replacement);
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 1);
+	}
+
+	@Test
+	public void testRemoveTokenAndExpiry() {
+		ActiveToken activeToken = createActiveToken(NOW);
+		shard.put(TOKEN, activeToken);
+
+		ActiveToken removedToken = shard.remove(TOKEN);
+
+		assertSame(removedToken, activeToken);
+		assertNull(shard.get(TOKEN));
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 0);
+		assertEquals(numberOfTokensInAllShards.get(), 0);
+	}
+
+	@Test
+	public void testRemoveNonExistingTokenDoesNothing() {
+		shard.put(TOKEN, createActiveToken(NOW));
+
+		ActiveToken removedToken = shard.remove(OTHER_TOKEN);
+
+		assertNull(removedToken);
+		assertEquals(shard.onlyForTestGetActiveTokens().size(), 1);
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 1);
+		assertEquals(numberOfTokensInAllShards.get(), 1);
+	}
+
+	@Test
+	public void testRemoveOnlyIfSameActiveToken() {
+		ActiveToken activeToken = createActiveToken(NOW);
+		shard.put(TOKEN, activeToken);
+
+		assertFalse(shard.remove(TOKEN, createActiveToken(NOW + 1L)));
+		assertSame(shard.get(TOKEN), activeToken);
+		assertEquals(numberOfTokensInAllShards.get(), 1);
+
+		assertTrue(shard.remove(TOKEN, activeToken));
+		assertNull(shard.get(TOKEN));
+		assertEquals(shard.onlyForTestGetExpiryIndex().onlyForTestGetNumberOfTokens(), 0);
+		assertEquals(numberOfTokensInAllShards.get(), 0);
+	}
+
+	@Test
+	public void testRemoveDueTokens() {
+		shard.put(TOKEN, createActiveToken(NOW - 5000L));
+		shard.put(OTHER_TOKEN, createActiveToken(NOW + 5000L));
+		List<TokenKey> dueTokens = new ArrayList<>();
+
+		int removed = shard.removeDueTokens(NOW, 100, dueTokens::add);
+
+		assertEquals(removed, 1);
+		assertEquals(dueTokens, List.of(TOKEN));
+	}
+
+	@Test
+	public void testSize() {
+		shard.put(TOKEN, createActiveToken(NOW));
+		shard.put(OTHER_TOKEN, createActiveToken(NOW));
+
+		assertEquals(shard.size(), 2);
+	}
+
+	@Test
+	public void testShardsShareNumberOfTokensInAllShards() {
+		ActiveTokenShard otherShard = new ActiveTokenShard(numberOfTokensInAllShards);
+		shard.put(TOKEN, createActiveToken(NOW));
+		otherShard.put(OTHER_TOKEN, createActiveToken(NOW));
+
+		assertEquals(numberOfTokensInAllShards.get(), 2);
+		otherShard.remove(OTHER_TOKEN);
+		assertEquals(numberOfTokensInAllShards.get(), 1);
+	}
+
+	@Test
+	public void testRemoveOldestTokens() {
+		shard.put(TOKEN, createActiveToken(NOW + 5000L));
+		shard.put(OTHER_TOKEN, createActiveToken(NOW));
+		List<TokenKey> oldestTokens = new ArrayList<>();
+
+		int removed = shard.removeOldestTokens(NOW + 10000L, 1, oldestTokens::add);
+
+		assertEquals(removed, 1);
+		assertEquals(oldestTokens, List.of(OTHER_TOKEN));
+	}
+
+	private ActiveToken createActiveToken(long validUntil) {
+		ActiveTokenForUser tokenForUser = new ActiveTokenForUser(new TokenKey(2L, 2L),
+				"someLoginId", validUntil, validUntil);
+		return new ActiveToken(tokenForUser, null);
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveTokenSnapshotFile.Snapshot;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveUserState.TokenState;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+
+public class ActiveTokenSnapshotFileTest {
+	private Path directory;
+	private Path file;
+	private ActiveTokenSnapshotFile snapshotFile;
+
+	@BeforeMethod
+	public void beforeMethod() throws IOException {
+		directory = Files.createTempDirectory("activeTokenSnapshotFileTest");
+		file = directory.resolve("activeTokens.snapshot");
+		snapshotFile = new ActiveTokenSnapshotFile(file);
+	}
+
+	@AfterMethod
+	public void afterMethod() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testReadNonExistingFileReturnsEmptySnapshot() throws IOException {
+		Snapshot snapshot = snapshotFile.read();
+
+		assertTrue(snapshot.activeUserStates().isEmpty());
+		assertTrue(snapshot.revokedTokens().isEmpty());
+	}
+
+	@Test
+	public void testWriteAndReadEmptySnapshot() throws IOException {
+		snapshotFile.write(List.of(), List.of());
+
+		Snapshot snapshot = snapshotFile.read();
+		assertTrue(snapshot.activeUserStates().isEmpty());
+		assertTrue(snapshot.revokedTokens().isEmpty());
+	}
+
+	@Test
+	public void testWriteAndReadSnapshot() throws IOException {
+		ActiveUserState activeUserState = createActiveUserState("someLoginId", createUser());
+
+		snapshotFile.write(List.of(activeUserState), List.of());
+
+		List<ActiveUserState> readStates = snapshotFile.read().activeUserStates();
+		assertEquals(readStates.size(), 1);
+		ActiveUserState readState = readStates.get(0);
+		assertEquals(readState.loginId(), "someLoginId");
+		assertUserIsSame(readState.user(), activeUserState.user());
+		assertEquals(readState.tokens(), activeUserState.tokens());
+	}
+
+	@Test
+	public void testWriteAndReadRevokedTokens() throws IOException {
+		RevokedToken revokedToken1 = new RevokedToken(new TokenKey(1L, 2L),
+				RevokedTokens.REVOKED_NOW, 100L);
+		RevokedToken revokedToken2 = new RevokedToken(new TokenKey(-3L, -4L), 200L, 300L);
+
+		snapshotFile.write(List.of(), List.of(revokedToken1, revokedToken2));
+
+		assertEquals(snapshotFile.read().revokedTokens(), List.of(revokedToken1, revokedToken2));
+	}
+
+	@Test
+	public void testWrittenSnapshotIsReadableByOwnerOnly() throws IOException {
+		snapshotFile.write(List.of(), List.of());
+
+		assertEquals(Files.getPosixFilePermissions(file), OwnerOnlyFiles.OWNER_READ_WRITE);
+	}
+
+	private User createUser() {
+		User user = new User("someId");
+		user.loginId = "someLoginId";
+		user.loginDomain = "someLoginDomain";
+		user.firstName = "someFirstName åäö";
+		user.lastName = "someLastName";
+		user.active = true;
+		user.roles.addAll(List.of("someRole1", "someRole2"));
+		user.permissionUnitIds.add("somePermissionUnit");
+		return user;
+	}
+
+	private ActiveUserState createActiveUserState(String loginId, User user) {
+		TokenState tokenState1 = new TokenState(new TokenKey(1L, 2L),
+				new ActiveTokenForUser(new TokenKey(3L, 4L), loginId, 100L, 200L));
+		TokenState tokenState2 = new TokenState(new TokenKey(-5L, -6L),
+				new ActiveTokenForUser(new TokenKey(7L, 8L), loginId, 300L, 400L));
+		return new ActiveUserState(loginId, user, List.of(tokenState1, tokenState2));
+	}
+
+	private void assertUserIsSame(User readUser, User user) {
+		assertEquals(readUser.id, user.id);
+		assertEquals(readUser.loginId, user.loginId);
+		assertEquals(readUser.loginDomain, user.loginDomain);
+		assertEquals(readUser.firstName, user.firstName);
+		assertEquals(readUser.lastName, user.lastName);
+		assertEquals(readUser.active, user.active);
+		assertEquals(readUser.roles, user.roles);
+		assertEquals(readUser.permissionUnitIds, user.permissionUnitIds);
+	}
+
+	@Test
+	public void testWriteAndReadUserWithoutOptionalValues() throws IOException {
+		User user = new User("someId");
+		snapshotFile.write(List.of(new ActiveUserState("someLoginId", user, List.of())),
+				List.of());
+
+		User readUser = snapshotFile.read().activeUserStates().get(0).user();
+
+		assertNull(readUser.loginId);
+		assertNull(readUser.loginDomain);
+		assertNull(readUser.firstName);
+		assertNull(readUser.lastName);
+		assertFalse(readUser.active);
+		assertTrue(readUser.roles.isEmpty());
+		assertTrue(readUser.permissionUnitIds.isEmpty());
+	}
+
+	@Test
+	public void testWriteReplacesSnapshotAndRemovesTempFile() throws IOException {
+		snapshotFile.write(List.of(createActiveUserState("someLoginId", createUser())),
+				List.of());
+		snapshotFile.write(List.of(), List.of());
+
+		assertTrue(snapshotFile.read().activeUserStates().isEmpty());
+		try (Stream<Path> paths = Files.list(directory)) {
+			assertEquals(paths.toList(), List.of(file));
+		}
+	}
+
+	@Test
+	public void testReadUnknownFormat() throws IOException {
+		Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+
+		try {
+			snapshotFile.read();
+			fail("An IOException should have been thrown");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(), "Snapshot file " + file + " has an unknown format");
+		}
+	}
+
+	@Test
+	public void testReadSnapshotWrittenInEarlierFormatVersion() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8).putInt(0x47544B53)
+				.putInt(ActiveTokenDataFormat.FORMAT_VERSION - 1);
+		Files.write(file, header.array());
+
+		try {
+			snapshotFile.read();
+			fail("An IOException should have been thrown");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(), "Snapshot file " + file + " has an unknown format");
+		}
+	}
+
+	@Test
+	public void testReadTruncatedSnapshot() throws IOException {
+		snapshotFile.write(List.of(createActiveUserState("someLoginId", createUser())),
+				List.of());
+		byte[] snapshot = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(snapshot, snapshot.length - 10));
+
+		try {
+			snapshotFile.read();
+			fail("An IOException should have been thrown");
+		} catch (IOException e) {
+			assertEquals(e.getMessage(), "Snapshot file " + file + " is not complete");
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
+import se.uu.ub.cora.logger.spies.LoggerSpy;
+
+public class ActiveTokenSnapshotterTest {
+	private static final long THIRTY_MINUTES = 1800000L;
+	private static final String TOKEN_ID = "00000000-0000-4000-8000-000000000000";
+	private static final String VALID_TOKEN = "00000000-0000-4000-8000-000000000001";
+	private static final String EXPIRED_TOKEN = "00000000-0000-4000-8000-000000000002";
+	private static final String ANOTHER_VALID_TOKEN = "00000000-0000-4000-8000-000000000003";
+	private LoggerFactorySpy loggerFactory;
+	private GatekeeperImp gatekeeper;
+	private Path directory;
+	private Path file;
+	private ActiveTokenSnapshotFile snapshotFile;
+	private ActiveTokenLog activeTokenLog;
+	private ActiveTokenSnapshotter snapshotter;
+
+	@BeforeMethod
+	public void beforeMethod() throws IOException {
+		loggerFactory = new LoggerFactorySpy();
+		LoggerProvider.setLoggerFactory(loggerFactory);
+		gatekeeper = GatekeeperImp.INSTANCE;
+		directory = Files.createTempDirectory("activeTokenSnapshotterTest");
+		file = directory.resolve("activeTokens.snapshot");
+		snapshotFile = new ActiveTokenSnapshotFile(file);
+		activeTokenLog = new ActiveTokenLog(directory.resolve("activeTokens.log"));
+		snapshotter = new ActiveTokenSnapshotter(gatekeeper, snapshotFile, activeTokenLog,
+				60000L);
+	}
+
+	@AfterMethod
+	public void afterMethod() throws IOException {
+		snapshotter.stop();
+		activeTokenLog.close();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testInit() {
+		assertEquals(snapshotter.onlyForTestGetIntervalInMillis(), 60000L);
+		assertSame(snapshotter.onlyForTestGetSnapshotFile(), snapshotFile);
+		assertSame(snapshotter.onlyForTestGetActiveTokenLog(), activeTokenLog);
+	}
+
+	@Test
+	public void testWriteSnapshot() throws IOException {
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+
+		snapshotter.writeSnapshot();
+
+		assertEquals(snapshotFile.read().activeUserStates().size(), 1);
+		String message = (String) getLogger().MCR
+				.getParameterForMethodAndCallNumberAndParameter("logInfoUsingMessage", 0,
+						"message");
+		assertTrue(message.startsWith("Wrote snapshot of 1 active users in "));
+	}
+
+	@Test
+	public void testWriteSnapshotErrorIsLogged() throws IOException {
+		Files.createDirectory(file);
+
+		snapshotter.writeSnapshot();
+
+		getLogger().MCR.assertParameter("logErrorUsingMessageAndException", 0, "message",
+				"Error writing snapshot of active tokens.");
+	}
+
+	@Test
+	public void testRestoreAddsStillValidTokens() {
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+		addActiveToken(EXPIRED_TOKEN, "someOtherLoginId", -THIRTY_MINUTES);
+		snapshotter.writeSnapshot();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		snapshotter.restore();
+
+		assertTrue(hasActiveToken(VALID_TOKEN));
+		assertFalse(hasActiveToken(EXPIRED_TOKEN));
+		assertEquals(gatekeeper.getUserForToken(VALID_TOKEN).loginId, "someLoginId");
+		String message = (String) getLogger().MCR
+				.getParameterForMethodAndCallNumberAndParameter("logInfoUsingMessage", 1,
+						"message");
+		assertTrue(message.startsWith(
+				"Restored 1 active tokens and 0 revoked tokens from snapshot and replayed 0"
+						+ " logged events in "));
+	}
+
+	@Test
+	public void testRestoreAddsStillValidRevokedTokens() {
+		long currentTime = System.currentTimeMillis();
+		RevokedToken validRevokedToken = new RevokedToken(TokenKey.fromString(VALID_TOKEN),
+				RevokedTokens.REVOKED_NOW, currentTime + THIRTY_MINUTES);
+		RevokedToken expiredRevokedToken = new RevokedToken(TokenKey.fromString(EXPIRED_TOKEN),
+				RevokedTokens.REVOKED_NOW, currentTime - THIRTY_MINUTES);
+		gatekeeper.restoreRevokedTokens(List.of(validRevokedToken, expiredRevokedToken),
+				currentTime - 2 * THIRTY_MINUTES);
+		snapshotter.writeSnapshot();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		snapshotter.restore();
+
+		assertEquals(gatekeeper.getRevokedTokens(), List.of(validRevokedToken));
+		String message = (String) getLogger().MCR
+				.getParameterForMethodAndCallNumberAndParameter("logInfoUsingMessage", 1,
+						"message");
+		assertTrue(message.startsWith(
+				"Restored 0 active tokens and 1 revoked tokens from snapshot and replayed 0"
+						+ " logged events in "));
+	}
+
+	@Test
+	public void testRestoreReplaysLogOnTopOfSnapshot() throws IOException {
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+		snapshotter.writeSnapshot();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		writeEventsToLog(log -> {
+			log.activeTokenRemoved(TokenKey.fromString(VALID_TOKEN));
+			log.activeTokenAdded(TokenKey.fromString(ANOTHER_VALID_TOKEN),
+					createActiveTokenForUser("someOtherLoginId", THIRTY_MINUTES),
+					createUser("someOtherLoginId"));
+		});
+
+		snapshotter.restore();
+
+		assertFalse(hasActiveToken(VALID_TOKEN));
+		assertTrue(hasActiveToken(ANOTHER_VALID_TOKEN));
+		String message = (String) getLogger().MCR
+				.getParameterForMethodAndCallNumberAndParameter("logInfoUsingMessage", 1,
+						"message");
+		assertTrue(message.startsWith(
+				"Restored 1 active tokens and 0 revoked tokens from snapshot and replayed 2"
+						+ " logged events in "));
+	}
+
+	private void writeEventsToLog(Consumer<ActiveTokenLog> eventWriter)
+			throws IOException {
+		ActiveTokenLog log = new ActiveTokenLog(
+				activeTokenLog.onlyForTestGetLogFile());
+		log.open();
+		eventWriter.accept(log);
+		log.close();
+	}
+
+	@Test
+	public void testRestoreDoesNotLogRestoredTokens() throws IOException {
+		writeEventsToLog(log -> log.activeTokenAdded(TokenKey.fromString(VALID_TOKEN),
+				createActiveTokenForUser("someLoginId", THIRTY_MINUTES),
+				createUser("someLoginId")));
+
+		snapshotter.restore();
+		snapshotter.start();
+
+		assertEquals(countLoggedEvents(), 0);
+	}
+
+	private int countLoggedEvents() throws IOException {
+		ActiveTokenLog log = new ActiveTokenLog(
+				activeTokenLog.onlyForTestGetLogFile());
+		return log.replay(new ActiveTokenEventListenerSpy());
+	}
+
+	@Test
+	public void testStartCompactsReplayedLogIntoSnapshot() throws IOException {
+		writeEventsToLog(log -> log.activeTokenAdded(TokenKey.fromString(VALID_TOKEN),
+				createActiveTokenForUser("someLoginId", THIRTY_MINUTES),
+				createUser("someLoginId")));
+		snapshotter.restore();
+
+		snapshotter.start();
+
+		assertEquals(countLoggedEvents(), 0);
+		assertFalse(activeTokenLog.hasPreviousLog());
+		assertEquals(snapshotFile.read().activeUserStates().size(), 1);
+	}
+
+	@Test
+	public void testStartedSnapshotterLogsChangesToActiveTokens() throws Exception {
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+		snapshotter.start();
+
+		gatekeeper.removeAuthToken(TOKEN_ID, VALID_TOKEN);
+		activeTokenLog.close();
+
+		ActiveTokenEventListenerSpy listener = new ActiveTokenEventListenerSpy();
+		new ActiveTokenLog(activeTokenLog.onlyForTestGetLogFile()).replay(listener);
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TokenKey.fromString(VALID_TOKEN));
+	}
+
+	@Test
+	public void testFailedSnapshotKeepsPreviousLog() throws IOException {
+		writeEventsToLog(log -> log.activeTokenRemoved(TokenKey.fromString(VALID_TOKEN)));
+		Files.createDirectory(file);
+
+		snapshotter.writeSnapshot();
+
+		assertTrue(activeTokenLog.hasPreviousLog());
+		assertEquals(countLoggedEvents(), 1);
+	}
+
+	@Test
+	public void testSnapshotAfterFailedSnapshotDeletesPreviousLog() throws IOException {
+		writeEventsToLog(log -> log.activeTokenRemoved(TokenKey.fromString(VALID_TOKEN)));
+		Files.createDirectory(file);
+		snapshotter.writeSnapshot();
+		Files.delete(file);
+
+		snapshotter.writeSnapshot();
+
+		assertFalse(activeTokenLog.hasPreviousLog());
+		assertEquals(countLoggedEvents(), 0);
+	}
+
+	@Test
+	public void testRestoreWithoutSnapshotFile() {
+		snapshotter.restore();
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		getLogger().MCR.assertMethodNotCalled("logErrorUsingMessageAndException");
+	}
+
+	@Test
+	public void testRestoreErrorIsLogged() throws IOException {
+		Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+		snapshotter.restore();
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		getLogger().MCR.assertParameter("logErrorUsingMessageAndException", 0, "message",
+				"Could not restore active tokens from snapshot, starting without them.");
+	}
+
+	@Test
+	public void testStartAndStop() {
+		assertFalse(snapshotter.isRunning());
+
+		snapshotter.start();
+		assertTrue(snapshotter.isRunning());
+
+		snapshotter.stop();
+		assertFalse(snapshotter.isRunning());
+		assertFalse(activeTokenLog.isOpen());
+	}
+
+	@Test
+	public void testStopWhenNotStartedDoesNotWriteSnapshot() {
+		snapshotter.stop();
+
+		assertFalse(Files.exists(file));
+	}
+
+	@Test
+	public void testStopWritesLastSnapshot() throws IOException {
+		snapshotter.start();
+		addActiveToken(VALID_TOKEN, "someLoginId", THIRTY_MINUTES);
+
+		snapshotter.stop();
+
+		assertEquals(snapshotFile.read().activeUserStates().size(), 1);
+	}
+
+	private void addActiveToken(String token, String loginId, long millisFromNow) {
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(token,
+				createActiveTokenForUser(loginId, millisFromNow), createUser(loginId));
+	}
+
+	private ActiveTokenForUser createActiveTokenForUser(String loginId, long millisFromNow) {
+		long validUntil = System.currentTimeMillis() + millisFromNow;
+		return new ActiveTokenForUser(TokenKey.fromString(TOKEN_ID), loginId, validUntil,
+				validUntil);
+	}
+
+	private User createUser(String loginId) {
+		User user = new User("some" + loginId + "Id");
+		user.loginId = loginId;
+		return user;
+	}
+
+	private boolean hasActiveToken(String token) {
+		return gatekeeper.onlyForTestGetActiveTokens().containsKey(TokenKey.fromString(token));
+	}
+
+	private LoggerSpy getLogger() {
+		return (LoggerSpy) loggerFactory.MCR.assertCalledParametersReturn("factorForClass",
+				ActiveTokenSnapshotter.class);
+	}
+}
@@ -1,6 +1,6 @@
 /*
  * Copyright 2019 Olov McKie
- * Copyright 2025 Uppsala University Library
+ * Copyright 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,8 +20,18 @@
 package se.uu.ub.cora.gatekeeperserver.initialize;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -29,22 +39,28 @@ import org.testng.annotations.Test;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletContextEvent;
 import se.uu.ub.cora.gatekeeper.picker.UserPickerProvider;
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.cache.DataChangeMessageReceiver;
 import se.uu.ub.cora.gatekeeperserver.cache.spies.MessageListenerSpy;
+import se.uu.ub.cora.gatekeeperserver.cache.spies.MessageSenderSpy;
 import se.uu.ub.cora.gatekeeperserver.cache.spies.MessagingFactorySpy;
 import se.uu.ub.cora.initialize.SettingsProvider;
 import se.uu.ub.cora.logger.LoggerProvider;
 import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
 import se.uu.ub.cora.logger.spies.LoggerSpy;
 import se.uu.ub.cora.messaging.AmqpMessageListenerRoutingInfo;
+import se.uu.ub.cora.messaging.AmqpMessageSenderRoutingInfo;
 import se.uu.ub.cora.messaging.MessagingProvider;
 
 public class GatekeeperModuleInitializerTest {
+	private static final String TOKEN = "00000000-0000-4000-8000-000000000001";
 	private LoggerFactorySpy loggerFactorySpy;
 	private ServletContext source;
 	private ServletContextEvent context;
 	private GatekeeperModuleInitializer gatekeeperInitializer;
 	private UserPickerInstanceProviderSpy userPickerInstanceProviderSpy;
+	private Path storeDirectory;
 
 	private MessagingFactorySpy messagingFactory;
 
@@ -64,12 +80,32 @@ public class GatekeeperModuleInitializerTest {
 	}
 
 	@AfterMethod
-	private void afterMethod() {
+	private void afterMethod() throws IOException {
+		gatekeeperInitializer.contextDestroyed(context);
+		GatekeeperImp.INSTANCE.onlyForTestEmptyAuthentications();
+		removeStoreDirectoryIfCreated();
+		GatekeeperImp.INSTANCE.setTokenEncoding(TokenEncoding.UUID);
+		GatekeeperImp.INSTANCE.setNumberOfShards(16);
+		GatekeeperImp.INSTANCE.setSignedTokenFormat(null);
+		GatekeeperImp.INSTANCE.setMaxActiveTokensPerUser(100);
+		GatekeeperImp.INSTANCE.setMaxActiveTokens(1000000);
+		GatekeeperImp.INSTANCE.setRenewGracePeriodInMillis(0);
+		GatekeeperImp.INSTANCE.setRejectedTokenCacheSize(4096);
+		StorageWorkExecutor.INSTANCE.setMaxConcurrentStorageWork(
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
 		SettingsProvider.setSettings(null);
 		LoggerProvider.setLoggerFactory(null);
 		MessagingProvider.setMessagingFactory(null);
 	}
 
+	private void removeStoreDirectoryIfCreated() throws IOException {
+		if (storeDirectory != null) {
+			try (Stream<Path> paths = Files.walk(storeDirectory)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			}
+		}
+	}
+
 	private void setNeededInitParameters() {
 		source.setInitParameter("initParam1", "initValue1");
 		source.setInitParameter("initParam2", "initValue2");
@@ -140,4 +176,398 @@ public class GatekeeperModuleInitializerTest {
 				0, "messageReceiver");
 		assertTrue(messageReceiver instanceof DataChangeMessageReceiver);
 	}
+
+	@Test
+	public void testActiveTokenReaperStartedWithDefaultSettings() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenReaper reaper = gatekeeperInitializer.onlyForTestGetActiveTokenReaper();
+		assertTrue(reaper.isRunning());
+		assertEquals(reaper.onlyForTestGetIntervalInMillis(), 10000L);
+		assertEquals(reaper.onlyForTestGetMaxTokensPerPass(), 10000);
+	}
+
+	@Test
+	public void testActiveTokenReaperStartedWithSettings() {
+		source.setInitParameter("activeTokenReaperIntervalInSeconds", "30");
+		source.setInitParameter("activeTokenReaperMaxTokensPerPass", "500");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenReaper reaper = gatekeeperInitializer.onlyForTestGetActiveTokenReaper();
+		assertEquals(reaper.onlyForTestGetIntervalInMillis(), 30000L);
+		assertEquals(reaper.onlyForTestGetMaxTokensPerPass(), 500);
+	}
+
+	@Test
+	public void testTokenEncodingDefaultsToUUID() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetTokenEncoding(), TokenEncoding.UUID);
+	}
+
+	@Test
+	public void testTokenEncodingFromSettings() {
+		source.setInitParameter("tokenEncoding", "base64url");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetTokenEncoding(),
+				TokenEncoding.BASE64URL);
+	}
+
+	@Test
+	public void testTokenModeDefaultsToOpaqueTokens() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertNull(GatekeeperImp.INSTANCE.onlyForTestGetSignedTokenFormat());
+	}
+
+	@Test
+	public void testTokenModeOpaqueFromSettings() {
+		source.setInitParameter("tokenMode", "opaque");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertNull(GatekeeperImp.INSTANCE.onlyForTestGetSignedTokenFormat());
+	}
+
+	@Test
+	public void testTokenModeSignedFromSettings() {
+		byte[] key = new byte[32];
+		key[0] = 1;
+		source.setInitParameter("tokenMode", "signed");
+		source.setInitParameter("tokenSigningKey", Base64.getEncoder().encodeToString(key));
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		SignedTokenFormat signedTokenFormat = GatekeeperImp.INSTANCE
+				.onlyForTestGetSignedTokenFormat();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUser();
+		String token = new SignedTokenFormat(key).write(TokenKey.fromString(TOKEN), tokenForUser);
+		assertEquals(signedTokenFormat.read(token).tokenForUser(), tokenForUser);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Unknown tokenMode: someMode")
+	public void testUnknownTokenMode() {
+		source.setInitParameter("tokenMode", "someMode");
+
+		gatekeeperInitializer.contextInitialized(context);
+	}
+
+	@Test
+	public void testActiveTokenLimitsDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetMaxActiveTokensPerUser(), 100);
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetMaxActiveTokens(), 1000000);
+	}
+
+	@Test
+	public void testActiveTokenLimitsFromSettings() {
+		source.setInitParameter("maxActiveTokensPerUser", "5");
+		source.setInitParameter("maxActiveTokens", "5000");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetMaxActiveTokensPerUser(), 5);
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetMaxActiveTokens(), 5000);
+	}
+
+	@Test
+	public void testRenewGracePeriodDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetRenewGracePeriodInMillis(), 0);
+	}
+
+	@Test
+	public void testRenewGracePeriodFromSettings() {
+		source.setInitParameter("renewGracePeriodInMillis", "3000");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetRenewGracePeriodInMillis(), 3000);
+	}
+
+	@Test
+	public void testRejectedTokenCacheSizeDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetRejectedTokenCache().getNumberOfSlots(),
+				4096);
+	}
+
+	@Test
+	public void testRejectedTokenCacheSizeFromSettings() {
+		source.setInitParameter("rejectedTokenCacheSize", "1024");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetRejectedTokenCache().getNumberOfSlots(),
+				1024);
+	}
+
+	@Test
+	public void testMaxConcurrentStorageWorkDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(StorageWorkExecutor.INSTANCE.getMaxConcurrentStorageWork(),
+				StorageWorkExecutor.DEFAULT_MAX_CONCURRENT_STORAGE_WORK);
+	}
+
+	@Test
+	public void testMaxConcurrentStorageWorkFromSettings() {
+		source.setInitParameter("maxConcurrentStorageWork", "8");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(StorageWorkExecutor.INSTANCE.getMaxConcurrentStorageWork(), 8);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Max concurrent storage work must be at least 1, was: 0")
+	public void testMaxConcurrentStorageWorkFromSettingsMustBeAtLeastOne() {
+		source.setInitParameter("maxConcurrentStorageWork", "0");
+
+		gatekeeperInitializer.contextInitialized(context);
+	}
+
+	@Test
+	public void testNumberOfActiveTokenShardsDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetNumberOfShards(), 16);
+	}
+
+	@Test
+	public void testNumberOfActiveTokenShardsFromSettings() {
+		source.setInitParameter("numberOfActiveTokenShards", "4");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(GatekeeperImp.INSTANCE.onlyForTestGetNumberOfShards(), 4);
+	}
+
+	@Test
+	public void testNoActiveTokenSnapshotterWithoutStorePath() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertNull(gatekeeperInitializer.onlyForTestGetActiveTokenSnapshotter());
+	}
+
+	@Test
+	public void testActiveTokenSnapshotterStartedWithDefaultSettings() throws IOException {
+		setActiveTokenStorePath();
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenSnapshotter snapshotter = gatekeeperInitializer
+				.onlyForTestGetActiveTokenSnapshotter();
+		assertTrue(snapshotter.isRunning());
+		assertEquals(snapshotter.onlyForTestGetIntervalInMillis(), 60000L);
+		assertEquals(snapshotter.onlyForTestGetSnapshotFile().onlyForTestGetSnapshotFile(),
+				storeDirectory.resolve("activeTokens.snapshot"));
+		assertEquals(snapshotter.onlyForTestGetActiveTokenLog().onlyForTestGetLogFile(),
+				storeDirectory.resolve("activeTokens.log"));
+		assertTrue(snapshotter.onlyForTestGetActiveTokenLog().isOpen());
+	}
+
+	private void setActiveTokenStorePath() throws IOException {
+		storeDirectory = Files.createTempDirectory("gatekeeperModuleInitializerTest");
+		source.setInitParameter("activeTokenStorePath", storeDirectory.toString());
+	}
+
+	@Test
+	public void testActiveTokenSnapshotterStartedWithSettings() throws IOException {
+		setActiveTokenStorePath();
+		source.setInitParameter("activeTokenSnapshotIntervalInSeconds", "5");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenSnapshotter snapshotter = gatekeeperInitializer
+				.onlyForTestGetActiveTokenSnapshotter();
+		assertEquals(snapshotter.onlyForTestGetIntervalInMillis(), 5000L);
+	}
+
+	@Test
+	public void testActiveTokensAreRestoredFromSnapshotOnStartup() throws IOException {
+		setActiveTokenStorePath();
+		GatekeeperImp gatekeeper = GatekeeperImp.INSTANCE;
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, createActiveTokenForUser(),
+				createUser());
+		new ActiveTokenSnapshotFile(storeDirectory.resolve("activeTokens.snapshot"))
+				.write(gatekeeper.getActiveUserStates(), gatekeeper.getRevokedTokens());
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertEquals(gatekeeper.getUserForToken(TOKEN).loginId, "someLoginId");
+	}
+
+	private ActiveTokenForUser createActiveTokenForUser() {
+		long validUntil = System.currentTimeMillis() + 60000L;
+		return new ActiveTokenForUser(TokenKey.fromString(TOKEN), "someLoginId", validUntil,
+				validUntil);
+	}
+
+	private User createUser() {
+		User user = new User("someUserId");
+		user.loginId = "someLoginId";
+		return user;
+	}
+
+	@Test
+	public void testContextDestroyedWritesActiveTokenSnapshot() throws IOException {
+		setActiveTokenStorePath();
+		gatekeeperInitializer.contextInitialized(context);
+		GatekeeperImp.INSTANCE.onlyForTestSetActiveTokenAndActiveUsers(TOKEN,
+				createActiveTokenForUser(), createUser());
+
+		gatekeeperInitializer.contextDestroyed(context);
+
+		assertFalse(gatekeeperInitializer.onlyForTestGetActiveTokenSnapshotter().isRunning());
+		ActiveTokenSnapshotFile snapshotFile = new ActiveTokenSnapshotFile(
+				storeDirectory.resolve("activeTokens.snapshot"));
+		assertEquals(snapshotFile.read().activeUserStates().size(), 1);
+	}
+
+	@Test
+	public void testContextDestroyedStopsActiveTokenReaper() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		gatekeeperInitializer.contextDestroyed(context);
+
+		assertFalse(gatekeeperInitializer.onlyForTestGetActiveTokenReaper().isRunning());
+	}
+
+	@Test
+	public void testActiveTokenReplicatorNotStartedByDefault() {
+		gatekeeperInitializer.contextInitialized(context);
+
+		assertNull(gatekeeperInitializer.onlyForTestGetActiveTokenReplicator());
+		messagingFactory.MCR.assertMethodNotCalled("factorTopicMessageSender");
+		messagingFactory.MCR.assertNumberOfCallsToMethod("factorTopicMessageListener", 1);
+	}
+
+	private void enableActiveTokenReplication() {
+		source.setInitParameter("activeTokenReplicationEnabled", "true");
+		source.setInitParameter("activeTokenReplicationExchange", "someReplicationExchange");
+		source.setInitParameter("activeTokenReplicationKey",
+				Base64.getEncoder().encodeToString(new byte[32]));
+	}
+
+	@Test
+	public void testActiveTokenReplicatorStartedWithDefaultSettings() {
+		enableActiveTokenReplication();
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenReplicator replicator = gatekeeperInitializer
+				.onlyForTestGetActiveTokenReplicator();
+		assertTrue(replicator.isRunning());
+		assertEquals(replicator.onlyForTestGetBatchIntervalInMillis(), 20L);
+		assertEquals(replicator.onlyForTestGetBootstrapTimeoutInMillis(), 5000L);
+		assertEquals(replicator.onlyForTestGetNodeId().length(), 36);
+	}
+
+	@Test
+	public void testActiveTokenReplicatorStartedWithSettings() {
+		enableActiveTokenReplication();
+		source.setInitParameter("activeTokenReplicationBatchIntervalInMillis", "50");
+		source.setInitParameter("activeTokenReplicationBootstrapTimeoutInMillis", "2000");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		ActiveTokenReplicator replicator = gatekeeperInitializer
+				.onlyForTestGetActiveTokenReplicator();
+		assertEquals(replicator.onlyForTestGetBatchIntervalInMillis(), 50L);
+		assertEquals(replicator.onlyForTestGetBootstrapTimeoutInMillis(), 2000L);
+	}
+
+	@Test
+	public void testActiveTokenReplicatorSendsUsingMessaging() {
+		enableActiveTokenReplication();
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		var routingInfo = (AmqpMessageSenderRoutingInfo) messagingFactory.MCR
+				.getParameterForMethodAndCallNumberAndParameter("factorTopicMessageSender", 0,
+						"messagingRoutingInfo");
+		assertEquals(routingInfo.hostname, "someHostname");
+		assertEquals(routingInfo.port, 6666);
+		assertEquals(routingInfo.virtualHost, "someVirtualHost");
+		assertEquals(routingInfo.exchange, "someReplicationExchange");
+		assertEquals(routingInfo.routingKey, "gatekeeperActiveTokens");
+		var sender = (MessageSenderSpy) messagingFactory.MCR
+				.getReturnValue("factorTopicMessageSender", 0);
+		assertSame(gatekeeperInitializer.onlyForTestGetActiveTokenReplicator()
+				.onlyForTestGetMessageSender(), sender);
+		sender.MCR.assertMethodWasCalled("sendMessage");
+	}
+
+	@Test
+	public void testActiveTokenReplicatorListensUsingMessaging() {
+		enableActiveTokenReplication();
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		var routingInfo = (AmqpMessageListenerRoutingInfo) messagingFactory.MCR
+				.getParameterForMethodAndCallNumberAndParameter("factorTopicMessageListener", 1,
+						"messagingRoutingInfo");
+		assertEquals(routingInfo.hostname, "someHostname");
+		assertEquals(routingInfo.port, 6666);
+		assertEquals(routingInfo.virtualHost, "someVirtualHost");
+		assertEquals(routingInfo.exchange, "someReplicationExchange");
+		assertEquals(routingInfo.routingKey, "gatekeeperActiveTokens");
+		var listener = (MessageListenerSpy) messagingFactory.MCR
+				.getReturnValue("factorTopicMessageListener", 1);
+		listener.MCR.assertParameters("listen", 0,
+				gatekeeperInitializer.onlyForTestGetActiveTokenReplicator());
+	}
+
+	@Test
+	public void testActiveTokenReplicatorUsesOwnVirtualHost() {
+		enableActiveTokenReplication();
+		source.setInitParameter("activeTokenReplicationVirtualHost", "someReplicationVirtualHost");
+
+		gatekeeperInitializer.contextInitialized(context);
+
+		var senderRoutingInfo = (AmqpMessageSenderRoutingInfo) messagingFactory.MCR
+				.getParameterForMethodAndCallNumberAndParameter("factorTopicMessageSender", 0,
+						"messagingRoutingInfo");
+		assertEquals(senderRoutingInfo.virtualHost, "someReplicationVirtualHost");
+		var listenerRoutingInfo = (AmqpMessageListenerRoutingInfo) messagingFactory.MCR
+				.getParameterForMethodAndCallNumberAndParameter("factorTopicMessageListener", 1,
+						"messagingRoutingInfo");
+		assertEquals(listenerRoutingInfo.virtualHost, "someReplicationVirtualHost");
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Replication key must be at least 32 bytes, was: 16")
+	public void testActiveTokenReplicationKeyTooShort() {
+		enableActiveTokenReplication();
+		source.setInitParameter("activeTokenReplicationKey",
+				Base64.getEncoder().encodeToString(new byte[16]));
+
+		gatekeeperInitializer.contextInitialized(context);
+	}
+
+	@Test
+	public void testContextDestroyedStopsActiveTokenReplicator() {
+		enableActiveTokenReplication();
+		gatekeeperInitializer.contextInitialized(context);
+
+		gatekeeperInitializer.contextDestroyed(context);
+
+		assertFalse(gatekeeperInitializer.onlyForTestGetActiveTokenReplicator().isRunning());
+	}
+
+	@Test
+	public void testContextDestroyedWhenNotInitialized() {
+		gatekeeperInitializer.contextDestroyed(context);
+
+		assertNull(gatekeeperInitializer.onlyForTestGetActiveTokenReaper());
+	}
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2017, 2022, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2017, 2022, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -22,12 +22,25 @@ package se.uu.ub.cora.gatekeeperserver.initialize;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -38,16 +51,31 @@ import org.testng.annotations.Test;
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
 import se.uu.ub.cora.gatekeeper.picker.UserPickerProvider;
 import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
+import se.uu.ub.cora.gatekeeperserver.initialize.ActiveUserState.TokenState;
+import se.uu.ub.cora.gatekeeperserver.initialize.GatekeeperImp.ActiveToken;
 import se.uu.ub.cora.gatekeeperserver.initialize.GatekeeperImp.ActiveUser;
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+import se.uu.ub.cora.gatekeeperserver.initialize.SignedTokenFormat.SignedToken;
 import se.uu.ub.cora.gatekeeperserver.spies.UserPickerSpy;
 import se.uu.ub.cora.gatekeeperserver.tokenprovider.AuthToken;
 import se.uu.ub.cora.logger.LoggerProvider;
 import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
 
 public class GatekeeperTest {
-	private static final String TOKEN = "someToken";
-	private static final String TOKEN_ID = "someTokenId";
+	private static final String TOKEN = "00000000-0000-4000-8000-000000000001";
+	private static final String TOKEN_ID = "00000000-0000-4000-8000-000000000002";
+	private static final TokenKey TOKEN_ID_KEY = TokenKey.fromString(TOKEN_ID);
+	private static final String ANOTHER_TOKEN = "00000000-0000-4000-8000-000000000003";
+	private static final String ANOTHER_TOKEN_ID = "00000000-0000-4000-8000-000000000004";
+	private static final String TOKEN_ELLY_1 = "00000000-0000-4000-8000-00000000e001";
+	private static final String TOKEN_ELLY_2 = "00000000-0000-4000-8000-00000000e002";
+	private static final String TOKEN_RUDOLF_1 = "00000000-0000-4000-8000-00000000f001";
+	private static final String TOKEN_RUDOLF_2_IN_SHARD_1 = "00000000-0000-4001-8000-00000000f002";
+	private static final String TOKEN_RUDOLF_3_IN_SHARD_2 = "00000000-0000-4002-8000-00000000f003";
+	private static final String TOKEN_RUDOLF_2 = "00000000-0000-4000-8000-00000000f002";
 	private static final String USER_RECORD_TYPE = "user";
 	private static final long THIRTY_MINUTES = 1800000L;
 	private static final long PRECISION = 5000L;
@@ -61,6 +89,7 @@ public class GatekeeperTest {
 	private User userRudolf;
 	private User userRudolfUpdated;
 	private UserPickerSpy userPickerSpy;
+	private ActiveTokenEventListenerSpy eventListener;
 
 	@BeforeMethod
 	public void beforeMethod() {
@@ -94,7 +123,15 @@ public class GatekeeperTest {
 
 	@AfterMethod
 	public void afterMethod() {
+		gatekeeper.removeActiveTokenEventListener(eventListener);
 		gatekeeper.onlyForTestEmptyAuthentications();
+		gatekeeper.setTokenEncoding(TokenEncoding.UUID);
+		gatekeeper.setNumberOfShards(16);
+		gatekeeper.setSignedTokenFormat(null);
+		gatekeeper.setMaxActiveTokensPerUser(100);
+		gatekeeper.setMaxActiveTokens(1000000);
+		gatekeeper.setRenewGracePeriodInMillis(0);
+		gatekeeper.setRejectedTokenCacheSize(4096);
 	}
 
 	private User createUserForElly() {
@@ -110,6 +147,8 @@ public class GatekeeperTest {
 		aUser.firstName = "some" + name + "FirstName";
 		aUser.lastName = "some" + name + "LastName";
 		aUser.loginId = "some" + name + "LoginId";
+		aUser.loginDomain = "some" + name + "LoginDomain";
+		aUser.active = true;
 		return aUser;
 	}
 
@@ -126,6 +165,105 @@ public class GatekeeperTest {
 		assertGuestWasPicked(logedInUser);
 	}
 
+	@Test
+	public void testGetUsersForTokens() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+
+		List<CachedUser> cachedUsers = gatekeeper
+				.getCachedUsersForTokens(List.of(TOKEN_RUDOLF_1, TOKEN_ELLY_1, TOKEN_RUDOLF_1));
+
+		assertEquals(cachedUsers.size(), 3);
+		assertSame(cachedUsers.get(0), gatekeeper.getCachedUserForToken(TOKEN_RUDOLF_1));
+		assertSame(cachedUsers.get(1), gatekeeper.getCachedUserForToken(TOKEN_ELLY_1));
+		assertSame(cachedUsers.get(2), cachedUsers.get(0));
+		assertIsCopyOfUser(cachedUsers.get(0).getUser(), userRudolf);
+		assertIsCopyOfUser(cachedUsers.get(1).getUser(), userElly);
+	}
+
+	@Test
+	public void testGetUsersForTokensGivesNullForTokensNotValid() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_1, userRudolf, -1000);
+
+		List<CachedUser> cachedUsers = gatekeeper.getCachedUsersForTokens(
+				List.of(TOKEN_RUDOLF_1, ANOTHER_TOKEN, "notAToken", TOKEN_ELLY_1));
+
+		assertEquals(cachedUsers.subList(0, 3), Arrays.asList(null, null, null));
+		assertIsCopyOfUser(cachedUsers.get(3).getUser(), userElly);
+	}
+
+	@Test
+	public void testGetUsersForTokensNullTokenIsGuest() {
+		List<CachedUser> cachedUsers = gatekeeper
+				.getCachedUsersForTokens(Collections.singletonList(null));
+
+		assertSame(cachedUsers.get(0), gatekeeper.getCachedUserForToken(null));
+		assertGuestWasPicked(cachedUsers.get(0).getUser());
+	}
+
+	@Test
+	public void testGetUsersForSignedTokens() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		String forgedToken = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId))
+				.substring(1);
+
+		List<CachedUser> cachedUsers = gatekeeper
+				.getCachedUsersForTokens(List.of(authToken.token(), forgedToken));
+
+		User pickedUser = (User) userPickerSpy.MCR.getReturnValue("pickUser", 0);
+		assertIsCopyOfUser(cachedUsers.get(0).getUser(), pickedUser);
+		assertNull(cachedUsers.get(1));
+	}
+
+	@Test
+	public void testGuestUserIsCached() {
+		User guestUser = gatekeeper.getUserForToken(null);
+		User secondGuestUser = gatekeeper.getUserForToken(null);
+
+		assertSame(secondGuestUser, guestUser);
+		getUserPickerSpy().MCR.assertNumberOfCallsToMethod("pickGuest", 1);
+	}
+
+	@Test
+	public void testGuestUserIsDroppedWhenGuestUserIsUpdated() {
+		gatekeeper.onlyForTestSetGuestUserRefreshExecutor(Runnable::run);
+		User guestUser = gatekeeper.getUserForToken(null);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, guestUser.id, "update");
+
+		User refreshedGuestUser = getCachedGuestUser();
+		assertNotSame(refreshedGuestUser, guestUser);
+		assertSame(gatekeeper.getUserForToken(null), refreshedGuestUser);
+	}
+
+	@Test
+	public void testGuestUserIsDroppedWhenGuestUserIsDeleted() {
+		gatekeeper.onlyForTestSetGuestUserRefreshExecutor(Runnable::run);
+		User guestUser = gatekeeper.getUserForToken(null);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, guestUser.id, "delete");
+
+		User refreshedGuestUser = getCachedGuestUser();
+		assertNotSame(refreshedGuestUser, guestUser);
+		assertSame(gatekeeper.getUserForToken(null), refreshedGuestUser);
+	}
+
+	private User getCachedGuestUser() {
+		return gatekeeper.onlyForTestGetGuestUserCache().onlyForTestGetCachedGuestUser().getUser();
+	}
+
+	@Test
+	public void testGuestUserIsKeptWhenOtherUserIsUpdated() {
+		User guestUser = gatekeeper.getUserForToken(null);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, "someOtherUserId", "update");
+
+		assertSame(gatekeeper.getUserForToken(null), guestUser);
+	}
+
 	private void assertGuestWasPicked(User logedInUser) {
 		UserPickerSpy userPicker = assertAndReturnUserPickerProviderWasUsedToGetUserPicker();
 		userPicker.MCR.assertMethodWasCalled("pickGuest");
@@ -157,7 +295,9 @@ public class GatekeeperTest {
 		assertSame(authToken.loginId(), pickedUser.loginId);
 		assertSame(authToken.firstName().get(), pickedUser.firstName);
 		assertSame(authToken.lastName().get(), pickedUser.lastName);
-		assertSame(authToken.permissionUnits(), pickedUser.permissionUnitIds);
+		assertEquals(authToken.permissionUnits(), pickedUser.permissionUnitIds);
+		assertSame(authToken.permissionUnits(),
+				gatekeeper.getUserForToken(authToken.token()).permissionUnitIds);
 	}
 
 	private void assertTimestamp(long timestampToValidate, long extraMillis) {
@@ -175,6 +315,22 @@ public class GatekeeperTest {
 		return (User) userPicker.MCR.getReturnValue("pickUser", 0);
 	}
 
+	private void assertIsCopyOfUser(User user, User copiedUser) {
+		assertNotSame(user, copiedUser);
+		for (Field field : User.class.getFields()) {
+			assertEquals(getFieldValue(field, copiedUser), getFieldValue(field, user),
+					"field " + field.getName());
+		}
+	}
+
+	private Object getFieldValue(Field field, User user) {
+		try {
+			return field.get(user);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	@Test
 	public void testGetAuthTokenForUserInfo_noNames() {
 		User user = new User(USER_RECORD_TYPE);
@@ -192,7 +348,9 @@ public class GatekeeperTest {
 		assertSame(authToken.loginId(), pickedUser.loginId);
 		assertTrue(authToken.firstName().isEmpty());
 		assertTrue(authToken.lastName().isEmpty());
-		assertSame(authToken.permissionUnits(), pickedUser.permissionUnitIds);
+		assertEquals(authToken.permissionUnits(), pickedUser.permissionUnitIds);
+		assertSame(authToken.permissionUnits(),
+				gatekeeper.getUserForToken(authToken.token()).permissionUnitIds);
 	}
 
 	private void assertTokenHasUUIDFormat(String token) {
@@ -251,23 +409,57 @@ public class GatekeeperTest {
 
 		User pickedUser = assertAndReturnPickUserWasUsed(userInfo);
 		User logedInUser = gatekeeper.getUserForToken(authToken.token());
-		assertSame(logedInUser, pickedUser);
+		assertIsCopyOfUser(logedInUser, pickedUser);
 	}
 
 	@Test
-	public void testOldTokensRemovedWhenCreatingANew() {
+	public void testOldTokensNotRemovedWhenCreatingANew() {
 		ActiveTokenForUser activeTokenForUser = createActiveTokenForUserValidUntilInThePast(
 				userElly.loginId);
 		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
-		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
-		assertTrue(gatekeeper.onlyForTestGetActiveTokens().containsKey(TOKEN));
 
 		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
 
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 2);
+		assertTrue(hasActiveToken(authToken.token()));
+		assertTrue(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testRemoveNoLongerValidActiveTokens() {
+		ActiveTokenForUser activeTokenForUser = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		int removedTokens = gatekeeper.removeNoLongerValidActiveTokens(100);
+
+		assertEquals(removedTokens, 1);
 		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
-		assertTrue(gatekeeper.onlyForTestGetActiveTokens().containsKey(authToken.token()));
-		assertFalse(gatekeeper.onlyForTestGetActiveTokens().containsKey(TOKEN));
+		assertTrue(hasActiveToken(authToken.token()));
+		assertFalse(hasActiveToken(TOKEN));
+		assertFalse(gatekeeper.onlyForTestGetActiveUsers().containsKey(userElly.loginId));
+	}
+
+	@Test
+	public void testValidTokensAreKeptWhenCreatingANew() {
+		setupAnActiveUser(TOKEN, userElly);
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 2);
+		assertTrue(hasActiveToken(TOKEN));
+		assertTrue(hasActiveToken(authToken.token()));
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 2);
+	}
+
+	@Test
+	public void testRemoveAuthTokenRemovesTokenFromExpiryIndex() {
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
 
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 0);
 	}
 
 	@Test(enabled = false)
@@ -303,17 +495,12 @@ public class GatekeeperTest {
 
 	private void printActiveTokens() {
 		System.out.println("ActiveTokens (" + gatekeeper.onlyForTestGetActiveTokens().size() + ")");
-		for (ActiveTokenForUser activeToken : gatekeeper.onlyForTestGetActiveTokens().values()) {
-			System.out.println(
-					activeToken.loginId() + " is valid? " + activeTokenForUserIsValid(activeToken));
+		for (ActiveToken activeToken : gatekeeper.onlyForTestGetActiveTokens().values()) {
+			System.out.println(activeToken.tokenForUser().loginId() + " is valid? "
+					+ activeToken.isValidAt(System.currentTimeMillis()));
 		}
 	}
 
-	private boolean activeTokenForUserIsValid(ActiveTokenForUser activeTokenForUser) {
-		long currentTimestamp = System.currentTimeMillis();
-		return currentTimestamp <= activeTokenForUser.validUntil();
-	}
-
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
 			+ "Token not valid")
 	public void testgetUserForTokenNotValid() {
@@ -335,7 +522,7 @@ public class GatekeeperTest {
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
 			+ "Token not valid")
 	public void testRemoveAuthTokenForUserTokenDoesNotExist() {
-		gatekeeper.removeAuthToken("someLoginId", "someNonExistingToken");
+		gatekeeper.removeAuthToken("someLoginId", ANOTHER_TOKEN);
 	}
 
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
@@ -343,7 +530,7 @@ public class GatekeeperTest {
 	public void testRemoveAuthTokenForUserFailsIfWrongUserId() {
 		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
 		gatekeeper.getUserForToken(authToken.token());
-		gatekeeper.removeAuthToken("anotherTokenId", authToken.token());
+		gatekeeper.removeAuthToken(ANOTHER_TOKEN_ID, authToken.token());
 	}
 
 	@Test
@@ -372,14 +559,14 @@ public class GatekeeperTest {
 			+ "Token not valid")
 	public void testRenewAuthTokenTokenIdDoesNotExists() {
 		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
-		gatekeeper.renewAuthToken("anotherTokenId", authToken.token());
+		gatekeeper.renewAuthToken(ANOTHER_TOKEN_ID, authToken.token());
 	}
 
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
 			+ "Token not valid")
 	public void testRenewAuthTokenTokenDoesNotExists() {
 		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
-		gatekeeper.renewAuthToken(authToken.tokenId(), "anotherToken");
+		gatekeeper.renewAuthToken(authToken.tokenId(), ANOTHER_TOKEN);
 	}
 
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
@@ -389,7 +576,7 @@ public class GatekeeperTest {
 				userElly.loginId);
 		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
 
-		gatekeeper.renewAuthToken(activeTokenForUser.tokenId(), TOKEN);
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
 	}
 
 	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
@@ -399,7 +586,7 @@ public class GatekeeperTest {
 				userElly.loginId);
 		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
 
-		gatekeeper.renewAuthToken(activeTokenForUser.tokenId(), TOKEN);
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
 	}
 
 	@Test
@@ -408,9 +595,9 @@ public class GatekeeperTest {
 				userElly.loginId);
 		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
 
-		AuthToken newAuthToken = gatekeeper.renewAuthToken(activeTokenForUser.tokenId(), TOKEN);
+		AuthToken newAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
 
-		assertEquals(newAuthToken.tokenId(), activeTokenForUser.tokenId());
+		assertEquals(newAuthToken.tokenId(), TOKEN_ID);
 		assertNotEquals(newAuthToken.token(), TOKEN);
 		assertTokenHasUUIDFormat(newAuthToken.token());
 		assertNotEquals(newAuthToken.validUntil(), activeTokenForUser.validUntil());
@@ -421,23 +608,82 @@ public class GatekeeperTest {
 		assertEquals(newAuthToken.firstName().get(), userElly.firstName);
 		assertEquals(newAuthToken.lastName().get(), userElly.lastName);
 		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(newAuthToken.loginId());
-		assertEquals(activeUser.getNumberActiveTokens(), 2);
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
 
 	}
 
 	@Test
-	public void testRenewAuthTokenOldTokenShouldStillWork() {
-		ActiveTokenForUser activeTokenForUser = createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(
-				userElly.loginId);
-		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, activeTokenForUser, userElly);
+	public void testRenewAuthTokenRetiresOldToken() {
+		setupAnActiveUser(TOKEN, userElly);
 
-		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(activeTokenForUser.tokenId(), TOKEN);
+		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
 
-		String oldToken = TOKEN;
-		User userForToken = gatekeeper.getUserForToken(oldToken);
-		User userForToken2 = gatekeeper.getUserForToken(renewedAuthToken.token());
+		assertFalse(hasActiveToken(TOKEN));
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 1);
+		AuthenticationException e = getExceptionForToken(TOKEN);
+		assertEquals(e.getMessage(), "Token not valid");
+		assertIsCopyOfUser(gatekeeper.getUserForToken(renewedAuthToken.token()), userElly);
+	}
+
+	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
+			+ "Token not valid")
+	public void testRenewAuthTokenTwiceWithSameToken() {
+		setupAnActiveUser(TOKEN, userElly);
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+	}
+
+	@Test
+	public void testRenewAuthTokenOldTokenStillWorksDuringGracePeriod() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		setupAnActiveUser(TOKEN, userElly);
 
-		assertEquals(userForToken.loginId, userForToken2.loginId);
+		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(renewedAuthToken.token()), userElly);
+		ActiveToken oldToken = gatekeeper.onlyForTestGetActiveTokens()
+				.get(TokenKey.fromString(TOKEN));
+		assertTrue(oldToken.retired());
+		assertTimestamp(oldToken.tokenForUser().validUntil(), 5000);
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 2);
+	}
+
+	@Test
+	public void testRenewAuthTokenGracePeriodDoesNotExtendValidUntil() {
+		gatekeeper.setRenewGracePeriodInMillis(60000);
+		setupAnActiveUserWithValidUntil(TOKEN, userElly, 1000);
+
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		ActiveToken oldToken = gatekeeper.onlyForTestGetActiveTokens()
+				.get(TokenKey.fromString(TOKEN));
+		assertTimestamp(oldToken.tokenForUser().validUntil(), 1000);
+	}
+
+	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
+			+ "Token not valid")
+	public void testRenewRetiredTokenDuringGracePeriod() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		setupAnActiveUser(TOKEN, userElly);
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Renew grace period in millis must be at least 0, was: -1")
+	public void testSetRenewGracePeriodInMillisBelowZero() {
+		gatekeeper.setRenewGracePeriodInMillis(-1);
+	}
+
+	@Test
+	public void testSetRenewGracePeriodInMillis() {
+		gatekeeper.setRenewGracePeriodInMillis(2000);
+
+		assertEquals(gatekeeper.onlyForTestGetRenewGracePeriodInMillis(), 2000);
 	}
 
 	@Test
@@ -447,7 +693,7 @@ public class GatekeeperTest {
 		String oldToken = TOKEN;
 		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(oldToken, activeTokenForUser, userElly);
 
-		AuthToken newAuthToken = gatekeeper.renewAuthToken(activeTokenForUser.tokenId(), oldToken);
+		AuthToken newAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, oldToken);
 
 		gatekeeper.getUserForToken(newAuthToken.token());
 	}
@@ -496,11 +742,11 @@ public class GatekeeperTest {
 				.getParameterForMethodAndCallNumberAndParameter("pickUser", 0, "userInfo");
 		assertEquals(userInfoToGetUpdatedUser.idInUserStorage, userElly.id);
 
-		var updatedUserFromStorage = userPickerSpy.MCR.getReturnValue("pickUser", 0);
+		var updatedUserFromStorage = (User) userPickerSpy.MCR.getReturnValue("pickUser", 0);
 
 		Map<String, ActiveUser> activeUsers = gatekeeper.onlyForTestGetActiveUsers();
 		User userInCache = activeUsers.get(userElly.loginId).user;
-		assertSame(userInCache, updatedUserFromStorage);
+		assertIsCopyOfUser(userInCache, updatedUserFromStorage);
 	}
 
 	@Test
@@ -550,34 +796,34 @@ public class GatekeeperTest {
 	public void testMultipleLogInAndDataChanges() {
 		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userRudolfUpdated);
 
-		setupAnActiveUser("tokenElly_1", userElly);
-		setupAnActiveUser("tokenElly_2", userElly);
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
 
-		setupAnActiveUser("tokenRudolf_1", userRudolf);
-		setupAnActiveUser("tokenRudolf_2", userRudolf);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+		setupAnActiveUser(TOKEN_RUDOLF_2, userRudolf);
 
-		assertSame(gatekeeper.getUserForToken("tokenRudolf_1"), userRudolf);
-		assertSame(gatekeeper.getUserForToken("tokenRudolf_2"), userRudolf);
-		assertSame(gatekeeper.getUserForToken("tokenElly_1"), userElly);
-		assertSame(gatekeeper.getUserForToken("tokenElly_2"), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_RUDOLF_1), userRudolf);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_RUDOLF_2), userRudolf);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_ELLY_1), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_ELLY_2), userElly);
 		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 4);
 		assertEquals(gatekeeper.onlyForTestGetActiveUsers().size(), 2);
 
 		gatekeeper.dataChanged(USER_RECORD_TYPE, userRudolf.id, "update");
 
-		assertNotSame(gatekeeper.getUserForToken("tokenRudolf_1"), userRudolf);
-		assertNotSame(gatekeeper.getUserForToken("tokenRudolf_2"), userRudolf);
-		assertEquals(gatekeeper.getUserForToken("tokenRudolf_1").id, "someRudolfUserId");
-		assertEquals(gatekeeper.getUserForToken("tokenRudolf_2").id, "someRudolfUserId");
+		assertNotSame(gatekeeper.getUserForToken(TOKEN_RUDOLF_1), userRudolf);
+		assertNotSame(gatekeeper.getUserForToken(TOKEN_RUDOLF_2), userRudolf);
+		assertEquals(gatekeeper.getUserForToken(TOKEN_RUDOLF_1).id, "someRudolfUserId");
+		assertEquals(gatekeeper.getUserForToken(TOKEN_RUDOLF_2).id, "someRudolfUserId");
 		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 4);
 		assertEquals(gatekeeper.onlyForTestGetActiveUsers().size(), 2);
 
-		gatekeeper.removeAuthToken(TOKEN_ID, "tokenRudolf_2");
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN_RUDOLF_2);
 
 		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 3);
 		assertEquals(gatekeeper.onlyForTestGetActiveUsers().size(), 2);
 
-		gatekeeper.removeAuthToken(TOKEN_ID, "tokenRudolf_1");
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN_RUDOLF_1);
 
 		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 2);
 		printActiveUsers();
@@ -588,6 +834,1483 @@ public class GatekeeperTest {
 		assertEquals(gatekeeper.onlyForTestGetActiveUsers().size(), 0);
 	}
 
+	@Test
+	public void testDataChanged_delete_onlyRemovesTokensForDeletedUser() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		Map<TokenKey, ActiveToken> activeTokens = gatekeeper.onlyForTestGetActiveTokens();
+		assertEquals(activeTokens.size(), 1);
+		assertTrue(hasActiveToken(TOKEN_RUDOLF_1));
+		assertFalse(gatekeeper.onlyForTestGetActiveUsers().containsKey(userElly.loginId));
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 1);
+	}
+
+	@Test
+	public void testActiveUserKeepsTrackOfItsTokens() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId);
+		assertEquals(activeUser.getNumberActiveTokens(), 2);
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN_ELLY_1);
+
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
+		assertSame(gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId), activeUser);
+	}
+
+	@Test
+	public void testTokenIsStoredInItsShard() {
+		setupAnActiveUser(TOKEN, userElly);
+
+		TokenKey tokenKey = TokenKey.fromString(TOKEN);
+		ActiveTokenShard shard = gatekeeper.onlyForTestGetShardFor(tokenKey);
+		assertEquals(shard.get(tokenKey).tokenForUser().tokenId(), TOKEN_ID_KEY);
+	}
+
+	@Test
+	public void testTokensAreSpreadOverShards() {
+		Set<ActiveTokenShard> usedShards = new HashSet<>();
+		for (int i = 0; i < 100; i++) {
+			AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+			TokenKey tokenKey = TokenKey.fromString(authToken.token());
+			usedShards.add(gatekeeper.onlyForTestGetShardFor(tokenKey));
+		}
+
+		assertTrue(usedShards.size() > 1);
+	}
+
+	@Test
+	public void testSetNumberOfShards() {
+		gatekeeper.setNumberOfShards(3);
+
+		assertEquals(gatekeeper.onlyForTestGetNumberOfShards(), 3);
+		setupAnActiveUser(TOKEN, userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN), userElly);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Number of shards must be at least 1, was: 0")
+	public void testSetNumberOfShardsLessThanOne() {
+		gatekeeper.setNumberOfShards(0);
+	}
+
+	@Test
+	public void testRemoveNoLongerValidActiveTokensStartsWithNextShardEachCall() {
+		gatekeeper.setNumberOfShards(2);
+		String tokenInFirstShard = "00000000-0000-4000-8000-000000000001";
+		String tokenInSecondShard = "00000000-0000-4001-8000-000000000001";
+		ActiveTokenForUser expiredToken = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(tokenInFirstShard, expiredToken,
+				userElly);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(tokenInSecondShard, expiredToken,
+				userElly);
+		assertNotSame(gatekeeper.onlyForTestGetShardFor(TokenKey.fromString(tokenInFirstShard)),
+				gatekeeper.onlyForTestGetShardFor(TokenKey.fromString(tokenInSecondShard)));
+
+		assertEquals(gatekeeper.removeNoLongerValidActiveTokens(1), 1);
+		assertEquals(gatekeeper.removeNoLongerValidActiveTokens(1), 1);
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+	}
+
+	@Test
+	public void testExpiredTokenIsRemovedFromActiveUser() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		ActiveTokenForUser expiredToken = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN_ELLY_2, expiredToken, userElly);
+
+		gatekeeper.removeNoLongerValidActiveTokens(100);
+
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId);
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
+	}
+
+	@Test
+	public void testActiveUserIsIndexedById() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+
+		Map<String, Set<ActiveUser>> activeUsersById = gatekeeper.onlyForTestGetActiveUsersById();
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId);
+		assertEquals(activeUsersById.get(userElly.id), Set.of(activeUser));
+	}
+
+	@Test
+	public void testActiveUserIsRemovedFromIdIndexWhenLastTokenIsRemoved() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN_ELLY_1);
+		assertTrue(gatekeeper.onlyForTestGetActiveUsersById().containsKey(userElly.id));
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN_ELLY_2);
+		assertTrue(gatekeeper.onlyForTestGetActiveUsersById().isEmpty());
+	}
+
+	@Test
+	public void testActiveUserIsRemovedFromIdIndexOnDelete() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		Map<String, Set<ActiveUser>> activeUsersById = gatekeeper.onlyForTestGetActiveUsersById();
+		assertFalse(activeUsersById.containsKey(userElly.id));
+		assertTrue(activeUsersById.containsKey(userRudolf.id));
+	}
+
+	@Test
+	public void testDataChanged_update_updatesAllActiveUsersWithSameId() {
+		User userEllyWithNewLoginId = createUserForElly();
+		userEllyWithNewLoginId.loginId = "someNewEllyLoginId";
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userElly);
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userEllyWithNewLoginId);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "update");
+
+		userPickerSpy.MCR.assertNumberOfCallsToMethod("pickUser", 1);
+		Map<String, ActiveUser> activeUsers = gatekeeper.onlyForTestGetActiveUsers();
+		assertIsCopyOfUser(activeUsers.get(userElly.loginId).user, userElly);
+		assertIsCopyOfUser(activeUsers.get(userEllyWithNewLoginId.loginId).user, userElly);
+	}
+
+	@Test
+	public void testDataChanged_delete_removesAllActiveUsersWithSameId() {
+		User userEllyWithNewLoginId = createUserForElly();
+		userEllyWithNewLoginId.loginId = "someNewEllyLoginId";
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userEllyWithNewLoginId);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsersById().isEmpty());
+	}
+
+	@Test
+	public void testActiveTokenReferencesItsActiveUser() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+
+		ActiveToken activeToken = gatekeeper.onlyForTestGetActiveTokens()
+				.get(TokenKey.fromString(TOKEN_ELLY_1));
+
+		assertSame(activeToken.activeUser(),
+				gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId));
+	}
+
+	@Test
+	public void testGetUserForTokenReturnsUpdatedUser() {
+		User updatedUserElly = createUserForElly();
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> updatedUserElly);
+		setupAnActiveUser(TOKEN, userElly);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "update");
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN), updatedUserElly);
+	}
+
+	@Test
+	public void testGetCachedUserForTokenIsSameUntilUserIsUpdated() {
+		User updatedUserElly = createUserForElly();
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> updatedUserElly);
+		setupAnActiveUser(TOKEN, userElly);
+		CachedUser cachedUser = gatekeeper.getCachedUserForToken(TOKEN);
+
+		assertSame(gatekeeper.getCachedUserForToken(TOKEN), cachedUser);
+		assertSame(cachedUser.getUser(), gatekeeper.getUserForToken(TOKEN));
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "update");
+
+		CachedUser updatedCachedUser = gatekeeper.getCachedUserForToken(TOKEN);
+		assertNotSame(updatedCachedUser, cachedUser);
+		assertIsCopyOfUser(updatedCachedUser.getUser(), updatedUserElly);
+	}
+
+	@Test
+	public void testGetCachedUserForTokenNullIsCachedGuestUser() {
+		CachedUser cachedGuestUser = gatekeeper.getCachedUserForToken(null);
+
+		assertSame(gatekeeper.getCachedUserForToken(null), cachedGuestUser);
+		assertSame(cachedGuestUser.getUser(), gatekeeper.getUserForToken(null));
+	}
+
+	@Test(expectedExceptions = AuthenticationException.class)
+	public void testGetCachedUserForTokenNotValid() {
+		gatekeeper.getCachedUserForToken("someNotActiveToken");
+	}
+
+	@Test
+	public void testTokenNotValidExceptionIsSharedAndHasNoStackTrace() {
+		AuthenticationException unknownTokenException = getExceptionForToken(ANOTHER_TOKEN);
+		ActiveTokenForUser expiredToken = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, expiredToken, userElly);
+		AuthenticationException expiredTokenException = getExceptionForToken(TOKEN);
+
+		assertSame(unknownTokenException, expiredTokenException);
+		assertEquals(unknownTokenException.getMessage(), "Token not valid");
+		assertEquals(unknownTokenException.getStackTrace().length, 0);
+	}
+
+	@Test(expectedExceptions = AuthenticationException.class, expectedExceptionsMessageRegExp = ""
+			+ "Token not valid")
+	public void testMalformedTokenIsNotValid() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+
+		gatekeeper.getUserForToken(TOKEN_ELLY_1.toUpperCase());
+	}
+
+	@Test
+	public void testActiveTokensAreStoredUsingTokenKeys() {
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		ActiveToken activeToken = gatekeeper.onlyForTestGetActiveTokens()
+				.get(TokenKey.fromString(authToken.token()));
+		assertEquals(activeToken.tokenForUser().tokenId(),
+				TokenKey.fromString(authToken.tokenId()));
+	}
+
+	@Test
+	public void testBase64UrlTokenEncoding() {
+		gatekeeper.setTokenEncoding(TokenEncoding.BASE64URL);
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTokenHasBase64UrlFormat(authToken.token());
+		assertTokenHasBase64UrlFormat(authToken.tokenId());
+		User pickedUser = (User) userPickerSpy.MCR.getReturnValue("pickUser", 0);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(authToken.token()), pickedUser);
+	}
+
+	private void assertTokenHasBase64UrlFormat(String token) {
+		assertTrue(token.matches("^[A-Za-z0-9_-]{21}[AQgw]$"));
+	}
+
+	@Test
+	public void testTokensAreAcceptedInBothEncodings() {
+		setupAnActiveUser(TOKEN, userElly);
+		String tokenAsBase64Url = TokenKey.fromString(TOKEN).toBase64UrlString();
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(tokenAsBase64Url), userElly);
+
+		gatekeeper.removeAuthToken(TOKEN_ID_KEY.toBase64UrlString(), tokenAsBase64Url);
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testGetActiveUserStates() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+
+		assertEquals(activeUserStates.size(), 1);
+		ActiveUserState activeUserState = activeUserStates.get(0);
+		assertEquals(activeUserState.loginId(), userElly.loginId);
+		assertIsCopyOfUser(activeUserState.user(), userElly);
+		assertEquals(activeUserState.tokens().size(), 2);
+		TokenState tokenState = activeUserState.tokens().get(0);
+		assertEquals(tokenState.token(), TokenKey.fromString(TOKEN_ELLY_1));
+		assertEquals(tokenState.tokenForUser().tokenId(), TOKEN_ID_KEY);
+	}
+
+	@Test
+	public void testRestoreActiveUserStates() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		int restoredTokens = gatekeeper.restoreActiveUserStates(activeUserStates,
+				System.currentTimeMillis());
+
+		assertEquals(restoredTokens, 2);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_ELLY_1), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_RUDOLF_1), userRudolf);
+		assertEquals(gatekeeper.onlyForTestGetActiveUsersById().get(userElly.id).size(), 1);
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 2);
+	}
+
+	@Test
+	public void testRestoreActiveUserStatesSkipsTokensNoLongerValid() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN_ELLY_2,
+				createActiveTokenForUserValidUntilInThePast(userElly.loginId), userElly);
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		int restoredTokens = gatekeeper.restoreActiveUserStates(activeUserStates,
+				System.currentTimeMillis());
+
+		assertEquals(restoredTokens, 1);
+		assertTrue(hasActiveToken(TOKEN_ELLY_1));
+		assertFalse(hasActiveToken(TOKEN_ELLY_2));
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId);
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
+	}
+
+	@Test
+	public void testRestoreActiveUserStatesWithOnlyTokensNoLongerValid() {
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN_ELLY_1,
+				createActiveTokenForUserValidUntilInThePast(userElly.loginId), userElly);
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		int restoredTokens = gatekeeper.restoreActiveUserStates(activeUserStates,
+				System.currentTimeMillis());
+
+		assertEquals(restoredTokens, 0);
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+	}
+
+	@Test
+	public void testLoginTellsListenersActiveTokenAdded() {
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		TokenKey token = TokenKey.fromString(authToken.token());
+		ActiveTokenForUser tokenForUser = gatekeeper.onlyForTestGetActiveTokens().get(token)
+				.tokenForUser();
+		listener.MCR.assertParameters("activeTokenAdded", 0, token, tokenForUser,
+				gatekeeper.getUserForToken(authToken.token()));
+	}
+
+	private ActiveTokenEventListenerSpy addEventListener() {
+		eventListener = new ActiveTokenEventListenerSpy();
+		gatekeeper.addActiveTokenEventListener(eventListener);
+		return eventListener;
+	}
+
+	@Test
+	public void testRenewTellsListenersActiveTokenAdded() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		TokenKey newToken = TokenKey.fromString(renewedAuthToken.token());
+		ActiveTokenForUser tokenForUser = gatekeeper.onlyForTestGetActiveTokens().get(newToken)
+				.tokenForUser();
+		listener.MCR.assertParameters("activeTokenAdded", 0, newToken, tokenForUser,
+				gatekeeper.getUserForToken(renewedAuthToken.token()));
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TokenKey.fromString(TOKEN));
+	}
+
+	@Test
+	public void testRenewWithGracePeriodTellsListenersRetiredTokenAdded() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		TokenKey oldToken = TokenKey.fromString(TOKEN);
+		ActiveTokenForUser retiredTokenForUser = gatekeeper.onlyForTestGetActiveTokens()
+				.get(oldToken).tokenForUser();
+		listener.MCR.assertNumberOfCallsToMethod("activeTokenAdded", 2);
+		listener.MCR.assertParameters("activeTokenAdded", 1, oldToken, retiredTokenForUser,
+				gatekeeper.getUserForToken(TOKEN));
+		listener.MCR.assertMethodNotCalled("activeTokenRemoved");
+	}
+
+	@Test
+	public void testRemoveAuthTokenTellsListenersActiveTokenRemoved() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN);
+
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TokenKey.fromString(TOKEN));
+	}
+
+	@Test
+	public void testRemoveExpiredTokenTellsListenersActiveTokenRemoved() {
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN,
+				createActiveTokenForUserValidUntilInThePast(userElly.loginId), userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.removeNoLongerValidActiveTokens(100);
+
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TokenKey.fromString(TOKEN));
+	}
+
+	@Test
+	public void testDataChangedDeleteTellsListenersActiveTokensRemoved() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_ELLY_2, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		listener.MCR.assertNumberOfCallsToMethod("activeTokenRemoved", 2);
+		listener.MCR.assertParameters("activeTokenRemoved", 0, TokenKey.fromString(TOKEN_ELLY_1));
+		listener.MCR.assertParameters("activeTokenRemoved", 1, TokenKey.fromString(TOKEN_ELLY_2));
+	}
+
+	@Test
+	public void testDataChangedUpdateTellsListenersActiveUserUpdated() {
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userRudolfUpdated);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userRudolf.id, "update");
+
+		listener.MCR.assertParameters("activeUserUpdated", 0, userRudolf.loginId,
+				userRudolfUpdated);
+	}
+
+	@Test
+	public void testLoginAwaitsListenersWritingEvents() {
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		listener.MCR.assertNumberOfCallsToMethod("awaitEventsWritten", 1);
+	}
+
+	@Test
+	public void testLoginFailsIfListenerCouldNotWriteEvents() {
+		ActiveTokenEventListenerSpy listener = addEventListener();
+		UncheckedIOException error = new UncheckedIOException(new IOException("someError"));
+		listener.MRV.setAlwaysThrowException("awaitEventsWritten", error);
+
+		try {
+			gatekeeper.getAuthTokenForUserInfo(userInfo);
+			fail("An AuthenticationException should have been thrown");
+		} catch (AuthenticationException e) {
+			assertSame(e.getCause(), error);
+		}
+	}
+
+	@Test
+	public void testRenewAwaitsListenersWritingEvents() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		listener.MCR.assertNumberOfCallsToMethod("awaitEventsWritten", 1);
+	}
+
+	@Test
+	public void testRemoveAuthTokenAwaitsListenersWritingEvents() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN);
+
+		listener.MCR.assertNumberOfCallsToMethod("awaitEventsWritten", 1);
+	}
+
+	@Test
+	public void testDataChangedAwaitsListenersWritingEvents() {
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		listener.MCR.assertNumberOfCallsToMethod("awaitEventsWritten", 1);
+	}
+
+	@Test
+	public void testValidatingTokenDoesNotAwaitListeners() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getUserForToken(TOKEN);
+
+		listener.MCR.assertMethodNotCalled("awaitEventsWritten");
+	}
+
+	@Test
+	public void testRemovedListenerIsNotTold() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+		gatekeeper.removeActiveTokenEventListener(listener);
+
+		gatekeeper.removeAuthToken(TOKEN_ID, TOKEN);
+
+		listener.MCR.assertMethodNotCalled("activeTokenRemoved");
+	}
+
+	@Test
+	public void testRestoreDoesNotTellListeners() {
+		setupAnActiveUser(TOKEN, userElly);
+		List<ActiveUserState> activeUserStates = gatekeeper.getActiveUserStates();
+		gatekeeper.onlyForTestEmptyAuthentications();
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.restoreActiveUserStates(activeUserStates, System.currentTimeMillis());
+
+		listener.MCR.assertMethodNotCalled("activeTokenAdded");
+	}
+
+	@Test
+	public void testEventReplayerAddsActiveToken() {
+		ActiveTokenEventListenerSpy listener = addEventListener();
+		ActiveTokenEventListener replayer = gatekeeper.createEventReplayer();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(
+				userElly.loginId);
+
+		replayer.activeTokenAdded(TokenKey.fromString(TOKEN), tokenForUser, userElly);
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN), userElly);
+		assertEquals(gatekeeper.onlyForTestGetActiveUsersById().get(userElly.id).size(), 1);
+		listener.MCR.assertMethodNotCalled("activeTokenAdded");
+	}
+
+	@Test
+	public void testEventReplayerDoesNotAddExpiredToken() {
+		ActiveTokenEventListener replayer = gatekeeper.createEventReplayer();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+
+		replayer.activeTokenAdded(TokenKey.fromString(TOKEN), tokenForUser, userElly);
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+	}
+
+	@Test
+	public void testEventReplayerRemovesTokenRetiredWithExpiredGracePeriod() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+
+		gatekeeper.createEventReplayer().activeTokenAdded(TokenKey.fromString(TOKEN),
+				tokenForUser, userElly);
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+	}
+
+	@Test
+	public void testEventReplayerAddingSameTokenTwice() {
+		ActiveTokenEventListener replayer = gatekeeper.createEventReplayer();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(
+				userElly.loginId);
+
+		replayer.activeTokenAdded(TokenKey.fromString(TOKEN), tokenForUser, userElly);
+		replayer.activeTokenAdded(TokenKey.fromString(TOKEN), tokenForUser, userElly);
+
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers().get(userElly.loginId);
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
+	}
+
+	@Test
+	public void testEventReplayerRemovesActiveToken() {
+		setupAnActiveUser(TOKEN, userElly);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+		ActiveTokenEventListener replayer = gatekeeper.createEventReplayer();
+
+		replayer.activeTokenRemoved(TokenKey.fromString(TOKEN));
+		replayer.activeTokenRemoved(TokenKey.fromString(ANOTHER_TOKEN));
+
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+		assertTrue(gatekeeper.onlyForTestGetActiveUsers().isEmpty());
+		listener.MCR.assertMethodNotCalled("activeTokenRemoved");
+	}
+
+	@Test
+	public void testEventReplayerUpdatesActiveUser() {
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+		ActiveTokenEventListener replayer = gatekeeper.createEventReplayer();
+
+		replayer.activeUserUpdated(userRudolf.loginId, userRudolfUpdated);
+		replayer.activeUserUpdated("someNotActiveLoginId", userElly);
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_RUDOLF_1), userRudolfUpdated);
+		assertIsCopyOfUser(gatekeeper.getCachedUserForToken(TOKEN_RUDOLF_1).getUser(),
+				userRudolfUpdated);
+		assertFalse(gatekeeper.onlyForTestGetActiveUsers().containsKey("someNotActiveLoginId"));
+	}
+
+	@Test
+	public void testActiveUsersShareRolesAndPermissionUnits() {
+		addRolesAndPermissionUnits(userElly);
+		addRolesAndPermissionUnits(userRudolf);
+
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+
+		User activeRudolf = gatekeeper.getUserForToken(TOKEN_RUDOLF_1);
+		User activeElly = gatekeeper.getUserForToken(TOKEN_ELLY_1);
+		assertSame(activeRudolf.roles, activeElly.roles);
+		assertSame(activeRudolf.permissionUnitIds, activeElly.permissionUnitIds);
+		assertEquals(activeElly.roles, Set.of("someRole", "someOtherRole"));
+		assertEquals(activeElly.permissionUnitIds, Set.of("somePermissionUnit"));
+	}
+
+	@Test
+	public void testSharingRolesAndPermissionUnitsDoesNotChangePickedUser() {
+		addRolesAndPermissionUnits(userElly);
+		Set<String> roles = userElly.roles;
+		Set<String> permissionUnitIds = userElly.permissionUnitIds;
+
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+
+		assertSame(userElly.roles, roles);
+		assertSame(userElly.permissionUnitIds, permissionUnitIds);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN_ELLY_1), userElly);
+	}
+
+	private void addRolesAndPermissionUnits(User user) {
+		user.roles.add("someRole");
+		user.roles.add("someOtherRole");
+		user.permissionUnitIds.add("somePermissionUnit");
+	}
+
+	@Test
+	public void testAuthTokenGetsSharedPermissionUnits() {
+		User pickedUser = createUserForElly();
+		addRolesAndPermissionUnits(pickedUser);
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> pickedUser);
+		addRolesAndPermissionUnits(userRudolf);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertSame(authToken.permissionUnits(),
+				gatekeeper.getUserForToken(TOKEN_RUDOLF_1).permissionUnitIds);
+	}
+
+	@Test
+	public void testUpdatedActiveUserSharesRolesAndPermissionUnits() {
+		addRolesAndPermissionUnits(userElly);
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUser(TOKEN_RUDOLF_1, userRudolf);
+		addRolesAndPermissionUnits(userRudolfUpdated);
+
+		gatekeeper.createEventReplayer().activeUserUpdated(userRudolf.loginId,
+				userRudolfUpdated);
+
+		User activeRudolf = gatekeeper.getUserForToken(TOKEN_RUDOLF_1);
+		User activeElly = gatekeeper.getUserForToken(TOKEN_ELLY_1);
+		assertSame(activeRudolf.roles, activeElly.roles);
+		assertSame(activeRudolf.permissionUnitIds, activeElly.permissionUnitIds);
+	}
+
+	@Test
+	public void testSignedTokenIsHandedOutAndAccepted() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		SignedToken signedToken = signedTokenFormat.read(authToken.token());
+		assertEquals(signedToken.tokenForUser().tokenId(),
+				TokenKey.fromString(authToken.tokenId()));
+		assertEquals(signedToken.tokenForUser().validUntil(), authToken.validUntil());
+		assertEquals(signedToken.tokenForUser().renewUntil(), authToken.renewUntil());
+		assertEquals(signedToken.tokenForUser().loginId(), authToken.loginId());
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().containsKey(signedToken.token()));
+		User pickedUser = (User) userPickerSpy.MCR.getReturnValue("pickUser", 0);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(authToken.token()), pickedUser);
+	}
+
+	private SignedTokenFormat useSignedTokens() {
+		SignedTokenFormat signedTokenFormat = new SignedTokenFormat(createSigningKey(0));
+		gatekeeper.setSignedTokenFormat(signedTokenFormat);
+		return signedTokenFormat;
+	}
+
+	private byte[] createSigningKey(int value) {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) value);
+		return key;
+	}
+
+	@Test
+	public void testUnsignedTokenIsNotAcceptedWhenUsingSignedTokens() {
+		setupAnActiveUser(TOKEN, userElly);
+		useSignedTokens();
+
+		AuthenticationException e = getExceptionForToken(TOKEN);
+
+		assertEquals(e.getMessage(), "Token not valid");
+	}
+
+	@Test
+	public void testSignedTokenWithOtherKeyIsNotAccepted() {
+		useSignedTokens();
+		SignedTokenFormat otherSignedTokenFormat = new SignedTokenFormat(createSigningKey(1));
+		String token = otherSignedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		AuthenticationException e = getExceptionForToken(token);
+
+		assertEquals(e.getMessage(), "Token not valid");
+		userPickerSpy.MCR.assertMethodNotCalled("pickUser");
+	}
+
+	@Test
+	public void testExpiredSignedTokenIsNotAcceptedEvenIfActive() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, tokenForUser, userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN), tokenForUser);
+
+		AuthenticationException e = getExceptionForToken(token);
+
+		assertEquals(e.getMessage(), "Token not valid");
+	}
+
+	@Test
+	public void testSignedTokenFromOtherNodeIsAddedToActiveTokens() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(token), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(token), userElly);
+
+		assertTrue(hasActiveToken(TOKEN));
+		userPickerSpy.MCR.assertNumberOfCallsToMethod("pickUser", 1);
+		UserInfo pickedUserInfo = (UserInfo) userPickerSpy.MCR
+				.getParameterForMethodAndCallNumberAndParameter("pickUser", 0, "userInfo");
+		assertEquals(pickedUserInfo.loginId, userElly.loginId);
+	}
+
+	@Test
+	public void testSignedTokenFromOtherNodeUsesAlreadyActiveUser() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN_ELLY_2),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		assertIsCopyOfUser(gatekeeper.getUserForToken(token), userElly);
+
+		userPickerSpy.MCR.assertMethodNotCalled("pickUser");
+	}
+
+	@Test
+	public void testSignedTokenForUserThatCanNotBePickedIsNotAccepted() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		userPickerSpy.MRV.setAlwaysThrowException("pickUser",
+				new RuntimeException("user not found"));
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		AuthenticationException e = getExceptionForToken(token);
+
+		assertEquals(e.getMessage(), "Token not valid");
+		assertFalse(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testRemovedSignedTokenIsRevoked() {
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		AuthenticationException e = getExceptionForToken(authToken.token());
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 1);
+		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
+	}
+
+	@Test
+	public void testRemovedUnsignedTokenIsNotRevoked() {
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 0);
+	}
+
+	@Test
+	public void testSignedTokensOfDeletedUserAreRevoked() {
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userElly);
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+
+		AuthenticationException e = getExceptionForToken(authToken.token());
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 1);
+	}
+
+	@Test
+	public void testEventReplayerRevokesRemovedSignedToken() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		setupAnActiveUser(TOKEN, userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		gatekeeper.createEventReplayer().activeTokenRemoved(TokenKey.fromString(TOKEN));
+
+		AuthenticationException e = getExceptionForToken(token);
+		assertEquals(e.getMessage(), "Token not valid");
+	}
+
+	@Test
+	public void testRemovedSignedTokenTellsListenersItIsRevoked() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		SignedToken signedToken = signedTokenFormat.read(authToken.token());
+		listener.MCR.assertParameters("activeTokenRevoked", 0, signedToken.token(),
+				RevokedTokens.REVOKED_NOW, signedToken.tokenForUser().validUntil());
+	}
+
+	@Test
+	public void testRemovedUnsignedTokenDoesNotTellListenersItIsRevoked() {
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		listener.MCR.assertMethodNotCalled("activeTokenRevoked");
+	}
+
+	@Test
+	public void testSignedTokenRevokedOnOtherNodeIsNotAddedToActiveTokens() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(
+				userElly.loginId);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN), tokenForUser);
+
+		gatekeeper.createEventReplayer().activeTokenRevoked(TokenKey.fromString(TOKEN),
+				RevokedTokens.REVOKED_NOW, tokenForUser.validUntil());
+
+		AuthenticationException e = getExceptionForToken(token);
+		assertEquals(e.getMessage(), "Token not valid");
+		userPickerSpy.MCR.assertMethodNotCalled("pickUser");
+	}
+
+	@Test
+	public void testEventReplayerDoesNotTellListenersTokenIsRevoked() {
+		useSignedTokens();
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.createEventReplayer().activeTokenRevoked(TokenKey.fromString(TOKEN),
+				RevokedTokens.REVOKED_NOW, System.currentTimeMillis() + 60000);
+
+		listener.MCR.assertMethodNotCalled("activeTokenRevoked");
+	}
+
+	@Test
+	public void testEventReplayerIgnoresRevokedTokenWhenNotUsingSignedTokens() {
+		gatekeeper.createEventReplayer().activeTokenRevoked(TokenKey.fromString(TOKEN),
+				RevokedTokens.REVOKED_NOW, System.currentTimeMillis() + 60000);
+
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 0);
+	}
+
+	@Test
+	public void testGetAndRestoreRevokedTokens() {
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+		List<RevokedToken> revokedTokens = gatekeeper.getRevokedTokens();
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		int restoredTokens = gatekeeper.restoreRevokedTokens(revokedTokens,
+				System.currentTimeMillis());
+
+		assertEquals(restoredTokens, 1);
+		assertEquals(gatekeeper.getRevokedTokens(), revokedTokens);
+		AuthenticationException e = getExceptionForToken(authToken.token());
+		assertEquals(e.getMessage(), "Token not valid");
+	}
+
+	@Test
+	public void testRestoreRevokedTokensSkipsNoLongerValidTokens() {
+		long currentTime = System.currentTimeMillis();
+		RevokedToken revokedToken = new RevokedToken(TokenKey.fromString(TOKEN),
+				RevokedTokens.REVOKED_NOW, currentTime - 1);
+
+		int restoredTokens = gatekeeper.restoreRevokedTokens(List.of(revokedToken), currentTime);
+
+		assertEquals(restoredTokens, 0);
+		assertTrue(gatekeeper.getRevokedTokens().isEmpty());
+	}
+
+	@Test(timeOut = 10000)
+	public void testSignedTokenFromOtherNodeWaitsForStorageWorkPermit() throws Exception {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+		StorageWorkExecutor storageWorkExecutor = StorageWorkExecutor.usingExecutor(Runnable::run);
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		gatekeeper.onlyForTestSetStorageWorkExecutor(storageWorkExecutor);
+		CountDownLatch permitTaken = new CountDownLatch(1);
+		CountDownLatch releasePermit = new CountDownLatch(1);
+		Thread otherStorageWork = startThread(() -> storageWorkExecutor.runWithPermit(() -> {
+			permitTaken.countDown();
+			awaitLatch(releasePermit);
+		}));
+		permitTaken.await();
+
+		Thread validation = startThread(() -> gatekeeper.getUserForToken(token));
+		waitUntilTimedWaiting(validation);
+
+		userPickerSpy.MCR.assertMethodNotCalled("pickUser");
+		releasePermit.countDown();
+		otherStorageWork.join();
+		validation.join();
+		userPickerSpy.MCR.assertNumberOfCallsToMethod("pickUser", 1);
+		assertTrue(hasActiveToken(TOKEN));
+	}
+
+	@Test
+	public void testSignedTokenFromOtherNodeWithoutStorageWorkPermitIsRejected() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		userPickerSpy.MRV.setDefaultReturnValuesSupplier("pickUser", () -> userElly);
+		String token = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+		StorageWorkExecutor storageWorkExecutor = StorageWorkExecutor.usingExecutor(_ -> {
+		});
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		storageWorkExecutor.execute(() -> {
+		});
+		gatekeeper.onlyForTestSetStorageWorkExecutor(storageWorkExecutor);
+
+		try {
+			gatekeeper.getUserForToken(token);
+			fail("A RejectedExecutionException should have been thrown");
+		} catch (RejectedExecutionException e) {
+			assertEquals(e.getMessage(), "No permit to use storage became free within "
+					+ StorageWorkExecutor.PERMIT_WAIT_IN_MILLIS + " milliseconds");
+		}
+
+		userPickerSpy.MCR.assertMethodNotCalled("pickUser");
+		assertFalse(hasActiveToken(TOKEN));
+		gatekeeper.onlyForTestSetStorageWorkExecutor(StorageWorkExecutor.INSTANCE);
+		gatekeeper.getUserForToken(token);
+		assertTrue(hasActiveToken(TOKEN));
+	}
+
+	private Thread startThread(Runnable task) {
+		Thread thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	private void awaitLatch(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void waitUntilTimedWaiting(Thread thread) {
+		while (thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.onSpinWait();
+		}
+	}
+
+	@Test
+	public void testRenewSignedToken() {
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(authToken.tokenId(),
+				authToken.token());
+
+		SignedToken signedToken = signedTokenFormat.read(renewedAuthToken.token());
+		assertEquals(signedToken.tokenForUser().tokenId(),
+				TokenKey.fromString(authToken.tokenId()));
+		User pickedUser = (User) userPickerSpy.MCR.getReturnValue("pickUser", 0);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(renewedAuthToken.token()), pickedUser);
+	}
+
+	@Test
+	public void testForgedSignedTokenIsRejectedByCacheWhenSentAgain() {
+		SignedTokenFormat signedTokenFormat = new SignedTokenFormat(createSigningKey(1));
+		useSignedTokens();
+		String forgedToken = signedTokenFormat.write(TokenKey.fromString(TOKEN),
+				createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(userElly.loginId));
+
+		getExceptionForToken(forgedToken);
+		AuthenticationException e = getExceptionForToken(forgedToken);
+
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 1);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 1);
+	}
+
+	@Test
+	public void testRevokedSignedTokenIsRejectedByCacheWhenSentAgain() {
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		getExceptionForToken(authToken.token());
+		getExceptionForToken(authToken.token());
+
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 1);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 2);
+	}
+
+	@Test
+	public void testTokenNotPossiblySignedIsRejectedWithoutCache() {
+		useSignedTokens();
+
+		getExceptionForToken(TOKEN);
+		getExceptionForToken("not a token");
+
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 0);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 0);
+	}
+
+	@Test
+	public void testValidSignedTokenIsNotAddedToRejectedTokenCache() {
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.getUserForToken(authToken.token());
+		gatekeeper.getUserForToken(authToken.token());
+
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 0);
+	}
+
+	@Test
+	public void testExpiredOpaqueTokenIsRejectedByCacheWhenSentAgain() {
+		setupAnActiveUserWithValidUntil(TOKEN, userElly, -1000);
+
+		getExceptionForToken(TOKEN);
+		AuthenticationException e = getExceptionForToken(TOKEN);
+
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 1);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 1);
+	}
+
+	@Test
+	public void testExpiredOpaqueTokenInBatchIsAddedToRejectedTokenCache() {
+		setupAnActiveUserWithValidUntil(TOKEN, userElly, -1000);
+
+		gatekeeper.getCachedUsersForTokens(List.of(TOKEN));
+		List<CachedUser> cachedUsers = gatekeeper.getCachedUsersForTokens(List.of(TOKEN));
+
+		assertNull(cachedUsers.get(0));
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 1);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 1);
+	}
+
+	@Test
+	public void testRemovedOpaqueTokenIsRejectedByCache() {
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.removeAuthToken(authToken.tokenId(), authToken.token());
+
+		AuthenticationException e = getExceptionForToken(authToken.token());
+
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 1);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 1);
+	}
+
+	@Test
+	public void testUnknownOrMalformedOpaqueTokenIsNotAddedToRejectedTokenCache() {
+		getExceptionForToken(TOKEN);
+		getExceptionForToken(TOKEN);
+		getExceptionForToken("not a token");
+
+		assertEquals(gatekeeper.getNumberOfTokensAddedToRejectedTokenCache(), 0);
+		assertEquals(gatekeeper.getNumberOfTokensRejectedByCache(), 0);
+	}
+
+	@Test
+	public void testSetRejectedTokenCacheSize() {
+		gatekeeper.setRejectedTokenCacheSize(100);
+
+		assertEquals(gatekeeper.onlyForTestGetRejectedTokenCache().getNumberOfSlots(), 128);
+	}
+
+	@Test
+	public void testRenewSignedTokenRevokesOldToken() {
+		useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.renewAuthToken(authToken.tokenId(), authToken.token());
+
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 1);
+		AuthenticationException e = getExceptionForToken(authToken.token());
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 1);
+	}
+
+	@Test
+	public void testRenewSignedTokenWithGracePeriodRevokesOldTokenAfterGracePeriod() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		SignedTokenFormat signedTokenFormat = useSignedTokens();
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.renewAuthToken(authToken.tokenId(), authToken.token());
+
+		TokenKey oldToken = signedTokenFormat.read(authToken.token()).token();
+		RevokedTokens revokedTokens = gatekeeper.onlyForTestGetRevokedTokens();
+		long now = System.currentTimeMillis();
+		assertFalse(revokedTokens.isRevoked(oldToken, now));
+		assertTrue(revokedTokens.isRevoked(oldToken, now + 6000));
+		assertNotNull(gatekeeper.getUserForToken(authToken.token()));
+	}
+
+	@Test
+	public void testEventReplayerRetiresTokenAddedWithEarlierValidUntil() {
+		useSignedTokens();
+		setupAnActiveUser(TOKEN, userElly);
+		TokenKey token = TokenKey.fromString(TOKEN);
+		ActiveTokenForUser tokenForUser = gatekeeper.onlyForTestGetActiveTokens().get(token)
+				.tokenForUser();
+		long graceUntil = System.currentTimeMillis() + 5000;
+		ActiveTokenForUser retiredTokenForUser = new ActiveTokenForUser(tokenForUser.tokenId(),
+				tokenForUser.loginId(), graceUntil, tokenForUser.renewUntil());
+
+		gatekeeper.createEventReplayer().activeTokenAdded(token, retiredTokenForUser, userElly);
+
+		ActiveToken activeToken = gatekeeper.onlyForTestGetActiveTokens().get(token);
+		assertTrue(activeToken.retired());
+		assertEquals(activeToken.tokenForUser(), retiredTokenForUser);
+		assertTrue(gatekeeper.onlyForTestGetRevokedTokens().isRevoked(token, graceUntil));
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 1);
+	}
+
+	@Test
+	public void testRevokedTokensAreForgottenWhenNoLongerValid() {
+		useSignedTokens();
+		ActiveTokenForUser tokenForUser = createActiveTokenForUserValidUntilInThePast(
+				userElly.loginId);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(TOKEN, tokenForUser, userElly);
+		gatekeeper.dataChanged(USER_RECORD_TYPE, userElly.id, "delete");
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 1);
+
+		gatekeeper.removeNoLongerValidActiveTokens(100);
+
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 0);
+	}
+
+	@Test
+	public void testDefaultActiveTokenLimits() {
+		assertEquals(gatekeeper.onlyForTestGetMaxActiveTokensPerUser(), 100);
+		assertEquals(gatekeeper.onlyForTestGetMaxActiveTokens(), 1000000);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Max active tokens per user must be at least 1, was: 0")
+	public void testSetMaxActiveTokensPerUserLessThanOne() {
+		gatekeeper.setMaxActiveTokensPerUser(0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Max active tokens must be at least 1, was: 0")
+	public void testSetMaxActiveTokensLessThanOne() {
+		gatekeeper.setMaxActiveTokens(0);
+	}
+
+	@Test
+	public void testOldestTokensOfUserAreEvictedOverLimit() {
+		gatekeeper.setMaxActiveTokensPerUser(2);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		AuthToken secondAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		AuthToken thirdAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertFalse(hasActiveToken(firstAuthToken.token()));
+		assertTrue(hasActiveToken(secondAuthToken.token()));
+		assertTrue(hasActiveToken(thirdAuthToken.token()));
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers()
+				.get(firstAuthToken.loginId());
+		assertEquals(activeUser.getNumberActiveTokens(), 2);
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverUserLimit(), 1);
+		assertEquals(gatekeeper.onlyForTestGetNumberOfTokensInExpiryIndexes(), 2);
+	}
+
+	@Test
+	public void testTokensOfOtherUsersAreNotEvictedOverUserLimit() {
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(hasActiveToken(TOKEN_ELLY_1));
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().size(), 2);
+	}
+
+	@Test
+	public void testRenewEvictsOldestTokenOfUserOverLimit() {
+		gatekeeper.setRenewGracePeriodInMillis(5000);
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		setupAnActiveUser(TOKEN, userElly);
+
+		AuthToken renewedAuthToken = gatekeeper.renewAuthToken(TOKEN_ID, TOKEN);
+
+		assertFalse(hasActiveToken(TOKEN));
+		assertIsCopyOfUser(gatekeeper.getUserForToken(renewedAuthToken.token()), userElly);
+	}
+
+	@Test
+	public void testEvictionOverUserLimitTellsListeners() {
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		listener.MCR.assertParameters("activeTokenRemoved", 0,
+				TokenKey.fromString(firstAuthToken.token()));
+	}
+
+	@Test
+	public void testEvictionOverUserLimitTellsListenersInEvictionOrder() {
+		gatekeeper.setMaxActiveTokensPerUser(3);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		AuthToken secondAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		listener.MCR.assertNumberOfCallsToMethod("activeTokenRemoved", 3);
+		listener.MCR.assertParameters("activeTokenRemoved", 0,
+				TokenKey.fromString(firstAuthToken.token()));
+		listener.MCR.assertParameters("activeTokenRemoved", 1,
+				TokenKey.fromString(secondAuthToken.token()));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverUserLimit(), 3);
+	}
+
+	@Test
+	public void testOldestTokensAreEvictedOverTotalLimit() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(2);
+		setupAnActiveUser(TOKEN_ELLY_1, userElly);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_1, userRudolf, 5000L);
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(hasActiveToken(TOKEN_ELLY_1));
+		assertFalse(hasActiveToken(TOKEN_RUDOLF_1));
+		assertTrue(hasActiveToken(authToken.token()));
+		assertFalse(gatekeeper.onlyForTestGetActiveUsers().containsKey(userRudolf.loginId));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 1);
+	}
+
+	@Test
+	public void testOldestTokensInOtherShardsAreEvictedOverTotalLimit() {
+		gatekeeper.setMaxActiveTokens(2);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_2_IN_SHARD_1, userRudolf, 10000L);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_3_IN_SHARD_2, userRudolf, 5000L);
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(hasActiveToken(TOKEN_RUDOLF_2_IN_SHARD_1));
+		assertFalse(hasActiveToken(TOKEN_RUDOLF_3_IN_SHARD_2));
+		assertTrue(hasActiveToken(authToken.token()));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 1);
+	}
+
+	@Test
+	public void testEvictionOverTotalLimitContinuesInShardWithNextOldestTokens() {
+		gatekeeper.setMaxActiveTokens(1);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_2_IN_SHARD_1, userRudolf, 10000L);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_3_IN_SHARD_2, userRudolf, 5000L);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		AuthToken authToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertEquals(gatekeeper.onlyForTestGetActiveTokens().keySet(),
+				Set.of(TokenKey.fromString(authToken.token())));
+		listener.MCR.assertParameters("activeTokenRemoved", 0,
+				TokenKey.fromString(TOKEN_RUDOLF_3_IN_SHARD_2));
+		listener.MCR.assertParameters("activeTokenRemoved", 1,
+				TokenKey.fromString(TOKEN_RUDOLF_2_IN_SHARD_1));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 2);
+	}
+
+	@Test
+	public void testEvictionOverTotalLimitTellsListenersAfterUserIsUnlocked() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(1);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_1, userRudolf, 5000L);
+		List<Boolean> userStillActiveWhenTold = new ArrayList<>();
+		eventListener = new ActiveTokenEventListenerSpy() {
+			@Override
+			public void activeTokenRemoved(TokenKey token) {
+				userStillActiveWhenTold.add(
+						gatekeeper.onlyForTestGetActiveUsers().containsKey(userRudolf.loginId));
+			}
+		};
+		gatekeeper.addActiveTokenEventListener(eventListener);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertEquals(userStillActiveWhenTold, List.of(false));
+	}
+
+	private void setupAnActiveUserWithValidUntil(String token, User user, long millisFromNow) {
+		long validUntil = System.currentTimeMillis() + millisFromNow;
+		ActiveTokenForUser activeTokenForUser = new ActiveTokenForUser(TOKEN_ID_KEY, user.loginId,
+				validUntil, validUntil);
+		gatekeeper.onlyForTestSetActiveTokenAndActiveUsers(token, activeTokenForUser, user);
+	}
+
+	@Test
+	public void testNewTokensAreNotEvictedOverTotalLimit() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(1);
+
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		AuthToken secondAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(hasActiveToken(firstAuthToken.token()));
+		assertTrue(hasActiveToken(secondAuthToken.token()));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 0);
+	}
+
+	@Test
+	public void testEvictionOverTotalLimitTellsListeners() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(1);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_1, userRudolf, 5000L);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		listener.MCR.assertParameters("activeTokenRemoved", 0,
+				TokenKey.fromString(TOKEN_RUDOLF_1));
+	}
+
+	@Test
+	public void testEvictedSignedTokenIsRevoked() {
+		useSignedTokens();
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		AuthenticationException e = getExceptionForToken(firstAuthToken.token());
+		assertEquals(e.getMessage(), "Token not valid");
+		assertEquals(gatekeeper.onlyForTestGetRevokedTokens().size(), 1);
+	}
+
+	@Test
+	public void testEvictedTokenIsAddedToRejectedTokenCache() {
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(gatekeeper.onlyForTestGetRejectedTokenCache().contains(firstAuthToken.token()));
+	}
+
+	@Test
+	public void testEvictedSignedTokenIsAddedToRejectedTokenCache() {
+		useSignedTokens();
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertTrue(gatekeeper.onlyForTestGetRejectedTokenCache().contains(firstAuthToken.token()));
+	}
+
+	@Test
+	public void testTokenOfUserAlreadyRemovedFromShardIsNotCountedAsEvicted() {
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		AuthToken firstAuthToken = gatekeeper.getAuthTokenForUserInfo(userInfo);
+		TokenKey firstToken = TokenKey.fromString(firstAuthToken.token());
+		gatekeeper.onlyForTestGetShardFor(firstToken).remove(firstToken);
+		ActiveTokenEventListenerSpy listener = addEventListener();
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		listener.MCR.assertMethodNotCalled("activeTokenRemoved");
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverUserLimit(), 0);
+		ActiveUser activeUser = gatekeeper.onlyForTestGetActiveUsers()
+				.get(firstAuthToken.loginId());
+		assertEquals(activeUser.getNumberActiveTokens(), 1);
+	}
+
+	@Test
+	public void testNumberOfActiveTokensIsKeptWhenTokensAreAddedAndEvicted() {
+		gatekeeper.setMaxActiveTokensPerUser(2);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		assertEquals(gatekeeper.onlyForTestGetNumberOfActiveTokens(), 2);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertEquals(gatekeeper.onlyForTestGetNumberOfActiveTokens(), 2);
+		gatekeeper.onlyForTestEmptyAuthentications();
+		assertEquals(gatekeeper.onlyForTestGetNumberOfActiveTokens(), 0);
+	}
+
+	@Test
+	public void testTokensClaimedByConcurrentEvictionAreNotEvictedAgain() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(1);
+		setupAnActiveUserWithValidUntil(TOKEN_RUDOLF_1, userRudolf, 5000L);
+		setupAnActiveUserWithValidUntil(TOKEN_ELLY_1, userElly, 10000L);
+		gatekeeper.onlyForTestGetTokensClaimedForEviction().set(1);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertFalse(hasActiveToken(TOKEN_RUDOLF_1));
+		assertTrue(hasActiveToken(TOKEN_ELLY_1));
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 1);
+		assertEquals(gatekeeper.onlyForTestGetTokensClaimedForEviction().get(), 1);
+	}
+
+	@Test
+	public void testClaimForEvictionIsReleasedWhenNotAllClaimedTokensCouldBeEvicted() {
+		gatekeeper.setNumberOfShards(1);
+		gatekeeper.setMaxActiveTokens(1);
+
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 0);
+		assertEquals(gatekeeper.onlyForTestGetTokensClaimedForEviction().get(), 0);
+	}
+
+	@Test
+	public void testEmptyAuthenticationsResetsEvictionCounters() {
+		gatekeeper.setMaxActiveTokensPerUser(1);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+		gatekeeper.getAuthTokenForUserInfo(userInfo);
+
+		gatekeeper.onlyForTestEmptyAuthentications();
+
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverUserLimit(), 0);
+		assertEquals(gatekeeper.getNumberOfEvictedTokensOverTotalLimit(), 0);
+	}
+
+	private boolean hasActiveToken(String token) {
+		return gatekeeper.onlyForTestGetActiveTokens().containsKey(TokenKey.fromString(token));
+	}
+
+	private AuthenticationException getExceptionForToken(String token) {
+		try {
+			gatekeeper.getUserForToken(token);
+			fail("An AuthenticationException should have been thrown");
+			return null;
+		} catch (AuthenticationException e) {
+			return e;
+		}
+	}
+
 	private void assertActiveUserAndTokenHaveBeenRemovedFromGatekeeper(AuthenticationException e) {
 		assertEquals(e.getMessage(), "Token not valid");
 		assertTrue(gatekeeper.onlyForTestGetActiveTokens().isEmpty());
@@ -604,7 +2327,7 @@ public class GatekeeperTest {
 		long currentTimestamp = System.currentTimeMillis();
 		long validUntil = currentTimestamp - THIRTY_MINUTES;
 		long renewUntil = currentTimestamp + THIRTY_MINUTES;
-		return new ActiveTokenForUser(TOKEN_ID, loginId, validUntil, renewUntil);
+		return new ActiveTokenForUser(TOKEN_ID_KEY, loginId, validUntil, renewUntil);
 	}
 
 	private ActiveTokenForUser createActiveTokenForUserValidUntilAndRenewUntilInTheFuture(
@@ -612,21 +2335,21 @@ public class GatekeeperTest {
 		long currentTimestamp = System.currentTimeMillis();
 		long validUntil = currentTimestamp + THIRTY_MINUTES;
 		long renewUntil = currentTimestamp + THIRTY_MINUTES;
-		return new ActiveTokenForUser(TOKEN_ID, loginId, validUntil, renewUntil);
+		return new ActiveTokenForUser(TOKEN_ID_KEY, loginId, validUntil, renewUntil);
 	}
 
 	private ActiveTokenForUser createActiveTokenForUserRenewUntilInThePast(String loginId) {
 		long currentTimestamp = System.currentTimeMillis();
 		long validUntil = currentTimestamp + THIRTY_MINUTES;
 		long renewUntil = currentTimestamp - THIRTY_MINUTES;
-		return new ActiveTokenForUser(TOKEN_ID, loginId, validUntil, renewUntil);
+		return new ActiveTokenForUser(TOKEN_ID_KEY, loginId, validUntil, renewUntil);
 	}
 
 	@Test
 	public void testOnlyForTestSetAuthToken() {
 		setupAnActiveUser(TOKEN, userElly);
 
-		assertEquals(gatekeeper.getUserForToken(TOKEN), userElly);
+		assertIsCopyOfUser(gatekeeper.getUserForToken(TOKEN), userElly);
 	}
 
 	@Test
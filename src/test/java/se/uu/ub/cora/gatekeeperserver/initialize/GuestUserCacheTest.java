@@ -0,0 +1,151 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeper.user.User;
+import se.uu.ub.cora.gatekeeperserver.CachedUser;
+import se.uu.ub.cora.logger.LoggerProvider;
+import se.uu.ub.cora.logger.spies.LoggerFactorySpy;
+import se.uu.ub.cora.logger.spies.LoggerSpy;
+
+public class GuestUserCacheTest {
+	private static final String GUEST_USER_ID = "someGuestUserId";
+	private LoggerFactorySpy loggerFactory;
+	private List<User> pickedGuestUsers;
+	private List<Runnable> refreshTasks;
+	private Supplier<User> guestUserPicker;
+	private GuestUserCache guestUserCache;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		loggerFactory = new LoggerFactorySpy();
+		LoggerProvider.setLoggerFactory(loggerFactory);
+		pickedGuestUsers = new ArrayList<>();
+		refreshTasks = new ArrayList<>();
+		guestUserPicker = this::pickGuestUser;
+		guestUserCache = new GuestUserCache(() -> guestUserPicker.get(), refreshTasks::add);
+	}
+
+	private User pickGuestUser() {
+		User guestUser = new User(GUEST_USER_ID);
+		pickedGuestUsers.add(guestUser);
+		return guestUser;
+	}
+
+	@Test
+	public void testGuestUserIsPickedOnce() {
+		CachedUser guestUser = guestUserCache.getGuestUser();
+		CachedUser secondGuestUser = guestUserCache.getGuestUser();
+
+		assertEquals(pickedGuestUsers.size(), 1);
+		assertSame(guestUser.getUser(), pickedGuestUsers.get(0));
+		assertSame(secondGuestUser, guestUser);
+	}
+
+	@Test
+	public void testOtherUserChangedKeepsGuestUser() {
+		CachedUser guestUser = guestUserCache.getGuestUser();
+
+		guestUserCache.userChanged("someOtherUserId");
+
+		assertSame(guestUserCache.onlyForTestGetCachedGuestUser(), guestUser);
+		assertTrue(refreshTasks.isEmpty());
+	}
+
+	@Test
+	public void testUserChangedBeforeGuestUserIsKnown() {
+		guestUserCache.userChanged(GUEST_USER_ID);
+
+		assertTrue(refreshTasks.isEmpty());
+	}
+
+	@Test
+	public void testGuestUserChangedDropsGuestUserAndRefreshesInBackground() {
+		CachedUser guestUser = guestUserCache.getGuestUser();
+
+		guestUserCache.userChanged(GUEST_USER_ID);
+
+		assertNull(guestUserCache.onlyForTestGetCachedGuestUser());
+		assertEquals(refreshTasks.size(), 1);
+		refreshTasks.get(0).run();
+		CachedUser refreshedGuestUser = guestUserCache.onlyForTestGetCachedGuestUser();
+		assertNotSame(refreshedGuestUser, guestUser);
+		assertSame(refreshedGuestUser.getUser(), pickedGuestUsers.get(1));
+		assertSame(guestUserCache.getGuestUser(), refreshedGuestUser);
+		assertEquals(pickedGuestUsers.size(), 2);
+	}
+
+	@Test
+	public void testGuestUserIsPickedByRequestBeforeRefreshIsDone() {
+		guestUserCache.getGuestUser();
+		guestUserCache.userChanged(GUEST_USER_ID);
+
+		CachedUser guestUser = guestUserCache.getGuestUser();
+
+		assertSame(guestUser.getUser(), pickedGuestUsers.get(1));
+		assertSame(guestUserCache.onlyForTestGetCachedGuestUser(), guestUser);
+	}
+
+	@Test
+	public void testPickStartedBeforeGuestUserChangedIsNotCached() {
+		guestUserCache.getGuestUser();
+		guestUserPicker = () -> {
+			User guestUser = pickGuestUser();
+			guestUserCache.userChanged(GUEST_USER_ID);
+			return guestUser;
+		};
+		guestUserCache.userChanged(GUEST_USER_ID);
+
+		CachedUser guestUser = guestUserCache.getGuestUser();
+
+		assertSame(guestUser.getUser(), pickedGuestUsers.get(1));
+		assertNull(guestUserCache.onlyForTestGetCachedGuestUser());
+	}
+
+	@Test
+	public void testRefreshErrorIsLogged() {
+		guestUserCache.getGuestUser();
+		RuntimeException error = new RuntimeException("some error");
+		guestUserPicker = () -> {
+			throw error;
+		};
+		guestUserCache.userChanged(GUEST_USER_ID);
+
+		refreshTasks.get(0).run();
+
+		assertNull(guestUserCache.onlyForTestGetCachedGuestUser());
+		LoggerSpy logger = (LoggerSpy) loggerFactory.MCR
+				.assertCalledParametersReturn("factorForClass", GuestUserCache.class);
+		logger.MCR.assertParameters("logErrorUsingMessageAndException", 0,
+				"Could not refresh the guest user.", error);
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.Test;
+
+public class HmacSignerTest {
+	private static final byte[] KEY = "someKeyThatIsAtLeastThirtyTwoBytesLong"
+			.getBytes(StandardCharsets.UTF_8);
+	private static final byte[] BYTES = "someBytes".getBytes(StandardCharsets.UTF_8);
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Some key must be at least 32 bytes, was: 31")
+	public void testKeyTooShort() {
+		new HmacSigner("Some key", new byte[31]);
+	}
+
+	@Test
+	public void testSignerSignsUsingHmacSHA256WithKey() throws Exception {
+		HmacSigner signer = new HmacSigner("Some key", KEY);
+		Mac expectedMac = Mac.getInstance("HmacSHA256");
+		expectedMac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+
+		Mac mac = signer.createSigner();
+
+		assertEquals(mac.getAlgorithm(), "HmacSHA256");
+		assertEquals(mac.doFinal(BYTES), expectedMac.doFinal(BYTES));
+	}
+
+	@Test
+	public void testEachSignerIsNewAndStartsEmpty() {
+		HmacSigner signer = new HmacSigner("Some key", KEY);
+		Mac firstMac = signer.createSigner();
+		firstMac.update(BYTES);
+
+		Mac secondMac = signer.createSigner();
+
+		assertNotSame(secondMac, firstMac);
+		assertEquals(secondMac.doFinal(BYTES), firstMac.doFinal());
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class OwnerOnlyFilesTest {
+	private Path directory;
+	private Path file;
+
+	@BeforeMethod
+	public void beforeMethod() throws IOException {
+		directory = Files.createTempDirectory("ownerOnlyFilesTest");
+		file = directory.resolve("someFile");
+	}
+
+	@AfterMethod
+	public void afterMethod() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testOpenCreatesFileReadableByOwnerOnly() throws IOException {
+		try (FileChannel channel = OwnerOnlyFiles.open(file,
+				Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+			assertEquals(Files.getPosixFilePermissions(file), OwnerOnlyFiles.OWNER_READ_WRITE);
+		}
+	}
+
+	@Test
+	public void testOpenRestrictsExistingFileToOwnerOnly() throws IOException {
+		Files.createFile(file,
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r--r--")));
+
+		try (FileChannel channel = OwnerOnlyFiles.open(file,
+				Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE))) {
+			assertEquals(Files.getPosixFilePermissions(file), OwnerOnlyFiles.OWNER_READ_WRITE);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RejectedTokenCacheTest {
+	private static final String TOKEN = "someRejectedToken";
+	private static final String ANOTHER_TOKEN = "someOtherRejectedToken";
+	private RejectedTokenCache cache;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		cache = new RejectedTokenCache(16);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Number of slots must be at least 1, was: 0")
+	public void testNumberOfSlotsBelowOne() {
+		new RejectedTokenCache(0);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Number of slots must be at most 1073741824, was: 1073741825")
+	public void testNumberOfSlotsAboveMax() {
+		new RejectedTokenCache((1 << 30) + 1);
+	}
+
+	@Test
+	public void testNumberOfSlotsIsRoundedUpToPowerOfTwo() {
+		assertEquals(new RejectedTokenCache(1).getNumberOfSlots(), 1);
+		assertEquals(new RejectedTokenCache(16).getNumberOfSlots(), 16);
+		assertEquals(new RejectedTokenCache(17).getNumberOfSlots(), 32);
+	}
+
+	@Test
+	public void testNotAdded() {
+		assertFalse(cache.contains(TOKEN));
+		assertEquals(cache.getNumberOfHits(), 0);
+	}
+
+	@Test
+	public void testAdded() {
+		cache.add(TOKEN);
+
+		assertTrue(cache.contains(new String(TOKEN)));
+		assertFalse(cache.contains(ANOTHER_TOKEN));
+		assertEquals(cache.getNumberOfHits(), 1);
+		assertEquals(cache.getNumberOfAdditions(), 1);
+	}
+
+	@Test
+	public void testTokenInSameSlotReplacesPreviousToken() {
+		cache = new RejectedTokenCache(1);
+		cache.add(TOKEN);
+
+		cache.add(ANOTHER_TOKEN);
+
+		assertFalse(cache.contains(TOKEN));
+		assertTrue(cache.contains(ANOTHER_TOKEN));
+		assertEquals(cache.getNumberOfAdditions(), 2);
+	}
+
+	@Test
+	public void testTokenWithSameHashIsNotRejected() {
+		cache = new RejectedTokenCache(1);
+		cache.add("Aa");
+
+		assertEquals("BB".hashCode(), "Aa".hashCode());
+		assertFalse(cache.contains("BB"));
+	}
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ReplicationMessageAuthenticatorTest {
+	private ReplicationMessageAuthenticator authenticator;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		authenticator = new ReplicationMessageAuthenticator(new byte[32]);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Replication key must be at least 32 bytes, was: 31")
+	public void testKeyTooShort() {
+		new ReplicationMessageAuthenticator(new byte[31]);
+	}
+
+	@Test
+	public void testSignedPartsAreAuthentic() {
+		String signature = authenticator.sign("someNodeId", null, "someMessage");
+
+		assertTrue(authenticator.isAuthentic(signature, "someNodeId", null, "someMessage"));
+	}
+
+	@Test
+	public void testSameSignatureForSameParts() {
+		assertEquals(authenticator.sign("someNodeId", "someMessage"),
+				authenticator.sign("someNodeId", "someMessage"));
+	}
+
+	@Test
+	public void testChangedPartIsNotAuthentic() {
+		String signature = authenticator.sign("someNodeId", "someMessage");
+
+		assertFalse(authenticator.isAuthentic(signature, "someNodeId", "someOtherMessage"));
+	}
+
+	@Test
+	public void testCharactersMovedBetweenPartsGiveOtherSignature() {
+		assertNotEquals(authenticator.sign("someNode", "IdsomeMessage"),
+				authenticator.sign("someNodeId", "someMessage"));
+	}
+
+	@Test
+	public void testNullPartDiffersFromEmptyPart() {
+		assertNotEquals(authenticator.sign("someNodeId", null),
+				authenticator.sign("someNodeId", ""));
+	}
+
+	@Test
+	public void testSignatureFromOtherKeyIsNotAuthentic() {
+		byte[] otherKey = "someOtherReplicationKeyThatIsLongEnough".getBytes();
+		String signature = new ReplicationMessageAuthenticator(otherKey).sign("someMessage");
+
+		assertFalse(authenticator.isAuthentic(signature, "someMessage"));
+	}
+
+	@Test
+	public void testMissingOrMalformedSignatureIsNotAuthentic() {
+		assertFalse(authenticator.isAuthentic(null, "someMessage"));
+		assertFalse(authenticator.isAuthentic("not base64!", "someMessage"));
+	}
+}
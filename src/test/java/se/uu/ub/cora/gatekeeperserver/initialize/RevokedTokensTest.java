@@ -0,0 +1,124 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.RevokedTokens.RevokedToken;
+
+public class RevokedTokensTest {
+	private static final TokenKey TOKEN = TokenKey
+			.fromString("00000000-0000-4000-8000-000000000001");
+	private static final TokenKey ANOTHER_TOKEN = TokenKey
+			.fromString("00000000-0000-4000-8000-000000000002");
+	private static final long NOW = 5000L;
+	private RevokedTokens revokedTokens;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		revokedTokens = new RevokedTokens();
+	}
+
+	@Test
+	public void testNotRevoked() {
+		assertFalse(revokedTokens.isRevoked(TOKEN, NOW));
+		assertEquals(revokedTokens.size(), 0);
+	}
+
+	@Test
+	public void testRevoke() {
+		revokedTokens.revoke(TOKEN, 10000L);
+
+		assertTrue(revokedTokens.isRevoked(TOKEN, NOW));
+		assertFalse(revokedTokens.isRevoked(ANOTHER_TOKEN, NOW));
+		assertEquals(revokedTokens.size(), 1);
+	}
+
+	@Test
+	public void testRevokeTwice() {
+		revokedTokens.revoke(TOKEN, 10000L);
+		revokedTokens.revoke(TOKEN, 10000L);
+
+		assertEquals(revokedTokens.removeNoLongerValidTokens(20000L, 100), 1);
+	}
+
+	@Test
+	public void testRemoveNoLongerValidTokens() {
+		revokedTokens.revoke(TOKEN, 10000L);
+		revokedTokens.revoke(ANOTHER_TOKEN, 30000L);
+
+		int removed = revokedTokens.removeNoLongerValidTokens(20000L, 100);
+
+		assertEquals(removed, 1);
+		assertFalse(revokedTokens.isRevoked(TOKEN, NOW));
+		assertTrue(revokedTokens.isRevoked(ANOTHER_TOKEN, NOW));
+	}
+
+	@Test
+	public void testStillValidTokensAreKept() {
+		revokedTokens.revoke(TOKEN, 10000L);
+
+		int removed = revokedTokens.removeNoLongerValidTokens(10000L, 100);
+
+		assertEquals(removed, 0);
+		assertTrue(revokedTokens.isRevoked(TOKEN, NOW));
+	}
+
+	@Test
+	public void testRevokeFromIsNotRevokedBefore() {
+		revokedTokens.revokeFrom(TOKEN, 8000L, 10000L);
+
+		assertFalse(revokedTokens.isRevoked(TOKEN, 7999L));
+		assertTrue(revokedTokens.isRevoked(TOKEN, 8000L));
+		assertEquals(revokedTokens.size(), 1);
+	}
+
+	@Test
+	public void testRevokeAfterRevokeFromRevokesAtOnce() {
+		revokedTokens.revokeFrom(TOKEN, 8000L, 10000L);
+		revokedTokens.revoke(TOKEN, 10000L);
+
+		assertTrue(revokedTokens.isRevoked(TOKEN, NOW));
+		assertEquals(revokedTokens.removeNoLongerValidTokens(20000L, 100), 1);
+	}
+
+	@Test
+	public void testRevokeFromAfterRevokeKeepsEarliestRevokedFrom() {
+		revokedTokens.revoke(TOKEN, 10000L);
+		revokedTokens.revokeFrom(TOKEN, 8000L, 10000L);
+
+		assertTrue(revokedTokens.isRevoked(TOKEN, NOW));
+	}
+
+	@Test
+	public void testGetRevokedTokens() {
+		revokedTokens.revokeFrom(TOKEN, 8000L, 10000L);
+		revokedTokens.revoke(TOKEN, 10000L);
+
+		assertEquals(revokedTokens.getRevokedTokens(),
+				List.of(new RevokedToken(TOKEN, RevokedTokens.REVOKED_NOW, 10000L)));
+	}
+}
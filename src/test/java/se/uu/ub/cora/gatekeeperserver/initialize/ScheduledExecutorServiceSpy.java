@@ -0,0 +1,188 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import se.uu.ub.cora.testutils.mcr.MethodCallRecorder;
+
+public class ScheduledExecutorServiceSpy implements ScheduledExecutorService {
+	public MethodCallRecorder MCR = new MethodCallRecorder();
+	private boolean shutdown = false;
+
+	/**
+	 * runScheduledCommand runs the command from a call to schedule or scheduleWithFixedDelay on
+	 * the calling thread, as the scheduled executor would have done when the delay had passed.
+	 */
+	public void runScheduledCommand(String methodName, int callNumber) {
+		Runnable command = (Runnable) MCR.getParameterForMethodAndCallNumberAndParameter(
+				methodName, callNumber, "command");
+		command.run();
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		ScheduledFutureSpy future = new ScheduledFutureSpy();
+		MCR.addCall("command", command, "delay", delay, "unit", unit);
+		MCR.addReturned(future);
+		return future;
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+			long delay, TimeUnit unit) {
+		ScheduledFutureSpy future = new ScheduledFutureSpy();
+		MCR.addCall("command", command, "initialDelay", initialDelay, "delay", delay, "unit",
+				unit);
+		MCR.addReturned(future);
+		return future;
+	}
+
+	@Override
+	public void shutdown() {
+		MCR.addCall();
+		shutdown = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		MCR.addCall();
+		shutdown = true;
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		MCR.addCall("timeout", timeout, "unit", unit);
+		return true;
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+			long period, TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> Future<T> submit(Callable<T> task) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> Future<T> submit(Runnable task, T result) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Future<?> submit(Runnable task) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout,
+			TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout,
+			TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		throw new UnsupportedOperationException();
+	}
+
+	public static class ScheduledFutureSpy implements ScheduledFuture<Object> {
+		public MethodCallRecorder MCR = new MethodCallRecorder();
+		private boolean cancelled = false;
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			MCR.addCall("mayInterruptIfRunning", mayInterruptIfRunning);
+			cancelled = true;
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return cancelled;
+		}
+
+		@Override
+		public Object get() {
+			return null;
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) {
+			return null;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return 0;
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			return 0;
+		}
+	}
+}
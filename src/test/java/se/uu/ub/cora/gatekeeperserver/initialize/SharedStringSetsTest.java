@@ -0,0 +1,143 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SharedStringSetsTest {
+	private SharedStringSets sharedStringSets;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		sharedStringSets = new SharedStringSets();
+	}
+
+	@Test
+	public void testSameContentGivesSameSet() {
+		Set<String> firstSet = createSet("someRole", "someOtherRole");
+		Set<String> secondSet = createSet("someRole", "someOtherRole");
+
+		Set<String> firstShared = sharedStringSets.share(firstSet);
+		Set<String> secondShared = sharedStringSets.share(secondSet);
+
+		assertSame(secondShared, firstShared);
+		assertNotSame(firstShared, firstSet);
+		assertEquals(firstShared, firstSet);
+		assertEquals(sharedStringSets.numberOfSharedSets(), 1);
+	}
+
+	@Test
+	public void testSharedSetKeepsOrder() {
+		Set<String> shared = sharedStringSets.share(createSet("b", "a", "c"));
+
+		assertEquals(List.copyOf(shared), List.of("b", "a", "c"));
+	}
+
+	@Test
+	public void testSharedSetIsImmutable() {
+		Set<String> shared = sharedStringSets.share(createSet("someRole"));
+
+		try {
+			shared.add("someOtherRole");
+			fail("The shared set should not be possible to change");
+		} catch (UnsupportedOperationException _) {
+			assertEquals(shared, Set.of("someRole"));
+		}
+	}
+
+	@Test
+	public void testChangingOriginalSetDoesNotChangeSharedSet() {
+		Set<String> set = createSet("someRole");
+		Set<String> shared = sharedStringSets.share(set);
+
+		set.add("someOtherRole");
+
+		assertEquals(shared, Set.of("someRole"));
+	}
+
+	@Test
+	public void testStringsAreSharedBetweenSets() {
+		Set<String> firstShared = sharedStringSets.share(createSet(new String("someRole")));
+		Set<String> secondShared = sharedStringSets
+				.share(createSet(new String("someRole"), "someOtherRole"));
+
+		assertSame(secondShared.iterator().next(), firstShared.iterator().next());
+		assertEquals(sharedStringSets.numberOfSharedStrings(), 2);
+	}
+
+	@Test
+	public void testEmptySetIsShared() {
+		Set<String> firstShared = sharedStringSets.share(new LinkedHashSet<>());
+		Set<String> secondShared = sharedStringSets.share(new LinkedHashSet<>());
+
+		assertSame(secondShared, firstShared);
+	}
+
+	@Test
+	public void testNullSet() {
+		assertNull(sharedStringSets.share(null));
+	}
+
+	@Test
+	public void testNullInSet() {
+		Set<String> shared = sharedStringSets.share(createSet("someRole", null));
+
+		assertEquals(shared, createSet("someRole", null));
+	}
+
+	@Test(timeOut = 10000)
+	public void testSetsAndStringsNoLongerHeldAreRemoved() {
+		sharedStringSets.share(createSet(new String("someRole")));
+
+		while (sharedStringSets.numberOfSharedSets() > 0
+				|| sharedStringSets.numberOfSharedStrings() > 0) {
+			System.gc();
+		}
+	}
+
+	@Test
+	public void testSetStillHeldIsStillShared() {
+		Set<String> firstShared = sharedStringSets.share(createSet(new String("someRole")));
+
+		System.gc();
+		Set<String> secondShared = sharedStringSets.share(createSet(new String("someRole")));
+
+		assertSame(secondShared, firstShared);
+		assertEquals(sharedStringSets.numberOfSharedSets(), 1);
+	}
+
+	private Set<String> createSet(String... values) {
+		Set<String> set = new LinkedHashSet<>();
+		for (String value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeperserver.initialize.SignedTokenFormat.SignedToken;
+
+public class SignedTokenFormatTest {
+	private static final TokenKey TOKEN = TokenKey
+			.fromString("00000000-0000-4000-8000-000000000001");
+	private static final TokenKey TOKEN_ID = TokenKey
+			.fromString("00000000-0000-4000-8000-000000000002");
+	private static final byte[] KEY = createKey(1);
+	private SignedTokenFormat signedTokenFormat;
+	private ActiveTokenForUser tokenForUser;
+
+	private static byte[] createKey(int value) {
+		byte[] key = new byte[32];
+		Arrays.fill(key, (byte) value);
+		return key;
+	}
+
+	@BeforeMethod
+	public void beforeMethod() {
+		signedTokenFormat = new SignedTokenFormat(KEY);
+		tokenForUser = new ActiveTokenForUser(TOKEN_ID, "someLoginIdÅÄÖ", 1000L, 2000L);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "Token signing key must be at least 32 bytes, was: 31")
+	public void testKeyTooShort() {
+		new SignedTokenFormat(new byte[31]);
+	}
+
+	@Test
+	public void testWriteAndRead() {
+		String token = signedTokenFormat.write(TOKEN, tokenForUser);
+
+		SignedToken signedToken = signedTokenFormat.read(token);
+
+		assertEquals(signedToken.token(), TOKEN);
+		assertEquals(signedToken.tokenForUser(), tokenForUser);
+	}
+
+	@Test
+	public void testWrittenTokenIsBase64Url() {
+		String token = signedTokenFormat.write(TOKEN, tokenForUser);
+
+		assertEquals(token.matches("[A-Za-z0-9_-]+"), true);
+	}
+
+	@Test
+	public void testTokenWithOtherKeyIsRejected() {
+		String token = new SignedTokenFormat(createKey(2)).write(TOKEN, tokenForUser);
+
+		assertNull(signedTokenFormat.read(token));
+	}
+
+	@Test
+	public void testChangedTokenIsRejected() {
+		byte[] bytes = Base64.getUrlDecoder().decode(signedTokenFormat.write(TOKEN, tokenForUser));
+		bytes[20]++;
+
+		assertNull(signedTokenFormat.read(encode(bytes)));
+	}
+
+	@Test
+	public void testChangedSignatureIsRejected() {
+		byte[] bytes = Base64.getUrlDecoder().decode(signedTokenFormat.write(TOKEN, tokenForUser));
+		bytes[bytes.length - 1]++;
+
+		assertNull(signedTokenFormat.read(encode(bytes)));
+	}
+
+	@Test
+	public void testUnknownVersionIsRejected() {
+		byte[] bytes = Base64.getUrlDecoder().decode(signedTokenFormat.write(TOKEN, tokenForUser));
+		bytes[0] = 2;
+
+		assertNull(signedTokenFormat.read(encode(bytes)));
+	}
+
+	@Test
+	public void testTooShortTokenIsRejected() {
+		assertNull(signedTokenFormat.read(encode(new byte[80])));
+	}
+
+	@Test
+	public void testMalformedTokenIsRejected() {
+		assertNull(signedTokenFormat.read("not a token"));
+	}
+
+	@Test
+	public void testUUIDTokenIsRejected() {
+		assertNull(signedTokenFormat.read(TOKEN.toUUIDString()));
+	}
+
+	@Test
+	public void testDifferentTokensGiveDifferentSignedTokens() {
+		String token = signedTokenFormat.write(TOKEN, tokenForUser);
+		String otherToken = signedTokenFormat.write(TOKEN_ID, tokenForUser);
+
+		assertNotEquals(token, otherToken);
+	}
+
+	@Test
+	public void testWrittenTokenHasPossibleFormat() {
+		String token = signedTokenFormat.write(TOKEN, tokenForUser);
+
+		assertTrue(signedTokenFormat.hasPossibleFormat(token));
+	}
+
+	@Test
+	public void testHasPossibleFormatRejectsWrongLengthOrCharacters() {
+		assertFalse(signedTokenFormat.hasPossibleFormat(null));
+		assertFalse(signedTokenFormat.hasPossibleFormat(encode(new byte[80])));
+		assertTrue(signedTokenFormat.hasPossibleFormat(encode(new byte[81])));
+		assertTrue(signedTokenFormat.hasPossibleFormat(encode(new byte[81 + 1024])));
+		assertFalse(signedTokenFormat.hasPossibleFormat(encode(new byte[81 + 1025])));
+		assertFalse(signedTokenFormat.hasPossibleFormat(encode(new byte[81]) + "="));
+		assertFalse(signedTokenFormat.hasPossibleFormat("a".repeat(100) + "+"));
+	}
+
+	@Test
+	public void testWriteAndReadLongestLoginId() {
+		ActiveTokenForUser longTokenForUser = new ActiveTokenForUser(TOKEN_ID, "a".repeat(1024),
+				1000L, 2000L);
+
+		String token = signedTokenFormat.write(TOKEN, longTokenForUser);
+
+		assertEquals(signedTokenFormat.read(token).tokenForUser(), longTokenForUser);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = ""
+			+ "LoginId of signed token must be at most 1024 bytes, was: 1025")
+	public void testWriteTooLongLoginId() {
+		signedTokenFormat.write(TOKEN,
+				new ActiveTokenForUser(TOKEN_ID, "a".repeat(1025), 1000L, 2000L));
+	}
+
+	private String encode(byte[] bytes) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+}
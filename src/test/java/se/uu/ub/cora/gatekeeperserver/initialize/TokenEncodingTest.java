@@ -0,0 +1,48 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class TokenEncodingTest {
+	private TokenKey tokenKey = TokenKey.fromString("0f1e2d3c-4b5a-4978-8695-a4b3c2d1e0ff");
+
+	@Test
+	public void testFromSettingValue() {
+		assertEquals(TokenEncoding.fromSettingValue("uuid"), TokenEncoding.UUID);
+		assertEquals(TokenEncoding.fromSettingValue("base64url"), TokenEncoding.BASE64URL);
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void testFromSettingValueUnknownValue() {
+		TokenEncoding.fromSettingValue("someUnknownEncoding");
+	}
+
+	@Test
+	public void testEncodeUUID() {
+		assertEquals(TokenEncoding.UUID.encode(tokenKey), tokenKey.toUUIDString());
+	}
+
+	@Test
+	public void testEncodeBase64Url() {
+		assertEquals(TokenEncoding.BASE64URL.encode(tokenKey), tokenKey.toBase64UrlString());
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.Test;
+
+public class TokenKeyGeneratorTest {
+
+	@Test
+	public void testDefaultNumberOfStripes() {
+		TokenKeyGenerator generator = new TokenKeyGenerator();
+
+		assertEquals(generator.onlyForTestGetNumberOfStripes(),
+				Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	@Test
+	public void testNumberOfStripes() {
+		TokenKeyGenerator generator = new TokenKeyGenerator(3);
+
+		assertEquals(generator.onlyForTestGetNumberOfStripes(), 3);
+	}
+
+	@Test
+	public void testGeneratedTokenKeysAreVersion4UUIDs() {
+		TokenKeyGenerator generator = new TokenKeyGenerator(1);
+
+		for (int i = 0; i < 1000; i++) {
+			UUID uuid = UUID.fromString(generator.generate().toUUIDString());
+			assertEquals(uuid.version(), 4);
+			assertEquals(uuid.variant(), 2);
+		}
+	}
+
+	@Test
+	public void testGeneratedTokenKeysAreUniqueWhenBufferIsRefilled() {
+		TokenKeyGenerator generator = new TokenKeyGenerator(1);
+		Set<TokenKey> tokenKeys = new HashSet<>();
+
+		for (int i = 0; i < 2000; i++) {
+			tokenKeys.add(generator.generate());
+		}
+
+		assertEquals(tokenKeys.size(), 2000);
+	}
+
+	@Test
+	public void testGeneratedTokenKeysAreUniqueAcrossThreads() throws Exception {
+		TokenKeyGenerator generator = new TokenKeyGenerator(2);
+		Set<TokenKey> tokenKeys = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<?>> futures = new ArrayList<>();
+
+		for (int thread = 0; thread < 8; thread++) {
+			futures.add(executor.submit(() -> generateInto(generator, tokenKeys, 1000)));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+
+		assertEquals(tokenKeys.size(), 8000);
+	}
+
+	private void generateInto(TokenKeyGenerator generator, Set<TokenKey> tokenKeys,
+			int numberOfTokenKeys) {
+		for (int i = 0; i < numberOfTokenKeys; i++) {
+			tokenKeys.add(generator.generate());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.initialize;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Base64;
+import java.util.UUID;
+
+import org.testng.annotations.Test;
+
+public class TokenKeyTest {
+	private static final String SOME_UUID = "0f1e2d3c-4b5a-4978-8695-a4b3c2d1e0ff";
+
+	@Test
+	public void testFromUUID() {
+		UUID uuid = UUID.fromString(SOME_UUID);
+
+		TokenKey tokenKey = TokenKey.fromUUID(uuid);
+
+		assertEquals(tokenKey.mostSignificantBits(), uuid.getMostSignificantBits());
+		assertEquals(tokenKey.leastSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	@Test
+	public void testFromUUIDString() {
+		TokenKey tokenKey = TokenKey.fromString(SOME_UUID);
+
+		assertEquals(tokenKey, TokenKey.fromUUID(UUID.fromString(SOME_UUID)));
+		assertEquals(tokenKey.toUUIDString(), SOME_UUID);
+	}
+
+	@Test
+	public void testFromUUIDStringWithAllBitsSet() {
+		TokenKey tokenKey = TokenKey.fromString("ffffffff-ffff-ffff-ffff-ffffffffffff");
+
+		assertEquals(tokenKey, new TokenKey(-1L, -1L));
+	}
+
+	@Test
+	public void testRandomUUIDsRoundTrip() {
+		for (int i = 0; i < 100; i++) {
+			UUID uuid = UUID.randomUUID();
+			TokenKey tokenKey = TokenKey.fromUUID(uuid);
+
+			assertEquals(TokenKey.fromString(uuid.toString()), tokenKey);
+			assertEquals(tokenKey.toUUIDString(), uuid.toString());
+			assertEquals(TokenKey.fromString(tokenKey.toBase64UrlString()), tokenKey);
+		}
+	}
+
+	@Test
+	public void testToBase64UrlStringIsUnpaddedBase64UrlOfTheBytes() {
+		TokenKey tokenKey = TokenKey.fromString(SOME_UUID);
+
+		String base64Url = tokenKey.toBase64UrlString();
+
+		assertEquals(base64Url.length(), 22);
+		byte[] bytes = Base64.getUrlDecoder().decode(base64Url);
+		assertEquals(bytes.length, 16);
+		assertEquals(bytes[0], (byte) 0x0f);
+		assertEquals(bytes[15], (byte) 0xff);
+	}
+
+	@Test
+	public void testFromBase64UrlStringWithAllBitsSet() {
+		TokenKey tokenKey = TokenKey.fromString("_____________________w");
+
+		assertEquals(tokenKey, new TokenKey(-1L, -1L));
+	}
+
+	@Test
+	public void testMalformedTokensAreNull() {
+		assertNull(TokenKey.fromString(null));
+		assertNull(TokenKey.fromString(""));
+		assertNull(TokenKey.fromString("someToken"));
+		assertNull(TokenKey.fromString(SOME_UUID + "0"));
+		assertNull(TokenKey.fromString(SOME_UUID.substring(1)));
+	}
+
+	@Test
+	public void testHasPossibleFormat() {
+		assertTrue(TokenKey.hasPossibleFormat(SOME_UUID));
+		assertTrue(TokenKey.hasPossibleFormat("_____________________w"));
+		assertFalse(TokenKey.hasPossibleFormat(null));
+		assertFalse(TokenKey.hasPossibleFormat(""));
+		assertFalse(TokenKey.hasPossibleFormat("someToken"));
+		assertFalse(TokenKey.hasPossibleFormat(SOME_UUID + "0"));
+	}
+
+	@Test
+	public void testMalformedUUIDStringsAreNull() {
+		assertNull(TokenKey.fromString("0f1e2d3c-4b5a-4978-8695-a4b3c2d1e0fg"));
+		assertNull(TokenKey.fromString("0F1E2D3C-4B5A-4978-8695-A4B3C2D1E0FF"));
+		assertNull(TokenKey.fromString("0f1e2d3c04b5a-4978-8695-a4b3c2d1e0ff"));
+		assertNull(TokenKey.fromString("0f1e2d3c-4b5a-4978-8695-a4b3c2d1e0få"));
+		assertNull(TokenKey.fromString("0f1e2d3c-4b5a-4978-8695-a4b3c2d1e0f٠"));
+	}
+
+	@Test
+	public void testMalformedBase64UrlStringsAreNull() {
+		assertNull(TokenKey.fromString("_____________________+"));
+		assertNull(TokenKey.fromString("____________________=w"));
+		assertNull(TokenKey.fromString("_____________________x"));
+		assertNull(TokenKey.fromString("_____________________å"));
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+public class FlatJsonMediaTypesTest {
+
+	@Test
+	public void testNoAcceptHeaderIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested(null, FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testOnlyFlatMediaTypeIsRequested() {
+		assertTrue(FlatJsonMediaTypes.isRequested(FlatJsonMediaTypes.USER,
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFirstFlatMediaTypeWithParametersIsRequested() {
+		assertTrue(FlatJsonMediaTypes.isRequested(
+				" Application/Vnd.Cora.User.Flat+Json ;charset=utf-8;q=1, application/json",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testOtherFlatMediaTypeIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested(FlatJsonMediaTypes.AUTH_TOKEN,
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeAfterOtherMediaTypeIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested("application/json, " + FlatJsonMediaTypes.USER,
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testAnyMediaTypeIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested("*/*", FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeAfterAnyMediaTypeIsRequestedAsMoreSpecific() {
+		assertTrue(FlatJsonMediaTypes.isRequested("*/*, " + FlatJsonMediaTypes.USER,
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeWithLowerQualityIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested(
+				FlatJsonMediaTypes.USER + ";q=0.9, application/json", FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeWithHigherQualityAfterOtherIsRequested() {
+		assertTrue(FlatJsonMediaTypes.isRequested(
+				"application/json;q=0.5, " + FlatJsonMediaTypes.USER, FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeWithQualityZeroIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested(FlatJsonMediaTypes.USER + ";q=0",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testFlatMediaTypeWithMalformedQualityIsLeftOut() {
+		assertFalse(FlatJsonMediaTypes.isRequested(FlatJsonMediaTypes.USER + ";q=high",
+				FlatJsonMediaTypes.USER));
+		assertFalse(FlatJsonMediaTypes.isRequested(FlatJsonMediaTypes.USER + ";q=1.5",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testMalformedQualityOfOtherMediaTypeIsLeftOut() {
+		assertTrue(FlatJsonMediaTypes.isRequested(
+				"application/json;q=x, " + FlatJsonMediaTypes.USER + ";q=0.1",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testSubtypeWildcardAloneIsNotRequested() {
+		assertFalse(FlatJsonMediaTypes.isRequested("application/*, text/html;q=0.5",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testMostSpecificMatchGivesQualityOfFlatMediaType() {
+		assertFalse(FlatJsonMediaTypes.isRequested(
+				"application/*, " + FlatJsonMediaTypes.USER + ";q=0.2, text/html;q=0.5",
+				FlatJsonMediaTypes.USER));
+	}
+
+	@Test
+	public void testCoraMediaTypeNamedFirstIsPreferred() {
+		assertFalse(FlatJsonMediaTypes.isRequested(
+				"application/vnd.cora.user+json, " + FlatJsonMediaTypes.USER,
+				FlatJsonMediaTypes.USER, "application/vnd.cora.user+json"));
+	}
+
+	@Test
+	public void testFlatMediaTypeNamedFirstIsPreferredOverCoraMediaType() {
+		assertTrue(FlatJsonMediaTypes.isRequested(
+				FlatJsonMediaTypes.USER + ", application/vnd.cora.user+json",
+				FlatJsonMediaTypes.USER, "application/vnd.cora.user+json"));
+	}
+
+	@Test
+	public void testFlatMediaTypeWithHigherQualityIsPreferredOverCoraMediaType() {
+		assertTrue(FlatJsonMediaTypes.isRequested(
+				"application/vnd.cora.user+json;q=0.4, text/html, "
+						+ FlatJsonMediaTypes.USER + ";q=0.6",
+				FlatJsonMediaTypes.USER, "application/vnd.cora.user+json"));
+	}
+
+	@Test
+	public void testFlatMediaTypeWhenCoraMediaTypeIsNotAcceptedIsPreferred() {
+		assertTrue(FlatJsonMediaTypes.isRequested("text/html, " + FlatJsonMediaTypes.USER,
+				FlatJsonMediaTypes.USER, "application/vnd.cora.user+json"));
+	}
+
+	@Test
+	public void testCoraMediaTypeMatchedBySameWildcardIsPreferredWhenNamedFirst() {
+		assertFalse(FlatJsonMediaTypes.isRequested("application/*",
+				FlatJsonMediaTypes.USER, "application/vnd.cora.user+json"));
+	}
+}
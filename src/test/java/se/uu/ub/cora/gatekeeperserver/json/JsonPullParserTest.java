@@ -0,0 +1,184 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParser.Event;
+
+public class JsonPullParserTest {
+	private static final int MAX_LENGTH = 1000;
+	private JsonPullParser parser;
+
+	@Test
+	public void testReadAllEvents() {
+		String json = " {\"a\" : [ \"s\", -1.5e3, true, false, null, {}, [] ],\n\"b\":0 } ";
+
+		List<String> events = readAllEvents(json);
+
+		assertEquals(events, List.of("START_OBJECT", "KEY a", "START_ARRAY", "STRING s",
+				"NUMBER -1.5e3", "TRUE", "FALSE", "NULL", "START_OBJECT", "END_OBJECT",
+				"START_ARRAY", "END_ARRAY", "END_ARRAY", "KEY b", "NUMBER 0", "END_OBJECT",
+				"END_OF_JSON"));
+	}
+
+	private List<String> readAllEvents(String json) {
+		parser = new JsonPullParser(new StringReader(json), MAX_LENGTH);
+		List<String> events = new ArrayList<>();
+		Event event;
+		do {
+			event = parser.next();
+			events.add(eventAsString(event));
+		} while (event != Event.END_OF_JSON);
+		return events;
+	}
+
+	private String eventAsString(Event event) {
+		if (event == Event.KEY || event == Event.STRING || event == Event.NUMBER) {
+			return event + " " + parser.getString();
+		}
+		return event.toString();
+	}
+
+	@Test
+	public void testReadStringWithEscapes() {
+		List<String> events = readAllEvents("\"a\\\"b\\\\c\\/d\\b\\f\\n\\r\\t\\u00e5\\u20AC\"");
+
+		assertEquals(events.get(0), "STRING a\"b\\c/d\b\f\n\r\t\u00e5\u20ac");
+	}
+
+	@Test
+	public void testReadJsonLongerThanBuffer() {
+		String longString = "x".repeat(5000);
+
+		parser = new JsonPullParser(new StringReader("[\"" + longString + "\"]"), 6000);
+
+		assertSame(parser.next(), Event.START_ARRAY);
+		assertSame(parser.next(), Event.STRING);
+		assertEquals(parser.getString(), longString);
+	}
+
+	@Test
+	public void testSkipValue() {
+		parser = new JsonPullParser(
+				new StringReader("{\"a\":{\"b\":[1,{\"c\":[]}],\"d\":\"e\"},\"f\":\"g\"}"),
+				MAX_LENGTH);
+		parser.next();
+		parser.next();
+
+		parser.skipValue();
+
+		assertSame(parser.next(), Event.KEY);
+		assertEquals(parser.getString(), "f");
+		parser.skipValue();
+		assertSame(parser.next(), Event.END_OBJECT);
+		assertSame(parser.next(), Event.END_OF_JSON);
+	}
+
+	@Test
+	public void testEmptyJson() {
+		assertParseError(" ", "Expected a value but found end of json at position 1");
+	}
+
+	private void assertParseError(String json, String expectedMessage) {
+		try {
+			readAllEvents(json);
+			fail("it should throw JsonPullParseException");
+		} catch (JsonPullParseException e) {
+			assertEquals(e.getMessage(), expectedMessage);
+		}
+	}
+
+	@Test
+	public void testMalformedJson() {
+		assertParseError("{\"a\" 1}", "Expected ':' but found '1' at position 6");
+		assertParseError("{\"a\":1,}", "Expected a key but found '}' at position 8");
+		assertParseError("{a:1}", "Expected a key but found 'a' at position 2");
+		assertParseError("{\"a\":}", "Expected a value but found '}' at position 6");
+		assertParseError("[1 2]", "Expected ',' but found '2' at position 4");
+		assertParseError("[1,]", "Expected a value but found ']' at position 4");
+		assertParseError("[1", "Expected ',' but found end of json at position 2");
+		assertParseError("[tru]", "Expected true but found ']' at position 5");
+		assertParseError("\"a", "Expected '\"' but found end of json at position 2");
+		assertParseError("\"a\nb\"", "Expected '\"' but found '\n' at position 3");
+		assertParseError("\"\\x\"", "Expected an escape character but found 'x' at position 3");
+		assertParseError("\"\\u00g0\"", "Expected a hex digit but found 'g' at position 6");
+		assertParseError("{} {}", "Unexpected content after json value");
+	}
+
+	@Test
+	public void testMalformedNumbers() {
+		assertParseError("[01]", "Malformed number 01 at position 4");
+		assertParseError("[1-2]", "Malformed number 1-2 at position 5");
+		assertParseError("[1.]", "Malformed number 1. at position 4");
+		assertParseError("[-]", "Malformed number - at position 3");
+		assertParseError("[.5]", "Expected a value but found '.' at position 2");
+	}
+
+	@Test
+	public void testTooDeepJson() {
+		String json = "[".repeat(JsonPullParser.MAX_DEPTH) + "]".repeat(JsonPullParser.MAX_DEPTH);
+		assertEquals(readAllEvents(json).size(), 2 * JsonPullParser.MAX_DEPTH + 1);
+
+		assertParseError("[" + json + "]", "Json is nested deeper than 32 levels");
+	}
+
+	@Test
+	public void testTooLongJson() {
+		String json = "[" + " ".repeat(MAX_LENGTH - 2) + "]";
+		readAllEvents(json);
+
+		assertParseError(json + " ", "Json is longer than the maximum of 1000 characters");
+	}
+
+	@Test
+	public void testReaderErrorIsThrownAsParseError() {
+		IOException readError = new IOException("some error");
+		Reader failingReader = new Reader() {
+			@Override
+			public int read(char[] buffer, int offset, int length) throws IOException {
+				throw readError;
+			}
+
+			@Override
+			public void close() {
+				// nothing to close
+			}
+		};
+		parser = new JsonPullParser(failingReader, MAX_LENGTH);
+
+		try {
+			parser.next();
+			fail("it should throw JsonPullParseException");
+		} catch (JsonPullParseException e) {
+			assertEquals(e.getMessage(), "Could not read json");
+			assertSame(e.getCause(), readError);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.json;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class JsonStringWriterTest {
+	private static final String STRING_TO_ESCAPE = "a\"b\\c</d/e\b\t\n\f\r\u0001\u001f "
+			+ "\u007f\u0080\u009f \u00e5\u1fff\u2000\u2028\u20ac\u20ff\u2100";
+
+	@Test
+	public void testWriteStringEscapesLikeOrgJson() {
+		StringBuilder json = new StringBuilder();
+
+		JsonStringWriter.writeString(STRING_TO_ESCAPE, json);
+
+		String expected = "\"a\\\"b\\\\c<\\/d/e\\b\\t\\n\\f\\r\\u0001\\u001f "
+				+ "\u007f\\u0080\\u009f \u00e5\u1fff\\u2000\\u2028\\u20ac\\u20ff\u2100\"";
+		assertEquals(json.toString(), expected);
+	}
+
+	@Test
+	public void testWriteStringEmpty() {
+		StringBuilder json = new StringBuilder();
+
+		JsonStringWriter.writeString("", json);
+
+		assertEquals(json.toString(), "\"\"");
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2024 Uppsala University Library
+ * Copyright 2024, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -31,6 +31,7 @@ import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.container.Suspended;
 import jakarta.ws.rs.core.Context;
 
 public class AnnotationTestHelper {
@@ -79,7 +80,7 @@ public class AnnotationTestHelper {
 	}
 
 	public static AnnotationTestHelper createAnnotationTestHelperForClassMethodNameAndParameters(
-			Class<?> class1, String methodName, Class<?>[] parameters)
+			Class<?> class1, String methodName, Class<?>... parameters)
 			throws NoSuchMethodException {
 		return new AnnotationTestHelper(class1, methodName, parameters);
 	}
@@ -144,6 +145,16 @@ public class AnnotationTestHelper {
 		assertEquals(parameter.annotationType(), Context.class);
 	}
 
+	public void assertHeaderParamAnnotationByNameAndPosition(String name, int startPosition) {
+		HeaderParam parameter = (HeaderParam) parameterAnnotations[startPosition][0];
+		assertEquals(parameter.value(), name);
+	}
+
+	public void assertSuspendedAnnotationForPosition(int startPosition) {
+		var parameter = parameterAnnotations[startPosition][0];
+		assertEquals(parameter.annotationType(), Suspended.class);
+	}
+
 	public void assertQueryParamAnnotationByNameAndPosition(String name, int startPosition) {
 		QueryParam parameter = (QueryParam) parameterAnnotations[startPosition][0];
 		assertEquals(parameter.value(), name);
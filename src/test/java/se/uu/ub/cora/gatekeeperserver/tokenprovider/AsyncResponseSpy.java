@@ -0,0 +1,121 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.tokenprovider;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.TimeoutHandler;
+import se.uu.ub.cora.testutils.mcr.MethodCallRecorder;
+import se.uu.ub.cora.testutils.mrv.MethodReturnValues;
+
+public class AsyncResponseSpy implements AsyncResponse {
+	public MethodCallRecorder MCR = new MethodCallRecorder();
+	public MethodReturnValues MRV = new MethodReturnValues();
+
+	public AsyncResponseSpy() {
+		MCR.useMRV(MRV);
+		MRV.setDefaultReturnValuesSupplier("resume", () -> true);
+		MRV.setDefaultReturnValuesSupplier("cancel", () -> true);
+		MRV.setDefaultReturnValuesSupplier("isSuspended", () -> true);
+		MRV.setDefaultReturnValuesSupplier("isCancelled", () -> false);
+		MRV.setDefaultReturnValuesSupplier("isDone", () -> false);
+		MRV.setDefaultReturnValuesSupplier("setTimeout", () -> true);
+	}
+
+	@Override
+	public boolean resume(Object response) {
+		return (boolean) MCR.addCallAndReturnFromMRV("response", response);
+	}
+
+	@Override
+	public boolean resume(Throwable response) {
+		return (boolean) MCR.addCallAndReturnFromMRV("throwable", response);
+	}
+
+	@Override
+	public boolean cancel() {
+		return (boolean) MCR.addCallAndReturnFromMRV();
+	}
+
+	@Override
+	public boolean cancel(int retryAfter) {
+		return (boolean) MCR.addCallAndReturnFromMRV("retryAfter", retryAfter);
+	}
+
+	@Override
+	public boolean cancel(Date retryAfter) {
+		return (boolean) MCR.addCallAndReturnFromMRV("retryAfter", retryAfter);
+	}
+
+	@Override
+	public boolean isSuspended() {
+		return (boolean) MCR.addCallAndReturnFromMRV();
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return (boolean) MCR.addCallAndReturnFromMRV();
+	}
+
+	@Override
+	public boolean isDone() {
+		return (boolean) MCR.addCallAndReturnFromMRV();
+	}
+
+	@Override
+	public boolean setTimeout(long time, TimeUnit unit) {
+		return (boolean) MCR.addCallAndReturnFromMRV("time", time, "unit", unit);
+	}
+
+	@Override
+	public void setTimeoutHandler(TimeoutHandler handler) {
+		MCR.addCall("handler", handler);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<Class<?>> register(Class<?> callback) {
+		return (Collection<Class<?>>) MCR.addCallAndReturnFromMRV("callback", callback);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback,
+			Class<?>... callbacks) {
+		return (Map<Class<?>, Collection<Class<?>>>) MCR.addCallAndReturnFromMRV("callback",
+				callback, "callbacks", callbacks);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Collection<Class<?>> register(Object callback) {
+		return (Collection<Class<?>>) MCR.addCallAndReturnFromMRV("callback", callback);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+		return (Map<Class<?>, Collection<Class<?>>>) MCR.addCallAndReturnFromMRV("callback",
+				callback, "callbacks", callbacks);
+	}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2017, 2024, 2025 Uppsala University Library
+ * Copyright 2016, 2017, 2024, 2025, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -20,6 +20,7 @@
 package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
 
 import java.util.Collections;
 import java.util.LinkedHashSet;
@@ -214,4 +215,39 @@ public class AuthTokenToJsonConverterTest {
 				}""";
 		assertEquals(json, compactString(expected));
 	}
+
+	@Test
+	public void testAuthTokenToJsonConverterEscapesValues() {
+		AuthToken authToken = new AuthToken("someToken", "someTokenId", 100L, 200L,
+				"some\"IdFromStorage", "login\\Id", Optional.of("</first\u00d6"),
+				Optional.of("last\tName"), Set.of("0\u20281"));
+		AuthTokenToJsonConverter converter = new AuthTokenToJsonConverter(authToken);
+
+		String json = converter.convertAuthTokenToJson();
+
+		String expected = "{\"children\":[{\"name\":\"token\",\"value\":\"someToken\"},"
+				+ "{\"name\":\"tokenId\",\"value\":\"someTokenId\"},"
+				+ "{\"name\":\"validUntil\",\"value\":\"100\"},"
+				+ "{\"name\":\"renewUntil\",\"value\":\"200\"},"
+				+ "{\"name\":\"idInUserStorage\",\"value\":\"some\\\"IdFromStorage\"},"
+				+ "{\"name\":\"loginId\",\"value\":\"login\\\\Id\"},"
+				+ "{\"name\":\"firstName\",\"value\":\"<\\/first\u00d6\"},"
+				+ "{\"name\":\"lastName\",\"value\":\"last\\tName\"},"
+				+ "{\"repeatId\":\"1\",\"children\":["
+				+ "{\"name\":\"linkedRecordType\",\"value\":\"permissionUnit\"},"
+				+ "{\"name\":\"linkedRecordId\",\"value\":\"0\\u20281\"}],"
+				+ "\"name\":\"permissionUnit\"}],\"name\":\"authToken\"}";
+		assertEquals(json, expected);
+	}
+
+	@Test
+	public void testAuthTokenToJsonConverterWithoutIdInUserStorage() {
+		AuthToken authToken = new AuthToken("someToken", "someTokenId", 100L, 200L, null,
+				"loginId", Optional.empty(), Optional.empty(), Collections.emptySet());
+		AuthTokenToJsonConverter converter = new AuthTokenToJsonConverter(authToken);
+
+		String json = converter.convertAuthTokenToJson();
+
+		assertTrue(json.contains("{\"name\":\"idInUserStorage\",\"value\":\"null\"}"));
+	}
 }
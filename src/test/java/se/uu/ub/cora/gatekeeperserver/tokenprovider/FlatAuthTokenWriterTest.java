@@ -0,0 +1,93 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.tokenprovider;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FlatAuthTokenWriterTest {
+	private FlatAuthTokenWriter writer;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		writer = new FlatAuthTokenWriter();
+	}
+
+	@Test
+	public void testIsWriteable() {
+		assertTrue(writer.isWriteable(AuthToken.class, AuthToken.class, null, null));
+		assertFalse(writer.isWriteable(String.class, String.class, null, null));
+	}
+
+	@Test
+	public void testWriteAuthTokenWithoutNamesAndPermissionUnits() throws IOException {
+		AuthToken authToken = new AuthToken("someToken", "someTokenId", 100L, 200L, "someId",
+				"someLoginId", Optional.empty(), Optional.empty(), Collections.emptySet());
+
+		String expected = "{\"token\":\"someToken\",\"tokenId\":\"someTokenId\","
+				+ "\"validUntil\":100,\"renewUntil\":200,\"idInUserStorage\":\"someId\","
+				+ "\"loginId\":\"someLoginId\",\"permissionUnits\":[]}";
+		assertEquals(writeAuthToken(authToken), expected);
+	}
+
+	private String writeAuthToken(AuthToken authToken) throws IOException {
+		ByteArrayOutputStream entityStream = new ByteArrayOutputStream();
+		writer.writeTo(authToken, AuthToken.class, AuthToken.class, null, null, null,
+				entityStream);
+		return entityStream.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testWriteAuthTokenWithAllFieldsSet() throws IOException {
+		AuthToken authToken = new AuthToken("someToken", "someTokenId", 100L, 200L, "someId",
+				"someLoginId", Optional.of("someFirstName"), Optional.of("someLastName"),
+				new LinkedHashSet<>(List.of("001", "002")));
+
+		String expected = "{\"token\":\"someToken\",\"tokenId\":\"someTokenId\","
+				+ "\"validUntil\":100,\"renewUntil\":200,\"idInUserStorage\":\"someId\","
+				+ "\"loginId\":\"someLoginId\",\"firstName\":\"someFirstName\","
+				+ "\"lastName\":\"someLastName\",\"permissionUnits\":[\"001\",\"002\"]}";
+		assertEquals(writeAuthToken(authToken), expected);
+	}
+
+	@Test
+	public void testWriteAuthTokenWithNullValuesAndCharactersToEscape() throws IOException {
+		AuthToken authToken = new AuthToken("some\"Token", null, 100L, 200L, null,
+				"some\u00e5LoginId", Optional.empty(), Optional.of("some\nLastName"),
+				Collections.emptySet());
+
+		String expected = "{\"token\":\"some\\\"Token\",\"tokenId\":null,"
+				+ "\"validUntil\":100,\"renewUntil\":200,\"idInUserStorage\":null,"
+				+ "\"loginId\":\"some\u00e5LoginId\",\"lastName\":\"some\\nLastName\","
+				+ "\"permissionUnits\":[]}";
+		assertEquals(writeAuthToken(authToken), expected);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2026 Uppsala University Library
+ *
+ * This file is part of Cora.
+ *
+ *     Cora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Cora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with Cora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package se.uu.ub.cora.gatekeeperserver.tokenprovider;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import jakarta.ws.rs.BadRequestException;
+import se.uu.ub.cora.gatekeeper.picker.UserInfo;
+
+public class FlatUserInfoReaderTest {
+	private FlatUserInfoReader reader;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		reader = new FlatUserInfoReader();
+	}
+
+	@Test
+	public void testIsReadable() {
+		assertTrue(reader.isReadable(UserInfo.class, UserInfo.class, null, null));
+		assertFalse(reader.isReadable(String.class, String.class, null, null));
+	}
+
+	@Test
+	public void testReadIdInUserStorage() {
+		UserInfo userInfo = readUserInfo("{\"idInUserStorage\":\"131313\"}");
+
+		assertEquals(userInfo.idInUserStorage, "131313");
+		assertNull(userInfo.loginId);
+	}
+
+	private UserInfo readUserInfo(String json) {
+		return reader.readFrom(UserInfo.class, UserInfo.class, null, null, null,
+				new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void testReadLoginIdAndDomainFromLogin() {
+		UserInfo userInfo = readUserInfo(
+				"{\"loginId\":\"someLoginId\",\"domainFromLogin\":\"someDomain\"}");
+
+		assertNull(userInfo.idInUserStorage);
+		assertEquals(userInfo.loginId, "someLoginId");
+		assertEquals(userInfo.domainFromLogin, "someDomain");
+	}
+
+	@Test
+	public void testEmptyIdInUserStorageUsesLoginId() {
+		UserInfo userInfo = readUserInfo("{\"idInUserStorage\":\"\",\"loginId\":\"some\u00e5Id\","
+				+ "\"domainFromLogin\":\"someDomain\"}");
+
+		assertNull(userInfo.idInUserStorage);
+		assertEquals(userInfo.loginId, "some\u00e5Id");
+	}
+
+	@Test
+	public void testUnknownMembersAreSkipped() {
+		UserInfo userInfo = readUserInfo(
+				"{\"other\":{\"a\":[1,true]},\"idInUserStorage\":\"131313\",\"more\":null}");
+
+		assertEquals(userInfo.idInUserStorage, "131313");
+	}
+
+	@Test
+	public void testNotAnObjectIsBadRequest() {
+		assertBadRequest("[\"131313\"]",
+				"Could not parse userInfo: expected START_OBJECT but found START_ARRAY");
+	}
+
+	private void assertBadRequest(String json, String expectedMessage) {
+		try {
+			readUserInfo(json);
+			fail("A BadRequestException should have been thrown");
+		} catch (BadRequestException e) {
+			assertEquals(e.getMessage(), expectedMessage);
+		}
+	}
+
+	@Test
+	public void testNonStringValueIsBadRequest() {
+		assertBadRequest("{\"idInUserStorage\":131313}",
+				"Could not parse userInfo: expected STRING but found NUMBER");
+	}
+
+	@Test
+	public void testMalformedJsonIsBadRequest() {
+		try {
+			readUserInfo("{\"idInUserStorage\":");
+			fail("A BadRequestException should have been thrown");
+		} catch (BadRequestException e) {
+			assertTrue(e.getMessage().startsWith("Could not parse userInfo: "));
+		}
+	}
+
+	@Test
+	public void testTooLongJsonIsBadRequest() {
+		String tooLong = "{\"idInUserStorage\":\""
+				+ "a".repeat(JsonToUserInfoConverter.MAX_USER_INFO_LENGTH) + "\"}";
+
+		assertBadRequest(tooLong, "Could not parse userInfo: Json is longer than the maximum of "
+				+ JsonToUserInfoConverter.MAX_USER_INFO_LENGTH + " characters");
+	}
+}
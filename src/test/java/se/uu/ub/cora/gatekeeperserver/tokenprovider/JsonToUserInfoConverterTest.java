@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 Uppsala University Library
+ * Copyright 2016, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -21,10 +21,15 @@ package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.StringReader;
 
 import org.testng.annotations.Test;
 
 import se.uu.ub.cora.gatekeeper.picker.UserInfo;
+import se.uu.ub.cora.gatekeeperserver.json.JsonPullParseException;
 
 public class JsonToUserInfoConverterTest {
 	@Test
@@ -66,4 +71,113 @@ public class JsonToUserInfoConverterTest {
 		assertEquals(userInfo.loginId, "someLoginIdWithProblem");
 		assertEquals(userInfo.domainFromLogin, "");
 	}
+
+	@Test
+	public void testIdInUserStorageAndLoginIdInAnyOrder() {
+		String jsonUserInfo = "{\"name\":\"userInfo\",\"children\":["
+				+ "{\"value\":\"someLoginId\",\"name\":\"loginId\"},"
+				+ "{\"name\":\"domainFromLogin\",\"value\":\"someDomain\"}]}";
+
+		UserInfo userInfo = new JsonToUserInfoConverter(jsonUserInfo).parseUserInfoFromJson();
+
+		assertNull(userInfo.idInUserStorage);
+		assertEquals(userInfo.loginId, "someLoginId");
+		assertEquals(userInfo.domainFromLogin, "someDomain");
+	}
+
+	@Test
+	public void testOtherKeysAndChildrenAreSkipped() {
+		String jsonUserInfo = "{\"attributes\":{\"type\":[1,2.5e3,true,null,{}]},\"children\":["
+				+ "{\"name\":\"otherChild\",\"value\":\"x\",\"repeatId\":\"1\"},"
+				+ "{\"name\":\"idInUserStorage\",\"value\":\"13\\u00e513\",\"extra\":[[]]}"
+				+ "],\"name\":\"userInfo\"}";
+
+		UserInfo userInfo = new JsonToUserInfoConverter(jsonUserInfo).parseUserInfoFromJson();
+
+		assertEquals(userInfo.idInUserStorage, "13\u00e513");
+	}
+
+	@Test
+	public void testReadingStopsWhenIdInUserStorageIsFound() {
+		String jsonUserInfo = "{\"children\":["
+				+ "{\"name\":\"idInUserStorage\",\"value\":\"131313\"},"
+				+ "this is never read";
+
+		UserInfo userInfo = new JsonToUserInfoConverter(jsonUserInfo).parseUserInfoFromJson();
+
+		assertEquals(userInfo.idInUserStorage, "131313");
+	}
+
+	@Test
+	public void testReadingFromReader() {
+		String jsonUserInfo = "{\"children\":["
+				+ "{\"name\":\"idInUserStorage\",\"value\":\"131313\"}],\"name\":\"userInfo\"}";
+
+		UserInfo userInfo = new JsonToUserInfoConverter(new StringReader(jsonUserInfo))
+				.parseUserInfoFromJson();
+
+		assertEquals(userInfo.idInUserStorage, "131313");
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: Expected ':' but found '\\}' at position 12")
+	public void testMalformedJson() {
+		new JsonToUserInfoConverter("{\"children\"}").parseUserInfoFromJson();
+	}
+
+	@Test
+	public void testMalformedJsonHasCause() {
+		try {
+			new JsonToUserInfoConverter("{").parseUserInfoFromJson();
+			fail("it should throw UserInfoParseException");
+		} catch (UserInfoParseException e) {
+			assertTrue(e.getCause() instanceof JsonPullParseException);
+		}
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: Json is longer than the maximum of 16384 characters")
+	public void testTooLongJson() {
+		String jsonUserInfo = "{\"children\":[" + " ".repeat(16384) + "]}";
+
+		new JsonToUserInfoConverter(jsonUserInfo).parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: no children found")
+	public void testNoChildren() {
+		new JsonToUserInfoConverter("{\"name\":\"userInfo\"}").parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: expected START_OBJECT but found START_ARRAY")
+	public void testNotAnObject() {
+		new JsonToUserInfoConverter("[]").parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: expected START_ARRAY but found STRING")
+	public void testChildrenNotAnArray() {
+		new JsonToUserInfoConverter("{\"children\":\"x\"}").parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: expected END_ARRAY but found STRING")
+	public void testChildNotAnObject() {
+		new JsonToUserInfoConverter("{\"children\":[\"x\"]}").parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: expected STRING but found NUMBER")
+	public void testChildValueNotAString() {
+		new JsonToUserInfoConverter("{\"children\":[{\"name\":\"loginId\",\"value\":1}]}")
+				.parseUserInfoFromJson();
+	}
+
+	@Test(expectedExceptions = UserInfoParseException.class, expectedExceptionsMessageRegExp = ""
+			+ "Could not parse userInfo: child without name or value found")
+	public void testChildWithoutValue() {
+		new JsonToUserInfoConverter("{\"children\":[{\"name\":\"loginId\"}]}")
+				.parseUserInfoFromJson();
+	}
 }
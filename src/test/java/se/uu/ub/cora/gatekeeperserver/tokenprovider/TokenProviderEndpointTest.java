@@ -1,5 +1,5 @@
 /*
- * Copyright 2016, 2024 Uppsala University Library
+ * Copyright 2016, 2024, 2026 Uppsala University Library
  *
  * This file is part of Cora.
  *
@@ -21,18 +21,32 @@ package se.uu.ub.cora.gatekeeperserver.tokenprovider;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import jakarta.ws.rs.container.AsyncResponse;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
+import se.uu.ub.cora.gatekeeper.picker.UserInfo;
+import se.uu.ub.cora.gatekeeperserver.StorageWorkExecutor;
 import se.uu.ub.cora.gatekeeperserver.authentication.AuthenticationException;
 import se.uu.ub.cora.gatekeeperserver.authentication.GatekeeperSpy;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperInstanceProvider;
 import se.uu.ub.cora.gatekeeperserver.dependency.GatekeeperLocatorSpy;
+import se.uu.ub.cora.gatekeeperserver.json.FlatJsonMediaTypes;
 
 public class TokenProviderEndpointTest {
+	private static final String AUTH_TOKEN_JSON = "application/vnd.cora.authToken+json";
 	private static final String TOKEN = "someToken";
 	private static final String TOKEN_ID = "someTokenId";
 	private Response response;
@@ -40,6 +54,7 @@ public class TokenProviderEndpointTest {
 	private TokenProviderEndpoint tokenProviderEndpoint;
 	private String jsonUserInfo;
 	private GatekeeperSpy gatekeeperSpy;
+	private AsyncResponseSpy asyncResponse;
 
 	@BeforeMethod
 	public void setUp() {
@@ -49,6 +64,9 @@ public class TokenProviderEndpointTest {
 		locator.MRV.setDefaultReturnValuesSupplier("locateGatekeeper", () -> gatekeeperSpy);
 		GatekeeperInstanceProvider.setGatekeeperLocator(locator);
 		tokenProviderEndpoint = new TokenProviderEndpoint();
+		tokenProviderEndpoint.onlyForTestSetStorageWorkExecutor(
+				StorageWorkExecutor.usingExecutor(Runnable::run));
+		asyncResponse = new AsyncResponseSpy();
 		jsonUserInfo = jsonUserInfo();
 	}
 
@@ -61,9 +79,29 @@ public class TokenProviderEndpointTest {
 		return userInfo.replace("\n", "");
 	}
 
+	private InputStream toStream(String json) {
+		return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private Response getAuthTokenForUserInfo(String json, String accept) {
+		tokenProviderEndpoint.getAuthTokenForUserInfo(toStream(json), accept, asyncResponse);
+		return getResumedResponse();
+	}
+
+	private Response getAuthTokenForFlatUserInfo(UserInfo userInfo, String accept) {
+		tokenProviderEndpoint.getAuthTokenForFlatUserInfo(userInfo, accept, asyncResponse);
+		return getResumedResponse();
+	}
+
+	private Response getResumedResponse() {
+		asyncResponse.MCR.assertNumberOfCallsToMethod("resume", 1);
+		return (Response) asyncResponse.MCR
+				.getParameterForMethodAndCallNumberAndParameter("resume", 0, "response");
+	}
+
 	@Test
 	public void testDependenciesAreCalled() {
-		response = tokenProviderEndpoint.getAuthTokenForUserInfo(jsonUserInfo);
+		response = getAuthTokenForUserInfo(jsonUserInfo, null);
 		locator.MCR.assertMethodWasCalled("locateGatekeeper");
 		gatekeeperSpy.MCR.assertMethodWasCalled("getAuthTokenForUserInfo");
 	}
@@ -71,21 +109,191 @@ public class TokenProviderEndpointTest {
 	@Test
 	public void testGetToken_Annotations() throws NoSuchMethodException {
 		AnnotationTestHelper annotationHelper = AnnotationTestHelper
-				.createAnnotationTestHelperForClassMethodNameAndNumOfParameters(
-						TokenProviderEndpoint.class, "getAuthTokenForUserInfo", 1);
+				.createAnnotationTestHelperForClassMethodNameAndParameters(
+						TokenProviderEndpoint.class, "getAuthTokenForUserInfo", InputStream.class,
+						String.class, AsyncResponse.class);
 
 		annotationHelper.assertHttpMethodAnnotation("POST");
+		annotationHelper.assertHeaderParamAnnotationByNameAndPosition("Accept", 1);
+		annotationHelper.assertSuspendedAnnotationForPosition(2);
 		annotationHelper.assertConsumesAnnotation("application/vnd.cora.userInfo+json");
-		annotationHelper.assertProducesAnnotation("application/vnd.cora.authToken+json");
+		annotationHelper.assertProducesAnnotation(AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN);
 	}
 
 	@Test
 	public void testGetToken() {
-		response = tokenProviderEndpoint.getAuthTokenForUserInfo(jsonUserInfo);
+		response = getAuthTokenForUserInfo(jsonUserInfo, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
 		assertEquals(response.getEntity(), expectedAuthToken());
+		assertEquals(response.getMediaType().toString(), AUTH_TOKEN_JSON);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetTokenWithFlatJsonPreferredByQualityIsFlatJson() {
+		response = getAuthTokenForUserInfo(jsonUserInfo,
+				AUTH_TOKEN_JSON + ";q=0.5, " + FlatJsonMediaTypes.AUTH_TOKEN + ";q=0.8");
+
+		assertResponseIsFlatAuthTokenFromGatekeeper("getAuthTokenForUserInfo");
+	}
+
+	@Test
+	public void testGetTokenWithCoraJsonPreferredByQualityIsCoraJson() {
+		response = getAuthTokenForUserInfo(jsonUserInfo,
+				FlatJsonMediaTypes.AUTH_TOKEN + ";q=0.5, " + AUTH_TOKEN_JSON);
+
+		assertEquals(response.getEntity(), expectedAuthToken());
+		assertEquals(response.getMediaType().toString(), AUTH_TOKEN_JSON);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testDefaultStorageWorkExecutor() {
+		TokenProviderEndpoint endpoint = new TokenProviderEndpoint();
+
+		assertSame(endpoint.onlyForTestGetStorageWorkExecutor(), StorageWorkExecutor.INSTANCE);
+	}
+
+	@Test
+	public void testGetTokenIsAnsweredFromStorageWorkExecutor() {
+		List<Runnable> storageWork = new ArrayList<>();
+		tokenProviderEndpoint.onlyForTestSetStorageWorkExecutor(
+				StorageWorkExecutor.usingExecutor(storageWork::add));
+
+		tokenProviderEndpoint.getAuthTokenForUserInfo(toStream(jsonUserInfo), null, asyncResponse);
+
+		gatekeeperSpy.MCR.assertMethodNotCalled("getAuthTokenForUserInfo");
+		asyncResponse.MCR.assertMethodNotCalled("resume");
+		storageWork.get(0).run();
+		response = getResumedResponse();
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(response.getEntity(), expectedAuthToken());
+	}
+
+	@Test
+	public void testGetTokenRejectedByStorageWorkExecutorIsServiceUnavailable() {
+		tokenProviderEndpoint.onlyForTestSetStorageWorkExecutor(
+				StorageWorkExecutor.usingExecutor(_ -> {
+					throw new RejectedExecutionException("shut down");
+				}));
+
+		response = getAuthTokenForUserInfo(jsonUserInfo, null);
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getAuthTokenForUserInfo");
+	}
+
+	@Test
+	public void testGetTokenWithoutFreeStorageWorkPermitIsServiceUnavailable() {
+		StorageWorkExecutor storageWorkExecutor = StorageWorkExecutor.usingExecutor(_ -> {
+		});
+		storageWorkExecutor.setMaxConcurrentStorageWork(1);
+		tokenProviderEndpoint.onlyForTestSetStorageWorkExecutor(storageWorkExecutor);
+		tokenProviderEndpoint.getAuthTokenForUserInfo(toStream(jsonUserInfo), null,
+				new AsyncResponseSpy());
+
+		response = getAuthTokenForUserInfo(jsonUserInfo, null);
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getAuthTokenForUserInfo");
+	}
+
+	@Test
+	public void testGetTokenSetsResponseTimeout() {
+		getAuthTokenForUserInfo(jsonUserInfo, null);
+
+		asyncResponse.MCR.assertParameters("setTimeout", 0,
+				TokenProviderEndpoint.RESPONSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testGetTokenForFlatUserInfoSetsResponseTimeout() {
+		getAuthTokenForFlatUserInfo(UserInfo.withIdInUserStorage("131313"), null);
+
+		asyncResponse.MCR.assertParameters("setTimeout", 0,
+				TokenProviderEndpoint.RESPONSE_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testGetTokenWithUnexpectedErrorIsResumedWithError() {
+		RuntimeException error = new RuntimeException("error from spy");
+		gatekeeperSpy.MRV.setAlwaysThrowException("getAuthTokenForUserInfo", error);
+
+		tokenProviderEndpoint.getAuthTokenForUserInfo(toStream(jsonUserInfo), null, asyncResponse);
+
+		asyncResponse.MCR.assertNumberOfCallsToMethod("resume", 1);
+		assertSame(asyncResponse.MCR.getParameterForMethodAndCallNumberAndParameter("resume", 0,
+				"throwable"), error);
+	}
+
+	@Test
+	public void testGetTokenAsFlatJson() {
+		response = getAuthTokenForUserInfo(jsonUserInfo, FlatJsonMediaTypes.AUTH_TOKEN);
+
+		assertResponseIsFlatAuthTokenFromGatekeeper("getAuthTokenForUserInfo");
+	}
+
+	private void assertResponseIsFlatAuthTokenFromGatekeeper(String methodName) {
+		assertResponseStatusIs(Response.Status.OK);
+		assertSame(response.getEntity(), gatekeeperSpy.MCR.getReturnValue(methodName, 0));
+		assertEquals(response.getMediaType().toString(), FlatJsonMediaTypes.AUTH_TOKEN);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetTokenWithFlatJsonNotFirstInAcceptIsCoraJson() {
+		response = getAuthTokenForUserInfo(jsonUserInfo,
+				AUTH_TOKEN_JSON + ", " + FlatJsonMediaTypes.AUTH_TOKEN);
+
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(response.getEntity(), expectedAuthToken());
+		assertEquals(response.getMediaType().toString(), AUTH_TOKEN_JSON);
+		assertEquals(response.getMetadata().getFirst("Vary"), "Accept");
+	}
+
+	@Test
+	public void testGetTokenForFlatUserInfo_Annotations() throws NoSuchMethodException {
+		AnnotationTestHelper annotationHelper = AnnotationTestHelper
+				.createAnnotationTestHelperForClassMethodNameAndParameters(
+						TokenProviderEndpoint.class, "getAuthTokenForFlatUserInfo",
+						UserInfo.class, String.class, AsyncResponse.class);
+
+		annotationHelper.assertHttpMethodAnnotation("POST");
+		annotationHelper.assertHeaderParamAnnotationByNameAndPosition("Accept", 1);
+		annotationHelper.assertSuspendedAnnotationForPosition(2);
+		annotationHelper.assertConsumesAnnotation(FlatJsonMediaTypes.USER_INFO);
+		annotationHelper.assertProducesAnnotation(AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN);
+	}
+
+	@Test
+	public void testGetTokenForFlatUserInfo() {
+		UserInfo userInfo = UserInfo.withIdInUserStorage("131313");
+
+		response = getAuthTokenForFlatUserInfo(userInfo, null);
+
+		gatekeeperSpy.MCR.assertParameters("getAuthTokenForUserInfo", 0, userInfo);
+		assertResponseStatusIs(Response.Status.OK);
+		assertEquals(response.getEntity(), expectedAuthToken());
+	}
+
+	@Test
+	public void testGetTokenForFlatUserInfoAsFlatJson() {
+		response = getAuthTokenForFlatUserInfo(UserInfo.withIdInUserStorage("131313"),
+				FlatJsonMediaTypes.AUTH_TOKEN);
+
+		assertResponseIsFlatAuthTokenFromGatekeeper("getAuthTokenForUserInfo");
+	}
+
+	@Test
+	public void testGetTokenForFlatUserInfoWithProblem() {
+		gatekeeperSpy.MRV.setAlwaysThrowException("getAuthTokenForUserInfo",
+				new AuthenticationException("problem getting authToken for userInfo"));
+
+		response = getAuthTokenForFlatUserInfo(UserInfo.withIdInUserStorage("131313"), null);
+
+		assertResponseStatusIs(Response.Status.UNAUTHORIZED);
 	}
 
 	private String expectedAuthToken() {
@@ -130,12 +338,41 @@ public class TokenProviderEndpointTest {
 		assertNotNull(response.getEntity(), "An entity in json format should be returned");
 	}
 
+	@Test
+	public void testGetTokenWithMalformedUserInfo() {
+		response = getAuthTokenForUserInfo("{\"children\":[{\"name\":", null);
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getAuthTokenForUserInfo");
+	}
+
+	@Test
+	public void testGetTokenStopsReadingUserInfoWhenIdInUserStorageIsFound() {
+		String userInfoWithLongEnd = jsonUserInfo
+				+ " ".repeat(JsonToUserInfoConverter.MAX_USER_INFO_LENGTH);
+
+		response = getAuthTokenForUserInfo(userInfoWithLongEnd, null);
+
+		assertResponseStatusIs(Response.Status.OK);
+	}
+
+	@Test
+	public void testGetTokenWithTooLongChildrenInUserInfo() {
+		String tooLongUserInfo = "{\"children\":[" + " ".repeat(
+				JsonToUserInfoConverter.MAX_USER_INFO_LENGTH) + "],\"name\":\"userInfo\"}";
+
+		response = getAuthTokenForUserInfo(tooLongUserInfo, null);
+
+		assertResponseStatusIs(Response.Status.BAD_REQUEST);
+		gatekeeperSpy.MCR.assertMethodNotCalled("getAuthTokenForUserInfo");
+	}
+
 	@Test
 	public void testNonUserInfoWithProblem() {
 		gatekeeperSpy.MRV.setAlwaysThrowException("getAuthTokenForUserInfo",
 				new AuthenticationException("problem getting authToken for userInfo"));
 
-		response = tokenProviderEndpoint.getAuthTokenForUserInfo(jsonUserInfo);
+		response = getAuthTokenForUserInfo(jsonUserInfo, null);
 
 		assertResponseStatusIs(Response.Status.UNAUTHORIZED);
 	}
@@ -144,17 +381,17 @@ public class TokenProviderEndpointTest {
 	public void testRenewAuthToken_Annotations() throws NoSuchMethodException {
 		AnnotationTestHelper annotationHelper = AnnotationTestHelper
 				.createAnnotationTestHelperForClassMethodNameAndNumOfParameters(
-						TokenProviderEndpoint.class, "renewAuthToken", 2);
+						TokenProviderEndpoint.class, "renewAuthToken", 3);
 
 		annotationHelper.assertHttpMethodAndPathAnnotation("POST", "{tokenId}");
 		annotationHelper.assertPathParamAnnotationByNameAndPosition("tokenId", 0);
 		annotationHelper.assertConsumesAnnotation("text/plain");
-		annotationHelper.assertProducesAnnotation("application/vnd.cora.authToken+json");
+		annotationHelper.assertProducesAnnotation(AUTH_TOKEN_JSON, FlatJsonMediaTypes.AUTH_TOKEN);
 	}
 
 	@Test
 	public void testRenewAuthCallsCorrectMethod() {
-		tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN);
+		tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN, null);
 
 		gatekeeperSpy.MCR.assertCalledParametersReturn("renewAuthToken", TOKEN_ID, TOKEN);
 	}
@@ -164,15 +401,25 @@ public class TokenProviderEndpointTest {
 		gatekeeperSpy.MRV.setAlwaysThrowException("renewAuthToken",
 				new AuthenticationException("error from spy"));
 
-		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN);
+		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN, null);
 
 		assertResponseStatusIs(Response.Status.UNAUTHORIZED);
 	}
 
+	@Test
+	public void testRenewAuthTokenWithoutFreeStorageWorkPermitIsServiceUnavailable() {
+		gatekeeperSpy.MRV.setAlwaysThrowException("renewAuthToken",
+				new RejectedExecutionException("no permit"));
+
+		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN, null);
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+	}
+
 	@Test
 	public void testRenewAuthTokenOK() {
 
-		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN);
+		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN, null);
 
 		assertResponseStatusIs(Response.Status.OK);
 		assertEntityExists();
@@ -180,6 +427,14 @@ public class TokenProviderEndpointTest {
 
 	}
 
+	@Test
+	public void testRenewAuthTokenAsFlatJson() {
+		response = tokenProviderEndpoint.renewAuthToken(TOKEN_ID, TOKEN,
+				FlatJsonMediaTypes.AUTH_TOKEN);
+
+		assertResponseIsFlatAuthTokenFromGatekeeper("renewAuthToken");
+	}
+
 	@Test
 	public void testRemoveAuthToken_Annotations() throws NoSuchMethodException {
 		AnnotationTestHelper annotationHelper = AnnotationTestHelper
@@ -207,4 +462,14 @@ public class TokenProviderEndpointTest {
 
 		assertResponseStatusIs(Response.Status.NOT_FOUND);
 	}
+
+	@Test
+	public void testRemoveAuthTokenWithoutFreeStorageWorkPermitIsServiceUnavailable() {
+		gatekeeperSpy.MRV.setAlwaysThrowException("removeAuthToken",
+				new RejectedExecutionException("no permit"));
+
+		response = tokenProviderEndpoint.removeAuthToken(TOKEN_ID, TOKEN);
+
+		assertResponseStatusIs(Response.Status.SERVICE_UNAVAILABLE);
+	}
 }